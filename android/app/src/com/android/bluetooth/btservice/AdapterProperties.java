@@ -1164,6 +1164,10 @@ class AdapterProperties {
             Intent intent;
             if (state == AbstractionLayer.BT_DISCOVERY_STOPPED) {
                 mDiscovering = false;
+                if (mRemoteDevices != null) {
+                    // Deliver the pending batched results before the discovery finished intent.
+                    mRemoteDevices.onDiscoveryStopped();
+                }
                 mService.clearDiscoveringPackages();
                 mDiscoveryEndMs = System.currentTimeMillis();
                 intent = new Intent(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
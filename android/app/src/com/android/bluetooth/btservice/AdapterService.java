@@ -152,6 +152,7 @@ import java.time.Duration;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -5778,6 +5779,9 @@ public class AdapterService extends Service {
         }
         mSilenceDeviceManager.dump(fd, writer, args);
         mDatabaseManager.dump(writer);
+        if (mRemoteDevices != null) {
+            mRemoteDevices.dump(writer);
+        }
 
         writer.write(sb.toString());
         writer.flush();
@@ -5911,6 +5915,33 @@ public class AdapterService extends Service {
     @GuardedBy("mDeviceConfigLock")
     private int mScreenOffBalancedIntervalMillis =
             ScanManager.SCAN_MODE_SCREEN_OFF_BALANCED_INTERVAL_MS;
+    @GuardedBy("mDeviceConfigLock")
+    private Set<String> mScanResultCoalescingPackages = Collections.emptySet();
+    @GuardedBy("mDeviceConfigLock")
+    private long mScanResultCoalescingWindowMillis =
+            DeviceConfigListener.DEFAULT_SCAN_RESULT_COALESCING_WINDOW_MILLIS;
+    @GuardedBy("mDeviceConfigLock")
+    private int mScanResultCoalescingMaxResults =
+            DeviceConfigListener.DEFAULT_SCAN_RESULT_COALESCING_MAX_RESULTS;
+    @GuardedBy("mDeviceConfigLock")
+    private Set<String> mGattNotificationBatchingPackages = Collections.emptySet();
+    @GuardedBy("mDeviceConfigLock")
+    private long mGattNotificationBatchingWindowMillis =
+            DeviceConfigListener.DEFAULT_GATT_NOTIFICATION_BATCHING_WINDOW_MILLIS;
+    @GuardedBy("mDeviceConfigLock")
+    private int mGattNotificationBatchingMaxNotifications =
+            DeviceConfigListener.DEFAULT_GATT_NOTIFICATION_BATCHING_MAX_NOTIFICATIONS;
+    @GuardedBy("mDeviceConfigLock")
+    private int mRemoteDeviceCacheCapacity =
+            DeviceConfigListener.DEFAULT_REMOTE_DEVICE_CACHE_CAPACITY;
+    @GuardedBy("mDeviceConfigLock")
+    private long mRemoteDeviceCacheTtlMillis =
+            DeviceConfigListener.DEFAULT_REMOTE_DEVICE_CACHE_TTL_MILLIS;
+    @GuardedBy("mDeviceConfigLock")
+    private Set<String> mDiscoveryBatchingPackages = Collections.emptySet();
+    @GuardedBy("mDeviceConfigLock")
+    private long mDiscoveryBatchingWindowMillis =
+            DeviceConfigListener.DEFAULT_DISCOVERY_BATCHING_WINDOW_MILLIS;
 
     public @NonNull Predicate<String> getLocationDenylistName() {
         synchronized (mDeviceConfigLock) {
@@ -6011,6 +6042,97 @@ public class AdapterService extends Service {
         }
     }
 
+    /**
+     * Returns the packages whose callback scans get coalesced scan result delivery.
+     */
+    public @NonNull Set<String> getScanResultCoalescingPackages() {
+        synchronized (mDeviceConfigLock) {
+            return mScanResultCoalescingPackages;
+        }
+    }
+
+    /**
+     * Returns the window in millis over which scan results are coalesced.
+     */
+    public long getScanResultCoalescingWindowMillis() {
+        synchronized (mDeviceConfigLock) {
+            return mScanResultCoalescingWindowMillis;
+        }
+    }
+
+    /**
+     * Returns the number of pending coalesced scan results that triggers delivery.
+     */
+    public int getScanResultCoalescingMaxResults() {
+        synchronized (mDeviceConfigLock) {
+            return mScanResultCoalescingMaxResults;
+        }
+    }
+
+    /**
+     * Returns the packages whose GATT clients get batched notification delivery.
+     */
+    public @NonNull Set<String> getGattNotificationBatchingPackages() {
+        synchronized (mDeviceConfigLock) {
+            return mGattNotificationBatchingPackages;
+        }
+    }
+
+    /**
+     * Returns the window in millis over which GATT notifications are batched.
+     */
+    public long getGattNotificationBatchingWindowMillis() {
+        synchronized (mDeviceConfigLock) {
+            return mGattNotificationBatchingWindowMillis;
+        }
+    }
+
+    /**
+     * Returns the number of pending GATT notifications that triggers delivery.
+     */
+    public int getGattNotificationBatchingMaxNotifications() {
+        synchronized (mDeviceConfigLock) {
+            return mGattNotificationBatchingMaxNotifications;
+        }
+    }
+
+    /**
+     * Returns the number of unbonded, disconnected remote devices whose properties are kept.
+     */
+    public int getRemoteDeviceCacheCapacity() {
+        synchronized (mDeviceConfigLock) {
+            return mRemoteDeviceCacheCapacity;
+        }
+    }
+
+    /**
+     * Returns how long in millis the properties of an unseen remote device are kept, or 0 to
+     * keep them until evicted by newer devices.
+     */
+    public long getRemoteDeviceCacheTtlMillis() {
+        synchronized (mDeviceConfigLock) {
+            return mRemoteDeviceCacheTtlMillis;
+        }
+    }
+
+    /**
+     * Returns the packages that get batched discovery results.
+     */
+    public @NonNull Set<String> getDiscoveryBatchingPackages() {
+        synchronized (mDeviceConfigLock) {
+            return mDiscoveryBatchingPackages;
+        }
+    }
+
+    /**
+     * Returns the window in millis over which discovery results are batched.
+     */
+    public long getDiscoveryBatchingWindowMillis() {
+        synchronized (mDeviceConfigLock) {
+            return mDiscoveryBatchingWindowMillis;
+        }
+    }
+
     private final DeviceConfigListener mDeviceConfigListener = new DeviceConfigListener();
 
     private class DeviceConfigListener implements DeviceConfig.OnPropertiesChangedListener {
@@ -6038,6 +6160,26 @@ public class AdapterService extends Service {
                 "screen_off_balanced_window_millis";
         private static final String SCREEN_OFF_BALANCED_INTERVAL_MILLIS =
                 "screen_off_balanced_interval_millis";
+        private static final String SCAN_RESULT_COALESCING_PACKAGES =
+                "scan_result_coalescing_packages";
+        private static final String SCAN_RESULT_COALESCING_WINDOW_MILLIS =
+                "scan_result_coalescing_window_millis";
+        private static final String SCAN_RESULT_COALESCING_MAX_RESULTS =
+                "scan_result_coalescing_max_results";
+        private static final String GATT_NOTIFICATION_BATCHING_PACKAGES =
+                "gatt_notification_batching_packages";
+        private static final String GATT_NOTIFICATION_BATCHING_WINDOW_MILLIS =
+                "gatt_notification_batching_window_millis";
+        private static final String GATT_NOTIFICATION_BATCHING_MAX_NOTIFICATIONS =
+                "gatt_notification_batching_max_notifications";
+        private static final String REMOTE_DEVICE_CACHE_CAPACITY =
+                "remote_device_cache_capacity";
+        private static final String REMOTE_DEVICE_CACHE_TTL_MILLIS =
+                "remote_device_cache_ttl_millis";
+        private static final String DISCOVERY_BATCHING_PACKAGES =
+                "discovery_batching_packages";
+        private static final String DISCOVERY_BATCHING_WINDOW_MILLIS =
+                "discovery_batching_window_millis";
 
         /**
          * Default denylist which matches Eddystone and iBeacon payloads.
@@ -6051,6 +6193,14 @@ public class AdapterService extends Service {
         private static final int DEFAULT_SCAN_UPGRADE_DURATION_MILLIS = (int) SECOND_IN_MILLIS * 6;
         private static final int DEFAULT_SCAN_DOWNGRADE_DURATION_BT_CONNECTING_MILLIS =
                 (int) SECOND_IN_MILLIS * 6;
+        private static final long DEFAULT_SCAN_RESULT_COALESCING_WINDOW_MILLIS = 30;
+        private static final int DEFAULT_SCAN_RESULT_COALESCING_MAX_RESULTS = 32;
+        private static final long DEFAULT_GATT_NOTIFICATION_BATCHING_WINDOW_MILLIS = 5;
+        private static final int DEFAULT_GATT_NOTIFICATION_BATCHING_MAX_NOTIFICATIONS = 32;
+        private static final int DEFAULT_REMOTE_DEVICE_CACHE_CAPACITY =
+                RemoteDevices.MAX_DEVICE_QUEUE_SIZE;
+        private static final long DEFAULT_REMOTE_DEVICE_CACHE_TTL_MILLIS = 0;
+        private static final long DEFAULT_DISCOVERY_BATCHING_WINDOW_MILLIS = 500;
 
         @RequiresPermission(android.Manifest.permission.READ_DEVICE_CONFIG)
         public void start() {
@@ -6093,6 +6243,46 @@ public class AdapterService extends Service {
                 mScreenOffBalancedIntervalMillis = properties.getInt(
                         SCREEN_OFF_BALANCED_INTERVAL_MILLIS,
                         ScanManager.SCAN_MODE_SCREEN_OFF_BALANCED_INTERVAL_MS);
+                final String coalescingPackages =
+                        properties.getString(SCAN_RESULT_COALESCING_PACKAGES, null);
+                mScanResultCoalescingPackages = !TextUtils.isEmpty(coalescingPackages)
+                        ? new HashSet<>(Arrays.asList(coalescingPackages.split(",")))
+                        : Collections.emptySet();
+                mScanResultCoalescingWindowMillis = properties.getLong(
+                        SCAN_RESULT_COALESCING_WINDOW_MILLIS,
+                        DEFAULT_SCAN_RESULT_COALESCING_WINDOW_MILLIS);
+                mScanResultCoalescingMaxResults = properties.getInt(
+                        SCAN_RESULT_COALESCING_MAX_RESULTS,
+                        DEFAULT_SCAN_RESULT_COALESCING_MAX_RESULTS);
+                final String batchingPackages =
+                        properties.getString(GATT_NOTIFICATION_BATCHING_PACKAGES, null);
+                mGattNotificationBatchingPackages = !TextUtils.isEmpty(batchingPackages)
+                        ? new HashSet<>(Arrays.asList(batchingPackages.split(",")))
+                        : Collections.emptySet();
+                mGattNotificationBatchingWindowMillis = properties.getLong(
+                        GATT_NOTIFICATION_BATCHING_WINDOW_MILLIS,
+                        DEFAULT_GATT_NOTIFICATION_BATCHING_WINDOW_MILLIS);
+                mGattNotificationBatchingMaxNotifications = properties.getInt(
+                        GATT_NOTIFICATION_BATCHING_MAX_NOTIFICATIONS,
+                        DEFAULT_GATT_NOTIFICATION_BATCHING_MAX_NOTIFICATIONS);
+                mRemoteDeviceCacheCapacity = properties.getInt(REMOTE_DEVICE_CACHE_CAPACITY,
+                        DEFAULT_REMOTE_DEVICE_CACHE_CAPACITY);
+                mRemoteDeviceCacheTtlMillis = properties.getLong(REMOTE_DEVICE_CACHE_TTL_MILLIS,
+                        DEFAULT_REMOTE_DEVICE_CACHE_TTL_MILLIS);
+                final String discoveryBatchingPackages =
+                        properties.getString(DISCOVERY_BATCHING_PACKAGES, null);
+                mDiscoveryBatchingPackages = !TextUtils.isEmpty(discoveryBatchingPackages)
+                        ? new HashSet<>(Arrays.asList(discoveryBatchingPackages.split(",")))
+                        : Collections.emptySet();
+                mDiscoveryBatchingWindowMillis = properties.getLong(
+                        DISCOVERY_BATCHING_WINDOW_MILLIS,
+                        DEFAULT_DISCOVERY_BATCHING_WINDOW_MILLIS);
+                // Until onCreate() creates mRemoteDevices, its init() picks the limits up.
+                RemoteDevices remoteDevices = mRemoteDevices;
+                if (remoteDevices != null) {
+                    remoteDevices.setCacheLimits(mRemoteDeviceCacheCapacity,
+                            mRemoteDeviceCacheTtlMillis);
+                }
             }
         }
     }
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import static android.Manifest.permission.BLUETOOTH_SCAN;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.util.Log;
+
+import com.android.bluetooth.Utils;
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Batches the devices found during discovery for the packages that opted in.
+ *
+ * <p>Instead of one {@link BluetoothDevice#ACTION_FOUND} broadcast per device, an opted-in
+ * package receives a {@link BluetoothDevice#ACTION_FOUND_BATCH} broadcast once the batching
+ * window has passed since the first pending device. Within a window only the latest report of
+ * each device is kept, so repeated inquiry results with a new RSSI are delivered once. Devices
+ * whose name or class changes after they were delivered are delivered again in the next batch.
+ * Pending devices are delivered when discovery stops.
+ *
+ * @hide
+ */
+/* package */ class DiscoveryBatcher {
+    private static final boolean DBG = false;
+    private static final String TAG = "BluetoothDiscoveryBatcher";
+
+    private static final int MSG_FLUSH = 0;
+
+    private static class PackageQueue {
+        final String packageName;
+        // Of the latest discovery of the package, as it may start discovery again with another
+        // permission.
+        String permission;
+        boolean hasDisavowedLocation;
+        // ACTION_FOUND intents by device address, in the order the devices were first found.
+        final LinkedHashMap<String, Intent> pending = new LinkedHashMap<>();
+        // Devices found since discovery started.
+        final Set<String> found = new HashSet<>();
+
+        long devicesQueued;
+        long devicesCoalesced;
+        long batchesDelivered;
+
+        PackageQueue(String packageName) {
+            this.packageName = packageName;
+        }
+    }
+
+    private final AdapterService mAdapterService;
+    private final Handler mHandler;
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final Map<String, PackageQueue> mQueues = new HashMap<>();
+
+    DiscoveryBatcher(AdapterService adapterService, Looper looper) {
+        mAdapterService = adapterService;
+        mHandler = new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_FLUSH) {
+                    flush((String) msg.obj);
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns whether the devices found for {@code packageName} are batched.
+     */
+    boolean isBatched(String packageName) {
+        return mAdapterService.getDiscoveryBatchingPackages().contains(packageName);
+    }
+
+    /**
+     * Queues {@code foundIntent} for {@code pkg}, replacing any pending report of the same
+     * device.
+     */
+    void add(DiscoveringPackage pkg, String address, Intent foundIntent) {
+        synchronized (mLock) {
+            PackageQueue queue = mQueues.get(pkg.getPackageName());
+            if (queue == null) {
+                queue = new PackageQueue(pkg.getPackageName());
+                mQueues.put(pkg.getPackageName(), queue);
+            }
+            queue.permission = pkg.getPermission();
+            queue.hasDisavowedLocation = pkg.hasDisavowedLocation();
+            queue.found.add(address);
+            queueLocked(queue, address, foundIntent);
+        }
+    }
+
+    /**
+     * Queues {@code foundIntent} again for the packages that already found the device, as its
+     * properties changed.
+     *
+     * @param locationDenylisted whether the device is now on the location deny list, in which
+     *     case it is no longer reported to the packages that disavowed location
+     */
+    void update(String address, Intent foundIntent, boolean locationDenylisted) {
+        synchronized (mLock) {
+            for (PackageQueue queue : mQueues.values()) {
+                if (!queue.found.contains(address)) {
+                    continue;
+                }
+                if (locationDenylisted && queue.hasDisavowedLocation) {
+                    queue.pending.remove(address);
+                    continue;
+                }
+                queueLocked(queue, address, foundIntent);
+            }
+        }
+    }
+
+    /**
+     * Returns whether any package found the device since discovery started.
+     */
+    boolean wasFound(String address) {
+        synchronized (mLock) {
+            for (PackageQueue queue : mQueues.values()) {
+                if (queue.found.contains(address)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void queueLocked(PackageQueue queue, String address, Intent foundIntent) {
+        queue.devicesQueued++;
+        if (queue.pending.put(address, foundIntent) != null) {
+            queue.devicesCoalesced++;
+        } else if (queue.pending.size() == 1) {
+            mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_FLUSH, queue.packageName),
+                    mAdapterService.getDiscoveryBatchingWindowMillis());
+        }
+    }
+
+    /**
+     * Delivers the pending devices of every package and forgets the found devices, as
+     * discovery stopped.
+     */
+    void onDiscoveryStopped() {
+        ArrayList<String> packageNames;
+        synchronized (mLock) {
+            packageNames = new ArrayList<>(mQueues.keySet());
+        }
+        for (String packageName : packageNames) {
+            flush(packageName);
+        }
+        synchronized (mLock) {
+            for (PackageQueue queue : mQueues.values()) {
+                queue.found.clear();
+            }
+        }
+    }
+
+    void cleanup() {
+        synchronized (mLock) {
+            mHandler.removeCallbacksAndMessages(null);
+            mQueues.clear();
+        }
+    }
+
+    @VisibleForTesting
+    void flush(String packageName) {
+        ArrayList<Intent> devices;
+        String permission;
+        synchronized (mLock) {
+            PackageQueue queue = mQueues.get(packageName);
+            if (queue == null || queue.pending.isEmpty()) {
+                return;
+            }
+            mHandler.removeMessages(MSG_FLUSH, queue.packageName);
+            devices = new ArrayList<>(queue.pending.values());
+            permission = queue.permission;
+            queue.pending.clear();
+            queue.batchesDelivered++;
+        }
+        if (DBG) {
+            Log.d(TAG, "flush() - package=" + packageName + ", devices=" + devices.size());
+        }
+        Intent intent = new Intent(BluetoothDevice.ACTION_FOUND_BATCH);
+        intent.putParcelableArrayListExtra(BluetoothDevice.EXTRA_FOUND_DEVICES, devices);
+        intent.setPackage(packageName);
+        String[] permissions = permission != null
+                ? new String[] { BLUETOOTH_SCAN, permission }
+                : new String[] { BLUETOOTH_SCAN };
+        mAdapterService.sendBroadcastMultiplePermissions(intent, permissions,
+                Utils.getTempBroadcastOptions());
+    }
+
+    void dump(PrintWriter writer) {
+        synchronized (mLock) {
+            if (mQueues.isEmpty()) {
+                return;
+            }
+            writer.println("\nBatched discovery delivery:");
+            for (PackageQueue queue : mQueues.values()) {
+                writer.println("  " + queue.packageName + ": devices (queued/coalesced/pending) "
+                        + queue.devicesQueued + " / " + queue.devicesCoalesced + " / "
+                        + queue.pending.size() + ", batches " + queue.batchesDelivered);
+            }
+        }
+    }
+}
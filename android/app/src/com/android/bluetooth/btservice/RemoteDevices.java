@@ -41,6 +41,7 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.ParcelUuid;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.util.Log;
 
@@ -49,22 +50,28 @@ import com.android.bluetooth.R;
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.bas.BatteryService;
 import com.android.bluetooth.hfp.HeadsetHalConstants;
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 
-import java.util.ArrayDeque;
+import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Predicate;
 
 final class RemoteDevices {
     private static final boolean DBG = false;
     private static final String TAG = "BluetoothRemoteDevices";
 
-    // Maximum number of device properties to remember
-    private static final int MAX_DEVICE_QUEUE_SIZE = 200;
+    // Maximum number of device properties to remember, unless configured otherwise
+    @VisibleForTesting
+    static final int MAX_DEVICE_QUEUE_SIZE = 200;
 
     private BluetoothAdapter mAdapter;
     private AdapterService mAdapterService;
@@ -74,9 +81,19 @@ final class RemoteDevices {
     private static final int UUID_INTENT_DELAY = 6000;
     private static final int MESSAGE_UUID_INTENT = 1;
 
-    private final HashMap<String, DeviceProperties> mDevices;
-    private final HashMap<String, String> mDualDevicesMap;
-    private ArrayDeque<String> mDeviceQueue;
+    private final ConcurrentHashMap<String, DeviceProperties> mDevices;
+    private final ConcurrentHashMap<String, String> mDualDevicesMap;
+    // Devices that may be evicted, least recently seen first, with the time they were last seen.
+    // Bonded and connected devices are pinned instead, and never evicted.
+    @GuardedBy("mDevices")
+    private final LinkedHashMap<String, Long> mDeviceQueue;
+    @GuardedBy("mDevices")
+    private final Set<String> mPinnedDevices;
+    private final AtomicLong mCacheHits = new AtomicLong();
+    private final AtomicLong mCacheMisses = new AtomicLong();
+    private final AtomicLong mCacheEvictions = new AtomicLong();
+    private volatile int mCacheCapacity = MAX_DEVICE_QUEUE_SIZE;
+    private volatile long mCacheTtlMillis;
 
     /**
      * Bluetooth HFP v1.8 specifies the Battery Charge indicator of AG can take values from
@@ -97,6 +114,7 @@ final class RemoteDevices {
     private static final int HFP_BATTERY_CHARGE_INDICATOR_5 = 100;
 
     private final Handler mHandler;
+    private final DiscoveryBatcher mDiscoveryBatcher;
     private class RemoteDevicesHandler extends Handler {
 
         /**
@@ -170,10 +188,12 @@ final class RemoteDevices {
         mAdapter = ((Context) service).getSystemService(BluetoothManager.class).getAdapter();
         mAdapterService = service;
         mSdpTracker = new ArrayList<BluetoothDevice>();
-        mDevices = new HashMap<String, DeviceProperties>();
-        mDualDevicesMap = new HashMap<String, String>();
-        mDeviceQueue = new ArrayDeque<>();
+        mDevices = new ConcurrentHashMap<String, DeviceProperties>();
+        mDualDevicesMap = new ConcurrentHashMap<String, String>();
+        mDeviceQueue = new LinkedHashMap<>(16, 0.75f, true);
+        mPinnedDevices = new HashSet<>();
         mHandler = new RemoteDevicesHandler(looper);
+        mDiscoveryBatcher = new DiscoveryBatcher(service, looper);
     }
 
     /**
@@ -191,6 +211,19 @@ final class RemoteDevices {
         filter.addAction(BluetoothHeadsetClient.ACTION_CONNECTION_STATE_CHANGED);
         filter.addAction(BluetoothHeadsetClient.ACTION_AG_EVENT);
         mAdapterService.registerReceiver(mReceiver, filter);
+        setCacheLimits(mAdapterService.getRemoteDeviceCacheCapacity(),
+                mAdapterService.getRemoteDeviceCacheTtlMillis());
+    }
+
+    /**
+     * Sets how many unbonded, disconnected devices are remembered, and for how long.
+     *
+     * @param capacity the maximum number of such devices, or 0 for the default
+     * @param ttlMillis how long an unseen device is remembered, or 0 for no limit
+     */
+    void setCacheLimits(int capacity, long ttlMillis) {
+        mCacheCapacity = capacity > 0 ? capacity : MAX_DEVICE_QUEUE_SIZE;
+        mCacheTtlMillis = ttlMillis;
     }
 
     /**
@@ -233,15 +266,23 @@ final class RemoteDevices {
                 });
                 mDevices.clear();
             }
+            mDeviceQueue.clear();
+            mPinnedDevices.clear();
         }
 
         if (mDualDevicesMap != null) {
             mDualDevicesMap.clear();
         }
 
-        if (mDeviceQueue != null) {
-            mDeviceQueue.clear();
-        }
+        mDiscoveryBatcher.cleanup();
+    }
+
+    /**
+     * Delivers the devices found by the packages that get batched discovery results, as
+     * discovery stopped.
+     */
+    void onDiscoveryStopped() {
+        mDiscoveryBatcher.onDiscoveryStopped();
     }
 
     @Override
@@ -250,20 +291,27 @@ final class RemoteDevices {
     }
 
     DeviceProperties getDeviceProperties(BluetoothDevice device) {
-        synchronized (mDevices) {
-            DeviceProperties prop = mDevices.get(device.getAddress());
-            if (prop == null) {
-                String mainAddress = mDualDevicesMap.get(device.getAddress());
-                if (mainAddress != null && mDevices.get(mainAddress) != null) {
-                    prop = mDevices.get(mainAddress);
-                }
+        DeviceProperties prop = mDevices.get(device.getAddress());
+        if (prop == null) {
+            String mainAddress = mDualDevicesMap.get(device.getAddress());
+            if (mainAddress != null) {
+                prop = mDevices.get(mainAddress);
             }
-            return prop;
         }
+        if (prop != null) {
+            mCacheHits.incrementAndGet();
+        } else {
+            mCacheMisses.incrementAndGet();
+        }
+        return prop;
     }
 
     BluetoothDevice getDevice(byte[] address) {
         String addressString = Utils.getAddressStringFromByte(address);
+        if (addressString == null) {
+            // The concurrent maps do not take null keys.
+            return null;
+        }
         DeviceProperties prop = mDevices.get(addressString);
         if (prop == null) {
             String mainAddress = mDualDevicesMap.get(addressString);
@@ -286,22 +334,104 @@ final class RemoteDevices {
             DeviceProperties pv = mDevices.put(key, prop);
 
             if (pv == null) {
-                mDeviceQueue.offer(key);
-                if (mDeviceQueue.size() > MAX_DEVICE_QUEUE_SIZE) {
-                    String deleteKey = mDeviceQueue.poll();
-                    for (BluetoothDevice device : mAdapterService.getBondedDevices()) {
-                        if (device.getAddress().equals(deleteKey)) {
-                            return prop;
-                        }
-                    }
-                    debugLog("Removing device " + deleteKey + " from property map");
-                    mDevices.remove(deleteKey);
-                }
+                long now = SystemClock.elapsedRealtime();
+                mDeviceQueue.put(key, now);
+                evictDevicesLocked(now);
+            } else if (mPinnedDevices.contains(key)) {
+                // The replaced properties were pinned, the new ones are not bonded or connected.
+                mPinnedDevices.remove(key);
+                long now = SystemClock.elapsedRealtime();
+                mDeviceQueue.put(key, now);
+                evictDevicesLocked(now);
             }
             return prop;
         }
     }
 
+    // Evicts the least recently seen devices beyond the capacity, and those unseen for longer
+    // than the time to live.
+    @GuardedBy("mDevices")
+    private void evictDevicesLocked(long now) {
+        int capacity = mCacheCapacity;
+        long ttlMillis = mCacheTtlMillis;
+        Iterator<Map.Entry<String, Long>> it = mDeviceQueue.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            boolean expired = ttlMillis > 0 && now - eldest.getValue() > ttlMillis;
+            if (mDeviceQueue.size() <= capacity && !expired) {
+                break;
+            }
+            debugLog("Removing device " + eldest.getKey() + " from property map");
+            it.remove();
+            mDevices.remove(eldest.getKey());
+            mCacheEvictions.incrementAndGet();
+        }
+    }
+
+    // Marks the device as recently seen, so that it is evicted last.
+    private void touchDevice(String address) {
+        synchronized (mDevices) {
+            if (mDeviceQueue.containsKey(address)) {
+                mDeviceQueue.put(address, SystemClock.elapsedRealtime());
+            }
+        }
+    }
+
+    // Pins bonded and connected devices, so that they are never evicted, and unpins the others.
+    // Must not be called with mObject held.
+    private void updateDevicePinning(DeviceProperties prop) {
+        boolean pinned = prop.getBondState() != BluetoothDevice.BOND_NONE
+                || prop.getConnectionHandle(BluetoothDevice.TRANSPORT_BREDR)
+                        != BluetoothDevice.ERROR
+                || prop.getConnectionHandle(BluetoothDevice.TRANSPORT_LE)
+                        != BluetoothDevice.ERROR;
+        if (prop.getDevice() == null) {
+            return;
+        }
+        String key = prop.getDevice().getAddress();
+        synchronized (mDevices) {
+            if (mDevices.get(key) != prop) {
+                return;
+            }
+            if (pinned && mDeviceQueue.remove(key) != null) {
+                mPinnedDevices.add(key);
+            } else if (!pinned && mPinnedDevices.remove(key)) {
+                long now = SystemClock.elapsedRealtime();
+                mDeviceQueue.put(key, now);
+                evictDevicesLocked(now);
+            }
+        }
+    }
+
+    // Forgets the device, as it was disconnected while not bonded.
+    private void removeDevice(String key) {
+        if (key == null) {
+            return;
+        }
+        synchronized (mDevices) {
+            mDevices.remove(key);
+            mDeviceQueue.remove(key);
+            mPinnedDevices.remove(key);
+        }
+    }
+
+    void dump(PrintWriter writer) {
+        int cached;
+        int pinned;
+        synchronized (mDevices) {
+            cached = mDevices.size();
+            pinned = mPinnedDevices.size();
+        }
+        writer.println("\nRemote device cache:");
+        writer.println("  Devices (cached/pinned): " + cached + " / " + pinned);
+        writer.println("  Capacity: " + mCacheCapacity + ", time to live: " + mCacheTtlMillis
+                + "ms");
+        writer.println("  Lookups (hits/misses): " + mCacheHits.get() + " / "
+                + mCacheMisses.get());
+        writer.println("  Evictions: " + mCacheEvictions.get());
+        mDiscoveryBatcher.dump(writer);
+    }
+
     class DeviceProperties {
         private String mName;
         private byte[] mAddress;
@@ -428,6 +558,7 @@ final class RemoteDevices {
                     errorLog("setConnectionHandle() unexpected transport value " + transport);
                 }
             }
+            updateDevicePinning(this);
         }
 
         /**
@@ -562,6 +693,7 @@ final class RemoteDevices {
                 }
                 mBondState = newBondState;
             }
+            updateDevicePinning(this);
         }
 
         /**
@@ -805,6 +937,7 @@ final class RemoteDevices {
         Intent intent;
         byte[] val;
         int type;
+        boolean discoveryReportChanged = false;
         BluetoothDevice bdDevice = getDevice(address);
         DeviceProperties deviceProperties;
         if (bdDevice == null) {
@@ -813,6 +946,7 @@ final class RemoteDevices {
             bdDevice = getDevice(address);
         } else {
             deviceProperties = getDeviceProperties(bdDevice);
+            touchDevice(bdDevice.getAddress());
         }
 
         if (types.length <= 0) {
@@ -840,6 +974,7 @@ final class RemoteDevices {
                             intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT);
                             mAdapterService.sendBroadcast(intent, BLUETOOTH_CONNECT,
                                     Utils.getTempAllowlistBroadcastOptions());
+                            discoveryReportChanged = true;
                             debugLog("Remote device name is: " + deviceProperties.getName());
                             break;
                         case AbstractionLayer.BT_PROPERTY_REMOTE_FRIENDLY_NAME:
@@ -864,6 +999,7 @@ final class RemoteDevices {
                             intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT);
                             mAdapterService.sendBroadcast(intent, BLUETOOTH_CONNECT,
                                     Utils.getTempAllowlistBroadcastOptions());
+                            discoveryReportChanged = true;
                             debugLog("Remote class is:" + newBluetoothClass);
                             break;
                         case AbstractionLayer.BT_PROPERTY_UUIDS:
@@ -903,6 +1039,14 @@ final class RemoteDevices {
                 }
             }
         }
+
+        // A batched report of the device is stale once its name or class changed, so the device
+        // is reported again in the next batch.
+        if (discoveryReportChanged && mDiscoveryBatcher.wasFound(bdDevice.getAddress())) {
+            mDiscoveryBatcher.update(bdDevice.getAddress(),
+                    buildFoundIntent(bdDevice, deviceProperties),
+                    mLocationDenylistPredicate.test(bdDevice));
+        }
     }
 
     void deviceFoundCallback(byte[] address) {
@@ -922,16 +1066,8 @@ final class RemoteDevices {
             return;
         }
 
-        Intent intent = new Intent(BluetoothDevice.ACTION_FOUND);
-        intent.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
-        intent.putExtra(BluetoothDevice.EXTRA_CLASS,
-                new BluetoothClass(deviceProp.getBluetoothClass()));
-        intent.putExtra(BluetoothDevice.EXTRA_RSSI, deviceProp.getRssi());
-        intent.putExtra(BluetoothDevice.EXTRA_NAME, deviceProp.getName());
-        intent.putExtra(BluetoothDevice.EXTRA_IS_COORDINATED_SET_MEMBER,
-                deviceProp.isCoordinatedSetMember());
-        intent.putExtra(BluetoothDevice.EXTRA_IS_ASHA_FOLLOWER,
-                deviceProp.isASHAFollower());
+        Intent intent = buildFoundIntent(device, deviceProp);
+        Intent batchedIntent = null;
 
         final ArrayList<DiscoveringPackage> packages = mAdapterService.getDiscoveringPackages();
         synchronized (packages) {
@@ -942,6 +1078,14 @@ final class RemoteDevices {
                     }
                 }
 
+                if (mDiscoveryBatcher.isBatched(pkg.getPackageName())) {
+                    if (batchedIntent == null) {
+                        batchedIntent = buildFoundIntent(device, deviceProp);
+                    }
+                    mDiscoveryBatcher.add(pkg, device.getAddress(), batchedIntent);
+                    continue;
+                }
+
                 intent.setPackage(pkg.getPackageName());
 
                 if (pkg.getPermission() != null) {
@@ -957,6 +1101,20 @@ final class RemoteDevices {
         }
     }
 
+    private static Intent buildFoundIntent(BluetoothDevice device, DeviceProperties deviceProp) {
+        Intent intent = new Intent(BluetoothDevice.ACTION_FOUND);
+        intent.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
+        intent.putExtra(BluetoothDevice.EXTRA_CLASS,
+                new BluetoothClass(deviceProp.getBluetoothClass()));
+        intent.putExtra(BluetoothDevice.EXTRA_RSSI, deviceProp.getRssi());
+        intent.putExtra(BluetoothDevice.EXTRA_NAME, deviceProp.getName());
+        intent.putExtra(BluetoothDevice.EXTRA_IS_COORDINATED_SET_MEMBER,
+                deviceProp.isCoordinatedSetMember());
+        intent.putExtra(BluetoothDevice.EXTRA_IS_ASHA_FOLLOWER,
+                deviceProp.isASHAFollower());
+        return intent;
+    }
+
     void addressConsolidateCallback(byte[] mainAddress, byte[] secondaryAddress) {
         BluetoothDevice device = getDevice(mainAddress);
         if (device == null) {
@@ -972,7 +1130,10 @@ final class RemoteDevices {
         deviceProperties.setIsConsolidated(true);
         deviceProperties.setDeviceType(BluetoothDevice.DEVICE_TYPE_DUAL);
         deviceProperties.setIdentityAddress(Utils.getAddressStringFromByte(secondaryAddress));
-        mDualDevicesMap.put(deviceProperties.getIdentityAddress(), Utils.getAddressStringFromByte(mainAddress));
+        if (deviceProperties.getIdentityAddress() != null) {
+            mDualDevicesMap.put(deviceProperties.getIdentityAddress(),
+                    Utils.getAddressStringFromByte(mainAddress));
+        }
     }
 
     /**
@@ -1050,7 +1211,7 @@ final class RemoteDevices {
                         Utils.getTempAllowlistBroadcastOptions());
             } else if (device.getBondState() == BluetoothDevice.BOND_NONE) {
                 String key = Utils.getAddressStringFromByte(address);
-                mDevices.remove(key);
+                removeDevice(key);
             }
             if (state == BluetoothAdapter.STATE_ON || state == BluetoothAdapter.STATE_TURNING_OFF) {
                 intent = new Intent(BluetoothDevice.ACTION_ACL_DISCONNECTED);
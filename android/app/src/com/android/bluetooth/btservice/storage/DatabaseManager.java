@@ -50,7 +50,9 @@ import com.google.common.collect.EvictingQueue;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -74,13 +76,36 @@ public class DatabaseManager {
 
     @VisibleForTesting
     final Map<String, Metadata> mMetadataCache = new HashMap<>();
+    @GuardedBy("mMetadataCache")
+    private Metadata mActiveA2dpMetadata = null;
+    // The cached devices, most recently connected first, and the device of mActiveA2dpMetadata.
+    // Written under mMetadataCache, the list being replaced by an updated copy, so that reads
+    // need no lock.
+    private volatile List<BluetoothDevice> mMostRecentlyConnectedDevices =
+            Collections.emptyList();
+    private volatile BluetoothDevice mMostRecentlyConnectedA2dpDevice = null;
     private final Semaphore mSemaphore = new Semaphore(1);
     private static final int METADATA_CHANGED_LOG_MAX_SIZE = 20;
     private final EvictingQueue<String> mMetadataChangedLog;
 
+    // Updates waiting to be written, by address. Only the latest update of a device is written.
+    @GuardedBy("mPendingWrites")
+    private final LinkedHashMap<String, Metadata> mPendingWrites = new LinkedHashMap<>();
+    @GuardedBy("mPendingWrites")
+    private long mWritesQueued = 0;
+    @GuardedBy("mPendingWrites")
+    private long mWritesCoalesced = 0;
+    @GuardedBy("mPendingWrites")
+    private long mWritesFlushed = 0;
+    @GuardedBy("mPendingWrites")
+    private long mFlushes = 0;
+    @VisibleForTesting
+    long mWriteBehindDelayMillis = WRITE_BEHIND_DELAY_MILLIS;
+
     private static final int LOAD_DATABASE_TIMEOUT = 500; // milliseconds
+    private static final long WRITE_BEHIND_DELAY_MILLIS = 100;
     private static final int MSG_LOAD_DATABASE = 0;
-    private static final int MSG_UPDATE_DATABASE = 1;
+    private static final int MSG_FLUSH_DATABASE = 1;
     private static final int MSG_DELETE_DATABASE = 2;
     private static final int MSG_CLEAR_DATABASE = 100;
     private static final String LOCAL_STORAGE = "LocalStorage";
@@ -142,11 +167,8 @@ public class DatabaseManager {
                     }
                     break;
                 }
-                case MSG_UPDATE_DATABASE: {
-                    Metadata data = (Metadata) msg.obj;
-                    synchronized (mDatabaseLock) {
-                        mDatabase.insert(data);
-                    }
+                case MSG_FLUSH_DATABASE: {
+                    flushPendingWrites();
                     break;
                 }
                 case MSG_DELETE_DATABASE: {
@@ -210,6 +232,7 @@ public class DatabaseManager {
                 Metadata metadata = mMetadataCache.get(address);
                 if (metadata != null) {
                     mMetadataCache.remove(address);
+                    removeFromRecencyIndexLocked(metadata);
                     deleteDatabase(metadata);
                 }
             }
@@ -613,10 +636,13 @@ public class DatabaseManager {
             synchronized (MetadataDatabase.class) {
                 metadata.last_active_time = MetadataDatabase.sCurrentConnectionNumber++;
             }
+            moveToFrontLocked(device);
 
             // Only update is_active_a2dp_device if an a2dp device is connected
             if (isA2dpDevice) {
                 metadata.is_active_a2dp_device = true;
+                mActiveA2dpMetadata = metadata;
+                mMostRecentlyConnectedA2dpDevice = device;
             }
 
             Log.d(TAG, "Updating last connected time for device: " + device.getAnonymizedAddress()
@@ -648,6 +674,10 @@ public class DatabaseManager {
                 metadata.is_active_a2dp_device = false;
                 Log.d(TAG, "setDisconnection: Updating is_active_device to false for device: "
                         + device);
+                if (mActiveA2dpMetadata == metadata) {
+                    mActiveA2dpMetadata = null;
+                    mMostRecentlyConnectedA2dpDevice = null;
+                }
                 updateDatabase(metadata);
             }
         }
@@ -659,17 +689,96 @@ public class DatabaseManager {
     private void resetActiveA2dpDevice() {
         synchronized (mMetadataCache) {
             Log.d(TAG, "resetActiveA2dpDevice()");
-            for (Map.Entry<String, Metadata> entry : mMetadataCache.entrySet()) {
-                Metadata metadata = entry.getValue();
-                if (metadata.is_active_a2dp_device) {
-                    Log.d(TAG, "resetActiveA2dpDevice");
-                    metadata.is_active_a2dp_device = false;
-                    updateDatabase(metadata);
-                }
+            Metadata metadata = mActiveA2dpMetadata;
+            if (metadata == null) {
+                return;
+            }
+            mActiveA2dpMetadata = null;
+            mMostRecentlyConnectedA2dpDevice = null;
+            if (metadata.is_active_a2dp_device) {
+                Log.d(TAG, "resetActiveA2dpDevice");
+                metadata.is_active_a2dp_device = false;
+                updateDatabase(metadata);
             }
         }
     }
 
+    /**
+     * Rebuilds the recency order from the whole cache. Only a single device is kept as the
+     * active A2DP device.
+     */
+    @GuardedBy("mMetadataCache")
+    private void rebuildRecencyIndexLocked() {
+        List<Metadata> sortedMetadata = new ArrayList<>(mMetadataCache.values());
+        sortedMetadata.sort((o1, o2) -> Long.compare(o2.last_active_time, o1.last_active_time));
+        List<BluetoothDevice> devices = new ArrayList<>(sortedMetadata.size());
+        BluetoothDevice activeA2dpDevice = null;
+        mActiveA2dpMetadata = null;
+        for (Metadata metadata : sortedMetadata) {
+            if (metadata.getAddress().equals(LOCAL_STORAGE)) {
+                continue;
+            }
+            BluetoothDevice device = getRemoteDevice(metadata.getAddress());
+            if (device != null) {
+                devices.add(device);
+            }
+            if (!metadata.is_active_a2dp_device) {
+                continue;
+            }
+            if (mActiveA2dpMetadata == null) {
+                mActiveA2dpMetadata = metadata;
+                activeA2dpDevice = device;
+            } else {
+                Log.w(TAG, "rebuildRecencyIndexLocked: more than one active a2dp device");
+                metadata.is_active_a2dp_device = false;
+                updateDatabase(metadata);
+            }
+        }
+        mMostRecentlyConnectedDevices = Collections.unmodifiableList(devices);
+        mMostRecentlyConnectedA2dpDevice = activeA2dpDevice;
+    }
+
+    @GuardedBy("mMetadataCache")
+    private void removeFromRecencyIndexLocked(Metadata metadata) {
+        mMostRecentlyConnectedDevices =
+                copyWithoutLocked(metadata.getAddress(), null /* first */);
+        if (mActiveA2dpMetadata == metadata) {
+            mActiveA2dpMetadata = null;
+            mMostRecentlyConnectedA2dpDevice = null;
+        }
+    }
+
+    @GuardedBy("mMetadataCache")
+    private void moveToFrontLocked(BluetoothDevice device) {
+        mMostRecentlyConnectedDevices = copyWithoutLocked(device.getAddress(), device);
+    }
+
+    // Returns a copy of the recency order without the device of the given address, starting
+    // with first if it is not null.
+    @GuardedBy("mMetadataCache")
+    private List<BluetoothDevice> copyWithoutLocked(String address, BluetoothDevice first) {
+        List<BluetoothDevice> current = mMostRecentlyConnectedDevices;
+        List<BluetoothDevice> devices = new ArrayList<>(current.size() + 1);
+        if (first != null) {
+            devices.add(first);
+        }
+        for (BluetoothDevice device : current) {
+            if (!device.getAddress().equals(address)) {
+                devices.add(device);
+            }
+        }
+        return Collections.unmodifiableList(devices);
+    }
+
+    private static BluetoothDevice getRemoteDevice(String address) {
+        try {
+            return BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
+        } catch (IllegalArgumentException ex) {
+            Log.d(TAG, "getRemoteDevice: Invalid address for device " + address);
+            return null;
+        }
+    }
+
     /**
      * Gets the most recently connected bluetooth devices in order with most recently connected
      * first and least recently connected last
@@ -678,21 +787,7 @@ public class DatabaseManager {
      * in order of most recently connected
      */
     public List<BluetoothDevice> getMostRecentlyConnectedDevices() {
-        List<BluetoothDevice> mostRecentlyConnectedDevices = new ArrayList<>();
-        synchronized (mMetadataCache) {
-            List<Metadata> sortedMetadata = new ArrayList<>(mMetadataCache.values());
-            sortedMetadata.sort((o1, o2) -> Long.compare(o2.last_active_time, o1.last_active_time));
-            for (Metadata metadata : sortedMetadata) {
-                try {
-                    mostRecentlyConnectedDevices.add(BluetoothAdapter.getDefaultAdapter()
-                            .getRemoteDevice(metadata.getAddress()));
-                } catch (IllegalArgumentException ex) {
-                    Log.d(TAG, "getBondedDevicesOrdered: Invalid address for "
-                            + "device " + metadata.getAddress());
-                }
-            }
-        }
-        return mostRecentlyConnectedDevices;
+        return new ArrayList<>(mMostRecentlyConnectedDevices);
     }
 
     /**
@@ -733,21 +828,7 @@ public class DatabaseManager {
      * @return the most recently active a2dp device or null if the last a2dp device was null
      */
     public BluetoothDevice getMostRecentlyConnectedA2dpDevice() {
-        synchronized (mMetadataCache) {
-            for (Map.Entry<String, Metadata> entry : mMetadataCache.entrySet()) {
-                Metadata metadata = entry.getValue();
-                if (metadata.is_active_a2dp_device) {
-                    try {
-                        return BluetoothAdapter.getDefaultAdapter().getRemoteDevice(
-                                metadata.getAddress());
-                    } catch (IllegalArgumentException ex) {
-                        Log.d(TAG, "getMostRecentlyConnectedA2dpDevice: Invalid address for "
-                                + "device " + metadata.getAddress());
-                    }
-                }
-            }
-        }
-        return null;
+        return mMostRecentlyConnectedA2dpDevice;
     }
 
     /**
@@ -916,6 +997,11 @@ public class DatabaseManager {
      */
     public void factoryReset() {
         Log.w(TAG, "factoryReset");
+        // The pending updates would be cleared right after being written.
+        synchronized (mPendingWrites) {
+            mPendingWrites.clear();
+            mHandler.removeMessages(MSG_FLUSH_DATABASE);
+        }
         Message message = mHandler.obtainMessage(MSG_CLEAR_DATABASE);
         mHandler.sendMessage(message);
     }
@@ -926,17 +1012,33 @@ public class DatabaseManager {
     public void cleanup() {
         removeUnusedMetadata();
         mAdapterService.unregisterReceiver(mReceiver);
+        // The handler thread is about to quit, so write the pending updates now.
+        flushPendingWrites();
         if (mHandlerThread != null) {
             mHandlerThread.quit();
             mHandlerThread = null;
         }
-        mMetadataCache.clear();
+        synchronized (mMetadataCache) {
+            mMetadataCache.clear();
+            rebuildRecencyIndexLocked();
+        }
     }
 
     void createMetadata(String address, boolean isActiveA2dpDevice) {
         Metadata data = new Metadata(address);
         data.is_active_a2dp_device = isActiveA2dpDevice;
-        mMetadataCache.put(address, data);
+        synchronized (mMetadataCache) {
+            mMetadataCache.put(address, data);
+            // New metadata gets the latest connection number.
+            BluetoothDevice device = getRemoteDevice(address);
+            if (device != null) {
+                moveToFrontLocked(device);
+            }
+            if (isActiveA2dpDevice) {
+                mActiveA2dpMetadata = data;
+                mMostRecentlyConnectedA2dpDevice = device;
+            }
+        }
         updateDatabase(data);
         logMetadataChange(address, "Metadata created");
     }
@@ -977,6 +1079,7 @@ public class DatabaseManager {
                 Log.v(TAG, "cacheMetadata: found device " + data.getAnonymizedAddress());
                 mMetadataCache.put(address, data);
             }
+            rebuildRecencyIndexLocked();
             Log.i(TAG, "cacheMetadata: Database is ready");
         }
     }
@@ -1182,9 +1285,38 @@ public class DatabaseManager {
             return;
         }
         Log.d(TAG, "updateDatabase " + data.getAnonymizedAddress());
-        Message message = mHandler.obtainMessage(MSG_UPDATE_DATABASE);
-        message.obj = data;
-        mHandler.sendMessage(message);
+        synchronized (mPendingWrites) {
+            mWritesQueued++;
+            if (mPendingWrites.put(data.getAddress(), data) != null) {
+                mWritesCoalesced++;
+            } else if (mPendingWrites.size() == 1) {
+                mHandler.sendEmptyMessageDelayed(MSG_FLUSH_DATABASE, mWriteBehindDelayMillis);
+            }
+        }
+    }
+
+    /**
+     * Writes the pending updates to the database, in a single transaction.
+     */
+    private void flushPendingWrites() {
+        Metadata[] writes;
+        synchronized (mPendingWrites) {
+            if (mPendingWrites.isEmpty()) {
+                return;
+            }
+            if (mHandler != null) {
+                mHandler.removeMessages(MSG_FLUSH_DATABASE);
+            }
+            writes = mPendingWrites.values().toArray(new Metadata[0]);
+            mPendingWrites.clear();
+            mWritesFlushed += writes.length;
+            mFlushes++;
+        }
+        Log.d(TAG, "flushPendingWrites: " + writes.length + " updates");
+        synchronized (mDatabaseLock) {
+            // Room inserts all the rows of a single call in one transaction.
+            mDatabase.insert(writes);
+        }
     }
 
     @VisibleForTesting
@@ -1195,6 +1327,10 @@ public class DatabaseManager {
             return;
         }
         logMetadataChange(address, "Metadata deleted");
+        synchronized (mPendingWrites) {
+            // A pending update would otherwise bring the device back after its deletion.
+            mPendingWrites.remove(address);
+        }
         Message message = mHandler.obtainMessage(MSG_DELETE_DATABASE);
         message.obj = data.getAddress();
         mHandler.sendMessage(message);
@@ -1249,6 +1385,11 @@ public class DatabaseManager {
      */
     public void dump(PrintWriter writer) {
         writer.println("\nBluetoothDatabase:");
+        synchronized (mPendingWrites) {
+            writer.println("  Writes (queued/coalesced/flushed/pending): " + mWritesQueued
+                    + " / " + mWritesCoalesced + " / " + mWritesFlushed + " / "
+                    + mPendingWrites.size() + ", flushes " + mFlushes);
+        }
         writer.println("  Metadata Changes:");
         for (String log : mMetadataChangedLog) {
             writer.println("    " + log);
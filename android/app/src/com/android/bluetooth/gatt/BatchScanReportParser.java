@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single pass parser for the batch scan reports flushed by the controller.
+ *
+ * <p>Records are decoded straight from offsets into the report buffer. Devices are shared by
+ * all records of the same address, truncated records share one empty scan record, and full
+ * records are parsed lazily. Reports that the controller repeats, with the same address,
+ * timestamp, RSSI and data, are delivered once.
+ *
+ * @hide
+ */
+/* package */class BatchScanReportParser {
+    private static final boolean DBG = GattServiceConfig.DBG;
+    private static final String TAG = GattServiceConfig.TAG_PREFIX + "BatchScanReportParser";
+
+    // Address, address type, tx power, rssi and timestamp of a truncated record.
+    static final int TRUNCATED_RESULT_SIZE = 11;
+    // Header of a full record, followed by the advertising and scan response packets.
+    private static final int FULL_RESULT_HEADER_SIZE = 11;
+    private static final int ADDRESS_LENGTH = 6;
+    private static final int RSSI_OFFSET = 8;
+    private static final int TIMESTAMP_OFFSET = 9;
+    // Timestamps are in units of 50 ms.
+    private static final long TIMESTAMP_UNIT_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private static final ScanRecord EMPTY_SCAN_RECORD = ScanRecord.parseFromBytes(new byte[0]);
+
+    private final BluetoothAdapter mAdapter;
+    private final long mNowNanos;
+    private final List<ScanResult> mResults;
+    // Devices by address, and the first result by address and timestamp, for this report.
+    private final LongTable mDevices;
+    private final LongTable mFirstResults;
+    // Raw data of each result in mResults, used to recognize repeated records.
+    private final List<byte[]> mResultData;
+
+    private BatchScanReportParser(int maxRecords, long nowNanos) {
+        mAdapter = BluetoothAdapter.getDefaultAdapter();
+        mNowNanos = nowNanos;
+        mResults = new ArrayList<>(maxRecords);
+        mResultData = new ArrayList<>(maxRecords);
+        mDevices = new LongTable(maxRecords);
+        mFirstResults = new LongTable(maxRecords);
+    }
+
+    /**
+     * Parses {@code numRecords} truncated records from {@code batchRecord}.
+     */
+    static List<ScanResult> parseTruncatedResults(int numRecords, byte[] batchRecord,
+            long nowNanos) {
+        int count = Math.min(numRecords, batchRecord.length / TRUNCATED_RESULT_SIZE);
+        BatchScanReportParser parser = new BatchScanReportParser(count, nowNanos);
+        if (count < numRecords) {
+            Log.w(TAG, "Truncated batch report holds " + count + " of " + numRecords
+                    + " records");
+        }
+        for (int i = 0; i < count; ++i) {
+            int position = i * TRUNCATED_RESULT_SIZE;
+            parser.add(batchRecord, position, batchRecord[position + RSSI_OFFSET],
+                    position + TIMESTAMP_OFFSET, null);
+        }
+        return parser.mResults;
+    }
+
+    /**
+     * Parses the full records from {@code batchRecord}.
+     */
+    static List<ScanResult> parseFullResults(byte[] batchRecord, long nowNanos) {
+        // Each record holds at least its header and the two packet lengths.
+        BatchScanReportParser parser = new BatchScanReportParser(
+                batchRecord.length / (FULL_RESULT_HEADER_SIZE + 2) + 1, nowNanos);
+        int position = 0;
+        while (position < batchRecord.length) {
+            if (position + FULL_RESULT_HEADER_SIZE > batchRecord.length) {
+                Log.w(TAG, "Discarding truncated full batch record at " + position);
+                break;
+            }
+            int header = position;
+            position += FULL_RESULT_HEADER_SIZE;
+
+            // Combine advertise packet and scan response packet.
+            int advertisePacketLen = batchRecord[position++] & 0xFF;
+            int advertisePacketPos = position;
+            position += advertisePacketLen;
+            if (position >= batchRecord.length) {
+                Log.w(TAG, "Discarding truncated full batch record at " + header);
+                break;
+            }
+            int scanResponsePacketLen = batchRecord[position++] & 0xFF;
+            int scanResponsePacketPos = position;
+            position += scanResponsePacketLen;
+            if (position > batchRecord.length) {
+                Log.w(TAG, "Discarding truncated full batch record at " + header);
+                break;
+            }
+            byte[] scanRecord = new byte[advertisePacketLen + scanResponsePacketLen];
+            System.arraycopy(batchRecord, advertisePacketPos, scanRecord, 0, advertisePacketLen);
+            System.arraycopy(batchRecord, scanResponsePacketPos, scanRecord, advertisePacketLen,
+                    scanResponsePacketLen);
+            if (DBG) {
+                Log.d(TAG, "ScanRecord : " + Arrays.toString(scanRecord));
+            }
+            parser.add(batchRecord, header, batchRecord[header + RSSI_OFFSET],
+                    header + TIMESTAMP_OFFSET, scanRecord);
+        }
+        return parser.mResults;
+    }
+
+    private void add(byte[] batchRecord, int addressPos, int rssi, int timestampPos,
+            byte[] scanRecord) {
+        // The address is reported in reverse byte order.
+        long address = 0;
+        for (int i = ADDRESS_LENGTH - 1; i >= 0; i--) {
+            address = (address << 8) | (batchRecord[addressPos + i] & 0xFF);
+        }
+        int timestampUnits = (batchRecord[timestampPos] & 0xFF)
+                | ((batchRecord[timestampPos + 1] & 0xFF) << 8);
+
+        long resultKey = (address << 16) | timestampUnits;
+        int first = mFirstResults.get(resultKey);
+        if (first >= 0 && mResults.get(first).getRssi() == rssi
+                && Arrays.equals(mResultData.get(first), scanRecord)) {
+            return;
+        }
+
+        int deviceIndex = mDevices.get(address);
+        BluetoothDevice device;
+        if (deviceIndex >= 0) {
+            device = mResults.get(deviceIndex).getDevice();
+        } else {
+            device = mAdapter.getRemoteDevice(new byte[] {
+                    batchRecord[addressPos + 5], batchRecord[addressPos + 4],
+                    batchRecord[addressPos + 3], batchRecord[addressPos + 2],
+                    batchRecord[addressPos + 1], batchRecord[addressPos]});
+            mDevices.put(address, mResults.size());
+        }
+        if (first < 0) {
+            mFirstResults.put(resultKey, mResults.size());
+        }
+
+        ScanRecord record = scanRecord == null
+                ? EMPTY_SCAN_RECORD : ScanRecord.parseLazilyFromBytes(scanRecord);
+        long timestampNanos = mNowNanos - timestampUnits * TIMESTAMP_UNIT_NANOS;
+        mResults.add(new ScanResult(device, record, rssi, timestampNanos));
+        mResultData.add(scanRecord);
+    }
+
+    /**
+     * Open addressing hash table from long keys to non-negative int values, sized for at most
+     * {@code maxSize} entries.
+     */
+    private static class LongTable {
+        private final long[] mKeys;
+        // Values are stored plus one, so that zero marks an empty slot.
+        private final int[] mValues;
+        private final int mMask;
+
+        LongTable(int maxSize) {
+            // Keep the load factor at or below one half.
+            int capacity = Integer.highestOneBit(Math.max(4, maxSize) * 2 - 1) << 1;
+            mKeys = new long[capacity];
+            mValues = new int[capacity];
+            mMask = capacity - 1;
+        }
+
+        /** Returns the value of {@code key}, or -1 if it is not in the table. */
+        int get(long key) {
+            for (int slot = slotOf(key); mValues[slot] != 0; slot = (slot + 1) & mMask) {
+                if (mKeys[slot] == key) {
+                    return mValues[slot] - 1;
+                }
+            }
+            return -1;
+        }
+
+        /** Adds {@code key}, which must not be in the table yet. */
+        void put(long key, int value) {
+            int slot = slotOf(key);
+            while (mValues[slot] != 0) {
+                slot = (slot + 1) & mMask;
+            }
+            mKeys[slot] = key;
+            mValues[slot] = value + 1;
+        }
+
+        private int slotOf(long key) {
+            long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash >>> 32) & mMask;
+        }
+    }
+}
@@ -43,6 +43,8 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Helper class that keeps track of registered GATT applications.
@@ -120,6 +122,9 @@ public class ContextMap<C, T> {
 
         boolean mEligibleForSanitizedExposureNotification;
 
+        /** Whether GATT notifications are delivered in batches, see NotificationBatcher */
+        boolean mBatchNotifications;
+
         public List<String> mAssociatedDevices;
 
         /** Internal callback info queue, waiting to be send on congestion clear */
@@ -188,10 +193,21 @@ public class ContextMap<C, T> {
         }
     }
 
-    /** Our internal application list */
+    /**
+     * Our internal application list. Modified under mAppsLock, and iterated as a snapshot by
+     * the lookups, which run on every GATT callback.
+     */
     private final Object mAppsLock = new Object();
-    @GuardedBy("mAppsLock")
-    private List<App> mApps = new ArrayList<App>();
+    private final List<App> mApps = new CopyOnWriteArrayList<App>();
+
+    /**
+     * Applications by ID. The ID of an application is assigned after it is added, so entries
+     * are cached on lookup and checked against the current ID of the application.
+     */
+    private final Map<Integer, App> mAppsById = new ConcurrentHashMap<Integer, App>();
+
+    /** Applications by UUID, the first registered application wins as in mApps */
+    private final Map<UUID, App> mAppsByUuid = new ConcurrentHashMap<UUID, App>();
 
     /** Internal map to keep track of logging information by app name */
     private HashMap<Integer, AppScanStats> mAppScanStats = new HashMap<Integer, AppScanStats>();
@@ -205,8 +221,15 @@ public class ContextMap<C, T> {
     private final EvictingQueue<AppAdvertiseStats> mLastAdvertises =
             EvictingQueue.create(ADVERTISE_STATE_MAX_SIZE);
 
-    /** Internal list of connected devices **/
-    private Set<Connection> mConnections = new HashSet<Connection>();
+    /**
+     * Internal indexes of connected devices, by connection ID and by application ID and
+     * connection ID. An application can have several connections to the same address. Modified
+     * together under mConnectionsLock and read without it.
+     */
+    private final Map<Integer, Connection> mConnections =
+            new ConcurrentHashMap<Integer, Connection>();
+    private final Map<Integer, Map<Integer, Connection>> mConnectionsByApp =
+            new ConcurrentHashMap<Integer, Map<Integer, Connection>>();
     private final Object mConnectionsLock = new Object();
 
     /**
@@ -227,6 +250,9 @@ public class ContextMap<C, T> {
             }
             App app = new App(uuid, callback, info, appName, appScanStats);
             mApps.add(app);
+            if (uuid != null) {
+                mAppsByUuid.putIfAbsent(uuid, app);
+            }
             appScanStats.isRegistered = true;
             return app;
         }
@@ -255,6 +281,7 @@ public class ContextMap<C, T> {
             if (app == null) {
                 app = new App(appUid, callback, appName);
                 mApps.add(app);
+                mAppsById.put(appUid, app);
             }
             return app;
         }
@@ -265,13 +292,11 @@ public class ContextMap<C, T> {
      */
     void remove(UUID uuid) {
         synchronized (mAppsLock) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
+            for (App entry : mApps) {
                 if (entry.uuid.equals(uuid)) {
                     entry.unlinkToDeath();
                     entry.appScanStats.isRegistered = false;
-                    i.remove();
+                    removeApp(entry);
                     break;
                 }
             }
@@ -284,14 +309,12 @@ public class ContextMap<C, T> {
     void remove(int id) {
         boolean find = false;
         synchronized (mAppsLock) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
+            for (App entry : mApps) {
                 if (entry.id == id) {
                     find = true;
                     entry.unlinkToDeath();
                     entry.appScanStats.isRegistered = false;
-                    i.remove();
+                    removeApp(entry);
                     break;
                 }
             }
@@ -301,14 +324,24 @@ public class ContextMap<C, T> {
         }
     }
 
+    @GuardedBy("mAppsLock")
+    private void removeApp(App entry) {
+        mApps.remove(entry);
+        mAppsById.remove(entry.id, entry);
+        if (entry.uuid != null && mAppsByUuid.remove(entry.uuid, entry)) {
+            for (App app : mApps) {
+                if (entry.uuid.equals(app.uuid)) {
+                    mAppsByUuid.put(app.uuid, app);
+                    break;
+                }
+            }
+        }
+    }
+
     List<Integer> getAllAppsIds() {
         List<Integer> appIds = new ArrayList();
-        synchronized (mAppsLock) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
-                appIds.add(entry.id);
-            }
+        for (App entry : mApps) {
+            appIds.add(entry.id);
         }
         return appIds;
     }
@@ -320,7 +353,12 @@ public class ContextMap<C, T> {
         synchronized (mConnectionsLock) {
             App entry = getById(id);
             if (entry != null) {
-                mConnections.add(new Connection(connId, address, id));
+                // A connection ID is only reused once its previous connection is gone.
+                removeConnectionLocked(connId);
+                Connection connection = new Connection(connId, address, id);
+                mConnections.put(connId, connection);
+                mConnectionsByApp.computeIfAbsent(id, k -> new ConcurrentHashMap<>())
+                        .put(connId, connection);
             }
         }
     }
@@ -330,13 +368,21 @@ public class ContextMap<C, T> {
      */
     void removeConnection(int id, int connId) {
         synchronized (mConnectionsLock) {
-            Iterator<Connection> i = mConnections.iterator();
-            while (i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.connId == connId) {
-                    i.remove();
-                    break;
-                }
+            removeConnectionLocked(connId);
+        }
+    }
+
+    @GuardedBy("mConnectionsLock")
+    private void removeConnectionLocked(int connId) {
+        Connection connection = mConnections.remove(connId);
+        if (connection == null) {
+            return;
+        }
+        Map<Integer, Connection> appConnections = mConnectionsByApp.get(connection.appId);
+        if (appConnections != null) {
+            appConnections.remove(connId, connection);
+            if (appConnections.isEmpty()) {
+                mConnectionsByApp.remove(connection.appId);
             }
         }
     }
@@ -346,12 +392,12 @@ public class ContextMap<C, T> {
      */
     void removeConnectionsByAppId(int appId) {
         synchronized (mConnectionsLock) {
-            Iterator<Connection> i = mConnections.iterator();
-            while (i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.appId == appId) {
-                    i.remove();
-                }
+            Map<Integer, Connection> appConnections = mConnectionsByApp.remove(appId);
+            if (appConnections == null) {
+                return;
+            }
+            for (Connection connection : appConnections.values()) {
+                mConnections.remove(connection.connId, connection);
             }
         }
     }
@@ -360,12 +406,15 @@ public class ContextMap<C, T> {
      * Get an application context by ID.
      */
     App getById(int id) {
+        App entry = mAppsById.get(id);
+        if (entry != null && entry.id == id) {
+            return entry;
+        }
         synchronized (mAppsLock) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
-                if (entry.id == id) {
-                    return entry;
+            for (App app : mApps) {
+                if (app.id == id) {
+                    mAppsById.put(id, app);
+                    return app;
                 }
             }
         }
@@ -377,14 +426,9 @@ public class ContextMap<C, T> {
      * Get an application context by UUID.
      */
     App getByUuid(UUID uuid) {
-        synchronized (mAppsLock) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
-                if (entry.uuid.equals(uuid)) {
-                    return entry;
-                }
-            }
+        App entry = mAppsByUuid.get(uuid);
+        if (entry != null) {
+            return entry;
         }
         Log.e(TAG, "Context not found for UUID " + uuid);
         return null;
@@ -394,13 +438,9 @@ public class ContextMap<C, T> {
      * Get an application context by the calling Apps name.
      */
     App getByName(String name) {
-        synchronized (mAppsLock) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
-                if (entry.name.equals(name)) {
-                    return entry;
-                }
+        for (App entry : mApps) {
+            if (entry.name.equals(name)) {
+                return entry;
             }
         }
         Log.e(TAG, "Context not found for name " + name);
@@ -411,13 +451,9 @@ public class ContextMap<C, T> {
      * Get an application context by the context info object.
      */
     App getByContextInfo(T contextInfo) {
-        synchronized (mAppsLock) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
-                if (entry.info != null && entry.info.equals(contextInfo)) {
-                    return entry;
-                }
+        for (App entry : mApps) {
+            if (entry.info != null && entry.info.equals(contextInfo)) {
+                return entry;
             }
         }
         Log.e(TAG, "Context not found for info " + contextInfo);
@@ -576,12 +612,8 @@ public class ContextMap<C, T> {
      */
     Set<String> getConnectedDevices() {
         Set<String> addresses = new HashSet<String>();
-        synchronized (mConnectionsLock) {
-            Iterator<Connection> i = mConnections.iterator();
-            while (i.hasNext()) {
-                Connection connection = i.next();
-                addresses.add(connection.address);
-            }
+        for (Connection connection : mConnections.values()) {
+            addresses.add(connection.address);
         }
         return addresses;
     }
@@ -590,19 +622,9 @@ public class ContextMap<C, T> {
      * Get an application context by a connection ID.
      */
     App getByConnId(int connId) {
-        int appId = -1;
-        synchronized (mConnectionsLock) {
-            Iterator<Connection> ii = mConnections.iterator();
-            while (ii.hasNext()) {
-                Connection connection = ii.next();
-                if (connection.connId == connId) {
-                    appId = connection.appId;
-                    break;
-                }
-            }
-        }
-        if (appId >= 0) {
-            return getById(appId);
+        Connection connection = mConnections.get(connId);
+        if (connection != null && connection.appId >= 0) {
+            return getById(connection.appId);
         }
         return null;
     }
@@ -612,16 +634,16 @@ public class ContextMap<C, T> {
      */
     Integer connIdByAddress(int id, String address) {
         App entry = getById(id);
-        if (entry == null) {
+        if (entry == null || address == null) {
             return null;
         }
-        synchronized (mConnectionsLock) {
-            Iterator<Connection> i = mConnections.iterator();
-            while (i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.address.equalsIgnoreCase(address) && connection.appId == id) {
-                    return connection.connId;
-                }
+        Map<Integer, Connection> appConnections = mConnectionsByApp.get(id);
+        if (appConnections == null) {
+            return null;
+        }
+        for (Connection connection : appConnections.values()) {
+            if (connection.address.equalsIgnoreCase(address)) {
+                return connection.connId;
             }
         }
         return null;
@@ -631,28 +653,15 @@ public class ContextMap<C, T> {
      * Returns the device address for a given connection ID.
      */
     String addressByConnId(int connId) {
-        synchronized (mConnectionsLock) {
-            Iterator<Connection> i = mConnections.iterator();
-            while (i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.connId == connId) {
-                    return connection.address;
-                }
-            }
-        }
-        return null;
+        Connection connection = mConnections.get(connId);
+        return connection != null ? connection.address : null;
     }
 
     List<Connection> getConnectionByApp(int appId) {
         List<Connection> currentConnections = new ArrayList<Connection>();
-        synchronized (mConnectionsLock) {
-            Iterator<Connection> i = mConnections.iterator();
-            while (i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.appId == appId) {
-                    currentConnections.add(connection);
-                }
-            }
+        Map<Integer, Connection> appConnections = mConnectionsByApp.get(appId);
+        if (appConnections != null) {
+            currentConnections.addAll(appConnections.values());
         }
         return currentConnections;
     }
@@ -662,19 +671,20 @@ public class ContextMap<C, T> {
      */
     void clear() {
         synchronized (mAppsLock) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
+            for (App entry : mApps) {
                 entry.unlinkToDeath();
                 if (entry.appScanStats != null) {
                     entry.appScanStats.isRegistered = false;
                 }
-                i.remove();
             }
+            mApps.clear();
+            mAppsById.clear();
+            mAppsByUuid.clear();
         }
 
         synchronized (mConnectionsLock) {
             mConnections.clear();
+            mConnectionsByApp.clear();
         }
 
         synchronized (this) {
@@ -688,10 +698,8 @@ public class ContextMap<C, T> {
      */
     Map<Integer, String> getConnectedMap() {
         Map<Integer, String> connectedmap = new HashMap<Integer, String>();
-        synchronized (mConnectionsLock) {
-            for (Connection conn : mConnections) {
-                connectedmap.put(conn.appId, conn.address);
-            }
+        for (Connection conn : mConnections.values()) {
+            connectedmap.put(conn.appId, conn.address);
         }
         return connectedmap;
     }
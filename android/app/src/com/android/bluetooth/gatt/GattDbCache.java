@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Cache of the restricted handles of the GATT databases of the most recently discovered
+ * devices.
+ *
+ * <p>Each entry remembers a compact signature of the database elements it was built from: the
+ * type, handle, UUID, properties and start handle of every element. A rediscovery that reports
+ * exactly the same elements reuses the restricted handles, instead of classifying every
+ * service and characteristic again. Any difference, such as a firmware update that moved a
+ * handle, replaces the entry.
+ *
+ * <p>The service trees themselves are not cached: in-process clients modify the objects they
+ * are given, so every delivery gets its own.
+ *
+ * @hide
+ */
+/* package */class GattDbCache {
+    // Enough for a fleet of peripherals that keeps reconnecting.
+    private static final int MAX_ENTRIES = 32;
+    private static final int LONGS_PER_ELEMENT = 4;
+
+    private static class CachedDb {
+        final long[] signature;
+        final Set<Integer> restrictedIds;
+
+        CachedDb(long[] signature, Set<Integer> restrictedIds) {
+            this.signature = signature;
+            this.restrictedIds = restrictedIds;
+        }
+    }
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final LinkedHashMap<String, CachedDb> mCache =
+            new LinkedHashMap<String, CachedDb>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedDb> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    /**
+     * Returns the restricted handles of {@code address} if they were collected from the same
+     * elements as {@code db}, or null.
+     */
+    Set<Integer> get(String address, List<GattDbElement> db) {
+        if (address == null) {
+            return null;
+        }
+        synchronized (mLock) {
+            CachedDb cached = mCache.get(address);
+            if (cached == null || !matches(cached.signature, db)) {
+                return null;
+            }
+            return cached.restrictedIds;
+        }
+    }
+
+    /**
+     * Caches {@code restrictedIds}, collected from {@code db}, for {@code address}.
+     */
+    void put(String address, List<GattDbElement> db, Set<Integer> restrictedIds) {
+        if (address == null) {
+            return;
+        }
+        long[] signature = signature(db);
+        synchronized (mLock) {
+            mCache.put(address, new CachedDb(signature,
+                    Collections.unmodifiableSet(new HashSet<>(restrictedIds))));
+        }
+    }
+
+    void clear() {
+        synchronized (mLock) {
+            mCache.clear();
+        }
+    }
+
+    private static long[] signature(List<GattDbElement> db) {
+        long[] signature = new long[db.size() * LONGS_PER_ELEMENT];
+        for (int i = 0; i < db.size(); i++) {
+            GattDbElement el = db.get(i);
+            int position = i * LONGS_PER_ELEMENT;
+            signature[position] = header(el);
+            signature[position + 1] = el.uuid != null ? el.uuid.getMostSignificantBits() : 0;
+            signature[position + 2] = el.uuid != null ? el.uuid.getLeastSignificantBits() : 0;
+            signature[position + 3] = el.uuid != null ? 1 : 0;
+        }
+        return signature;
+    }
+
+    private static boolean matches(long[] signature, List<GattDbElement> db) {
+        if (signature.length != db.size() * LONGS_PER_ELEMENT) {
+            return false;
+        }
+        for (int i = 0; i < db.size(); i++) {
+            GattDbElement el = db.get(i);
+            int position = i * LONGS_PER_ELEMENT;
+            UUID uuid = el.uuid;
+            if (signature[position] != header(el)
+                    || signature[position + 3] != (uuid != null ? 1 : 0)
+                    || (uuid != null
+                            && (signature[position + 1] != uuid.getMostSignificantBits()
+                            || signature[position + 2] != uuid.getLeastSignificantBits()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Handles are 16 bits, and types and properties 8 bits, so they fit one long.
+    private static long header(GattDbElement el) {
+        return (el.type & 0xFFL)
+                | ((el.properties & 0xFFL) << 8)
+                | ((el.id & 0xFFFFL) << 16)
+                | ((el.startHandle & 0xFFFFL) << 32);
+    }
+}
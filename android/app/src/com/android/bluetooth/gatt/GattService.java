@@ -72,6 +72,7 @@ import android.provider.Settings;
 import android.sysprop.BluetoothProperties;
 import android.text.format.DateUtils;
 import android.util.Log;
+import android.util.SparseBooleanArray;
 
 import com.android.bluetooth.BluetoothMetricsProto;
 import com.android.bluetooth.BluetoothStatsLog;
@@ -121,8 +122,10 @@ public class GattService extends ProfileService {
 
     private static final int MAC_ADDRESS_LENGTH = 6;
     // Batch scan related constants.
-    private static final int TRUNCATED_RESULT_SIZE = 11;
     private static final int TIME_STAMP_LENGTH = 2;
+    // Upper bound on the results delivered by one batch scan callback, so that flushing a full
+    // controller buffer neither builds one oversized binder transaction nor blocks on it.
+    private static final int MAX_BATCH_SCAN_RESULTS_PER_CALLBACK = 256;
 
     private enum MatchOrigin {
         PSEUDO_ADDRESS,
@@ -271,6 +274,11 @@ public class GattService extends ProfileService {
      */
     private final Map<Integer, Set<Integer>> mRestrictedHandles = new HashMap<>();
 
+    /**
+     * Converted GATT databases of the recently discovered devices.
+     */
+    private final GattDbCache mGattDbCache = new GattDbCache();
+
     /**
      * HashMap used to synchronize writeCharacteristic calls mapping remote device address to
      * available permit (connectId or -1).
@@ -285,6 +293,7 @@ public class GattService extends ProfileService {
     PeriodicScanManager mPeriodicScanManager;
     @VisibleForTesting
     ScanManager mScanManager;
+    private NotificationBatcher mNotificationBatcher;
     private AppOpsManager mAppOps;
     private CompanionDeviceManager mCompanionManager;
     private String mExposureNotificationPackage;
@@ -351,6 +360,8 @@ public class GattService extends ProfileService {
         mPeriodicScanManager = new PeriodicScanManager(mAdapterService);
         mPeriodicScanManager.start();
 
+        mNotificationBatcher = new NotificationBatcher(getMainLooper());
+
         setGattService(this);
         return true;
     }
@@ -367,6 +378,7 @@ public class GattService extends ProfileService {
         mServerMap.clear();
         mHandleMap.clear();
         mReliableQueue.clear();
+        mGattDbCache.clear();
         cleanup();
 
         return true;
@@ -390,6 +402,9 @@ public class GattService extends ProfileService {
         if (mPeriodicScanManager != null) {
             mPeriodicScanManager.cleanup();
         }
+        if (mNotificationBatcher != null) {
+            mNotificationBatcher.cleanup();
+        }
     }
 
     // While test mode is enabled, pretend as if the underlying stack
@@ -1857,8 +1872,17 @@ public class GattService extends ProfileService {
             originalAddress = identityAddress;
         }
 
-
-        byte[] legacyAdvData = Arrays.copyOfRange(advData, 0, 62);
+        // The device, parsed records and results are shared by every client of this event;
+        // ScanResult is immutable, so each view is only built the first time a client needs it.
+        // Records are parsed lazily, so results dropped by filtering never build their maps.
+        BluetoothDevice device = null;
+        long timestampNanos = 0;
+        ScanResult legacyResult = null;
+        ScanResult extendedResult = null;
+        // Scanners whose indexed filters match each view, also computed once per event.
+        ScanFilterIndex filterIndex = mScanManager.getRegularScanFilterIndex();
+        SparseBooleanArray legacyMatches = null;
+        SparseBooleanArray extendedMatches = null;
 
         for (ScanClient client : mScanManager.getRegularScanQueue()) {
             ScannerMap.App app = mScannerMap.getById(client.scannerId);
@@ -1869,10 +1893,13 @@ public class GattService extends ProfileService {
                 continue;
             }
 
-            BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
+            if (device == null) {
+                device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
+                timestampNanos = SystemClock.elapsedRealtimeNanos();
+            }
 
             ScanSettings settings = client.settings;
-            byte[] scanRecordData;
+            ScanResult result;
             // This is for compability with applications that assume fixed size scan data.
             if (settings.getLegacy()) {
                 if ((eventType & ET_LEGACY_MASK) == 0) {
@@ -1881,20 +1908,24 @@ public class GattService extends ProfileService {
                         Log.d(TAG, "Legacy scan, non legacy result; skip.");
                     }
                     continue;
-                } else {
+                }
+                if (legacyResult == null) {
                     // Some apps are used to fixed-size advertise data.
-                    scanRecordData = legacyAdvData;
+                    byte[] legacyAdvData = Arrays.copyOfRange(advData, 0, 62);
+                    legacyResult = new ScanResult(device, eventType, primaryPhy, secondaryPhy,
+                            advertisingSid, txPower, rssi, periodicAdvInt,
+                            ScanRecord.parseLazilyFromBytes(legacyAdvData), timestampNanos);
                 }
+                result = legacyResult;
             } else {
-                scanRecordData = advData;
+                if (extendedResult == null) {
+                    extendedResult = new ScanResult(device, eventType, primaryPhy, secondaryPhy,
+                            advertisingSid, txPower, rssi, periodicAdvInt,
+                            ScanRecord.parseLazilyFromBytes(advData), timestampNanos);
+                }
+                result = extendedResult;
             }
 
-            ScanRecord scanRecord = ScanRecord.parseFromBytes(scanRecordData);
-            ScanResult result =
-                    new ScanResult(device, eventType, primaryPhy, secondaryPhy, advertisingSid,
-                            txPower, rssi, periodicAdvInt, scanRecord,
-                            SystemClock.elapsedRealtimeNanos());
-
             if (client.hasDisavowedLocation) {
                 if (mLocationDenylistPredicate.test(result)) {
                     Log.i(TAG, "Skipping client for location deny list");
@@ -1918,11 +1949,28 @@ public class GattService extends ProfileService {
                     result = sanitized;
                 }
             }
-            MatchResult matchResult = matchesFilters(client, result, originalAddress);
-            if (!hasPermission || !matchResult.getMatches()) {
+            boolean matches;
+            if (client.filters == null || client.filters.isEmpty()
+                    || !filterIndex.contains(client.scannerId)) {
+                matches = matchesFilters(client, result, originalAddress).getMatches();
+            } else if (result == legacyResult) {
+                if (legacyMatches == null) {
+                    legacyMatches = filterIndex.match(legacyResult, originalAddress);
+                }
+                matches = legacyMatches.get(client.scannerId);
+            } else if (result == extendedResult) {
+                if (extendedMatches == null) {
+                    extendedMatches = filterIndex.match(extendedResult, originalAddress);
+                }
+                matches = extendedMatches.get(client.scannerId);
+            } else {
+                // Sanitized results are specific to this client.
+                matches = matchesFilters(client, result, originalAddress).getMatches();
+            }
+            if (!hasPermission || !matches) {
                 if (VDBG) {
                     Log.d(TAG, "Skipping client: permission="
-                            + hasPermission + " matches=" + matchResult.getMatches());
+                            + hasPermission + " matches=" + matches);
                 }
                 continue;
             }
@@ -1938,7 +1986,11 @@ public class GattService extends ProfileService {
 
             try {
                 app.appScanStats.addResult(client.scannerId);
-                if (app.callback != null) {
+                if (app.callback != null && client.coalesceResults) {
+                    mScanManager.getScanResultCoalescer().add(client, address, result,
+                            mAdapterService.getScanResultCoalescingWindowMillis(),
+                            mAdapterService.getScanResultCoalescingMaxResults());
+                } else if (app.callback != null) {
                     app.callback.onScanResult(result);
                 } else {
                     // Send the PendingIntent
@@ -1955,6 +2007,21 @@ public class GattService extends ProfileService {
         }
     }
 
+    // Delivers the results coalesced for a callback scanner as one batch.
+    void onCoalescedScanResults(ScanClient client, ArrayList<ScanResult> results) {
+        ScannerMap.App app = mScannerMap.getById(client.scannerId);
+        if (app == null || app.callback == null) {
+            return;
+        }
+        try {
+            app.callback.onBatchScanResults(results);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Exception: " + e);
+            mScannerMap.remove(client.scannerId);
+            mScanManager.stopScan(client.scannerId);
+        }
+    }
+
     private void sendResultByPendingIntent(PendingIntentInfo pii, ScanResult result,
             int callbackType, ScanClient client) {
         ArrayList<ScanResult> results = new ArrayList<>();
@@ -2108,6 +2175,7 @@ public class GattService extends ProfileService {
                             + address);
         }
 
+        mNotificationBatcher.removeConnection(connId);
         mClientMap.removeConnection(clientIf, connId);
         ClientMap.App app = mClientMap.getById(clientIf);
 
@@ -2145,6 +2213,7 @@ public class GattService extends ProfileService {
             return;
         }
 
+        mNotificationBatcher.flush(connId);
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app == null) {
             return;
@@ -2167,6 +2236,7 @@ public class GattService extends ProfileService {
             return;
         }
 
+        mNotificationBatcher.flush(connId);
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app == null) {
             return;
@@ -2186,6 +2256,7 @@ public class GattService extends ProfileService {
             return;
         }
 
+        mNotificationBatcher.flush(connId);
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app == null) {
             return;
@@ -2205,6 +2276,7 @@ public class GattService extends ProfileService {
             return;
         }
 
+        mNotificationBatcher.flush(connId);
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app == null) {
             return;
@@ -2224,6 +2296,7 @@ public class GattService extends ProfileService {
             return;
         }
 
+        mNotificationBatcher.flush(connId);
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app == null) {
             return;
@@ -2344,8 +2417,36 @@ public class GattService extends ProfileService {
             return;
         }
 
+        // The services are built for every delivery, as in-process clients modify them.
+        Set<Integer> restrictedIds = mGattDbCache.get(address, db);
+        List<BluetoothGattService> dbOut;
+        if (restrictedIds == null) {
+            restrictedIds = new HashSet<>();
+            dbOut = buildGattDb(db, restrictedIds);
+            mGattDbCache.put(address, db, restrictedIds);
+        } else {
+            if (DBG) {
+                Log.d(TAG, "onGetGattDb() - database of " + address + " unchanged, using cache");
+            }
+            dbOut = buildGattDb(db, null);
+        }
+
+        if (!restrictedIds.isEmpty()) {
+            mRestrictedHandles.put(connId, restrictedIds);
+        }
+        mNotificationBatcher.flush(connId);
+        mNotificationBatcher.clearPermissions(connId);
+        // Search is complete when there was error, or nothing more to process
+        app.callback.onSearchComplete(address, dbOut, 0 /* status */);
+    }
+
+    /**
+     * Converts the database elements to services, and collects the handles that need the
+     * privileged permission into {@code restrictedIds}, unless it is null.
+     */
+    private List<BluetoothGattService> buildGattDb(List<GattDbElement> db,
+            Set<Integer> restrictedIds) {
         List<BluetoothGattService> dbOut = new ArrayList<BluetoothGattService>();
-        Set<Integer> restrictedIds = new HashSet<>();
 
         BluetoothGattService currSrvc = null;
         BluetoothGattCharacteristic currChar = null;
@@ -2363,6 +2464,9 @@ public class GattService extends ProfileService {
 
                     currSrvc = new BluetoothGattService(el.uuid, el.id, el.type);
                     dbOut.add(currSrvc);
+                    if (restrictedIds == null) {
+                        break;
+                    }
                     isRestrictedSrvc = isRestrictedSrvcUuid(el.uuid);
                     isHidSrvc = isHidSrvcUuid(el.uuid);
                     if (isRestrictedSrvc) {
@@ -2377,6 +2481,9 @@ public class GattService extends ProfileService {
 
                     currChar = new BluetoothGattCharacteristic(el.uuid, el.id, el.properties, 0);
                     currSrvc.addCharacteristic(currChar);
+                    if (restrictedIds == null) {
+                        break;
+                    }
                     isRestrictedChar = isRestrictedSrvc || (isHidSrvc && isHidCharUuid(el.uuid));
                     if (isRestrictedChar) {
                         restrictedIds.add(el.id);
@@ -2389,7 +2496,7 @@ public class GattService extends ProfileService {
                     }
 
                     currChar.addDescriptor(new BluetoothGattDescriptor(el.uuid, el.id, 0));
-                    if (isRestrictedChar) {
+                    if (restrictedIds != null && isRestrictedChar) {
                         restrictedIds.add(el.id);
                     }
                     break;
@@ -2410,11 +2517,7 @@ public class GattService extends ProfileService {
             }
         }
 
-        if (!restrictedIds.isEmpty()) {
-            mRestrictedHandles.put(connId, restrictedIds);
-        }
-        // Search is complete when there was error, or nothing more to process
-        app.callback.onSearchComplete(address, dbOut, 0 /* status */);
+        return dbOut;
     }
 
     void onRegisterForNotifications(int connId, int status, int registered, int handle) {
@@ -2436,17 +2539,30 @@ public class GattService extends ProfileService {
 
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app != null) {
-            try {
-                permissionCheck(connId, handle);
-            } catch (SecurityException ex) {
-                // Only throws on apps with target SDK T+ as this old API did not throw prior to T
-                if (checkCallerTargetSdk(this, app.name, Build.VERSION_CODES.TIRAMISU)) {
-                    throw ex;
+            boolean batch = app.mBatchNotifications;
+            if (!batch || !mNotificationBatcher.isPermitted(connId, handle)) {
+                try {
+                    permissionCheck(connId, handle);
+                } catch (SecurityException ex) {
+                    // Only throws on apps with target SDK T+ as this old API did not throw prior
+                    // to T
+                    if (checkCallerTargetSdk(this, app.name, Build.VERSION_CODES.TIRAMISU)) {
+                        throw ex;
+                    }
+                    Log.w(TAG, "onNotify() - permission check failed!");
+                    return;
+                }
+                if (batch) {
+                    mNotificationBatcher.setPermitted(connId, handle);
                 }
-                Log.w(TAG, "onNotify() - permission check failed!");
-                return;
             }
-            app.callback.onNotify(address, handle, data);
+            if (batch) {
+                mNotificationBatcher.add(connId, address, app.callback, handle, data,
+                        mAdapterService.getGattNotificationBatchingWindowMillis(),
+                        mAdapterService.getGattNotificationBatchingMaxNotifications());
+            } else {
+                app.callback.onNotify(address, handle, data);
+            }
         }
     }
 
@@ -2459,6 +2575,7 @@ public class GattService extends ProfileService {
                     + ", length=" + data.length);
         }
 
+        mNotificationBatcher.flush(connId);
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app != null) {
             app.callback.onCharacteristicRead(address, status, handle, data);
@@ -2479,6 +2596,7 @@ public class GattService extends ProfileService {
                     + ", length=" + data.length);
         }
 
+        mNotificationBatcher.flush(connId);
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app == null) {
             return;
@@ -2504,6 +2622,7 @@ public class GattService extends ProfileService {
             Log.d(TAG, "onExecuteCompleted() - address=" + address + ", status=" + status);
         }
 
+        mNotificationBatcher.flush(connId);
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app != null) {
             app.callback.onExecuteWrite(address, status);
@@ -2519,6 +2638,7 @@ public class GattService extends ProfileService {
                             + data.length);
         }
 
+        mNotificationBatcher.flush(connId);
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app != null) {
             app.callback.onDescriptorRead(address, status, handle, data);
@@ -2534,6 +2654,7 @@ public class GattService extends ProfileService {
                     + ", length=" + data.length);
         }
 
+        mNotificationBatcher.flush(connId);
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app != null) {
             app.callback.onDescriptorWrite(address, status, handle, data);
@@ -2548,6 +2669,10 @@ public class GattService extends ProfileService {
                             + rssi + ", status=" + status);
         }
 
+        Integer connId = mClientMap.connIdByAddress(clientIf, address);
+        if (connId != null) {
+            mNotificationBatcher.flush(connId);
+        }
         ClientMap.App app = mClientMap.getById(clientIf);
         if (app != null) {
             app.callback.onReadRemoteRssi(address, rssi, status);
@@ -2623,7 +2748,7 @@ public class GattService extends ProfileService {
                     + ", reportType=" + reportType + ", numRecords=" + numRecords);
         }
 
-        Set<ScanResult> results = parseBatchScanResults(numRecords, reportType, recordData);
+        List<ScanResult> results = parseBatchScanResults(numRecords, reportType, recordData);
         if (reportType == ScanManager.SCAN_RESULT_TYPE_TRUNCATED) {
             // We only support single client for truncated mode.
             ScannerMap.App app = mScannerMap.getById(scannerId);
@@ -2657,17 +2782,26 @@ public class GattService extends ProfileService {
             if (client.hasDisavowedLocation) {
                 permittedResults.removeIf(mLocationDenylistPredicate);
             }
+            // The controller filters may be broader than the client's when they were merged.
+            permittedResults.removeIf(
+                    result -> !ScanFilterPlacement.mayMatchTruncatedResult(client.filters, result));
 
-            if (app.callback != null) {
-                app.callback.onBatchScanResults(permittedResults);
-            } else {
-                // PendingIntent based
-                try {
-                    sendResultsByPendingIntent(app.info, permittedResults,
-                            ScanSettings.CALLBACK_TYPE_ALL_MATCHES);
-                } catch (PendingIntent.CanceledException e) {
+            int start = 0;
+            do {
+                ArrayList<ScanResult> chunk = batchScanResultsChunk(permittedResults, start);
+                if (app.callback != null) {
+                    app.callback.onBatchScanResults(chunk);
+                } else {
+                    // PendingIntent based
+                    try {
+                        sendResultsByPendingIntent(app.info, chunk,
+                                ScanSettings.CALLBACK_TYPE_ALL_MATCHES);
+                    } catch (PendingIntent.CanceledException e) {
+                        break;
+                    }
                 }
-            }
+                start += MAX_BATCH_SCAN_RESULTS_PER_CALLBACK;
+            } while (start < permittedResults.size());
         } else {
             for (ScanClient client : mScanManager.getFullBatchScanQueue()) {
                 // Deliver results for each client.
@@ -2693,11 +2827,19 @@ public class GattService extends ProfileService {
                     if (DBG) {
                         Log.d(TAG, "sendBatchScanResults() to onBatchScanResults()" + client);
                     }
-                    app.callback.onBatchScanResults(results);
+                    int start = 0;
+                    do {
+                        app.callback.onBatchScanResults(batchScanResultsChunk(results, start));
+                        start += MAX_BATCH_SCAN_RESULTS_PER_CALLBACK;
+                    } while (start < results.size());
                 }
             } else {
-                sendResultsByPendingIntent(app.info, results,
-                        ScanSettings.CALLBACK_TYPE_ALL_MATCHES);
+                int start = 0;
+                do {
+                    sendResultsByPendingIntent(app.info, batchScanResultsChunk(results, start),
+                            ScanSettings.CALLBACK_TYPE_ALL_MATCHES);
+                    start += MAX_BATCH_SCAN_RESULTS_PER_CALLBACK;
+                } while (start < results.size());
             }
         } catch (RemoteException | PendingIntent.CanceledException e) {
             Log.e(TAG, "Exception: " + e);
@@ -2706,8 +2848,18 @@ public class GattService extends ProfileService {
         }
     }
 
+    // Returns the results from start on, up to the size of one batch callback.
+    private static ArrayList<ScanResult> batchScanResultsChunk(ArrayList<ScanResult> results,
+            int start) {
+        if (start == 0 && results.size() <= MAX_BATCH_SCAN_RESULTS_PER_CALLBACK) {
+            return results;
+        }
+        int end = Math.min(results.size(), start + MAX_BATCH_SCAN_RESULTS_PER_CALLBACK);
+        return new ArrayList<>(results.subList(start, end));
+    }
+
     // Check and deliver scan results for different scan clients.
-    private void deliverBatchScan(ScanClient client, Set<ScanResult> allResults)
+    private void deliverBatchScan(ScanClient client, List<ScanResult> allResults)
             throws RemoteException {
         ScannerMap.App app = mScannerMap.getById(client.scannerId);
         if (app == null) {
@@ -2745,39 +2897,26 @@ public class GattService extends ProfileService {
         sendBatchScanResults(app, client, results);
     }
 
-    private Set<ScanResult> parseBatchScanResults(int numRecords, int reportType,
+    private List<ScanResult> parseBatchScanResults(int numRecords, int reportType,
             byte[] batchRecord) {
         if (numRecords == 0) {
-            return Collections.emptySet();
+            return Collections.emptyList();
         }
+        long now = SystemClock.elapsedRealtimeNanos();
         if (DBG) {
-            Log.d(TAG, "current time is " + SystemClock.elapsedRealtimeNanos());
+            Log.d(TAG, "current time is " + now);
         }
         if (reportType == ScanManager.SCAN_RESULT_TYPE_TRUNCATED) {
-            return parseTruncatedResults(numRecords, batchRecord);
+            if (DBG) {
+                Log.d(TAG, "batch record " + Arrays.toString(batchRecord));
+            }
+            return BatchScanReportParser.parseTruncatedResults(numRecords, batchRecord, now);
         } else {
-            return parseFullResults(numRecords, batchRecord);
-        }
-    }
-
-    private Set<ScanResult> parseTruncatedResults(int numRecords, byte[] batchRecord) {
-        if (DBG) {
-            Log.d(TAG, "batch record " + Arrays.toString(batchRecord));
-        }
-        Set<ScanResult> results = new HashSet<ScanResult>(numRecords);
-        long now = SystemClock.elapsedRealtimeNanos();
-        for (int i = 0; i < numRecords; ++i) {
-            byte[] record =
-                    extractBytes(batchRecord, i * TRUNCATED_RESULT_SIZE, TRUNCATED_RESULT_SIZE);
-            byte[] address = extractBytes(record, 0, 6);
-            reverse(address);
-            BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
-            int rssi = record[8];
-            long timestampNanos = now - parseTimestampNanos(extractBytes(record, 9, 2));
-            results.add(new ScanResult(device, ScanRecord.parseFromBytes(new byte[0]), rssi,
-                    timestampNanos));
+            if (DBG) {
+                Log.d(TAG, "Batch record : " + Arrays.toString(batchRecord));
+            }
+            return BatchScanReportParser.parseFullResults(batchRecord, now);
         }
-        return results;
     }
 
     @VisibleForTesting
@@ -2787,64 +2926,6 @@ public class GattService extends ProfileService {
         return TimeUnit.MILLISECONDS.toNanos(timestampUnit * 50);
     }
 
-    private Set<ScanResult> parseFullResults(int numRecords, byte[] batchRecord) {
-        if (DBG) {
-            Log.d(TAG, "Batch record : " + Arrays.toString(batchRecord));
-        }
-        Set<ScanResult> results = new HashSet<ScanResult>(numRecords);
-        int position = 0;
-        long now = SystemClock.elapsedRealtimeNanos();
-        while (position < batchRecord.length) {
-            byte[] address = extractBytes(batchRecord, position, 6);
-            // TODO: remove temp hack.
-            reverse(address);
-            BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
-            position += 6;
-            // Skip address type.
-            position++;
-            // Skip tx power level.
-            position++;
-            int rssi = batchRecord[position++];
-            long timestampNanos = now - parseTimestampNanos(extractBytes(batchRecord, position, 2));
-            position += 2;
-
-            // Combine advertise packet and scan response packet.
-            int advertisePacketLen = batchRecord[position++];
-            byte[] advertiseBytes = extractBytes(batchRecord, position, advertisePacketLen);
-            position += advertisePacketLen;
-            int scanResponsePacketLen = batchRecord[position++];
-            byte[] scanResponseBytes = extractBytes(batchRecord, position, scanResponsePacketLen);
-            position += scanResponsePacketLen;
-            byte[] scanRecord = new byte[advertisePacketLen + scanResponsePacketLen];
-            System.arraycopy(advertiseBytes, 0, scanRecord, 0, advertisePacketLen);
-            System.arraycopy(scanResponseBytes, 0, scanRecord, advertisePacketLen,
-                    scanResponsePacketLen);
-            if (DBG) {
-                Log.d(TAG, "ScanRecord : " + Arrays.toString(scanRecord));
-            }
-            results.add(new ScanResult(device, ScanRecord.parseFromBytes(scanRecord), rssi,
-                    timestampNanos));
-        }
-        return results;
-    }
-
-    // Reverse byte array.
-    private void reverse(byte[] address) {
-        int len = address.length;
-        for (int i = 0; i < len / 2; ++i) {
-            byte b = address[i];
-            address[i] = address[len - 1 - i];
-            address[len - 1 - i] = b;
-        }
-    }
-
-    // Helper method to extract bytes from byte array.
-    private static byte[] extractBytes(byte[] scanRecord, int start, int length) {
-        byte[] bytes = new byte[length];
-        System.arraycopy(scanRecord, start, bytes, 0, length);
-        return bytes;
-    }
-
     @RequiresPermission(android.Manifest.permission.BLUETOOTH_SCAN)
     void onBatchScanThresholdCrossed(int clientIf) {
         if (DBG) {
@@ -2952,6 +3033,7 @@ public class GattService extends ProfileService {
                     "onConfigureMTU() address=" + address + ", status=" + status + ", mtu=" + mtu);
         }
 
+        mNotificationBatcher.flush(connId);
         ClientMap.App app = mClientMap.getByConnId(connId);
         if (app != null) {
             app.callback.onConfigureMTU(address, mtu, status);
@@ -2963,6 +3045,7 @@ public class GattService extends ProfileService {
             Log.d(TAG, "onClientCongestion() - connId=" + connId + ", congested=" + congested);
         }
 
+        mNotificationBatcher.flush(connId);
         ClientMap.App app = mClientMap.getByConnId(connId);
 
         if (app != null) {
@@ -3138,6 +3221,12 @@ public class GattService extends ProfileService {
         scanClient.hasScanWithoutLocationPermission =
                 Utils.checkCallerHasScanWithoutLocationPermission(this);
         scanClient.associatedDevices = getAssociatedDevices(callingPackage);
+        // Opted-in packages get their regular results in micro-batches through
+        // onBatchScanResults, so only plain all-matches scans qualify.
+        scanClient.coalesceResults =
+                settings.getCallbackType() == ScanSettings.CALLBACK_TYPE_ALL_MATCHES
+                && settings.getReportDelayMillis() == 0
+                && mAdapterService.getScanResultCoalescingPackages().contains(callingPackage);
 
         AppScanStats app = mScannerMap.getAppScanStatsById(scannerId);
         ScannerMap.App cbApp = mScannerMap.getById(scannerId);
@@ -3502,7 +3591,9 @@ public class GattService extends ProfileService {
         if (DBG) {
             Log.d(TAG, "registerClient() - UUID=" + uuid);
         }
-        mClientMap.add(uuid, null, callback, null, this);
+        ClientMap.App app = mClientMap.add(uuid, null, callback, null, this);
+        app.mBatchNotifications = mAdapterService.getGattNotificationBatchingPackages()
+                .contains(attributionSource.getPackageName());
         mNativeInterface.gattClientRegisterApp(uuid.getLeastSignificantBits(),
                 uuid.getMostSignificantBits(), eatt_support);
     }
@@ -4868,6 +4959,16 @@ public class GattService extends ProfileService {
         sb.append("GATT Scanner Map\n");
         mScannerMap.dump(sb);
 
+        mScanManager.dump(sb);
+
+        if (mScanManager.getScanResultCoalescer() != null) {
+            mScanManager.getScanResultCoalescer().dump(sb);
+        }
+
+        if (mNotificationBatcher != null) {
+            mNotificationBatcher.dump(sb);
+        }
+
         sb.append("GATT Advertiser Map\n");
         mAdvertiserMap.dumpAdvertiser(sb);
 
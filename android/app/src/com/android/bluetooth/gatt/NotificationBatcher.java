@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.IBluetoothGattCallback;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.RemoteException;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Batches the GATT notifications of opted-in clients per connection.
+ *
+ * <p>Notifications are queued per connection and delivered in arrival order through a single
+ * {@link IBluetoothGattCallback#onNotifyBatch} call, once the batching window has passed since
+ * the first queued notification or as soon as the queue is full. Any other callback for the
+ * connection must be preceded by {@link #flush}, so that it is not delivered ahead of the
+ * notifications received before it.
+ *
+ * <p>The result of the restricted handle permission check is also cached per connection and
+ * handle, until {@link #clearPermissions} is called for the connection.
+ *
+ * @hide
+ */
+/* package */class NotificationBatcher {
+    private static final boolean VDBG = GattServiceConfig.VDBG;
+    private static final String TAG = GattServiceConfig.TAG_PREFIX + "NotificationBatcher";
+
+    private static final int MSG_FLUSH = 0;
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private static class ConnectionQueue {
+        final String address;
+        final IBluetoothGattCallback callback;
+        // Held while a batch is taken from the queue and delivered, so that the batches of the
+        // connection are delivered in order. Acquired before mLock, never while holding it.
+        final Object deliveryLock = new Object();
+        // Pending notifications, in arrival order.
+        int[] handles = new int[INITIAL_CAPACITY];
+        ArrayList<byte[]> values = new ArrayList<>(INITIAL_CAPACITY);
+        // Configuration in effect for the latest notification.
+        long windowMillis;
+        int maxNotifications;
+
+        long notificationsQueued;
+        long batchesDelivered;
+
+        ConnectionQueue(String address, IBluetoothGattCallback callback) {
+            this.address = address;
+            this.callback = callback;
+        }
+    }
+
+    private static class Batch {
+        final String address;
+        final IBluetoothGattCallback callback;
+        final int[] handles;
+        final ArrayList<byte[]> values;
+
+        Batch(String address, IBluetoothGattCallback callback, int[] handles,
+                ArrayList<byte[]> values) {
+            this.address = address;
+            this.callback = callback;
+            this.handles = handles;
+            this.values = values;
+        }
+    }
+
+    private final Handler mHandler;
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final SparseArray<ConnectionQueue> mQueues = new SparseArray<>();
+    // Handles that passed the permission check, by connection.
+    @GuardedBy("mLock")
+    private final SparseArray<SparseBooleanArray> mPermittedHandles = new SparseArray<>();
+
+    NotificationBatcher(Looper looper) {
+        mHandler = new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_FLUSH) {
+                    flush(msg.arg1);
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns whether {@code handle} passed the permission check on {@code connId}.
+     */
+    boolean isPermitted(int connId, int handle) {
+        synchronized (mLock) {
+            SparseBooleanArray handles = mPermittedHandles.get(connId);
+            return handles != null && handles.get(handle);
+        }
+    }
+
+    /**
+     * Records that {@code handle} passed the permission check on {@code connId}.
+     */
+    void setPermitted(int connId, int handle) {
+        synchronized (mLock) {
+            SparseBooleanArray handles = mPermittedHandles.get(connId);
+            if (handles == null) {
+                handles = new SparseBooleanArray();
+                mPermittedHandles.put(connId, handles);
+            }
+            handles.put(handle, true);
+        }
+    }
+
+    /**
+     * Forgets the permission checks of {@code connId}, as its restricted handles changed.
+     */
+    void clearPermissions(int connId) {
+        synchronized (mLock) {
+            mPermittedHandles.remove(connId);
+        }
+    }
+
+    /**
+     * Queues a notification of {@code handle} on {@code connId}.
+     *
+     * <p>The configuration is passed with every notification, so that changes apply to the
+     * connections that already have a queue.
+     *
+     * @param windowMillis the batching window, started by the first pending notification
+     * @param maxNotifications the number of pending notifications that triggers an immediate
+     *        delivery
+     */
+    void add(int connId, String address, IBluetoothGattCallback callback, int handle,
+            byte[] value, long windowMillis, int maxNotifications) {
+        boolean full;
+        synchronized (mLock) {
+            ConnectionQueue queue = mQueues.get(connId);
+            if (queue == null) {
+                queue = new ConnectionQueue(address, callback);
+                mQueues.put(connId, queue);
+            }
+            int count = queue.values.size();
+            if (count == queue.handles.length) {
+                queue.handles = Arrays.copyOf(queue.handles, count * 2);
+            }
+            queue.handles[count] = handle;
+            queue.values.add(value);
+            queue.notificationsQueued++;
+            queue.windowMillis = windowMillis;
+            queue.maxNotifications = Math.max(1, maxNotifications);
+            full = queue.values.size() >= queue.maxNotifications;
+            if (!full && queue.values.size() == 1) {
+                mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_FLUSH, connId, 0, queue),
+                        queue.windowMillis);
+            }
+        }
+        if (full) {
+            flush(connId);
+        }
+    }
+
+    /**
+     * Delivers the pending notifications of {@code connId}, if any.
+     */
+    void flush(int connId) {
+        ConnectionQueue queue;
+        synchronized (mLock) {
+            queue = mQueues.get(connId);
+        }
+        if (queue != null) {
+            deliver(connId, queue);
+        }
+    }
+
+    /**
+     * Delivers the pending notifications of {@code connId} and forgets the connection.
+     */
+    void removeConnection(int connId) {
+        ConnectionQueue queue;
+        synchronized (mLock) {
+            queue = mQueues.get(connId);
+            mQueues.remove(connId);
+            mPermittedHandles.remove(connId);
+        }
+        if (queue != null) {
+            deliver(connId, queue);
+        }
+    }
+
+    void cleanup() {
+        synchronized (mLock) {
+            mHandler.removeCallbacksAndMessages(null);
+            mQueues.clear();
+            mPermittedHandles.clear();
+        }
+    }
+
+    // Takes the pending notifications under mLock and makes the binder call without it, so
+    // that notifications of other connections can still be queued meanwhile.
+    private void deliver(int connId, ConnectionQueue queue) {
+        synchronized (queue.deliveryLock) {
+            Batch batch;
+            synchronized (mLock) {
+                batch = takeBatchLocked(queue);
+            }
+            if (batch == null) {
+                return;
+            }
+            if (VDBG) {
+                Log.d(TAG, "deliver() - connId=" + connId + ", count=" + batch.values.size());
+            }
+            try {
+                if (batch.values.size() == 1) {
+                    batch.callback.onNotify(batch.address, batch.handles[0],
+                            batch.values.get(0));
+                } else {
+                    deliverBatch(batch);
+                }
+            } catch (RemoteException e) {
+                Log.e(TAG, "Exception: " + e);
+            }
+        }
+    }
+
+    @GuardedBy("mLock")
+    private Batch takeBatchLocked(ConnectionQueue queue) {
+        int count = queue.values.size();
+        if (count == 0) {
+            return null;
+        }
+        mHandler.removeMessages(MSG_FLUSH, queue);
+        Batch batch = new Batch(queue.address, queue.callback,
+                Arrays.copyOf(queue.handles, count), queue.values);
+        queue.values = new ArrayList<>(INITIAL_CAPACITY);
+        queue.batchesDelivered++;
+        return batch;
+    }
+
+    private static void deliverBatch(Batch batch) throws RemoteException {
+        int count = batch.values.size();
+        int[] valueLengths = new int[count];
+        int total = 0;
+        for (int i = 0; i < count; i++) {
+            valueLengths[i] = batch.values.get(i).length;
+            total += valueLengths[i];
+        }
+        byte[] values = new byte[total];
+        int offset = 0;
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(batch.values.get(i), 0, values, offset, valueLengths[i]);
+            offset += valueLengths[i];
+        }
+        batch.callback.onNotifyBatch(batch.address, batch.handles, valueLengths, values);
+    }
+
+    void dump(StringBuilder sb) {
+        synchronized (mLock) {
+            if (mQueues.size() == 0) {
+                return;
+            }
+            sb.append("Batched GATT notification delivery\n");
+            for (int i = 0; i < mQueues.size(); i++) {
+                ConnectionQueue queue = mQueues.valueAt(i);
+                sb.append("  connId ").append(mQueues.keyAt(i))
+                        .append(" (window ").append(queue.windowMillis).append("ms, max ")
+                        .append(queue.maxNotifications).append(")")
+                        .append("\n    Notifications (queued/pending)           : ")
+                        .append(queue.notificationsQueued).append(" / ")
+                        .append(queue.values.size())
+                        .append("\n    Deliveries                               : ")
+                        .append(queue.batchesDelivered)
+                        .append("\n");
+            }
+        }
+    }
+}
@@ -26,8 +26,10 @@ import android.os.IBinder;
 import android.os.IInterface;
 import android.os.RemoteException;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.android.bluetooth.btservice.AdapterService;
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 
 import java.util.Collections;
@@ -46,7 +48,14 @@ public class PeriodicScanManager {
     private static final String TAG = GattServiceConfig.TAG_PREFIX + "SyncManager";
 
     private final BluetoothAdapter mAdapter;
+    private final NativeInterface mNativeInterface;
     Map<IBinder, SyncInfo> mSyncs = new ConcurrentHashMap<>();
+    // Callbacks of mSyncs by sync handle, or by registration id while the sync is pending.
+    // Rebuilt with new arrays whenever mSyncs changes, so that onSyncReport() can keep using
+    // the array it read under the lock once it is released.
+    @GuardedBy("mSyncs")
+    private final SparseArray<IPeriodicAdvertisingCallback[]> mSyncCallbacks =
+            new SparseArray<>();
     Map<IBinder, SyncTransferInfo> mSyncTransfers = Collections.synchronizedMap(new HashMap<>());
     static int sTempRegistrationId = -1;
     private static final int PA_SOURCE_LOCAL = 1;
@@ -55,22 +64,88 @@ public class PeriodicScanManager {
      * Constructor of {@link SyncManager}.
      */
     PeriodicScanManager(AdapterService adapterService) {
+        this(adapterService, null);
+    }
+
+    @VisibleForTesting
+    PeriodicScanManager(AdapterService adapterService, NativeInterface nativeInterface) {
         if (DBG) {
             Log.d(TAG, "advertise manager created");
         }
         mAdapter = BluetoothAdapter.getDefaultAdapter();
+        mNativeInterface = nativeInterface != null ? nativeInterface : new NativeInterface() {
+            @Override
+            public void initialize() {
+                initializeNative();
+            }
+
+            @Override
+            public void cleanup() {
+                cleanupNative();
+            }
+
+            @Override
+            public void startSync(int sid, String address, int skip, int timeout, int regId) {
+                startSyncNative(sid, address, skip, timeout, regId);
+            }
+
+            @Override
+            public void stopSync(int syncHandle) {
+                stopSyncNative(syncHandle);
+            }
+
+            @Override
+            public void cancelSync(int sid, String address) {
+                cancelSyncNative(sid, address);
+            }
+
+            @Override
+            public void syncTransfer(int paSource, String address, int serviceData,
+                    int syncHandle) {
+                syncTransferNative(paSource, address, serviceData, syncHandle);
+            }
+
+            @Override
+            public void transferSetInfo(int paSource, String address, int serviceData,
+                    int advHandle) {
+                transferSetInfoNative(paSource, address, serviceData, advHandle);
+            }
+        };
+    }
+
+    /**
+     * Calls into the native stack, replaced in tests.
+     */
+    @VisibleForTesting
+    interface NativeInterface {
+        void initialize();
+
+        void cleanup();
+
+        void startSync(int sid, String address, int skip, int timeout, int regId);
+
+        void stopSync(int syncHandle);
+
+        void cancelSync(int sid, String address);
+
+        void syncTransfer(int paSource, String address, int serviceData, int syncHandle);
+
+        void transferSetInfo(int paSource, String address, int serviceData, int advHandle);
     }
 
     void start() {
-        initializeNative();
+        mNativeInterface.initialize();
     }
 
     void cleanup() {
         if (DBG) {
             Log.d(TAG, "cleanup()");
         }
-        cleanupNative();
-        mSyncs.clear();
+        mNativeInterface.cleanup();
+        synchronized (mSyncs) {
+            mSyncs.clear();
+            updateSyncCallbacksLocked();
+        }
         sTempRegistrationId = -1;
     }
 
@@ -161,6 +236,22 @@ public class PeriodicScanManager {
         return entry;
     }
 
+    // Called after every change of mSyncs. Syncs start and stop rarely compared to reports.
+    @GuardedBy("mSyncs")
+    private void updateSyncCallbacksLocked() {
+        mSyncCallbacks.clear();
+        for (SyncInfo sync : mSyncs.values()) {
+            IPeriodicAdvertisingCallback[] callbacks = mSyncCallbacks.get(sync.id);
+            int count = callbacks == null ? 0 : callbacks.length;
+            IPeriodicAdvertisingCallback[] updated = new IPeriodicAdvertisingCallback[count + 1];
+            if (callbacks != null) {
+                System.arraycopy(callbacks, 0, updated, 0, count);
+            }
+            updated[count] = sync.callback;
+            mSyncCallbacks.put(sync.id, updated);
+        }
+    }
+
     Map<IBinder, SyncInfo> findAllSync(int syncHandle) {
         Map<IBinder, SyncInfo> syncMap = new HashMap<IBinder, SyncInfo>();
         for (Map.Entry<IBinder, SyncInfo> e : mSyncs.entrySet()) {
@@ -188,53 +279,75 @@ public class PeriodicScanManager {
         Map<IBinder, SyncInfo> syncMap = findAllSync(regId);
         if (syncMap.size() == 0) {
             Log.d(TAG, "onSyncStarted() - no callback found for regId " + regId);
-            stopSyncNative(syncHandle);
+            mNativeInterface.stopSync(syncHandle);
             return;
         }
 
         synchronized (mSyncs) {
-            for (Map.Entry<IBinder, SyncInfo> e : mSyncs.entrySet()) {
-                if (e.getValue().id != regId) {
-                    continue;
-                }
-                IPeriodicAdvertisingCallback callback = e.getValue().callback;
-                if (status == 0) {
-                    Log.d(TAG, "onSyncStarted: updating id with syncHandle " + syncHandle);
-                    e.setValue(new SyncInfo(syncHandle, sid, address, e.getValue().skip,
-                                            e.getValue().timeout, e.getValue().deathRecipient,
-                                            callback));
-                    callback.onSyncEstablished(syncHandle, mAdapter.getRemoteDevice(address),
-                                               sid, e.getValue().skip, e.getValue().timeout,
-                                               status);
-                } else {
-                    callback.onSyncEstablished(syncHandle, mAdapter.getRemoteDevice(address),
-                                               sid, e.getValue().skip, e.getValue().timeout,
-                                               status);
-                    IBinder binder = e.getKey();
-                    binder.unlinkToDeath(e.getValue().deathRecipient, 0);
-                    mSyncs.remove(binder);
+            try {
+                for (Map.Entry<IBinder, SyncInfo> e : mSyncs.entrySet()) {
+                    if (e.getValue().id != regId) {
+                        continue;
+                    }
+                    IPeriodicAdvertisingCallback callback = e.getValue().callback;
+                    if (status == 0) {
+                        Log.d(TAG, "onSyncStarted: updating id with syncHandle " + syncHandle);
+                        e.setValue(new SyncInfo(syncHandle, sid, address, e.getValue().skip,
+                                                e.getValue().timeout, e.getValue().deathRecipient,
+                                                callback));
+                        notifySyncEstablished(callback, syncHandle, address, sid,
+                                e.getValue().skip, e.getValue().timeout, status);
+                    } else {
+                        notifySyncEstablished(callback, syncHandle, address, sid,
+                                e.getValue().skip, e.getValue().timeout, status);
+                        IBinder binder = e.getKey();
+                        binder.unlinkToDeath(e.getValue().deathRecipient, 0);
+                        mSyncs.remove(binder);
+                    }
                 }
+            } finally {
+                // The handles of mSyncs changed even if a callback failed.
+                updateSyncCallbacksLocked();
             }
         }
     }
 
+    // A client that died is cleaned up by its death recipient, so the other clients of the
+    // sync are still notified.
+    private void notifySyncEstablished(IPeriodicAdvertisingCallback callback, int syncHandle,
+            String address, int sid, int skip, int timeout, int status) {
+        try {
+            callback.onSyncEstablished(syncHandle, mAdapter.getRemoteDevice(address), sid, skip,
+                    timeout, status);
+        } catch (RemoteException e) {
+            Log.e(TAG, "onSyncStarted() - failed to notify client", e);
+        }
+    }
+
     void onSyncReport(int syncHandle, int txPower, int rssi, int dataStatus, byte[] data)
             throws Exception {
         if (DBG) {
             Log.d(TAG, "onSyncReport() - syncHandle=" + syncHandle);
         }
 
-        Map<IBinder, SyncInfo> syncMap = findAllSync(syncHandle);
-        if (syncMap.isEmpty()) {
+        IPeriodicAdvertisingCallback[] callbacks;
+        synchronized (mSyncs) {
+            callbacks = mSyncCallbacks.get(syncHandle);
+        }
+        if (callbacks == null) {
             Log.i(TAG, "onSyncReport() - no callback found for syncHandle " + syncHandle);
             return;
         }
-        for (Map.Entry<IBinder, SyncInfo> e :syncMap.entrySet()) {
-            IPeriodicAdvertisingCallback callback = e.getValue().callback;
-            PeriodicAdvertisingReport report =
-                    new PeriodicAdvertisingReport(syncHandle, txPower, rssi, dataStatus,
-                            ScanRecord.parseFromBytes(data));
-            callback.onPeriodicAdvertisingReport(report);
+        // The report is only parceled, so all the subscribers can share it.
+        PeriodicAdvertisingReport report =
+                new PeriodicAdvertisingReport(syncHandle, txPower, rssi, dataStatus,
+                        ScanRecord.parseFromBytes(data));
+        for (IPeriodicAdvertisingCallback callback : callbacks) {
+            try {
+                callback.onPeriodicAdvertisingReport(report);
+            } catch (RemoteException e) {
+                Log.e(TAG, "onSyncReport() - failed to notify client", e);
+            }
         }
     }
 
@@ -247,14 +360,17 @@ public class PeriodicScanManager {
             Log.i(TAG, "onSyncLost() - no callback found for syncHandle " + syncHandle);
             return;
         }
+        synchronized (mSyncs) {
+            mSyncs.keySet().removeAll(syncMap.keySet());
+            updateSyncCallbacksLocked();
+        }
         for (Map.Entry<IBinder, SyncInfo> e :syncMap.entrySet()) {
             IPeriodicAdvertisingCallback callback = e.getValue().callback;
-            IBinder binder = toBinder(callback);
-            synchronized (mSyncs) {
-                mSyncs.remove(binder);
+            try {
+                callback.onSyncLost(syncHandle);
+            } catch (RemoteException ex) {
+                Log.e(TAG, "onSyncLost() - failed to notify client", ex);
             }
-            callback.onSyncLost(syncHandle);
-
         }
     }
 
@@ -283,6 +399,7 @@ public class PeriodicScanManager {
                 mSyncs.put(binder, new SyncInfo(entry.getValue().id, sid, address,
                         entry.getValue().skip, entry.getValue().timeout, deathRecipient,
                         callback));
+                updateSyncCallbacksLocked();
                 if (entry.getValue().id >= 0) {
                     try {
                         callback.onSyncEstablished(entry.getValue().id,
@@ -300,13 +417,16 @@ public class PeriodicScanManager {
         }
 
         int cbId = --sTempRegistrationId;
-        mSyncs.put(binder, new SyncInfo(cbId, sid, address, skip, timeout,
-                deathRecipient, callback));
+        synchronized (mSyncs) {
+            mSyncs.put(binder, new SyncInfo(cbId, sid, address, skip, timeout,
+                    deathRecipient, callback));
+            updateSyncCallbacksLocked();
+        }
 
         if (DBG) {
             Log.d(TAG, "startSync() - reg_id=" + cbId + ", callback: " + binder);
         }
-        startSyncNative(sid, address, skip, timeout, cbId);
+        mNativeInterface.startSync(sid, address, skip, timeout, cbId);
     }
 
     void stopSync(IPeriodicAdvertisingCallback callback) {
@@ -317,6 +437,7 @@ public class PeriodicScanManager {
         SyncInfo sync = null;
         synchronized (mSyncs) {
             sync = mSyncs.remove(binder);
+            updateSyncCallbacksLocked();
         }
         if (sync == null) {
             Log.e(TAG, "stopSync() - no client found for callback");
@@ -337,9 +458,9 @@ public class PeriodicScanManager {
         Log.d(TAG, "calling stopSyncNative: " + syncHandle.intValue());
         if (syncHandle < 0) {
             Log.i(TAG, "cancelSync() - sync not established yet");
-            cancelSyncNative(sync.advSid, sync.address);
+            mNativeInterface.cancelSync(sync.advSid, sync.address);
         } else {
-            stopSyncNative(syncHandle.intValue());
+            mNativeInterface.stopSync(syncHandle.intValue());
         }
     }
 
@@ -367,7 +488,7 @@ public class PeriodicScanManager {
         //check for duplicate transfers
         mSyncTransfers.put(entry.getKey(), new SyncTransferInfo(bda.getAddress(),
                            entry.getValue().callback));
-        syncTransferNative(PA_SOURCE_REMOTE, bda.getAddress(), serviceData, syncHandle);
+        mNativeInterface.syncTransfer(PA_SOURCE_REMOTE, bda.getAddress(), serviceData, syncHandle);
     }
 
     void transferSetInfo(BluetoothDevice bda, int serviceData,
@@ -383,7 +504,7 @@ public class PeriodicScanManager {
             throw new IllegalArgumentException("Can't link to periodic scanner death");
         }
         mSyncTransfers.put(binder, new SyncTransferInfo(bda.getAddress(), callback));
-        transferSetInfoNative(PA_SOURCE_LOCAL, bda.getAddress(), serviceData, advHandle);
+        mNativeInterface.transferSetInfo(PA_SOURCE_LOCAL, bda.getAddress(), serviceData, advHandle);
     }
 
     static {
@@ -47,6 +47,8 @@ import java.util.Objects;
     public boolean hasScanWithoutLocationPermission;
     public boolean hasDisavowedLocation;
     public List<String> associatedDevices;
+    // Regular scan results are coalesced into batches, see ScanResultCoalescer.
+    public boolean coalesceResults;
 
     public AppScanStats stats = null;
 
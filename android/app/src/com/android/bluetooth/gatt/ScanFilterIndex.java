@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothUuid;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.os.ParcelUuid;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Index of the {@link ScanFilter}s of the regular scan clients.
+ *
+ * <p>Each filter is hashed on the most selective field it constrains (device address,
+ * manufacturer id, service data UUID or unmasked service UUID), so matching a scan result only
+ * evaluates the filters that could match it instead of every filter of every client. Filters
+ * that constrain none of these fields are evaluated for every result. Candidate lookup reads
+ * the raw advertising bytes, so it does not force lazily parsed scan records to be parsed.
+ *
+ * @hide
+ */
+/* package */class ScanFilterIndex {
+
+    private static class Entry {
+        final int scannerId;
+        final ScanFilter filter;
+
+        Entry(int scannerId, ScanFilter filter) {
+            this.scannerId = scannerId;
+            this.filter = filter;
+        }
+    }
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final Map<String, List<Entry>> mByAddress = new HashMap<>();
+    @GuardedBy("mLock")
+    private final SparseArray<List<Entry>> mByManufacturerId = new SparseArray<>();
+    @GuardedBy("mLock")
+    private final Map<ParcelUuid, List<Entry>> mByServiceDataUuid = new HashMap<>();
+    @GuardedBy("mLock")
+    private final Map<ParcelUuid, List<Entry>> mByServiceUuid = new HashMap<>();
+    @GuardedBy("mLock")
+    private final List<Entry> mUnindexed = new ArrayList<>();
+    // Entries of each indexed client, used to unlink them again on removal.
+    @GuardedBy("mLock")
+    private final SparseArray<List<Entry>> mEntriesByScanner = new SparseArray<>();
+
+    /**
+     * Adds the filters of {@code client} to the index. Clients without filters match every
+     * result and are not indexed.
+     */
+    void addClient(ScanClient client) {
+        if (client.filters == null || client.filters.isEmpty()) {
+            return;
+        }
+        synchronized (mLock) {
+            removeClientLocked(client.scannerId);
+            List<Entry> entries = new ArrayList<>(client.filters.size());
+            for (ScanFilter filter : client.filters) {
+                Entry entry = new Entry(client.scannerId, filter);
+                bucketFor(filter).add(entry);
+                entries.add(entry);
+            }
+            mEntriesByScanner.put(client.scannerId, entries);
+        }
+    }
+
+    /**
+     * Removes the filters of {@code client} from the index.
+     */
+    void removeClient(ScanClient client) {
+        synchronized (mLock) {
+            removeClientLocked(client.scannerId);
+        }
+    }
+
+    void clear() {
+        synchronized (mLock) {
+            mByAddress.clear();
+            mByManufacturerId.clear();
+            mByServiceDataUuid.clear();
+            mByServiceUuid.clear();
+            mUnindexed.clear();
+            mEntriesByScanner.clear();
+        }
+    }
+
+    /**
+     * Returns whether the filters of the client with {@code scannerId} are in the index.
+     */
+    boolean contains(int scannerId) {
+        synchronized (mLock) {
+            return mEntriesByScanner.get(scannerId) != null;
+        }
+    }
+
+    /**
+     * Returns the ids of the indexed scanners that have at least one filter matching
+     * {@code result}, or whose filter address is {@code originalAddress}.
+     */
+    SparseBooleanArray match(ScanResult result, String originalAddress) {
+        SparseBooleanArray matched = new SparseBooleanArray();
+        synchronized (mLock) {
+            BluetoothDevice device = result.getDevice();
+            String address = device == null ? null : device.getAddress();
+            if (address != null) {
+                matchBucket(mByAddress.get(address.toUpperCase(Locale.ROOT)), result,
+                        originalAddress, matched);
+            }
+            if (originalAddress != null && !originalAddress.equalsIgnoreCase(address)) {
+                matchBucket(mByAddress.get(originalAddress.toUpperCase(Locale.ROOT)), result,
+                        originalAddress, matched);
+            }
+
+            ScanRecord record = result.getScanRecord();
+            if (record != null && record.getBytes() != null) {
+                matchRecordFields(record.getBytes(), result, originalAddress, matched);
+            }
+            matchBucket(mUnindexed, result, originalAddress, matched);
+        }
+        return matched;
+    }
+
+    /**
+     * Looks up the buckets keyed by the fields of the raw advertising data. This walks the bytes
+     * directly so that records which are parsed lazily stay unparsed; candidates are confirmed
+     * by {@link ScanFilter#matches}, so malformed fields at worst add candidates.
+     */
+    @GuardedBy("mLock")
+    private void matchRecordFields(byte[] bytes, ScanResult result, String originalAddress,
+            SparseBooleanArray matched) {
+        int pos = 0;
+        while (pos + 1 < bytes.length) {
+            int length = bytes[pos] & 0xFF;
+            if (length == 0) {
+                break;
+            }
+            int fieldType = bytes[pos + 1] & 0xFF;
+            int dataPos = pos + 2;
+            int dataLength = Math.min(length - 1, bytes.length - dataPos);
+            switch (fieldType) {
+                case ScanRecord.DATA_TYPE_MANUFACTURER_SPECIFIC_DATA:
+                    if (dataLength >= 2 && mByManufacturerId.size() > 0) {
+                        int manufacturerId = ((bytes[dataPos + 1] & 0xFF) << 8)
+                                + (bytes[dataPos] & 0xFF);
+                        matchBucket(mByManufacturerId.get(manufacturerId), result,
+                                originalAddress, matched);
+                    }
+                    break;
+                case ScanRecord.DATA_TYPE_SERVICE_DATA_16_BIT:
+                    matchUuids(mByServiceDataUuid, bytes, dataPos,
+                            Math.min(dataLength, BluetoothUuid.UUID_BYTES_16_BIT),
+                            BluetoothUuid.UUID_BYTES_16_BIT, result, originalAddress, matched);
+                    break;
+                case ScanRecord.DATA_TYPE_SERVICE_DATA_32_BIT:
+                    matchUuids(mByServiceDataUuid, bytes, dataPos,
+                            Math.min(dataLength, BluetoothUuid.UUID_BYTES_32_BIT),
+                            BluetoothUuid.UUID_BYTES_32_BIT, result, originalAddress, matched);
+                    break;
+                case ScanRecord.DATA_TYPE_SERVICE_DATA_128_BIT:
+                    matchUuids(mByServiceDataUuid, bytes, dataPos,
+                            Math.min(dataLength, BluetoothUuid.UUID_BYTES_128_BIT),
+                            BluetoothUuid.UUID_BYTES_128_BIT, result, originalAddress, matched);
+                    break;
+                case ScanRecord.DATA_TYPE_SERVICE_UUIDS_16_BIT_PARTIAL:
+                case ScanRecord.DATA_TYPE_SERVICE_UUIDS_16_BIT_COMPLETE:
+                    matchUuids(mByServiceUuid, bytes, dataPos, dataLength,
+                            BluetoothUuid.UUID_BYTES_16_BIT, result, originalAddress, matched);
+                    break;
+                case ScanRecord.DATA_TYPE_SERVICE_UUIDS_32_BIT_PARTIAL:
+                case ScanRecord.DATA_TYPE_SERVICE_UUIDS_32_BIT_COMPLETE:
+                    matchUuids(mByServiceUuid, bytes, dataPos, dataLength,
+                            BluetoothUuid.UUID_BYTES_32_BIT, result, originalAddress, matched);
+                    break;
+                case ScanRecord.DATA_TYPE_SERVICE_UUIDS_128_BIT_PARTIAL:
+                case ScanRecord.DATA_TYPE_SERVICE_UUIDS_128_BIT_COMPLETE:
+                    matchUuids(mByServiceUuid, bytes, dataPos, dataLength,
+                            BluetoothUuid.UUID_BYTES_128_BIT, result, originalAddress, matched);
+                    break;
+                default:
+                    break;
+            }
+            pos = dataPos + length - 1;
+        }
+    }
+
+    // Looks up each whole UUID of uuidLength bytes in bytes[pos, pos + length).
+    @GuardedBy("mLock")
+    private void matchUuids(Map<ParcelUuid, List<Entry>> buckets, byte[] bytes, int pos,
+            int length, int uuidLength, ScanResult result, String originalAddress,
+            SparseBooleanArray matched) {
+        if (buckets.isEmpty()) {
+            return;
+        }
+        for (int end = pos + length; pos + uuidLength <= end; pos += uuidLength) {
+            ParcelUuid uuid = BluetoothUuid.parseUuidFrom(
+                    Arrays.copyOfRange(bytes, pos, pos + uuidLength));
+            matchBucket(buckets.get(uuid), result, originalAddress, matched);
+        }
+    }
+
+    private static void matchBucket(List<Entry> bucket, ScanResult result,
+            String originalAddress, SparseBooleanArray matched) {
+        if (bucket == null) {
+            return;
+        }
+        for (Entry entry : bucket) {
+            if (matched.get(entry.scannerId)) {
+                continue;
+            }
+            // Same check as GattService#matchesFilters: the filter itself, or the original
+            // address of a result reported under a resolvable private address.
+            if (entry.filter.matches(result) || (originalAddress != null
+                    && originalAddress.equalsIgnoreCase(entry.filter.getDeviceAddress()))) {
+                matched.put(entry.scannerId, true);
+            }
+        }
+    }
+
+    @GuardedBy("mLock")
+    private List<Entry> bucketFor(ScanFilter filter) {
+        if (filter.getDeviceAddress() != null) {
+            return getOrCreate(mByAddress,
+                    filter.getDeviceAddress().toUpperCase(Locale.ROOT));
+        }
+        if (filter.getManufacturerId() >= 0) {
+            List<Entry> bucket = mByManufacturerId.get(filter.getManufacturerId());
+            if (bucket == null) {
+                bucket = new ArrayList<>();
+                mByManufacturerId.put(filter.getManufacturerId(), bucket);
+            }
+            return bucket;
+        }
+        if (filter.getServiceDataUuid() != null) {
+            return getOrCreate(mByServiceDataUuid, filter.getServiceDataUuid());
+        }
+        if (filter.getServiceUuid() != null && filter.getServiceUuidMask() == null) {
+            return getOrCreate(mByServiceUuid, filter.getServiceUuid());
+        }
+        return mUnindexed;
+    }
+
+    @GuardedBy("mLock")
+    private void removeClientLocked(int scannerId) {
+        List<Entry> entries = mEntriesByScanner.get(scannerId);
+        if (entries == null) {
+            return;
+        }
+        mEntriesByScanner.remove(scannerId);
+        for (Entry entry : entries) {
+            ScanFilter filter = entry.filter;
+            if (filter.getDeviceAddress() != null) {
+                removeFrom(mByAddress, filter.getDeviceAddress().toUpperCase(Locale.ROOT),
+                        entry);
+            } else if (filter.getManufacturerId() >= 0) {
+                List<Entry> bucket = mByManufacturerId.get(filter.getManufacturerId());
+                if (bucket != null) {
+                    bucket.remove(entry);
+                    if (bucket.isEmpty()) {
+                        mByManufacturerId.remove(filter.getManufacturerId());
+                    }
+                }
+            } else if (filter.getServiceDataUuid() != null) {
+                removeFrom(mByServiceDataUuid, filter.getServiceDataUuid(), entry);
+            } else if (filter.getServiceUuid() != null && filter.getServiceUuidMask() == null) {
+                removeFrom(mByServiceUuid, filter.getServiceUuid(), entry);
+            } else {
+                mUnindexed.remove(entry);
+            }
+        }
+    }
+
+    private static <K> List<Entry> getOrCreate(Map<K, List<Entry>> map, K key) {
+        List<Entry> bucket = map.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<>();
+            map.put(key, bucket);
+        }
+        return bucket;
+    }
+
+    private static <K> void removeFrom(Map<K, List<Entry>> map, K key, Entry entry) {
+        List<Entry> bucket = map.get(key);
+        if (bucket == null) {
+            return;
+        }
+        bucket.remove(entry);
+        if (bucket.isEmpty()) {
+            map.remove(key);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Chooses the filters to offload to the controller when the filters of a client do not fit in
+ * the free filter indices.
+ *
+ * <p>Filters that only differ in their device address or data, but share a service UUID,
+ * service data UUID or manufacturer id, are merged into a single filter on that field. The
+ * controller then wakes the host for a superset of the matching advertisements, and the exact
+ * filters of the client are still applied by the host to every scan result. Groups holding the
+ * most filters are merged first, so the most selective filters are kept in the controller as
+ * they are. Filters already installed for other clients are shared, so they take no new index.
+ *
+ * <p>Truncated batch scan results carry no advertising data, so the host can only check their
+ * device address against the filters. A client with merged filters that do not constrain the
+ * device address may therefore receive truncated results that its exact filters would reject.
+ *
+ * @hide
+ */
+/* package */class ScanFilterPlacement {
+    private static final byte[] EMPTY_DATA = new byte[0];
+
+    private ScanFilterPlacement() {}
+
+    /**
+     * Returns at most {@code maxFilters} filters that together match every advertisement
+     * matched by {@code filters}, or null if the filters cannot be merged that far.
+     */
+    static List<ScanFilter> place(List<ScanFilter> filters, int maxFilters) {
+        return place(filters, maxFilters, filter -> false);
+    }
+
+    /**
+     * Returns filters that together match every advertisement matched by {@code filters}, and
+     * of which at most {@code maxNewFilters} are not {@code installed} yet, or null if the
+     * filters cannot be merged that far.
+     */
+    static List<ScanFilter> place(List<ScanFilter> filters, int maxNewFilters,
+            Predicate<ScanFilter> installed) {
+        Set<ScanFilter> placed = new LinkedHashSet<>(filters);
+        if (countNew(placed, installed) <= maxNewFilters) {
+            return new ArrayList<>(placed);
+        }
+
+        Map<ScanFilter, List<ScanFilter>> groups = new LinkedHashMap<>();
+        for (ScanFilter filter : placed) {
+            ScanFilter merged = merge(filter);
+            if (merged != null) {
+                groups.computeIfAbsent(merged, k -> new ArrayList<>()).add(filter);
+            }
+        }
+        List<Map.Entry<ScanFilter, List<ScanFilter>>> byGroupSize =
+                new ArrayList<>(groups.entrySet());
+        byGroupSize.sort((a, b) -> Integer.compare(b.getValue().size(), a.getValue().size()));
+
+        int newFilters = countNew(placed, installed);
+        for (Map.Entry<ScanFilter, List<ScanFilter>> group : byGroupSize) {
+            if (newFilters <= maxNewFilters) {
+                break;
+            }
+            Set<ScanFilter> candidate = new LinkedHashSet<>(placed);
+            candidate.removeAll(group.getValue());
+            candidate.add(group.getKey());
+            // Merging a group holding a single new filter frees no index.
+            int candidateNewFilters = countNew(candidate, installed);
+            if (candidateNewFilters < newFilters) {
+                placed = candidate;
+                newFilters = candidateNewFilters;
+            }
+        }
+        return newFilters <= maxNewFilters ? new ArrayList<>(placed) : null;
+    }
+
+    private static int countNew(Collection<ScanFilter> filters, Predicate<ScanFilter> installed) {
+        int count = 0;
+        for (ScanFilter filter : filters) {
+            if (!installed.test(filter)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns whether a truncated batch scan result may match one of {@code filters}. Only the
+     * device address is known, so a filter that does not constrain it, or that resolves
+     * private addresses with an IRK, may match any result.
+     */
+    static boolean mayMatchTruncatedResult(List<ScanFilter> filters, ScanResult result) {
+        if (filters == null || filters.isEmpty()) {
+            return true;
+        }
+        String address = result.getDevice().getAddress();
+        for (ScanFilter filter : filters) {
+            if (filter.getDeviceAddress() == null || filter.getIrk() != null
+                    || filter.getDeviceAddress().equalsIgnoreCase(address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the filter on the service UUID, service data UUID or manufacturer id constrained
+     * by {@code filter}, or null if it constrains none of them.
+     */
+    static ScanFilter merge(ScanFilter filter) {
+        if (filter.getServiceUuid() != null) {
+            return new ScanFilter.Builder()
+                    .setServiceUuid(filter.getServiceUuid(), filter.getServiceUuidMask())
+                    .build();
+        }
+        if (filter.getServiceDataUuid() != null && filter.getServiceData() != null) {
+            return new ScanFilter.Builder()
+                    .setServiceData(filter.getServiceDataUuid(), EMPTY_DATA)
+                    .build();
+        }
+        if (filter.getManufacturerId() >= 0 && filter.getManufacturerData() != null) {
+            return new ScanFilter.Builder()
+                    .setManufacturerData(filter.getManufacturerId(), EMPTY_DATA)
+                    .build();
+        }
+        return null;
+    }
+}
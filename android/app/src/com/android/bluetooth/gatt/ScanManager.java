@@ -56,12 +56,15 @@ import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 
 import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
@@ -128,11 +131,14 @@ public class ScanManager {
     private boolean mBatchAlarmReceiverRegistered;
     private ScanNative mScanNative;
     private volatile ClientHandler mHandler;
+    private ScanResultCoalescer mScanResultCoalescer;
     private BluetoothAdapterProxy mBluetoothAdapterProxy;
 
     private Set<ScanClient> mRegularScanClients;
     private Set<ScanClient> mBatchClients;
     private Set<ScanClient> mSuspendedScanClients;
+    // Filters of mRegularScanClients, kept in sync as clients are added and removed.
+    private final ScanFilterIndex mRegularScanFilterIndex = new ScanFilterIndex();
     private SparseIntArray mPriorityMap = new SparseIntArray();
 
     private DisplayManager mDm;
@@ -189,6 +195,8 @@ public class ScanManager {
         HandlerThread thread = new HandlerThread("BluetoothScanManager");
         thread.start();
         mHandler = new ClientHandler(thread.getLooper());
+        mScanResultCoalescer = new ScanResultCoalescer(thread.getLooper(),
+                mService::onCoalescedScanResults);
         if (mDm != null) {
             mDm.registerDisplayListener(mDisplayListener, null);
         }
@@ -205,6 +213,7 @@ public class ScanManager {
 
     void cleanup() {
         mRegularScanClients.clear();
+        mRegularScanFilterIndex.clear();
         mBatchClients.clear();
         mSuspendedScanClients.clear();
         mScanNative.cleanup();
@@ -221,6 +230,10 @@ public class ScanManager {
             mDm.unregisterDisplayListener(mDisplayListener);
         }
 
+        if (mScanResultCoalescer != null) {
+            mScanResultCoalescer.cleanup();
+        }
+
         if (mHandler != null) {
             // Shut down the thread
             mHandler.removeCallbacksAndMessages(null);
@@ -261,6 +274,24 @@ public class ScanManager {
         return mRegularScanClients;
     }
 
+    /**
+     * Returns the coalescer of regular scan results, or null before {@link #start}.
+     */
+    ScanResultCoalescer getScanResultCoalescer() {
+        return mScanResultCoalescer;
+    }
+
+    void dump(StringBuilder sb) {
+        mScanNative.dump(sb);
+    }
+
+    /**
+     * Returns the filter index of the regular scan queue.
+     */
+    ScanFilterIndex getRegularScanFilterIndex() {
+        return mRegularScanFilterIndex;
+    }
+
     /**
      * Returns the suspended scan queue.
      */
@@ -458,12 +489,19 @@ public class ScanManager {
             // Begin scan operations.
             if (isBatchClient(client) || isAutoBatchScanClientEnabled(client)) {
                 mBatchClients.add(client);
-                mScanNative.startBatchScan(client);
+                if (!mScanNative.startBatchScan(client)) {
+                    handleScanFilterFailure(client);
+                    return;
+                }
             } else {
                 updateScanModeBeforeStart(client);
                 updateScanModeConcurrency(client);
                 mRegularScanClients.add(client);
-                mScanNative.startRegularScan(client);
+                mRegularScanFilterIndex.addClient(client);
+                if (!mScanNative.startRegularScan(client)) {
+                    handleScanFilterFailure(client);
+                    return;
+                }
                 if (!mScanNative.isOpportunisticScanClient(client)) {
                     mScanNative.configureRegularScanParams();
 
@@ -483,6 +521,21 @@ public class ScanManager {
             client.started = true;
         }
 
+        // Stops the scan of a client whose filters the controller failed to program, so that it
+        // does not keep scanning with only part of its filters, and reports the failure.
+        @RequiresPermission(android.Manifest.permission.BLUETOOTH_SCAN)
+        private void handleScanFilterFailure(ScanClient client) {
+            Log.e(TAG, "Stopping scan of scannerId " + client.scannerId
+                    + " as its scan filters could not be programmed");
+            handleStopScan(client);
+            try {
+                mService.onScanManagerErrorCallback(client.scannerId,
+                        ScanCallback.SCAN_FAILED_INTERNAL_ERROR);
+            } catch (RemoteException e) {
+                Log.e(TAG, "failed on onScanManagerCallback", e);
+            }
+        }
+
         private boolean requiresScreenOn(ScanClient client) {
             boolean isFiltered = (client.filters != null) && !client.filters.isEmpty();
             return !mScanNative.isOpportunisticScanClient(client) && !isFiltered;
@@ -926,6 +979,114 @@ public class ScanManager {
         }
     }
 
+    /**
+     * Identifies the controller filters that can be shared between clients: the same filter,
+     * delivered the same way.
+     */
+    private static class SharedFilterKey {
+        final ScanFilter filter;
+        final int deliveryMode;
+        final int onFoundTimeout;
+        final int onFoundCount;
+
+        SharedFilterKey(ScanFilter filter, int deliveryMode, int onFoundTimeout,
+                int onFoundCount) {
+            this.filter = filter;
+            this.deliveryMode = deliveryMode;
+            this.onFoundTimeout = onFoundTimeout;
+            this.onFoundCount = onFoundCount;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof SharedFilterKey)) {
+                return false;
+            }
+            SharedFilterKey other = (SharedFilterKey) obj;
+            // ScanFilter.equals() ignores the address type and IRK, which are programmed in the
+            // controller as well.
+            return deliveryMode == other.deliveryMode && onFoundTimeout == other.onFoundTimeout
+                    && onFoundCount == other.onFoundCount && filter.equals(other.filter)
+                    && filter.getAddressType() == other.filter.getAddressType()
+                    && Arrays.equals(filter.getIrk(), other.filter.getIrk());
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(filter, filter.getAddressType(), Arrays.hashCode(filter.getIrk()),
+                    deliveryMode, onFoundTimeout, onFoundCount);
+        }
+    }
+
+    /**
+     * A filter installed in the controller, with the number of client filters using it.
+     */
+    private static class SharedFilter {
+        final SharedFilterKey key;
+        final int filterIndex;
+        int refCount = 1;
+
+        SharedFilter(SharedFilterKey key, int filterIndex) {
+            this.key = key;
+            this.filterIndex = filterIndex;
+        }
+    }
+
+    /**
+     * Time spent programming filters until the scan of a client is started.
+     */
+    private static class FilterProgrammingStats {
+        private long mScanStarts;
+        private long mTotalStartMillis;
+        private long mMaxStartMillis;
+        private long mLastStartMillis;
+        private long mCommands;
+        private long mSharedFilters;
+        private long mMergedClients;
+
+        synchronized void recordScanStart(long millis) {
+            mScanStarts++;
+            mTotalStartMillis += millis;
+            mMaxStartMillis = Math.max(mMaxStartMillis, millis);
+            mLastStartMillis = millis;
+        }
+
+        synchronized void recordCommands(int count) {
+            mCommands += count;
+        }
+
+        synchronized void recordSharedFilter() {
+            mSharedFilters++;
+        }
+
+        synchronized void recordMergedClient() {
+            mMergedClients++;
+        }
+
+        synchronized void dump(StringBuilder sb) {
+            if (mScanStarts == 0) {
+                return;
+            }
+            sb.append("Scan filter programming\n")
+                    .append("  Scan starts                              : ")
+                    .append(mScanStarts)
+                    .append("\n  Time to scan started (avg/max/last)      : ")
+                    .append(mTotalStartMillis / mScanStarts).append("ms / ")
+                    .append(mMaxStartMillis).append("ms / ")
+                    .append(mLastStartMillis).append("ms")
+                    .append("\n  Filter commands issued                   : ")
+                    .append(mCommands)
+                    .append("\n  Filters shared with other clients        : ")
+                    .append(mSharedFilters)
+                    .append("\n  Clients with merged filters              : ")
+                    .append(mMergedClients)
+                    .append("\n");
+        }
+    }
+
     public int getCurrentUsedTrackingAdvertisement() {
         synchronized (mCurUsedTrackableAdvertisementsLock) {
             return mCurUsedTrackableAdvertisements;
@@ -945,6 +1106,8 @@ public class ScanManager {
         private static final int ALL_PASS_FILTER_INDEX_REGULAR_SCAN = 1;
         private static final int ALL_PASS_FILTER_INDEX_BATCH_SCAN = 2;
         private static final int ALL_PASS_FILTER_SELECTION = 0;
+        // Marks a filter command that does not install a filter index.
+        private static final int NO_FILTER_INDEX = -1;
 
         private static final int DISCARD_OLDEST_WHEN_BUFFER_FULL = 0;
 
@@ -967,6 +1130,19 @@ public class ScanManager {
         // Keep track of the clients that uses ALL_PASS filters.
         private final Set<Integer> mAllPassRegularClients = new HashSet<>();
         private final Set<Integer> mAllPassBatchClients = new HashSet<>();
+        // Filters installed once in the controller and shared by all clients that set them.
+        private final Map<SharedFilterKey, SharedFilter> mSharedFilters = new HashMap<>();
+        private final Map<Integer, SharedFilter> mSharedFiltersByIndex = new HashMap<>();
+        // The filter index of each filter command issued since the last resetCountDownLatch()
+        // and not answered yet, in issue order, or NO_FILTER_INDEX for a command that does not
+        // install a filter. The controller answers the commands in that order.
+        private final Object mFilterCommandsLock = new Object();
+        @GuardedBy("mFilterCommandsLock")
+        private final Deque<Integer> mIssuedFilterCommands = new ArrayDeque<>();
+        @GuardedBy("mFilterCommandsLock")
+        private final Set<Integer> mFailedFilterIndices = new HashSet<>();
+        private int mPendingCallbacks;
+        private final FilterProgrammingStats mFilterStats = new FilterProgrammingStats();
 
         private AlarmManager mAlarmManager;
         private PendingIntent mBatchScanIntervalIntent;
@@ -1008,10 +1184,14 @@ public class ScanManager {
             if (DBG) {
                 Log.d(TAG, "callback done for scannerId - " + scannerId + " status - " + status);
             }
-            if (status == 0) {
-                mNativeInterface.callbackDone();
+            synchronized (mFilterCommandsLock) {
+                Integer filterIndex = mIssuedFilterCommands.poll();
+                if (status != 0 && filterIndex != null && filterIndex != NO_FILTER_INDEX) {
+                    mFailedFilterIndices.add(filterIndex);
+                }
             }
-            // TODO: add a callback for scan failure.
+            // Released whatever the status, so that a failure does not read as a timeout.
+            mNativeInterface.callbackDone();
         }
 
         private void resetCountDownLatch() {
@@ -1022,6 +1202,51 @@ public class ScanManager {
             return mNativeInterface.waitForCallback(OPERATION_TIME_OUT_MILLIS);
         }
 
+        // The controller handles commands in order, so filter commands are issued back to back
+        // and their callbacks are awaited together.
+        private void beginFilterCommands() {
+            mPendingCallbacks = 0;
+            synchronized (mFilterCommandsLock) {
+                mIssuedFilterCommands.clear();
+                mFailedFilterIndices.clear();
+            }
+            resetCountDownLatch();
+        }
+
+        // Called before the command is issued, so that its callback cannot come first.
+        private void filterCommandIssued(int filterIndex) {
+            mPendingCallbacks++;
+            synchronized (mFilterCommandsLock) {
+                mIssuedFilterCommands.add(filterIndex);
+            }
+        }
+
+        // Returns the filter indices whose commands failed or were not answered in time.
+        private Set<Integer> waitForFilterCommands() {
+            int count = mPendingCallbacks;
+            mPendingCallbacks = 0;
+            if (count == 0) {
+                return Collections.emptySet();
+            }
+            mFilterStats.recordCommands(count);
+            boolean done = mNativeInterface.waitForCallbacks(count,
+                    OPERATION_TIME_OUT_MILLIS * count);
+            synchronized (mFilterCommandsLock) {
+                if (!done) {
+                    Log.w(TAG, "Timed out waiting for " + count + " scan filter callbacks");
+                    for (int filterIndex : mIssuedFilterCommands) {
+                        if (filterIndex != NO_FILTER_INDEX) {
+                            mFailedFilterIndices.add(filterIndex);
+                        }
+                    }
+                }
+                Set<Integer> failed = new HashSet<>(mFailedFilterIndices);
+                mIssuedFilterCommands.clear();
+                mFailedFilterIndices.clear();
+                return failed;
+            }
+        }
+
         void configureRegularScanParams() {
             if (DBG) {
                 Log.d(TAG, "configureRegularScanParams() - queue=" + mRegularScanClients.size());
@@ -1076,13 +1301,16 @@ public class ScanManager {
             return result;
         }
 
-        void startRegularScan(ScanClient client) {
+        // Returns false if the scan filters of the client could not be programmed, in which
+        // case the scan is not started.
+        boolean startRegularScan(ScanClient client) {
+            long startMillis = SystemClock.elapsedRealtime();
             if (isFilteringSupported() && mFilterIndexStack.isEmpty()
                     && mClientFilterIndexMap.isEmpty()) {
                 initFilterIndexStack();
             }
-            if (isFilteringSupported()) {
-                configureScanFilters(client);
+            if (isFilteringSupported() && !configureScanFilters(client)) {
+                return false;
             }
             // Start scan native only for the first client.
             if (numRegularScanClients() == 1
@@ -1093,6 +1321,8 @@ public class ScanManager {
                 }
                 mNativeInterface.gattClientScan(true);
             }
+            mFilterStats.recordScanStart(SystemClock.elapsedRealtime() - startMillis);
+            return true;
         }
 
         private int numRegularScanClients() {
@@ -1105,16 +1335,23 @@ public class ScanManager {
             return num;
         }
 
-        void startBatchScan(ScanClient client) {
+        // Returns false if the scan filters of the client could not be programmed, in which
+        // case the scan is not started.
+        boolean startBatchScan(ScanClient client) {
+            long startMillis = SystemClock.elapsedRealtime();
             if (mFilterIndexStack.isEmpty() && isFilteringSupported()) {
                 initFilterIndexStack();
             }
-            configureScanFilters(client);
+            if (!configureScanFilters(client)) {
+                return false;
+            }
             if (!isOpportunisticScanClient(client)) {
                 // Reset batch scan. May need to stop the existing batch scan and update scan
                 // params.
                 resetBatchScan(client);
             }
+            mFilterStats.recordScanStart(SystemClock.elapsedRealtime() - startMillis);
+            return true;
         }
 
         private boolean isExemptFromScanTimeout(ScanClient client) {
@@ -1310,6 +1547,10 @@ public class ScanManager {
                 }
             }
             mRegularScanClients.remove(client);
+            mRegularScanFilterIndex.removeClient(client);
+            if (mScanResultCoalescer != null) {
+                mScanResultCoalescer.removeClient(client.scannerId);
+            }
             if (numRegularScanClients() == 0) {
                 if (DBG) {
                     Log.d(TAG, "stop gattClientScanNative");
@@ -1409,6 +1650,10 @@ public class ScanManager {
             setBatchAlarm();
         }
 
+        void dump(StringBuilder sb) {
+            mFilterStats.dump(sb);
+        }
+
         void cleanup() {
             mAlarmManager.cancel(mBatchScanIntervalIntent);
             // Protect against multiple calls of cleanup.
@@ -1432,47 +1677,61 @@ public class ScanManager {
         // Add scan filters. The logic is:
         // If no offload filter can/needs to be set, set ALL_PASS filter.
         // Otherwise offload all filters to hardware and enable all filters.
-        private void configureScanFilters(ScanClient client) {
+        // Returns false if the controller failed to program some of the filters.
+        private boolean configureScanFilters(ScanClient client) {
             int scannerId = client.scannerId;
             int deliveryMode = getDeliveryMode(client);
             int trackEntries = 0;
 
             // Do not add any filters set by opportunistic scan clients
             if (isOpportunisticScanClient(client)) {
-                return;
+                return true;
             }
 
             if (!shouldAddAllPassFilterToController(client, deliveryMode)) {
-                return;
+                return true;
             }
 
-            resetCountDownLatch();
+            beginFilterCommands();
+            filterCommandIssued(NO_FILTER_INDEX);
             mNativeInterface.gattClientScanFilterEnable(scannerId, true);
-            waitForCallback();
 
             if (shouldUseAllPassFilter(client)) {
                 int filterIndex =
                         (deliveryMode == DELIVERY_MODE_BATCH) ? ALL_PASS_FILTER_INDEX_BATCH_SCAN
                                 : ALL_PASS_FILTER_INDEX_REGULAR_SCAN;
-                resetCountDownLatch();
                 // Don't allow Onfound/onlost with all pass
+                filterCommandIssued(NO_FILTER_INDEX);
                 configureFilterParamter(scannerId, client, ALL_PASS_FILTER_SELECTION, filterIndex,
                         0);
-                waitForCallback();
             } else {
+                List<ScanFilter> hardwareFilters = getHardwareFilters(client);
+                if (hardwareFilters != client.filters) {
+                    Log.i(TAG, "Merged " + client.filters.size() + " scan filters of scannerId "
+                            + scannerId + " into " + hardwareFilters.size());
+                    mFilterStats.recordMergedClient();
+                }
                 Deque<Integer> clientFilterIndices = new ArrayDeque<Integer>();
-                for (ScanFilter filter : client.filters) {
+                for (ScanFilter filter : hardwareFilters) {
+                    SharedFilterKey key = getSharedFilterKey(client, filter, deliveryMode);
+                    SharedFilter shared = key != null ? mSharedFilters.get(key) : null;
+                    if (shared != null) {
+                        // Already installed for another client with the same parameters.
+                        shared.refCount++;
+                        mFilterStats.recordSharedFilter();
+                        clientFilterIndices.add(shared.filterIndex);
+                        continue;
+                    }
+
                     ScanFilterQueue queue = new ScanFilterQueue();
                     queue.addScanFilter(filter);
                     int featureSelection = queue.getFeatureSelection();
                     int filterIndex = mFilterIndexStack.pop();
 
-                    resetCountDownLatch();
+                    filterCommandIssued(filterIndex);
                     mNativeInterface.gattClientScanFilterAdd(scannerId, queue.toArray(),
                             filterIndex);
-                    waitForCallback();
 
-                    resetCountDownLatch();
                     if (deliveryMode == DELIVERY_MODE_ON_FOUND_LOST) {
                         trackEntries = getNumOfTrackingAdvertisements(client.settings);
                         if (!manageAllocationOfTrackingAdvertisement(trackEntries, true)) {
@@ -1486,13 +1745,75 @@ public class ScanManager {
                             }
                         }
                     }
+                    filterCommandIssued(filterIndex);
                     configureFilterParamter(scannerId, client, featureSelection, filterIndex,
                             trackEntries);
-                    waitForCallback();
                     clientFilterIndices.add(filterIndex);
+                    if (key != null) {
+                        shared = new SharedFilter(key, filterIndex);
+                        mSharedFilters.put(key, shared);
+                        mSharedFiltersByIndex.put(filterIndex, shared);
+                    }
                 }
                 mClientFilterIndexMap.put(scannerId, clientFilterIndices);
             }
+            Set<Integer> failedFilterIndices = waitForFilterCommands();
+            if (!failedFilterIndices.isEmpty()) {
+                removeFailedScanFilters(scannerId, failedFilterIndices);
+                return false;
+            }
+            return true;
+        }
+
+        // Frees the filter indices the controller failed to program, so that they are neither
+        // shared with other clients nor leaked. The other filters of the client are removed when
+        // its scan is stopped.
+        private void removeFailedScanFilters(int scannerId, Set<Integer> failedFilterIndices) {
+            Log.e(TAG, "Failed to program scan filters " + failedFilterIndices + " of scannerId "
+                    + scannerId);
+            Deque<Integer> clientFilterIndices = mClientFilterIndexMap.get(scannerId);
+            beginFilterCommands();
+            for (int filterIndex : failedFilterIndices) {
+                if (clientFilterIndices != null) {
+                    clientFilterIndices.removeIf(index -> index == filterIndex);
+                }
+                SharedFilter shared = mSharedFiltersByIndex.remove(filterIndex);
+                if (shared != null) {
+                    mSharedFilters.remove(shared.key);
+                }
+                mFilterIndexStack.add(filterIndex);
+                filterCommandIssued(NO_FILTER_INDEX);
+                mNativeInterface.gattClientScanFilterParamDelete(scannerId, filterIndex);
+            }
+            waitForFilterCommands();
+        }
+
+        // Returns the key under which the filter can be shared, or null if it is only ever used
+        // by one client. Found/lost filters track advertisers in the controller per client.
+        private SharedFilterKey getSharedFilterKey(ScanClient client, ScanFilter filter,
+                int deliveryMode) {
+            if (deliveryMode == DELIVERY_MODE_ON_FOUND_LOST) {
+                return null;
+            }
+            return new SharedFilterKey(filter, deliveryMode,
+                    getOnFoundOnLostTimeoutMillis(client.settings, true),
+                    getOnFoundOnLostSightings(client.settings));
+        }
+
+        // Returns the number of filter indices the filters need beyond the installed ones.
+        private int getNumOfNewFilterIndices(ScanClient client, List<ScanFilter> filters) {
+            int deliveryMode = getDeliveryMode(client);
+            if (deliveryMode == DELIVERY_MODE_ON_FOUND_LOST) {
+                return filters.size();
+            }
+            Set<SharedFilterKey> keys = new HashSet<>();
+            for (ScanFilter filter : filters) {
+                SharedFilterKey key = getSharedFilterKey(client, filter, deliveryMode);
+                if (!mSharedFilters.containsKey(key)) {
+                    keys.add(key);
+                }
+            }
+            return keys.size();
         }
 
         // Check whether the filter should be added to controller.
@@ -1515,12 +1836,22 @@ public class ScanManager {
         private void removeScanFilters(int scannerId) {
             Deque<Integer> filterIndices = mClientFilterIndexMap.remove(scannerId);
             if (filterIndices != null) {
-                mFilterIndexStack.addAll(filterIndices);
+                beginFilterCommands();
                 for (Integer filterIndex : filterIndices) {
-                    resetCountDownLatch();
+                    SharedFilter shared = mSharedFiltersByIndex.get(filterIndex);
+                    if (shared != null) {
+                        if (--shared.refCount > 0) {
+                            // Still used by another client.
+                            continue;
+                        }
+                        mSharedFilters.remove(shared.key);
+                        mSharedFiltersByIndex.remove(filterIndex);
+                    }
+                    mFilterIndexStack.add(filterIndex);
+                    filterCommandIssued(NO_FILTER_INDEX);
                     mNativeInterface.gattClientScanFilterParamDelete(scannerId, filterIndex);
-                    waitForCallback();
                 }
+                waitForFilterCommands();
             }
             // Remove if ALL_PASS filters are used.
             removeFilterIfExisits(mAllPassRegularClients, scannerId,
@@ -1575,7 +1906,29 @@ public class ScanManager {
             if (client.filters == null || client.filters.isEmpty()) {
                 return true;
             }
-            return client.filters.size() > mFilterIndexStack.size();
+            return getHardwareFilters(client) == null;
+        }
+
+        // Returns the filters to offload for the client, or null if the ALL_PASS filter must
+        // be used. When the filters do not fit, they are merged into broader ones and the host
+        // applies the exact filters to the results.
+        private List<ScanFilter> getHardwareFilters(ScanClient client) {
+            if (client == null || client.filters == null || client.filters.isEmpty()) {
+                return null;
+            }
+            int freeIndices = mFilterIndexStack.size();
+            if (getNumOfNewFilterIndices(client, client.filters) <= freeIndices) {
+                return client.filters;
+            }
+            // Found/lost is tracked per filter, which merged filters would change.
+            if (getDeliveryMode(client) == DELIVERY_MODE_ON_FOUND_LOST) {
+                return null;
+            }
+            // Filters installed for other clients are shared and take no free index.
+            int deliveryMode = getDeliveryMode(client);
+            return ScanFilterPlacement.place(client.filters, freeIndices,
+                    filter -> mSharedFilters.containsKey(
+                            getSharedFilterKey(client, filter, deliveryMode)));
         }
 
         private void initFilterIndexStack() {
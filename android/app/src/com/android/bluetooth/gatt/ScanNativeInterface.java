@@ -16,7 +16,7 @@
 
 package com.android.bluetooth.gatt;
 
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -28,7 +28,8 @@ public class ScanNativeInterface {
     private static ScanNativeInterface sInterface;
     private static final Object INSTANCE_LOCK = new Object();
 
-    private CountDownLatch mLatch;
+    // One permit per successful callback, so that several commands can be awaited at once.
+    private final Semaphore mCallbacks = new Semaphore(0);
 
     private ScanNativeInterface() {}
 
@@ -177,17 +178,23 @@ public class ScanNativeInterface {
     }
 
     void callbackDone() {
-        mLatch.countDown();
+        mCallbacks.release();
     }
 
+    // Drops the callbacks of earlier commands, including late ones that timed out.
     void resetCountDownLatch() {
-        mLatch = new CountDownLatch(1);
+        mCallbacks.drainPermits();
     }
 
-    // Returns true if mLatch reaches 0, false if timeout or interrupted.
+    // Returns true if a callback arrived, false if timeout or interrupted.
     boolean waitForCallback(int timeoutMs) {
+        return waitForCallbacks(1, timeoutMs);
+    }
+
+    // Returns true if count callbacks arrived, false if timeout or interrupted.
+    boolean waitForCallbacks(int count, int timeoutMs) {
         try {
-            return mLatch.await(timeoutMs, TimeUnit.MILLISECONDS);
+            return mCallbacks.tryAcquire(count, timeoutMs, TimeUnit.MILLISECONDS);
         } catch (InterruptedException e) {
             return false;
         }
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanResult;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * Coalesces the regular scan results of opted-in callback scanners into micro-batches.
+ *
+ * <p>Results are queued per client and delivered together once the coalescing window has
+ * passed since the first queued result, or as soon as the queue holds the maximum number of
+ * results. Within a window only the latest result of each address is kept, so a tag that
+ * advertises many times is reported once with its latest RSSI.
+ *
+ * @hide
+ */
+/* package */class ScanResultCoalescer {
+    private static final boolean DBG = GattServiceConfig.DBG;
+    private static final String TAG = GattServiceConfig.TAG_PREFIX + "ScanResultCoalescer";
+
+    private static final int MSG_FLUSH = 0;
+
+    /**
+     * Receives the coalesced results of a client.
+     */
+    interface Callback {
+        void onCoalescedScanResults(ScanClient client, ArrayList<ScanResult> results);
+    }
+
+    private static class ClientQueue {
+        final ScanClient client;
+        // Configuration in effect for the latest result.
+        long windowMillis;
+        int maxResults;
+        // Pending results by address, in the order the addresses were first seen.
+        final LinkedHashMap<String, ScanResult> pending = new LinkedHashMap<>();
+
+        long resultsQueued;
+        long resultsCoalesced;
+        long batchesDelivered;
+        int maxQueueDepth;
+
+        ClientQueue(ScanClient client) {
+            this.client = client;
+        }
+    }
+
+    private final Callback mCallback;
+    private final Handler mHandler;
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final SparseArray<ClientQueue> mQueues = new SparseArray<>();
+
+    ScanResultCoalescer(Looper looper, Callback callback) {
+        mCallback = callback;
+        mHandler = new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_FLUSH) {
+                    flush(msg.arg1);
+                }
+            }
+        };
+    }
+
+    /**
+     * Queues {@code result} for {@code client}, replacing any pending result of the same
+     * address.
+     *
+     * @param address the address the result was received from, which is not set in the result
+     *        when it is sanitized
+     * <p>The configuration is passed with every result, so that changes apply to the clients
+     * that are already scanning.
+     *
+     * @param windowMillis the coalescing window, started by the first pending result
+     * @param maxResults the queue depth that triggers an immediate delivery
+     */
+    void add(ScanClient client, String address, ScanResult result, long windowMillis,
+            int maxResults) {
+        synchronized (mLock) {
+            ClientQueue queue = mQueues.get(client.scannerId);
+            if (queue == null) {
+                queue = new ClientQueue(client);
+                mQueues.put(client.scannerId, queue);
+            }
+            queue.windowMillis = windowMillis;
+            queue.maxResults = Math.max(1, maxResults);
+            queue.resultsQueued++;
+            if (queue.pending.put(address, result) != null) {
+                queue.resultsCoalesced++;
+            }
+            int depth = queue.pending.size();
+            queue.maxQueueDepth = Math.max(queue.maxQueueDepth, depth);
+            if (depth >= queue.maxResults) {
+                mHandler.removeMessages(MSG_FLUSH, queue);
+                mHandler.sendMessage(mHandler.obtainMessage(MSG_FLUSH, client.scannerId, 0,
+                        queue));
+            } else if (depth == 1) {
+                mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_FLUSH, client.scannerId, 0,
+                        queue), queue.windowMillis);
+            }
+        }
+    }
+
+    /**
+     * Drops the queue of the client with {@code scannerId}, without delivering pending results.
+     */
+    void removeClient(int scannerId) {
+        synchronized (mLock) {
+            ClientQueue queue = mQueues.get(scannerId);
+            if (queue != null) {
+                mHandler.removeMessages(MSG_FLUSH, queue);
+                mQueues.remove(scannerId);
+            }
+        }
+    }
+
+    void cleanup() {
+        synchronized (mLock) {
+            mHandler.removeCallbacksAndMessages(null);
+            mQueues.clear();
+        }
+    }
+
+    @VisibleForTesting
+    void flush(int scannerId) {
+        ScanClient client;
+        ArrayList<ScanResult> results;
+        synchronized (mLock) {
+            ClientQueue queue = mQueues.get(scannerId);
+            if (queue == null || queue.pending.isEmpty()) {
+                return;
+            }
+            mHandler.removeMessages(MSG_FLUSH, queue);
+            client = queue.client;
+            results = new ArrayList<>(queue.pending.values());
+            queue.pending.clear();
+            queue.batchesDelivered++;
+        }
+        if (DBG) {
+            Log.d(TAG, "flush() - scannerId=" + scannerId + ", results=" + results.size());
+        }
+        mCallback.onCoalescedScanResults(client, results);
+    }
+
+    void dump(StringBuilder sb) {
+        synchronized (mLock) {
+            if (mQueues.size() == 0) {
+                return;
+            }
+            sb.append("Coalesced scan result delivery\n");
+            for (int i = 0; i < mQueues.size(); i++) {
+                ClientQueue queue = mQueues.valueAt(i);
+                sb.append("  scannerId ").append(mQueues.keyAt(i))
+                        .append(" (window ").append(queue.windowMillis).append("ms, max ")
+                        .append(queue.maxResults).append(")")
+                        .append("\n    Results (queued/coalesced/pending)       : ")
+                        .append(queue.resultsQueued).append(" / ")
+                        .append(queue.resultsCoalesced).append(" / ")
+                        .append(queue.pending.size())
+                        .append("\n    Batches delivered                        : ")
+                        .append(queue.batchesDelivered)
+                        .append("\n    Max queue depth                          : ")
+                        .append(queue.maxQueueDepth)
+                        .append("\n");
+            }
+        }
+    }
+}
@@ -56,6 +56,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -1015,6 +1016,29 @@ public class BluetoothMapContent {
         }
     }
 
+    /**
+     * Resolves the contact names of the SMS in {@code list} in batches, before
+     * {@link #setSenderName} and {@link #setRecipientName} look them up one message at a time.
+     */
+    private void preloadSmsContacts(List<BluetoothMapMessageListingElement> list,
+            Cursor smsCursor, FilterInfo fi, BluetoothMapAppParams ap) {
+        if (smsCursor == null
+                || (ap.getParameterMask() & (MASK_SENDER_NAME | MASK_RECIPIENT_NAME)) == 0) {
+            return;
+        }
+        List<String> phones = new ArrayList<>();
+        for (BluetoothMapMessageListingElement ele : list) {
+            if ((TYPE.SMS_GSM).equals(ele.getType()) || (TYPE.SMS_CDMA).equals(ele.getType())) {
+                if (smsCursor.moveToPosition(ele.getCursorIndex())) {
+                    phones.add(smsCursor.getString(fi.mSmsColAddress));
+                }
+            }
+        }
+        if (!phones.isEmpty()) {
+            MapContactCache.getInstance().preload(mResolver, phones);
+        }
+    }
+
     @VisibleForTesting
     void setSenderAddressing(BluetoothMapMessageListingElement e, Cursor c, FilterInfo fi,
             BluetoothMapAppParams ap) {
@@ -1338,38 +1362,13 @@ public class BluetoothMapContent {
         return e;
     }
 
-    /* TODO: Change to use SmsMmsContacts.getContactNameFromPhone() with proper use of
-     *       caching. */
+    /**
+     * Returns the display name of the contact of {@code phone}, or null if it has none.
+     * The names are cached by {@link MapContactCache} while the MAP service runs.
+     */
     public static String getContactNameFromPhone(String phone, ContentResolver resolver) {
-        String name = null;
-        //Handle possible exception for empty phone address
-        if (TextUtils.isEmpty(phone)) {
-            return name;
-        }
-
-        Uri uri =
-                Uri.withAppendedPath(PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI, Uri.encode(phone));
-
-        String[] projection = {Contacts._ID, Contacts.DISPLAY_NAME};
-        String selection = Contacts.IN_VISIBLE_GROUP + "=1";
-        String orderBy = Contacts.DISPLAY_NAME + " ASC";
-        Cursor c = null;
-        try {
-            c = BluetoothMethodProxy.getInstance().contentResolverQuery(resolver, uri, projection,
-                    selection, null, orderBy);
-            if (c != null) {
-                int colIndex = c.getColumnIndex(Contacts.DISPLAY_NAME);
-                if (c.getCount() >= 1) {
-                    c.moveToFirst();
-                    name = c.getString(colIndex);
-                }
-            }
-        } finally {
-            if (c != null) {
-                c.close();
-            }
-        }
-        return name;
+        MapContact contact = MapContactCache.getInstance().getContact(resolver, phone);
+        return contact != null ? contact.getName() : null;
     }
 
     private static final String[] RECIPIENT_ID_PROJECTION = {Threads.RECIPIENT_IDS};
@@ -2338,6 +2337,7 @@ public class BluetoothMapContent {
             bmList.segment(ap.getMaxListCount(), offsetNum);
             List<BluetoothMapMessageListingElement> list = bmList.getList();
             int listSize = list.size();
+            preloadSmsContacts(list, smsCursor, fi, ap);
             Cursor tmpCursor = null;
             for (int x = 0; x < listSize; x++) {
                 BluetoothMapMessageListingElement ele = list.get(x);
@@ -77,6 +77,7 @@ import java.util.Calendar;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
@@ -480,7 +481,17 @@ public class BluetoothMapContentObserver {
         return smsType;
     }
 
-    private final ContentObserver mObserver = new ContentObserver(new Handler()) {
+    // Delay over which a burst of SMS/MMS change notifications is handled with a single scan.
+    private static final long MSG_LIST_CHANGES_SMS_MMS_DELAY_MS = 100;
+
+    private final Handler mObserverHandler = new Handler();
+
+    private final Runnable mHandleMsgListChangesSmsMms = () -> {
+        handleMsgListChangesSms();
+        handleMsgListChangesMms();
+    };
+
+    private final ContentObserver mObserver = new ContentObserver(mObserverHandler) {
         @Override
         public void onChange(boolean selfChange) {
             onChange(selfChange, null);
@@ -1078,6 +1089,7 @@ public class BluetoothMapContentObserver {
             Log.d(TAG, "unregisterObserver");
         }
         mResolver.unregisterContentObserver(mObserver);
+        mObserverHandler.removeCallbacks(mHandleMsgListChangesSmsMms);
         mObserverRegistered = false;
         if (mProviderClient != null) {
             mProviderClient.close();
@@ -1428,29 +1440,31 @@ public class BluetoothMapContentObserver {
         }
 
         HashMap<Long, Msg> msgListSms = new HashMap<Long, Msg>();
+        // New messages by id, in the order they were found.
+        LinkedHashMap<Long, Msg> newMsgs = new LinkedHashMap<Long, Msg>();
         boolean listChanged = false;
 
         Cursor c;
         synchronized (getMsgListSms()) {
-            if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                c = BluetoothMethodProxy.getInstance().contentResolverQuery(mResolver,
-                        Sms.CONTENT_URI, SMS_PROJECTION_SHORT, null, null, null);
-            } else {
-                c = BluetoothMethodProxy.getInstance().contentResolverQuery(mResolver,
-                        Sms.CONTENT_URI, SMS_PROJECTION_SHORT_EXT, null, null, null);
-            }
+            // Only the columns needed to detect changes are read for every message. The
+            // details of the new messages are read for them alone, in sendNewSmsEvents().
+            c = BluetoothMethodProxy.getInstance().contentResolverQuery(mResolver,
+                    Sms.CONTENT_URI, SMS_PROJECTION_SHORT, null, null, null);
             try {
                 if (c != null && c.moveToFirst()) {
+                    int idIndex = c.getColumnIndexOrThrow(Sms._ID);
+                    int typeIndex = c.getColumnIndex(Sms.TYPE);
+                    int threadIdIndex = c.getColumnIndex(Sms.THREAD_ID);
+                    int readIndex = c.getColumnIndex(Sms.READ);
                     do {
-                        int idIndex = c.getColumnIndexOrThrow(Sms._ID);
                         if (c.isNull(idIndex)) {
                             Log.w(TAG, "handleMsgListChangesSms, ID is null");
                             continue;
                         }
                         long id = c.getLong(idIndex);
-                        int type = c.getInt(c.getColumnIndex(Sms.TYPE));
-                        int threadId = c.getInt(c.getColumnIndex(Sms.THREAD_ID));
-                        int read = c.getInt(c.getColumnIndex(Sms.READ));
+                        int type = c.getInt(typeIndex);
+                        int threadId = c.getInt(threadIdIndex);
+                        int read = c.getInt(readIndex);
 
                         Msg msg = getMsgListSms().remove(id);
 
@@ -1461,55 +1475,8 @@ public class BluetoothMapContentObserver {
                             /* New message */
                             msg = new Msg(id, type, threadId, read);
                             msgListSms.put(id, msg);
+                            newMsgs.put(id, msg);
                             listChanged = true;
-                            Event evt;
-                            if (mTransmitEvents && // extract contact details only if needed
-                                    mMapEventReportVersion
-                                            > BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                                String date = BluetoothMapUtils.getDateTimeString(
-                                        c.getLong(c.getColumnIndex(Sms.DATE)));
-                                String subject = c.getString(c.getColumnIndex(Sms.BODY));
-                                if (subject == null) {
-                                    subject = "";
-                                }
-                                String name = "";
-                                String phone = "";
-                                if (type == 1) { //inbox
-                                    phone = c.getString(c.getColumnIndex(Sms.ADDRESS));
-                                    if (phone != null && !phone.isEmpty()) {
-                                        name = BluetoothMapContent.getContactNameFromPhone(phone,
-                                                mResolver);
-                                        if (name == null || name.isEmpty()) {
-                                            name = phone;
-                                        }
-                                    } else {
-                                        name = phone;
-                                    }
-                                } else {
-                                    TelephonyManager tm = mContext.getSystemService(
-                                            TelephonyManager.class);
-                                    if (tm != null) {
-                                        phone = tm.getLine1Number();
-                                        name = phone;
-                                    }
-                                }
-                                String priority = "no"; // no priority for sms
-                                /* Incoming message from the network */
-                                if (mMapEventReportVersion
-                                        == BluetoothMapUtils.MAP_EVENT_REPORT_V11) {
-                                    evt = new Event(EVENT_TYPE_NEW, id, getSmsFolderName(type),
-                                            mSmsType, date, subject, name, priority);
-                                } else {
-                                    evt = new Event(EVENT_TYPE_NEW, id, getSmsFolderName(type),
-                                            mSmsType, date, subject, name, priority,
-                                            (long) threadId, null);
-                                }
-                            } else {
-                                /* Incoming message from the network */
-                                evt = new Event(EVENT_TYPE_NEW, id, getSmsFolderName(type), null,
-                                        mSmsType);
-                            }
-                            sendEvent(evt);
                         } else {
                             /* Existing message */
                             if (type != msg.type) {
@@ -1567,6 +1534,8 @@ public class BluetoothMapContentObserver {
                     c.close();
                 }
             }
+            sendNewSmsEvents(newMsgs);
+
             String eventType = EVENT_TYPE_DELETE;
             for (Msg msg : getMsgListSms().values()) {
                 // "old_folder" used only for MessageShift event
@@ -1584,6 +1553,91 @@ public class BluetoothMapContentObserver {
         }
     }
 
+    /**
+     * Sends the NewMessage events of {@code newMsgs}, reading the details of the new messages
+     * with a single query when the events carry them.
+     */
+    private void sendNewSmsEvents(Map<Long, Msg> newMsgs) {
+        if (newMsgs.isEmpty()) {
+            return;
+        }
+        // extract contact details only if needed
+        if (!mTransmitEvents
+                || mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
+            for (Msg msg : newMsgs.values()) {
+                /* Incoming message from the network */
+                sendEvent(new Event(EVENT_TYPE_NEW, msg.id, getSmsFolderName(msg.type), null,
+                        mSmsType));
+            }
+            return;
+        }
+
+        LinkedHashMap<Long, Msg> pending = new LinkedHashMap<Long, Msg>(newMsgs);
+        Cursor c = BluetoothMethodProxy.getInstance().contentResolverQuery(mResolver,
+                Sms.CONTENT_URI, SMS_PROJECTION_SHORT_EXT, getIdSelection(Sms._ID,
+                        newMsgs.keySet()), null, null);
+        try {
+            if (c != null && c.moveToFirst()) {
+                int idIndex = c.getColumnIndexOrThrow(Sms._ID);
+                int dateIndex = c.getColumnIndex(Sms.DATE);
+                int bodyIndex = c.getColumnIndex(Sms.BODY);
+                int addressIndex = c.getColumnIndex(Sms.ADDRESS);
+                do {
+                    Msg msg = c.isNull(idIndex) ? null : pending.remove(c.getLong(idIndex));
+                    if (msg == null) {
+                        continue;
+                    }
+                    long id = msg.id;
+                    int type = msg.type;
+                    String date = BluetoothMapUtils.getDateTimeString(c.getLong(dateIndex));
+                    String subject = c.getString(bodyIndex);
+                    if (subject == null) {
+                        subject = "";
+                    }
+                    String name = "";
+                    String phone = "";
+                    if (type == 1) { //inbox
+                        phone = c.getString(addressIndex);
+                        if (phone != null && !phone.isEmpty()) {
+                            name = BluetoothMapContent.getContactNameFromPhone(phone, mResolver);
+                            if (name == null || name.isEmpty()) {
+                                name = phone;
+                            }
+                        } else {
+                            name = phone;
+                        }
+                    } else {
+                        TelephonyManager tm = mContext.getSystemService(TelephonyManager.class);
+                        if (tm != null) {
+                            phone = tm.getLine1Number();
+                            name = phone;
+                        }
+                    }
+                    String priority = "no"; // no priority for sms
+                    Event evt;
+                    /* Incoming message from the network */
+                    if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V11) {
+                        evt = new Event(EVENT_TYPE_NEW, id, getSmsFolderName(type), mSmsType,
+                                date, subject, name, priority);
+                    } else {
+                        evt = new Event(EVENT_TYPE_NEW, id, getSmsFolderName(type), mSmsType,
+                                date, subject, name, priority, (long) msg.threadId, null);
+                    }
+                    sendEvent(evt);
+                } while (c.moveToNext());
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        // Messages deleted since they were found are reported without details.
+        for (Msg msg : pending.values()) {
+            sendEvent(new Event(EVENT_TYPE_NEW, msg.id, getSmsFolderName(msg.type), null,
+                    mSmsType));
+        }
+    }
+
     @VisibleForTesting
     void handleMsgListChangesMms() {
         if (V) {
@@ -1591,32 +1645,35 @@ public class BluetoothMapContentObserver {
         }
 
         HashMap<Long, Msg> msgListMms = new HashMap<Long, Msg>();
+        // New messages by id, in the order they were found.
+        LinkedHashMap<Long, Msg> newMsgs = new LinkedHashMap<Long, Msg>();
         boolean listChanged = false;
         Cursor c;
         synchronized (getMsgListMms()) {
-            if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                c = BluetoothMethodProxy.getInstance().contentResolverQuery(mResolver,
-                        Mms.CONTENT_URI, MMS_PROJECTION_SHORT, null, null, null);
-            } else {
-                c = BluetoothMethodProxy.getInstance().contentResolverQuery(mResolver,
-                        Mms.CONTENT_URI, MMS_PROJECTION_SHORT_EXT, null, null, null);
-            }
+            // Only the columns needed to detect changes are read for every message. The
+            // details of the new messages are read for them alone, in sendNewMmsEvents().
+            c = BluetoothMethodProxy.getInstance().contentResolverQuery(mResolver,
+                    Mms.CONTENT_URI, MMS_PROJECTION_SHORT, null, null, null);
 
             try {
                 if (c != null && c.moveToFirst()) {
+                    int idIndex = c.getColumnIndexOrThrow(Mms._ID);
+                    int typeIndex = c.getColumnIndex(Mms.MESSAGE_BOX);
+                    int mtypeIndex = c.getColumnIndex(Mms.MESSAGE_TYPE);
+                    int threadIdIndex = c.getColumnIndex(Mms.THREAD_ID);
+                    int readIndex = c.getColumnIndex(Mms.READ);
                     do {
-                        int idIndex = c.getColumnIndexOrThrow(Mms._ID);
                         if (c.isNull(idIndex)) {
                             Log.w(TAG, "handleMsgListChangesMms, ID is null");
                             continue;
                         }
                         long id = c.getLong(idIndex);
-                        int type = c.getInt(c.getColumnIndex(Mms.MESSAGE_BOX));
-                        int mtype = c.getInt(c.getColumnIndex(Mms.MESSAGE_TYPE));
-                        int threadId = c.getInt(c.getColumnIndex(Mms.THREAD_ID));
+                        int type = c.getInt(typeIndex);
+                        int mtype = c.getInt(mtypeIndex);
+                        int threadId = c.getInt(threadIdIndex);
                         // TODO: Go through code to see if we have an issue with mismatch in types
                         //       for threadId. Seems to be a long in DB??
-                        int read = c.getInt(c.getColumnIndex(Mms.READ));
+                        int read = c.getInt(readIndex);
 
                         Msg msg = getMsgListMms().remove(id);
 
@@ -1634,54 +1691,7 @@ public class BluetoothMapContentObserver {
                             }
                             msg = new Msg(id, type, threadId, read);
                             msgListMms.put(id, msg);
-                            Event evt;
-                            if (mTransmitEvents && // extract contact details only if needed
-                                    mMapEventReportVersion
-                                            != BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                                String date = BluetoothMapUtils.getDateTimeString(
-                                        c.getLong(c.getColumnIndex(Mms.DATE)));
-                                String subject = c.getString(c.getColumnIndex(Mms.SUBJECT));
-                                if (subject == null || subject.length() == 0) {
-                                    /* Get subject from mms text body parts - if any exists */
-                                    subject = BluetoothMapContent.getTextPartsMms(mResolver, id);
-                                    if (subject == null) {
-                                        subject = "";
-                                    }
-                                }
-                                int tmpPri = c.getInt(c.getColumnIndex(Mms.PRIORITY));
-                                Log.d(TAG, "TEMP handleMsgListChangesMms, "
-                                        + "newMessage 'read' state: " + read + "priority: "
-                                        + tmpPri);
-
-                                String address = BluetoothMapContent.getAddressMms(mResolver, id,
-                                        BluetoothMapContent.MMS_FROM);
-                                if (address == null) {
-                                    address = "";
-                                }
-
-                                String priority = "no";
-                                if (tmpPri == PduHeaders.PRIORITY_HIGH) {
-                                    priority = "yes";
-                                }
-
-                                /* Incoming message from the network */
-                                if (mMapEventReportVersion
-                                        == BluetoothMapUtils.MAP_EVENT_REPORT_V11) {
-                                    evt = new Event(EVENT_TYPE_NEW, id, getMmsFolderName(type),
-                                            TYPE.MMS, date, subject, address, priority);
-                                } else {
-                                    evt = new Event(EVENT_TYPE_NEW, id, getMmsFolderName(type),
-                                            TYPE.MMS, date, subject, address, priority,
-                                            (long) threadId, null);
-                                }
-
-                            } else {
-                                /* Incoming message from the network */
-                                evt = new Event(EVENT_TYPE_NEW, id, getMmsFolderName(type), null,
-                                        TYPE.MMS);
-                            }
-
-                            sendEvent(evt);
+                            newMsgs.put(id, msg);
                         } else {
                             /* Existing message */
                             if (type != msg.type) {
@@ -1744,6 +1754,8 @@ public class BluetoothMapContentObserver {
                     c.close();
                 }
             }
+            sendNewMmsEvents(newMsgs);
+
             for (Msg msg : getMsgListMms().values()) {
                 // "old_folder" used only for MessageShift event
                 Event evt = new Event(EVENT_TYPE_DELETE, msg.id, getMmsFolderName(msg.type), null,
@@ -1755,6 +1767,94 @@ public class BluetoothMapContentObserver {
         }
     }
 
+    /**
+     * Sends the NewMessage events of {@code newMsgs}, reading the details of the new messages
+     * with a single query when the events carry them.
+     */
+    private void sendNewMmsEvents(Map<Long, Msg> newMsgs) {
+        if (newMsgs.isEmpty()) {
+            return;
+        }
+        // extract contact details only if needed
+        if (!mTransmitEvents
+                || mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
+            for (Msg msg : newMsgs.values()) {
+                /* Incoming message from the network */
+                sendEvent(new Event(EVENT_TYPE_NEW, msg.id, getMmsFolderName(msg.type), null,
+                        TYPE.MMS));
+            }
+            return;
+        }
+
+        LinkedHashMap<Long, Msg> pending = new LinkedHashMap<Long, Msg>(newMsgs);
+        Cursor c = BluetoothMethodProxy.getInstance().contentResolverQuery(mResolver,
+                Mms.CONTENT_URI, MMS_PROJECTION_SHORT_EXT, getIdSelection(Mms._ID,
+                        newMsgs.keySet()), null, null);
+        try {
+            if (c != null && c.moveToFirst()) {
+                int idIndex = c.getColumnIndexOrThrow(Mms._ID);
+                int dateIndex = c.getColumnIndex(Mms.DATE);
+                int subjectIndex = c.getColumnIndex(Mms.SUBJECT);
+                int priorityIndex = c.getColumnIndex(Mms.PRIORITY);
+                do {
+                    Msg msg = c.isNull(idIndex) ? null : pending.remove(c.getLong(idIndex));
+                    if (msg == null) {
+                        continue;
+                    }
+                    long id = msg.id;
+                    int type = msg.type;
+                    String date = BluetoothMapUtils.getDateTimeString(c.getLong(dateIndex));
+                    String subject = c.getString(subjectIndex);
+                    if (subject == null || subject.length() == 0) {
+                        /* Get subject from mms text body parts - if any exists */
+                        subject = BluetoothMapContent.getTextPartsMms(mResolver, id);
+                        if (subject == null) {
+                            subject = "";
+                        }
+                    }
+                    int tmpPri = c.getInt(priorityIndex);
+                    Log.d(TAG, "TEMP handleMsgListChangesMms, "
+                            + "newMessage 'read' state: " + msg.flagRead + "priority: " + tmpPri);
+
+                    String address = BluetoothMapContent.getAddressMms(mResolver, id,
+                            BluetoothMapContent.MMS_FROM);
+                    if (address == null) {
+                        address = "";
+                    }
+
+                    String priority = "no";
+                    if (tmpPri == PduHeaders.PRIORITY_HIGH) {
+                        priority = "yes";
+                    }
+
+                    Event evt;
+                    /* Incoming message from the network */
+                    if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V11) {
+                        evt = new Event(EVENT_TYPE_NEW, id, getMmsFolderName(type), TYPE.MMS,
+                                date, subject, address, priority);
+                    } else {
+                        evt = new Event(EVENT_TYPE_NEW, id, getMmsFolderName(type), TYPE.MMS,
+                                date, subject, address, priority, (long) msg.threadId, null);
+                    }
+                    sendEvent(evt);
+                } while (c.moveToNext());
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        // Messages deleted since they were found are reported without details.
+        for (Msg msg : pending.values()) {
+            sendEvent(new Event(EVENT_TYPE_NEW, msg.id, getMmsFolderName(msg.type), null,
+                    TYPE.MMS));
+        }
+    }
+
+    private static String getIdSelection(String idColumn, Set<Long> ids) {
+        return idColumn + " IN (" + TextUtils.join(",", ids) + ")";
+    }
+
     @VisibleForTesting
     void handleMsgListChangesMsg(Uri uri) throws RemoteException {
         if (V) {
@@ -1965,8 +2065,13 @@ public class BluetoothMapContentObserver {
         }
         // TODO: check to see if there could be problem with IM and SMS in one instance
         if (mEnableSmsMms) {
-            handleMsgListChangesSms();
-            handleMsgListChangesMms();
+            // A single change to a message is notified several times, and each notification
+            // leads to a scan of the whole SMS and MMS tables. Notifications arriving while a
+            // scan is pending are handled by that scan.
+            if (!mObserverHandler.hasCallbacks(mHandleMsgListChangesSmsMms)) {
+                mObserverHandler.postDelayed(mHandleMsgListChangesSmsMms,
+                        MSG_LIST_CHANGES_SMS_MMS_DELAY_MS);
+            }
         }
     }
 
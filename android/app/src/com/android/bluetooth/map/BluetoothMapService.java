@@ -709,6 +709,8 @@ public class BluetoothMapService extends ProfileService {
         TelephonyManager tm = getSystemService(TelephonyManager.class);
         mSmsCapable = tm.isSmsCapable();
 
+        MapContactCache.getInstance().start(getContentResolver());
+
         mEnabledAccounts = mAppObserver.getEnabledAccountItems();
         createMasInstances();  // Uses mEnabledAccounts
 
@@ -900,6 +902,7 @@ public class BluetoothMapService extends ProfileService {
             mAppObserver.shutdown();
         }
         sendShutdownMessage();
+        MapContactCache.getInstance().stop();
         setComponentAvailable(MAP_SETTINGS_ACTIVITY, false);
         setComponentAvailable(MAP_FILE_PROVIDER, false);
         return true;
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.PhoneLookup;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.bluetooth.BluetoothMethodProxy;
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Caches the contacts found for phone numbers, shared by all MAS instances.
+ *
+ * <p>The cache is only used while the MAP service runs, as it is cleared whenever the Contacts
+ * provider notifies a change. When it is not started, every lookup queries the provider.
+ * Phone numbers without a contact are cached as well, so a listing of messages from an unknown
+ * number looks it up once.
+ *
+ * @hide
+ */
+/* package */ class MapContactCache {
+    private static final String TAG = "MapContactCache";
+    private static final boolean D = BluetoothMapService.DEBUG;
+    private static final boolean V = BluetoothMapService.VERBOSE;
+
+    @VisibleForTesting
+    static final int MAX_ENTRIES = 1024;
+    // The numbers are bound twice in a preload query, below the SQLite limit of 999 arguments.
+    private static final int MAX_NUMBERS_PER_QUERY = 400;
+
+    private static final String[] LOOKUP_PROJECTION = {Contacts._ID, Contacts.DISPLAY_NAME};
+    private static final String[] PRELOAD_PROJECTION = {
+            Phone.CONTACT_ID, Phone.DISPLAY_NAME, Phone.NUMBER, Phone.NORMALIZED_NUMBER
+    };
+    private static final String SELECTION_VISIBLE = Contacts.IN_VISIBLE_GROUP + "=1";
+    private static final String ORDER_BY_NAME = Contacts.DISPLAY_NAME + " ASC";
+
+    // Stands for a phone number without a contact.
+    private static final MapContact NO_CONTACT = MapContact.create(-1, null);
+
+    private static MapContactCache sInstance = new MapContactCache();
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final LinkedHashMap<String, MapContact> mContacts =
+            new LinkedHashMap<String, MapContact>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, MapContact> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+    // Incremented when the cache is cleared, so that a lookup racing with a change of the
+    // contacts does not cache a stale result.
+    @GuardedBy("mLock")
+    private long mGeneration;
+    @GuardedBy("mLock")
+    private ContentResolver mResolver;
+    @GuardedBy("mLock")
+    private ContentObserver mObserver;
+
+    static MapContactCache getInstance() {
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    static void setInstanceForTesting(MapContactCache instance) {
+        sInstance = instance != null ? instance : new MapContactCache();
+    }
+
+    /**
+     * Starts caching the contacts, until {@link #stop()} is called.
+     */
+    void start(ContentResolver resolver) {
+        synchronized (mLock) {
+            if (mObserver != null) {
+                return;
+            }
+            mResolver = resolver;
+            mObserver = new ContentObserver(null) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    if (V) {
+                        Log.v(TAG, "Contacts changed, clearing the cache");
+                    }
+                    clear();
+                }
+            };
+            mResolver.registerContentObserver(ContactsContract.AUTHORITY_URI, true, mObserver);
+        }
+    }
+
+    void stop() {
+        synchronized (mLock) {
+            if (mObserver == null) {
+                return;
+            }
+            mResolver.unregisterContentObserver(mObserver);
+            mObserver = null;
+            mResolver = null;
+            clear();
+        }
+    }
+
+    void clear() {
+        synchronized (mLock) {
+            mContacts.clear();
+            mGeneration++;
+        }
+    }
+
+    /**
+     * Returns the contact of {@code phone}, or null if it has none.
+     */
+    MapContact getContact(ContentResolver resolver, String phone) {
+        if (TextUtils.isEmpty(phone)) {
+            return null;
+        }
+        long generation;
+        synchronized (mLock) {
+            MapContact contact = mContacts.get(phone);
+            if (contact != null) {
+                return contact == NO_CONTACT ? null : contact;
+            }
+            generation = mGeneration;
+        }
+        MapContact contact = lookup(resolver, phone);
+        putIfCurrent(generation, Collections.singletonMap(phone, contact));
+        return contact;
+    }
+
+    /**
+     * Resolves the contacts of the numbers in {@code phones} that are not cached yet, with one
+     * query per {@link #MAX_NUMBERS_PER_QUERY} numbers.
+     *
+     * <p>Only the numbers stored as is, or in their normalized form, are resolved. The others are
+     * looked up one by one by {@link #getContact}, which matches the numbers loosely.
+     */
+    void preload(ContentResolver resolver, Collection<String> phones) {
+        List<String> missing = new ArrayList<>();
+        long generation;
+        synchronized (mLock) {
+            if (mObserver == null) {
+                return;
+            }
+            for (String phone : new LinkedHashSet<>(phones)) {
+                if (!TextUtils.isEmpty(phone) && !mContacts.containsKey(phone)) {
+                    missing.add(phone);
+                }
+            }
+            generation = mGeneration;
+        }
+        if (D) {
+            Log.d(TAG, "preload: " + missing.size() + " numbers");
+        }
+        for (int start = 0; start < missing.size(); start += MAX_NUMBERS_PER_QUERY) {
+            List<String> chunk = missing.subList(start,
+                    Math.min(start + MAX_NUMBERS_PER_QUERY, missing.size()));
+            putIfCurrent(generation, query(resolver, chunk));
+        }
+    }
+
+    private void putIfCurrent(long generation, Map<String, MapContact> contacts) {
+        synchronized (mLock) {
+            if (mObserver == null || generation != mGeneration) {
+                return;
+            }
+            for (Map.Entry<String, MapContact> entry : contacts.entrySet()) {
+                mContacts.put(entry.getKey(),
+                        entry.getValue() != null ? entry.getValue() : NO_CONTACT);
+            }
+        }
+    }
+
+    private static MapContact lookup(ContentResolver resolver, String phone) {
+        Uri uri =
+                Uri.withAppendedPath(PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI, Uri.encode(phone));
+        Cursor c = BluetoothMethodProxy.getInstance().contentResolverQuery(resolver, uri,
+                LOOKUP_PROJECTION, SELECTION_VISIBLE, null, ORDER_BY_NAME);
+        try {
+            if (c != null && c.getCount() >= 1) {
+                c.moveToFirst();
+                return MapContact.create(c.getLong(c.getColumnIndex(Contacts._ID)),
+                        c.getString(c.getColumnIndex(Contacts.DISPLAY_NAME)));
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        return null;
+    }
+
+    private static Map<String, MapContact> query(ContentResolver resolver, List<String> phones) {
+        String placeholders = TextUtils.join(",", Collections.nCopies(phones.size(), "?"));
+        String selection = SELECTION_VISIBLE + " AND (" + Phone.NUMBER + " IN (" + placeholders
+                + ") OR " + Phone.NORMALIZED_NUMBER + " IN (" + placeholders + "))";
+        List<String> args = new ArrayList<>(phones);
+        args.addAll(phones);
+        Set<String> wanted = new LinkedHashSet<>(phones);
+
+        Map<String, MapContact> contacts = new HashMap<>();
+        Cursor c = BluetoothMethodProxy.getInstance().contentResolverQuery(resolver,
+                Phone.CONTENT_URI, PRELOAD_PROJECTION, selection, args.toArray(new String[0]),
+                ORDER_BY_NAME);
+        if (c == null) {
+            return contacts;
+        }
+        try {
+            int idIndex = c.getColumnIndex(Phone.CONTACT_ID);
+            int nameIndex = c.getColumnIndex(Phone.DISPLAY_NAME);
+            int numberIndex = c.getColumnIndex(Phone.NUMBER);
+            int normalizedIndex = c.getColumnIndex(Phone.NORMALIZED_NUMBER);
+            while (c.moveToNext()) {
+                // Ordered by name, like a lookup, so the first contact of a number is kept.
+                for (String number : new String[] {c.getString(numberIndex),
+                        c.getString(normalizedIndex)}) {
+                    if (number != null && wanted.contains(number)
+                            && !contacts.containsKey(number)) {
+                        contacts.put(number, MapContact.create(c.getLong(idIndex),
+                                c.getString(nameIndex)));
+                    }
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return contacts;
+    }
+}
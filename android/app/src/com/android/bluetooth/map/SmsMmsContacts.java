@@ -182,6 +182,12 @@ public class SmsMmsContacts {
             return null;
         }
 
+        if (contactNameFilter == null) {
+            contact = MapContactCache.getInstance().getContact(resolver, phone);
+            mNames.put(phone, contact != null ? contact : MapContact.create(-1, null));
+            return contact;
+        }
+
         // TODO: Should we change to extract both formatted name, and display name?
 
         Uri uri =
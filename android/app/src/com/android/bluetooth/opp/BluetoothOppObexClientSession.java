@@ -54,7 +54,6 @@ import com.android.obex.ResponseCodes;
 
 import com.google.common.annotations.VisibleForTesting;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -395,6 +394,8 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
             ClientOperation putOperation = null;
             OutputStream outputStream = null;
             InputStream inputStream = null;
+            BluetoothOppReadAhead readAhead = null;
+            BluetoothOppProgressReporter progressReporter = null;
             try {
                 synchronized (this) {
                     mWaitingForRemote = true;
@@ -455,20 +456,20 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                 }
 
                 if (!error) {
-                    int readLength = 0;
                     long percent = 0;
                     long prevPercent = 0;
                     boolean okToProceed = false;
                     long timestamp = 0;
                     long currentTime = 0;
                     long prevTimestamp = SystemClock.elapsedRealtime();
-                    int outputBufferSize = putOperation.getMaxPacketSize();
-                    byte[] buffer = new byte[outputBufferSize];
-                    BufferedInputStream a = new BufferedInputStream(fileInfo.mInputStream, 0x4000);
-
-                    if (!mInterrupted && (position != fileInfo.mLength)) {
-                        readLength = readFully(a, buffer, outputBufferSize);
-
+                    BluetoothOppReadAhead.Packet packet;
+                    readAhead = new BluetoothOppReadAhead(fileInfo.mInputStream, fileInfo.mLength,
+                            putOperation.getMaxPacketSize());
+                    readAhead.start();
+                    progressReporter = new BluetoothOppProgressReporter(mContext1, contentUri);
+
+                    if (!mInterrupted && (position != fileInfo.mLength)
+                            && (packet = readAhead.take()) != null) {
                         mCallback.sendMessageDelayed(mCallback.obtainMessage(
                                 BluetoothOppObexSession.MSG_CONNECT_TIMEOUT),
                                 BluetoothOppObexSession.SESSION_TIMEOUT);
@@ -477,9 +478,10 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                         }
 
                         // first packet will block here
-                        outputStream.write(buffer, 0, readLength);
+                        outputStream.write(packet.mData, 0, packet.mLength);
 
-                        position += readLength;
+                        position += packet.mLength;
+                        readAhead.recycle(packet);
 
                         if (position == fileInfo.mLength) {
                             // if file length is smaller than buffer size, only one packet
@@ -502,10 +504,7 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                                 Log.v(TAG, "Remote accept");
                             }
                             okToProceed = true;
-                            updateValues = new ContentValues();
-                            updateValues.put(BluetoothShare.CURRENT_BYTES, position);
-                            mContext1.getContentResolver()
-                                    .update(contentUri, updateValues, null, null);
+                            progressReporter.report(position);
                             mNumFilesAttemptedToSend++;
                         } else {
                             Log.i(TAG, "Remote reject, Response code is " + responseCode);
@@ -517,8 +516,14 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                             timestamp = SystemClock.elapsedRealtime();
                         }
 
-                        readLength = a.read(buffer, 0, outputBufferSize);
-                        outputStream.write(buffer, 0, readLength);
+                        // The next packets are read while this one is sent.
+                        packet = readAhead.take();
+                        if (packet == null) {
+                            break;
+                        }
+                        outputStream.write(packet.mData, 0, packet.mLength);
+                        int readLength = packet.mLength;
+                        readAhead.recycle(packet);
 
                         /* check remote abort */
                         responseCode = putOperation.getResponseCode();
@@ -542,10 +547,7 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                             percent = position * 100 / fileInfo.mLength;
                             if (percent > prevPercent
                                     || currentTime - prevTimestamp > Constants.NFC_ALIVE_CHECK_MS) {
-                                updateValues = new ContentValues();
-                                updateValues.put(BluetoothShare.CURRENT_BYTES, position);
-                                mContext1.getContentResolver()
-                                        .update(contentUri, updateValues, null, null);
+                                progressReporter.report(position);
                                 prevPercent = percent;
                                 prevTimestamp = currentTime;
                             }
@@ -587,6 +589,12 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                 } catch (IOException e) {
                     Log.e(TAG, "Error when closing output stream after send");
                 }
+                if (readAhead != null) {
+                    readAhead.stop();
+                }
+                if (progressReporter != null) {
+                    progressReporter.finish();
+                }
 
                 // Close InputStream and remove SendFileInfo from map
                 BluetoothOppUtility.closeSendFileInfo(mInfo.mUri);
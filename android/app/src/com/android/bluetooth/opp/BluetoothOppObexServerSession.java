@@ -41,6 +41,8 @@ import android.os.Message;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
 import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
 import android.util.Log;
 import android.webkit.MimeTypeMap;
 
@@ -59,9 +61,12 @@ import com.android.obex.ServerSession;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
 
 /**
@@ -74,6 +79,9 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler
     private static final boolean D = Constants.DEBUG;
     private static final boolean V = Constants.VERBOSE;
 
+    // Size of the writes to a file, which collect several OBEX packets.
+    private static final int FILE_WRITE_SIZE = 256 * 1024;
+
     @VisibleForTesting
     public ObexTransport mTransport;
 
@@ -439,12 +447,14 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler
         return obexResponse;
     }
 
-    private int receiveFile(BluetoothOppReceiveFileInfo fileInfo, Operation op) {
+    @VisibleForTesting
+    int receiveFile(BluetoothOppReceiveFileInfo fileInfo, Operation op) {
         /*
          * implement receive file
          */
         int status = -1;
         OutputStream os = null;
+        FileChannel channel = null;
         InputStream is = null;
         boolean error = false;
         try {
@@ -478,13 +488,31 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler
             }
         }
 
+        if (!error && os instanceof FileOutputStream && fileInfo.mLength > 0) {
+            channel = ((FileOutputStream) os).getChannel();
+            try {
+                Os.posix_fallocate(((FileOutputStream) os).getFD(), 0, fileInfo.mLength);
+            } catch (ErrnoException | IOException e) {
+                // Not supported by every file system, the file then grows as it is written.
+                if (D) {
+                    Log.d(TAG, "Could not preallocate " + fileInfo.mLength + " bytes: " + e);
+                }
+            }
+        }
+
         if (!error) {
-            int outputBufferSize = op.getMaxPacketSize();
-            byte[] b = new byte[outputBufferSize];
+            // Files are written through their channel in large writes, other outputs packet
+            // by packet.
+            ByteBuffer pending = channel != null ? ByteBuffer.allocate(FILE_WRITE_SIZE) : null;
+            byte[] b = pending != null ? pending.array() : new byte[op.getMaxPacketSize()];
+            // Whether pending is being written, rather than filled.
+            boolean flushing = false;
             int readLength;
             long timestamp = 0;
             long currentTime;
             long prevTimestamp = SystemClock.elapsedRealtime();
+            BluetoothOppProgressReporter progressReporter =
+                    new BluetoothOppProgressReporter(mContext, contentUri);
             try {
                 while ((!mInterrupted) && (position != fileInfo.mLength)) {
 
@@ -492,7 +520,11 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler
                         timestamp = SystemClock.elapsedRealtime();
                     }
 
-                    readLength = is.read(b);
+                    if (pending != null) {
+                        readLength = is.read(b, pending.position(), pending.remaining());
+                    } else {
+                        readLength = is.read(b);
+                    }
 
                     if (readLength == -1) {
                         if (D) {
@@ -501,7 +533,20 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler
                         break;
                     }
 
-                    os.write(b, 0, readLength);
+                    if (pending != null) {
+                        pending.position(pending.position() + readLength);
+                        if (!pending.hasRemaining() || position + readLength == fileInfo.mLength) {
+                            pending.flip();
+                            flushing = true;
+                            while (pending.hasRemaining()) {
+                                channel.write(pending);
+                            }
+                            pending.clear();
+                            flushing = false;
+                        }
+                    } else {
+                        os.write(b, 0, readLength);
+                    }
                     position += readLength;
                     percent = position * 100 / fileInfo.mLength;
                     currentTime = SystemClock.elapsedRealtime();
@@ -516,11 +561,7 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler
                     // or once per a period to notify NFC of this transfer is still alive
                     if (percent > prevPercent
                             || currentTime - prevTimestamp > Constants.NFC_ALIVE_CHECK_MS) {
-                        ContentValues updateValues = new ContentValues();
-                        updateValues.put(BluetoothShare.CURRENT_BYTES, position);
-                        BluetoothMethodProxy.getInstance().contentResolverUpdate(
-                                mContext.getContentResolver(), contentUri, updateValues, null,
-                                null);
+                        progressReporter.report(position);
                         prevPercent = percent;
                         prevTimestamp = currentTime;
                     }
@@ -534,6 +575,28 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler
                     status = BluetoothShare.STATUS_OBEX_DATA_ERROR;
                 }
                 error = true;
+            } finally {
+                progressReporter.finish();
+            }
+
+            if (pending != null && position != fileInfo.mLength) {
+                // The transfer stopped, write the data received so far, so that the file and
+                // position both end with the last byte that made it to the file.
+                try {
+                    if (!flushing) {
+                        pending.flip();
+                    }
+                    while (pending.hasRemaining()) {
+                        channel.write(pending);
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Error when writing received data: " + e);
+                }
+                try {
+                    position = channel.position();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error when getting received file position: " + e);
+                }
             }
         }
 
@@ -560,6 +623,14 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler
 
         if (os != null) {
             try {
+                if (channel != null) {
+                    if (position == fileInfo.mLength) {
+                        channel.force(false);
+                    } else {
+                        // Drop the preallocated space past the data written.
+                        channel.truncate(channel.position());
+                    }
+                }
                 os.flush();
                 os.close();
             } catch (IOException e) {
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.opp;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.android.bluetooth.BluetoothMethodProxy;
+import com.android.internal.annotations.GuardedBy;
+
+/**
+ * Stores the progress of a transfer in {@link BluetoothShare#CURRENT_BYTES} on its own thread,
+ * so that the provider calls do not delay the OBEX packets.
+ *
+ * <p>Progress reported while an update is pending replaces it, so at most one update is queued
+ * however fast the transfer reports.
+ *
+ * @hide
+ */
+/* package */ class BluetoothOppProgressReporter {
+    private static final String TAG = "BtOppProgressReporter";
+
+    private final Context mContext;
+    private final Uri mContentUri;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private long mPendingBytes = -1;
+
+    BluetoothOppProgressReporter(Context context, Uri contentUri) {
+        mContext = context;
+        mContentUri = contentUri;
+        mThread = new HandlerThread("BtOpp Progress");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Queues the update of the transferred bytes to {@code currentBytes}.
+     */
+    void report(long currentBytes) {
+        synchronized (mLock) {
+            boolean pending = mPendingBytes >= 0;
+            mPendingBytes = currentBytes;
+            if (pending) {
+                return;
+            }
+        }
+        mHandler.post(this::storeProgress);
+    }
+
+    /**
+     * Stores the pending progress and stops the thread.
+     */
+    void finish() {
+        mThread.quitSafely();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while storing the progress");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void storeProgress() {
+        long currentBytes;
+        synchronized (mLock) {
+            currentBytes = mPendingBytes;
+            mPendingBytes = -1;
+        }
+        ContentValues updateValues = new ContentValues();
+        updateValues.put(BluetoothShare.CURRENT_BYTES, currentBytes);
+        BluetoothMethodProxy.getInstance().contentResolverUpdate(mContext.getContentResolver(),
+                mContentUri, updateValues, null, null);
+    }
+}
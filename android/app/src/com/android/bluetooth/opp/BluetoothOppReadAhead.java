@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.opp;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads the file of an outbound transfer ahead of the OBEX put.
+ *
+ * <p>A reader thread fills a ring of packet-sized buffers while the client thread sends them, so
+ * that slow storage or content providers do not stall the link between two packets.
+ *
+ * @hide
+ */
+/* package */ class BluetoothOppReadAhead {
+    private static final String TAG = "BtOppReadAhead";
+    private static final boolean V = Constants.VERBOSE;
+
+    @VisibleForTesting
+    static final int PACKET_COUNT = 4;
+
+    // How long stop() waits for a read in progress.
+    private static final long STOP_TIMEOUT_MS = 1000;
+
+    /**
+     * A buffer of the ring, holding {@link #mLength} bytes of the file once read.
+     */
+    static class Packet {
+        final byte[] mData;
+        int mLength;
+
+        Packet(int size) {
+            mData = new byte[size];
+        }
+    }
+
+    // Queued once the reader thread is done, whether the file is read or not.
+    private static final Packet END = new Packet(0);
+
+    private final InputStream mInputStream;
+    private final long mLength;
+    private final BlockingQueue<Packet> mFree = new ArrayBlockingQueue<>(PACKET_COUNT);
+    // One more slot for END, so that the reader thread never blocks on it.
+    private final BlockingQueue<Packet> mFilled = new ArrayBlockingQueue<>(PACKET_COUNT + 1);
+    private final Thread mThread;
+    private volatile IOException mError;
+
+    /**
+     * @param inputStream the file to read
+     * @param length the number of bytes to read from {@code inputStream}
+     * @param packetSize the size of the packets, which are only short at the end of the file
+     */
+    BluetoothOppReadAhead(InputStream inputStream, long length, int packetSize) {
+        mInputStream = inputStream;
+        mLength = length;
+        for (int i = 0; i < PACKET_COUNT; i++) {
+            mFree.add(new Packet(packetSize));
+        }
+        mThread = new Thread(this::readAhead, "BtOpp ReadAhead");
+    }
+
+    void start() {
+        mThread.start();
+    }
+
+    /**
+     * Stops the reader thread, and waits for it to finish its current read. Must be called before
+     * the input stream is closed.
+     *
+     * <p>A read that cannot be interrupted is only waited for {@link #STOP_TIMEOUT_MS}, after
+     * which closing the stream is what ends it. An interrupt of the calling thread is kept for
+     * later.
+     *
+     * @return whether the reader thread is stopped
+     */
+    boolean stop() {
+        mThread.interrupt();
+        boolean interrupted = false;
+        long deadline = SystemClock.uptimeMillis() + STOP_TIMEOUT_MS;
+        long remaining = STOP_TIMEOUT_MS;
+        while (mThread.isAlive() && remaining > 0) {
+            try {
+                mThread.join(remaining);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+            remaining = deadline - SystemClock.uptimeMillis();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (mThread.isAlive()) {
+            Log.w(TAG, "Read ahead still reading after " + STOP_TIMEOUT_MS + " ms");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the next packet of the file, to be given back with {@link #recycle} once sent, or
+     * null if the calling thread is interrupted while waiting.
+     *
+     * @throws IOException if the file could not be read, or is shorter than its length
+     */
+    Packet take() throws IOException {
+        Packet packet;
+        try {
+            packet = mFilled.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        if (packet == END) {
+            // Keep reporting the end to later calls.
+            mFilled.add(END);
+            if (mError != null) {
+                throw mError;
+            }
+            throw new EOFException("End of file before " + mLength + " bytes");
+        }
+        return packet;
+    }
+
+    void recycle(Packet packet) {
+        mFree.add(packet);
+    }
+
+    private void readAhead() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        long remaining = mLength;
+        try {
+            while (remaining > 0) {
+                Packet packet = mFree.take();
+                packet.mLength = BluetoothOppObexClientSession.readFully(mInputStream,
+                        packet.mData, (int) Math.min(packet.mData.length, remaining));
+                if (packet.mLength <= 0) {
+                    break;
+                }
+                remaining -= packet.mLength;
+                mFilled.add(packet);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error when reading file: " + e);
+            mError = e;
+        } catch (InterruptedException e) {
+            if (V) {
+                Log.v(TAG, "Read ahead stopped with " + remaining + " bytes left");
+            }
+        }
+        mFilled.add(END);
+    }
+}
@@ -65,6 +65,8 @@ import com.android.vcard.VCardPhoneNumberTranslationCallback;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 public class BluetoothPbapVcardManager {
     private static final String TAG = "BluetoothPbapVcardManager";
@@ -780,14 +782,8 @@ public class BluetoothPbapVcardManager {
                     Log.v(TAG, "vCard from composer: " + vcard);
                 }
 
-                vcard = vcardfilter.apply(vcard, vcardType21);
-                vcard = stripTelephoneNumber(vcard);
-
-                if (V) {
-                    Log.v(TAG, "vCard after cleanup: " + vcard);
-                }
-
-                if (!buffer.writeVCard(vcard)) {
+                if (!buffer.writeVCard(vcard, vcardfilter, vcardType21,
+                        /* stripTelephoneNumber= */ true)) {
                     // onEntryCreate() already emits error.
                     return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
                 }
@@ -895,14 +891,8 @@ public class BluetoothPbapVcardManager {
                 Log.e(TAG, "vcard selector check pass");
 
                 if (needSendBody == NEED_SEND_BODY) {
-                    vcard = vcardfilter.apply(vcard, vcardType21);
-                    vcard = stripTelephoneNumber(vcard);
-
-                    if (V) {
-                        Log.v(TAG, "vCard after cleanup: " + vcard);
-                    }
-
-                    if (!buffer.writeVCard(vcard)) {
+                    if (!buffer.writeVCard(vcard, vcardfilter, vcardType21,
+                            /* stripTelephoneNumber= */ true)) {
                         // onEntryCreate() already emits error.
                         return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
                     }
@@ -974,13 +964,12 @@ public class BluetoothPbapVcardManager {
                             Log.i(TAG, "Call Log may have been deleted during operation");
                             continue;
                         }
-                        vcard = vcardfilter.apply(vcard, vcardType21);
-
                         if (V) {
                             Log.v(TAG, "Vcard Entry:");
                             Log.v(TAG, vcard);
                         }
-                        buffer.writeVCard(vcard);
+                        buffer.writeVCard(vcard, vcardfilter, vcardType21,
+                                /* stripTelephoneNumber= */ false);
                     }
                 } else {
                     if (vcard == null) {
@@ -1015,37 +1004,13 @@ public class BluetoothPbapVcardManager {
     }
 
     public String stripTelephoneNumber(String vCard) {
-        String separator = System.getProperty("line.separator");
-        String[] attr = vCard.split(separator);
-        String stripedVCard = "";
-        for (int i = 0; i < attr.length; i++) {
-            if (attr[i].startsWith("TEL")) {
-                String[] vTagAndTel = attr[i].split(":", 2);
-                int telLenBefore = vTagAndTel[1].length();
-                // Remove '-', '(', ')' or ' ' from TEL number
-                vTagAndTel[1] = vTagAndTel[1].replace("-", "")
-                                             .replace("(", "")
-                                             .replace(")", "")
-                                             .replace(" ", "");
-                if (vTagAndTel[1].length() < telLenBefore) {
-                    if (V) {
-                        Log.v(TAG, "Fixing vCard TEL to " + vTagAndTel[1]);
-                    }
-                    attr[i] = new StringBuilder().append(vTagAndTel[0]).append(":")
-                                                 .append(vTagAndTel[1]).toString();
-                }
-            }
-        }
-
-        for (int i = 0; i < attr.length; i++) {
-            if (!attr[i].isEmpty()) {
-                stripedVCard = stripedVCard.concat(attr[i] + separator);
-            }
-        }
+        StringBuilder stripedVCard = new StringBuilder(vCard.length());
+        new VCardFilter(null).appendTo(stripedVCard, vCard, false,
+                /* stripTelephoneNumber= */ true);
         if (V) {
             Log.v(TAG, "vCard with stripped telephone no.: " + stripedVCard);
         }
-        return stripedVCard;
+        return stripedVCard.toString();
     }
 
     public static class VCardFilter {
@@ -1078,8 +1043,15 @@ public class BluetoothPbapVcardManager {
         }
 
         private static final String SEPARATOR = System.getProperty("line.separator");
+        private static final Map<String, FilterBit> FILTER_BITS = new HashMap<>();
         private final byte[] mFilter;
 
+        static {
+            for (FilterBit bit : FilterBit.values()) {
+                FILTER_BITS.put(bit.prop, bit);
+            }
+        }
+
         //This function returns true if the attributes needs to be included in the filtered vcard.
         private boolean isFilteredIn(FilterBit bit, boolean vCardType21) {
             final int offset = (bit.pos / 8) + 1;
@@ -1108,42 +1080,82 @@ public class BluetoothPbapVcardManager {
             if (mFilter == null) {
                 return vCard;
             }
-            String[] lines = vCard.split(SEPARATOR);
-            StringBuilder filteredVCard = new StringBuilder();
-            boolean filteredIn = false;
-
-            for (String line : lines) {
-                // Check whether the current property is changing (ignoring multi-line properties)
-                // and determine if the current property is filtered in.
-                if (!Character.isWhitespace(line.charAt(0)) && !line.startsWith("=")) {
-                    String currentProp = line.split("[;:]")[0];
-                    filteredIn = true;
-
-                    for (FilterBit bit : FilterBit.values()) {
-                        if (bit.prop.equals(currentProp)) {
-                            filteredIn = isFilteredIn(bit, vCardType21);
-                            break;
-                        }
-                    }
+            StringBuilder filteredVCard = new StringBuilder(vCard.length());
+            appendTo(filteredVCard, vCard, vCardType21, /* stripTelephoneNumber= */ false);
+            return filteredVCard.toString();
+        }
 
-                    // Since PBAP does not have filter bits for IM and SIP,
-                    // exclude them by default. Easiest way is to exclude all
-                    // X- fields, except date time....
-                    if (currentProp.startsWith("X-")) {
-                        filteredIn = false;
-                        if (currentProp.equals("X-IRMC-CALL-DATETIME")) {
-                            filteredIn = true;
+        /**
+         * Appends the lines of {@code vCard} that are filtered in to {@code out}, in a single pass
+         * over {@code vCard}. Empty lines are dropped. If {@code stripTelephoneNumber} is true,
+         * '-', '(', ')' and ' ' are removed from the TEL numbers.
+         */
+        void appendTo(StringBuilder out, String vCard, boolean vCardType21,
+                boolean stripTelephoneNumber) {
+            boolean filteredIn = mFilter == null;
+            int length = vCard.length();
+            int start = 0;
+            while (start < length) {
+                int end = vCard.indexOf(SEPARATOR, start);
+                if (end < 0) {
+                    end = length;
+                }
+                if (end > start) {
+                    // Check whether the current property is changing (ignoring multi-line
+                    // properties) and determine if the current property is filtered in.
+                    char first = vCard.charAt(start);
+                    if (mFilter != null && !Character.isWhitespace(first) && first != '=') {
+                        filteredIn = isFilteredIn(getPropertyName(vCard, start, end), vCardType21);
+                    }
+                    if (filteredIn) {
+                        if (stripTelephoneNumber && vCard.startsWith("TEL", start)) {
+                            appendStrippedTelephoneNumber(out, vCard, start, end);
+                        } else {
+                            out.append(vCard, start, end);
                         }
+                        out.append(SEPARATOR);
                     }
                 }
+                start = end + SEPARATOR.length();
+            }
+        }
 
-                // Build filtered vCard
-                if (filteredIn) {
-                    filteredVCard.append(line + SEPARATOR);
+        private boolean isFilteredIn(String prop, boolean vCardType21) {
+            // Since PBAP does not have filter bits for IM and SIP,
+            // exclude them by default. Easiest way is to exclude all
+            // X- fields, except date time....
+            if (prop.startsWith("X-")) {
+                return prop.equals(FilterBit.DATETIME.prop);
+            }
+            FilterBit bit = FILTER_BITS.get(prop);
+            return bit == null || isFilteredIn(bit, vCardType21);
+        }
+
+        private static String getPropertyName(String vCard, int start, int end) {
+            for (int i = start; i < end; i++) {
+                char c = vCard.charAt(i);
+                if (c == ';' || c == ':') {
+                    return vCard.substring(start, i);
                 }
             }
+            return vCard.substring(start, end);
+        }
 
-            return filteredVCard.toString();
+        private static void appendStrippedTelephoneNumber(StringBuilder out, String vCard,
+                int start, int end) {
+            int colon = vCard.indexOf(':', start);
+            if (colon < 0 || colon >= end) {
+                out.append(vCard, start, end);
+                return;
+            }
+            out.append(vCard, start, colon + 1);
+            for (int i = colon + 1; i < end; i++) {
+                char c = vCard.charAt(i);
+                // Remove '-', '(', ')' or ' ' from TEL number
+                if (c != '-' && c != '(' && c != ')' && c != ' ') {
+                    out.append(c);
+                }
+            }
         }
     }
 
@@ -22,18 +22,32 @@ import com.android.obex.Operation;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
 
 /**
  * Handler to emit vCards to PCE.
  */
 public class HandlerForStringBuffer {
     private static final String TAG = "HandlerForStringBuffer";
+    private static final int BUFFER_SIZE = 4096;
 
     private final Operation mOperation;
     private final String mOwnerVCard;
 
     private OutputStream mOutputStream;
 
+    // Reused for every vCard written with a filter.
+    private final StringBuilder mVCardBuilder = new StringBuilder(BUFFER_SIZE);
+    private final ByteBuffer mBytes = ByteBuffer.allocate(BUFFER_SIZE);
+    // Encodes like String#getBytes(), which writeVCard(String) uses.
+    private final CharsetEncoder mEncoder = Charset.defaultCharset().newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
     public HandlerForStringBuffer(Operation op, String ownerVCard) {
         mOperation = op;
         mOwnerVCard = ownerVCard;
@@ -67,6 +81,41 @@ public class HandlerForStringBuffer {
         return false;
     }
 
+    /**
+     * Writes the lines of {@code vCard} filtered in by {@code filter}, optionally stripping the
+     * TEL numbers. The vCard is filtered in a single pass and encoded through reused buffers.
+     */
+    public boolean writeVCard(String vCard, BluetoothPbapVcardManager.VCardFilter filter,
+            boolean vCardType21, boolean stripTelephoneNumber) {
+        if (vCard == null) {
+            return false;
+        }
+        mVCardBuilder.setLength(0);
+        filter.appendTo(mVCardBuilder, vCard, vCardType21, stripTelephoneNumber);
+        try {
+            CharBuffer chars = CharBuffer.wrap(mVCardBuilder);
+            mEncoder.reset();
+            while (mEncoder.encode(chars, mBytes, true).isOverflow()) {
+                drainBytes();
+            }
+            while (mEncoder.flush(mBytes).isOverflow()) {
+                drainBytes();
+            }
+            drainBytes();
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "write failed", e);
+        }
+        return false;
+    }
+
+    private void drainBytes() throws IOException {
+        if (mBytes.position() > 0) {
+            mOutputStream.write(mBytes.array(), 0, mBytes.position());
+            mBytes.clear();
+        }
+    }
+
     public void terminate() {
         boolean result = BluetoothPbapObexServer.closeStream(mOutputStream, mOperation);
         if (BluetoothPbapService.VERBOSE) {
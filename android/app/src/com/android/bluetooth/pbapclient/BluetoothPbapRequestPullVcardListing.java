@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pbapclient;
+
+import android.util.Log;
+
+import com.android.bluetooth.ObexAppParameters;
+import com.android.obex.HeaderSet;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+final class BluetoothPbapRequestPullVcardListing extends BluetoothPbapRequest {
+
+    private static final boolean VDBG = Utils.VDBG;
+
+    private static final String TAG = "BtPbapReqPullVcardListing";
+
+    private static final String TYPE = "x-bt/vcard-listing";
+
+    private static final String PHONEBOOK_SUFFIX = ".vcf";
+
+    /**
+     * An entry of the listing, in the indexed order of the folder.
+     */
+    static final class Card {
+        final String mHandle;
+        final String mName;
+
+        Card(String handle, String name) {
+            mHandle = handle;
+            mName = name != null ? name : "";
+        }
+    }
+
+    private final ArrayList<Card> mCards = new ArrayList<>();
+
+    private byte[] mDatabaseIdentifier;
+
+    private byte[] mPrimaryVersionCounter;
+
+    private byte[] mSecondaryVersionCounter;
+
+    /**
+     * @param pbName the phonebook object whose folder is listed, e.g. telecom/pb.vcf
+     */
+    BluetoothPbapRequestPullVcardListing(String pbName) {
+        String folder = pbName.endsWith(PHONEBOOK_SUFFIX)
+                ? pbName.substring(0, pbName.length() - PHONEBOOK_SUFFIX.length()) : pbName;
+        mHeaderSet.setHeader(HeaderSet.NAME, folder);
+
+        mHeaderSet.setHeader(HeaderSet.TYPE, TYPE);
+
+        ObexAppParameters oap = new ObexAppParameters();
+        // Indexed order, which is also the order of the phonebook object, so that the entries
+        // of the listing match the ListStartOffset of a phonebook pull. See PBAP v1.2.3,
+        // Sec. 5.3.4.1.
+        oap.add(OAP_TAGID_ORDER, (byte) 0x00);
+        oap.add(OAP_TAGID_MAX_LIST_COUNT, (short) 65535);
+        oap.addToHeaderSet(mHeaderSet);
+    }
+
+    @Override
+    protected void readResponse(InputStream stream) throws IOException {
+        if (VDBG) Log.v(TAG, "readResponse");
+
+        try {
+            XmlPullParser xpp = XmlPullParserFactory.newInstance().newPullParser();
+            xpp.setInput(stream, "utf-8");
+
+            int event = xpp.getEventType();
+            while (event != XmlPullParser.END_DOCUMENT) {
+                if (event == XmlPullParser.START_TAG && xpp.getName().equals("card")) {
+                    String handle = xpp.getAttributeValue(null, "handle");
+                    if (handle == null) {
+                        throw new IOException("Listing entry without handle");
+                    }
+                    mCards.add(new Card(handle, xpp.getAttributeValue(null, "name")));
+                }
+                event = xpp.next();
+            }
+        } catch (XmlPullParserException e) {
+            // A partial listing would make entries look deleted.
+            throw new IOException("Invalid vCard listing", e);
+        }
+        if (VDBG) {
+            Log.d(TAG, "Read " + mCards.size() + " entries.");
+        }
+    }
+
+    @Override
+    protected void readResponseHeaders(HeaderSet headerset) {
+        if (VDBG) Log.v(TAG, "readResponseHeaders");
+
+        ObexAppParameters oap = ObexAppParameters.fromHeaderSet(headerset);
+
+        mDatabaseIdentifier = oap.getByteArray(OAP_TAGID_DATABASE_IDENTIFIER);
+        mPrimaryVersionCounter = oap.getByteArray(OAP_TAGID_PRIMARY_VERSION_COUNTER);
+        mSecondaryVersionCounter = oap.getByteArray(OAP_TAGID_SECONDARY_VERSION_COUNTER);
+    }
+
+    public List<Card> getCards() {
+        return mCards;
+    }
+
+    /**
+     * Returns the database identifier of the PSE, or null if it does not support it.
+     */
+    public byte[] getDatabaseIdentifier() {
+        return mDatabaseIdentifier;
+    }
+
+    /**
+     * Returns the primary version counter of the folder, or null if the PSE does not support
+     * folder version counters.
+     */
+    public byte[] getPrimaryVersionCounter() {
+        return mPrimaryVersionCounter;
+    }
+
+    /**
+     * Returns the secondary version counter of the folder, or null if the PSE does not support
+     * folder version counters.
+     */
+    public byte[] getSecondaryVersionCounter() {
+        return mSecondaryVersionCounter;
+    }
+}
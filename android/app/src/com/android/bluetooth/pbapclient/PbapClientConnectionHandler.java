@@ -22,9 +22,12 @@ import android.bluetooth.BluetoothSocket;
 import android.bluetooth.BluetoothUuid;
 import android.bluetooth.SdpPseRecord;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.CallLog;
 import android.provider.CallLog.Calls;
 import android.util.Log;
@@ -32,6 +35,7 @@ import android.util.Log;
 import com.android.bluetooth.BluetoothObexTransport;
 import com.android.bluetooth.ObexAppParameters;
 import com.android.bluetooth.R;
+import com.android.bluetooth.pbapclient.BluetoothPbapRequestPullVcardListing.Card;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.obex.ClientSession;
 import com.android.obex.HeaderSet;
@@ -39,8 +43,11 @@ import com.android.obex.ResponseCodes;
 import com.android.vcard.VCardEntry;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 
 /* Bluetooth/pbapclient/PbapClientConnectionHandler is responsible
  * for connecting, disconnecting and downloading contacts from the
@@ -50,8 +57,14 @@ import java.util.HashMap;
 class PbapClientConnectionHandler extends Handler {
     // Tradeoff: larger BATCH_SIZE leads to faster download rates, while smaller
     // BATCH_SIZE is less prone to IO Exceptions if there is a download in
-    // progress when Bluetooth stack is torn down.
-    private static final int DEFAULT_BATCH_SIZE = 250;
+    // progress when Bluetooth stack is torn down. The first batch is small so that contacts show
+    // up early, and the next ones are sized to take about TARGET_BATCH_DURATION_MS to pull.
+    @VisibleForTesting
+    static final int MIN_BATCH_SIZE = 50;
+    @VisibleForTesting
+    static final int MAX_BATCH_SIZE = 1000;
+    @VisibleForTesting
+    static final long TARGET_BATCH_DURATION_MS = 2000;
 
     // Upper limit on the indices of the vcf cards/entries, inclusive,
     // i.e., valid indices are [0, 1, ... , UPPER_LIMIT]
@@ -86,6 +99,8 @@ class PbapClientConnectionHandler extends Handler {
     };
 
     private static final int PBAP_FEATURE_DEFAULT_IMAGE_FORMAT = 0x00000200;
+    private static final int PBAP_FEATURE_FOLDER_VERSION_COUNTERS = 0x00000008;
+    private static final int PBAP_FEATURE_DATABASE_IDENTIFIER = 0x00000004;
     private static final int PBAP_FEATURE_BROWSING = 0x00000002;
     private static final int PBAP_FEATURE_DOWNLOADING = 0x00000001;
 
@@ -137,6 +152,10 @@ class PbapClientConnectionHandler extends Handler {
     private BluetoothPbapObexAuthenticator mAuth = null;
     private final PbapClientStateMachine mPbapClientStateMachine;
     private boolean mAccountCreated;
+    // If true, the account is kept across connections and only the changes of the phonebook
+    // folders are synced to it.
+    private final boolean mIncrementalSync;
+    private int mBatchSize;
 
     /**
      * Constructs PCEConnectionHandler object
@@ -152,6 +171,8 @@ class PbapClientConnectionHandler extends Handler {
         mAccountManager = AccountManager.get(mPbapClientStateMachine.getContext());
         mAccount =
                 new Account(mDevice.getAddress(), mContext.getString(R.string.pbap_account_type));
+        mIncrementalSync =
+                mContext.getResources().getBoolean(R.bool.pbap_client_incremental_sync);
     }
 
     public static class Builder {
@@ -240,7 +261,9 @@ class PbapClientConnectionHandler extends Handler {
                 if (DBG) {
                     Log.d(TAG, "Completing Disconnect");
                 }
-                removeAccount();
+                if (!mIncrementalSync) {
+                    removeAccount();
+                }
                 removeCallLog();
 
                 mPbapClientStateMachine.sendMessage(PbapClientStateMachine.MSG_CONNECTION_CLOSED);
@@ -248,18 +271,24 @@ class PbapClientConnectionHandler extends Handler {
 
             case MSG_DOWNLOAD:
                 mAccountCreated = addAccount();
+                if (mAccountCreated) {
+                    PbapClientSyncState.removeAll(mContext, mAccount);
+                } else if (mIncrementalSync && hasAccount()) {
+                    // Kept from the last connection, with the contacts to sync.
+                    mAccountCreated = true;
+                }
                 if (!mAccountCreated) {
                     Log.e(TAG, "Account creation failed.");
                     return;
                 }
                 if (isRepositorySupported(SUPPORTED_REPOSITORIES_FAVORITES)) {
-                    downloadContacts(FAV_PATH);
+                    updateContacts(FAV_PATH);
                 }
                 if (isRepositorySupported(SUPPORTED_REPOSITORIES_LOCALPHONEBOOK)) {
-                    downloadContacts(PB_PATH);
+                    updateContacts(PB_PATH);
                 }
                 if (isRepositorySupported(SUPPORTED_REPOSITORIES_SIMCARD)) {
-                    downloadContacts(SIM_PB_PATH);
+                    updateContacts(SIM_PB_PATH);
                 }
 
                 HashMap<String, Integer> callCounter = new HashMap<>();
@@ -340,8 +369,14 @@ class PbapClientConnectionHandler extends Handler {
                 ObexAppParameters oap = new ObexAppParameters();
 
                 if (mPseRec.getProfileVersion() >= PBAP_V1_2) {
+                    int supportedFeatures = PBAP_SUPPORTED_FEATURE;
+                    if (mIncrementalSync) {
+                        supportedFeatures |= PBAP_FEATURE_BROWSING
+                                | PBAP_FEATURE_DATABASE_IDENTIFIER
+                                | PBAP_FEATURE_FOLDER_VERSION_COUNTERS;
+                    }
                     oap.add(BluetoothPbapRequest.OAP_TAGID_PBAP_SUPPORTED_FEATURES,
-                            PBAP_SUPPORTED_FEATURE);
+                            supportedFeatures);
                 }
 
                 oap.addToHeaderSet(connectionRequest);
@@ -385,60 +420,225 @@ class PbapClientConnectionHandler extends Handler {
         }
     }
 
+    private void updateContacts(String path) {
+        if (mIncrementalSync) {
+            syncContacts(path);
+        } else {
+            downloadContacts(path);
+        }
+    }
+
     @VisibleForTesting
     void downloadContacts(String path) {
+        long syncStart = SystemClock.elapsedRealtime();
+        PhonebookPullRequest processor =
+                new PhonebookPullRequest(mPbapClientStateMachine.getContext(),
+                        mAccount);
+        // The contacts are inserted while the next batch is pulled.
+        PhonebookInsertPipeline pipeline = new PhonebookInsertPipeline(processor);
+        pipeline.start();
+        try {
+            pullPhonebook(path, pipeline);
+        } catch (IOException e) {
+            Log.w(TAG, "Download contacts failure" + e.toString());
+        } finally {
+            pipeline.finish();
+        }
+        logSyncTime(path, syncStart, pipeline);
+    }
+
+    /**
+     * Syncs the contacts of the account to the phonebook object {@code path}.
+     *
+     * <p>If the folder did not change since the last sync, according to its version counters,
+     * nothing is pulled. If it only has vCards added, removed or renamed, only these are pulled,
+     * after the vCard listing. Otherwise, the contacts of {@code path} are replaced.
+     */
+    @VisibleForTesting
+    void syncContacts(String path) {
+        long syncStart = SystemClock.elapsedRealtime();
+        PhonebookPullRequest processor =
+                new PhonebookPullRequest(mPbapClientStateMachine.getContext(),
+                        mAccount);
+        processor.path = path;
+        processor.setTagged(true);
+        PhonebookInsertPipeline pipeline = new PhonebookInsertPipeline(processor);
+        BluetoothPbapRequestPullVcardListing listing =
+                new BluetoothPbapRequestPullVcardListing(path);
         try {
-            PhonebookPullRequest processor =
-                    new PhonebookPullRequest(mPbapClientStateMachine.getContext(),
-                            mAccount);
-
-            // Download contacts in batches of size DEFAULT_BATCH_SIZE
-            BluetoothPbapRequestPullPhoneBookSize requestPbSize =
-                    new BluetoothPbapRequestPullPhoneBookSize(path,
-                            PBAP_REQUESTED_FIELDS);
-            requestPbSize.execute(mObexSession);
-
-            int numberOfContactsRemaining = requestPbSize.getSize();
-            int startOffset = 0;
-            if (PB_PATH.equals(path)) {
-                // PBAP v1.2.3, Sec 3.1.5. The first contact in pb is owner card 0.vcf, which we
-                // do not want to download. The other phonebook objects (e.g., fav) don't have an
-                // owner card, so they don't need an offset.
-                startOffset = 1;
-                // "-1" because Owner Card 0.vcf is also included in /pb, but not in /fav.
-                numberOfContactsRemaining -= 1;
+            listing.execute(mObexSession);
+        } catch (IOException e) {
+            Log.w(TAG, "vCard listing failure" + e.toString());
+        }
+        boolean complete = false;
+        PbapClientSyncState newState = null;
+        try {
+            if (!listing.isSuccess()) {
+                Log.w(TAG, "No vCard listing of " + path + ", downloading all its contacts");
+                PbapClientSyncState.remove(mContext, mAccount, path);
+                processor.deleteLocalCards();
+                pipeline.start();
+                pullPhonebook(path, pipeline);
+                complete = true;
+                return;
             }
+            List<Card> cards = listing.getCards();
 
-            while ((numberOfContactsRemaining > 0) && (startOffset <= UPPER_LIMIT)) {
-                int numberOfContactsToDownload =
-                        Math.min(Math.min(DEFAULT_BATCH_SIZE, numberOfContactsRemaining),
-                        UPPER_LIMIT - startOffset + 1);
-                BluetoothPbapRequestPullPhoneBook request =
-                        new BluetoothPbapRequestPullPhoneBook(path, mAccount,
-                                PBAP_REQUESTED_FIELDS, VCARD_TYPE_30,
-                                numberOfContactsToDownload, startOffset);
-                request.execute(mObexSession);
-                ArrayList<VCardEntry> vcards = request.getList();
-                if (path == FAV_PATH) {
-                    // mark each vcard as a favorite
-                    for (VCardEntry v : vcards) {
-                        v.setStarred(true);
-                    }
-                }
-                processor.setResults(vcards);
-                processor.onPullComplete();
+            newState = PbapClientSyncState.fromListing(listing);
+            PbapClientSyncState oldState = PbapClientSyncState.load(mContext, mAccount, path);
+            if (newState != null && oldState != null && oldState.isUnchanged(newState)) {
+                complete = true;
+                return;
+            }
 
-                startOffset += numberOfContactsToDownload;
-                numberOfContactsRemaining -= numberOfContactsToDownload;
+            // See pullPhonebook() for the owner card.
+            int firstIndex = PB_PATH.equals(path) ? 1 : 0;
+            PhonebookDelta delta = null;
+            if (newState != null && oldState != null) {
+                delta = new PhonebookDelta(processor.queryLocalCards(), cards, firstIndex);
+                if (!oldState.hasOnlyPrimaryChanges(newState, delta.getChangeCount())) {
+                    delta = null;
+                }
+            }
+            // The state no longer describes the contacts once they are modified.
+            PbapClientSyncState.remove(mContext, mAccount, path);
+            List<Integer> indices = new ArrayList<>();
+            if (delta != null) {
+                if (DBG) {
+                    Log.d(TAG, "Delta sync of " + path + ": "
+                            + delta.getRemovedRawContactIds().size() + " removed, "
+                            + delta.getAddedIndices().size() + " added");
+                }
+                processor.deleteRawContacts(delta.getRemovedRawContactIds());
+                indices = delta.getAddedIndices();
+            } else {
+                processor.deleteLocalCards();
+                for (int i = firstIndex; i < Math.min(cards.size(), UPPER_LIMIT + 1); i++) {
+                    indices.add(i);
+                }
             }
-            if ((startOffset > UPPER_LIMIT) && (numberOfContactsRemaining > 0)) {
-                Log.w(TAG, "Download contacts incomplete, index exceeded upper limit.");
+
+            pipeline.start();
+            mBatchSize = MIN_BATCH_SIZE;
+            // Pull the contiguous runs of indices, as phonebook pulls are by offset.
+            for (int start = 0, end = 1; start < indices.size(); start = end++) {
+                while (end < indices.size() && indices.get(end) == indices.get(end - 1) + 1) {
+                    end++;
+                }
+                pullContacts(path, pipeline, indices.get(start), end - start, cards);
             }
+            complete = true;
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.w(TAG, "Sync contacts failure", e);
         } catch (IOException e) {
-            Log.w(TAG, "Download contacts failure" + e.toString());
+            Log.w(TAG, "Sync contacts failure" + e.toString());
+        } finally {
+            // Only saved once every pulled contact is inserted.
+            if (pipeline.finish() && complete && newState != null) {
+                newState.save(mContext, mAccount, path);
+            }
+            logSyncTime(path, syncStart, pipeline);
+        }
+    }
+
+    /**
+     * Pulls all the vCards of {@code path}, but the owner card, and submits them to
+     * {@code pipeline}.
+     */
+    private void pullPhonebook(String path, PhonebookInsertPipeline pipeline)
+            throws IOException {
+        // Download contacts in batches of size between MIN_BATCH_SIZE and MAX_BATCH_SIZE
+        BluetoothPbapRequestPullPhoneBookSize requestPbSize =
+                new BluetoothPbapRequestPullPhoneBookSize(path,
+                        PBAP_REQUESTED_FIELDS);
+        requestPbSize.execute(mObexSession);
+
+        int numberOfContactsRemaining = requestPbSize.getSize();
+        int startOffset = 0;
+        if (PB_PATH.equals(path)) {
+            // PBAP v1.2.3, Sec 3.1.5. The first contact in pb is owner card 0.vcf, which we
+            // do not want to download. The other phonebook objects (e.g., fav) don't have an
+            // owner card, so they don't need an offset.
+            startOffset = 1;
+            // "-1" because Owner Card 0.vcf is also included in /pb, but not in /fav.
+            numberOfContactsRemaining -= 1;
+        }
+
+        int numberOfContactsToDownload =
+                Math.min(numberOfContactsRemaining, UPPER_LIMIT - startOffset + 1);
+        mBatchSize = MIN_BATCH_SIZE;
+        pullContacts(path, pipeline, startOffset, numberOfContactsToDownload, null);
+        if (numberOfContactsToDownload < numberOfContactsRemaining) {
+            Log.w(TAG, "Download contacts incomplete, index exceeded upper limit.");
+        }
+    }
+
+    /**
+     * Pulls the {@code count} vCards of {@code path} from {@code startOffset}, in batches of
+     * adaptive size, and submits them to {@code pipeline}.
+     *
+     * @param cards the listing of {@code path} to tag the contacts with, or null
+     */
+    private void pullContacts(String path, PhonebookInsertPipeline pipeline, int startOffset,
+            int count, List<Card> cards) throws IOException {
+        int pulled = 0;
+        while (pulled < count) {
+            int numberOfContactsToDownload = Math.min(mBatchSize, count - pulled);
+            int offset = startOffset + pulled;
+            long pullStart = SystemClock.elapsedRealtime();
+            BluetoothPbapRequestPullPhoneBook request =
+                    new BluetoothPbapRequestPullPhoneBook(path, mAccount,
+                            PBAP_REQUESTED_FIELDS, VCARD_TYPE_30,
+                            numberOfContactsToDownload, offset);
+            request.execute(mObexSession);
+            ArrayList<VCardEntry> vcards = request.getList();
+            if (path == FAV_PATH) {
+                // mark each vcard as a favorite
+                for (VCardEntry v : vcards) {
+                    v.setStarred(true);
+                }
+            }
+            List<Card> batchCards = null;
+            if (cards != null) {
+                if (vcards.size() != numberOfContactsToDownload) {
+                    // The vCards could not be matched with their handles.
+                    throw new IOException("Pulled " + vcards.size() + " contacts instead of "
+                            + numberOfContactsToDownload);
+                }
+                batchCards = cards.subList(offset, offset + numberOfContactsToDownload);
+            }
+            if (!pipeline.submit(vcards, batchCards)) {
+                throw new InterruptedIOException("Interrupted while inserting contacts");
+            }
+            mBatchSize = getNextBatchSize(numberOfContactsToDownload,
+                    SystemClock.elapsedRealtime() - pullStart);
+            pulled += numberOfContactsToDownload;
         }
     }
 
+    private static void logSyncTime(String path, long syncStart,
+            PhonebookInsertPipeline pipeline) {
+        long firstInsertTime = pipeline.getFirstInsertTime();
+        Log.i(TAG, "Synced " + pipeline.getInsertedCount() + " contacts from " + path + " in "
+                + (SystemClock.elapsedRealtime() - syncStart) + " ms, first contacts inserted "
+                + (firstInsertTime != 0 ? "after " + (firstInsertTime - syncStart) + " ms"
+                        : "never"));
+    }
+
+    /**
+     * Returns the size of the next batch, scaled so that pulling it takes about
+     * {@link #TARGET_BATCH_DURATION_MS} at the throughput of the last one. The size at most
+     * doubles from one batch to the next, so that one fast batch does not make the next one long.
+     */
+    @VisibleForTesting
+    static int getNextBatchSize(int lastBatchSize, long lastBatchDurationMs) {
+        long size = 2L * lastBatchSize;
+        if (lastBatchDurationMs > 0) {
+            size = Math.min(size, lastBatchSize * TARGET_BATCH_DURATION_MS / lastBatchDurationMs);
+        }
+        return (int) Math.max(MIN_BATCH_SIZE, Math.min(MAX_BATCH_SIZE, size));
+    }
+
     @VisibleForTesting
     void downloadCallLog(String path, HashMap<String, Integer> callCounter) {
         try {
@@ -466,8 +666,13 @@ class PbapClientConnectionHandler extends Handler {
         return false;
     }
 
+    private boolean hasAccount() {
+        return Arrays.asList(mAccountManager.getAccountsByType(mAccount.type)).contains(mAccount);
+    }
+
     @VisibleForTesting
     void removeAccount() {
+        PbapClientSyncState.removeAll(mContext, mAccount);
         if (mAccountManager.removeAccountExplicitly(mAccount)) {
             if (DBG) {
                 Log.d(TAG, "Removed account " + mAccount);
@@ -78,6 +78,8 @@ public class PbapClientService extends ProfileService {
     @VisibleForTesting
     PbapBroadcastReceiver mPbapBroadcastReceiver = new PbapBroadcastReceiver();
     private int mSdpHandle = -1;
+    // See PbapClientConnectionHandler, the accounts of paired devices are kept once synced.
+    private boolean mIncrementalSync;
 
     private DatabaseManager mDatabaseManager;
 
@@ -134,6 +136,7 @@ public class PbapClientService extends ProfileService {
                 "DatabaseManager cannot be null when PbapClientService starts");
 
         setComponentAvailable(AUTHENTICATOR_SERVICE, true);
+        mIncrementalSync = getResources().getBoolean(R.bool.pbap_client_incremental_sync);
 
         IntentFilter filter = new IntentFilter();
         filter.addAction(BluetoothDevice.ACTION_ACL_DISCONNECTED);
@@ -142,6 +145,10 @@ public class PbapClientService extends ProfileService {
         // To remove call logs when PBAP was never connected while calls were made,
         // we also listen for HFP to become disconnected.
         filter.addAction(BluetoothHeadsetClient.ACTION_CONNECTION_STATE_CHANGED);
+        if (mIncrementalSync) {
+            // The contacts kept for a device are removed once it is unpaired.
+            filter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+        }
         try {
             registerReceiver(mPbapBroadcastReceiver, filter);
         } catch (Exception e) {
@@ -221,13 +228,19 @@ public class PbapClientService extends ProfileService {
             return;
         }
 
-        // Find all accounts that match the type "pbap" and delete them.
+        // Find all accounts that match the type "pbap" and delete them, but the synced accounts
+        // of paired devices when they are kept.
         AccountManager accountManager = AccountManager.get(this);
         Account[] accounts =
                 accountManager.getAccountsByType(getString(R.string.pbap_account_type));
         if (VDBG) Log.v(TAG, "Found " + accounts.length + " unclean accounts");
+        List<String> bondedAddresses = new ArrayList<>();
+        if (mIncrementalSync) {
+            for (BluetoothDevice device : AdapterService.getAdapterService().getBondedDevices()) {
+                bondedAddresses.add(device.getAddress());
+            }
+        }
         for (Account acc : accounts) {
-            Log.w(TAG, "Deleting " + acc);
             try {
                 getContentResolver().delete(CallLog.Calls.CONTENT_URI,
                         CallLog.Calls.PHONE_ACCOUNT_ID + "=?", new String[]{acc.name});
@@ -235,10 +248,20 @@ public class PbapClientService extends ProfileService {
                 Log.w(TAG, "Call Logs could not be deleted, they may not exist yet.");
             }
             // The device ID is the name of the account.
-            accountManager.removeAccountExplicitly(acc);
+            if (bondedAddresses.contains(acc.name) && PbapClientSyncState.exists(this, acc)) {
+                if (DBG) Log.d(TAG, "Keeping synced " + acc);
+                continue;
+            }
+            removeAccount(acc);
         }
     }
 
+    private void removeAccount(Account acc) {
+        Log.w(TAG, "Deleting " + acc);
+        PbapClientSyncState.removeAll(this, acc);
+        AccountManager.get(this).removeAccountExplicitly(acc);
+    }
+
     private void removeHfpCallLog(String accountName, Context context) {
         if (DBG) Log.d(TAG, "Removing call logs from " + accountName);
         // Delete call logs belonging to accountName==BD_ADDR that also match
@@ -295,6 +318,14 @@ public class PbapClientService extends ProfileService {
                 if (getConnectionState(device) == BluetoothProfile.STATE_CONNECTED) {
                     disconnect(device);
                 }
+            } else if (action.equals(BluetoothDevice.ACTION_BOND_STATE_CHANGED)) {
+                BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                int bondState = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE,
+                        BluetoothDevice.ERROR);
+                if (bondState == BluetoothDevice.BOND_NONE && isAuthenticationServiceReady()) {
+                    removeAccount(new Account(device.getAddress(),
+                            getString(R.string.pbap_account_type)));
+                }
             } else if (action.equals(Intent.ACTION_USER_UNLOCKED)) {
                 for (PbapClientStateMachine stateMachine : mPbapClientStateMachineMap.values()) {
                     stateMachine.tryDownloadIfConnected();
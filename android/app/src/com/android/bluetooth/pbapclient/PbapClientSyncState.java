@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pbapclient;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+import android.util.Log;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * The versions of a phonebook folder of a PSE that the contacts of its account were synced to,
+ * persisted across connections.
+ *
+ * <p>A state is only stored once a folder is fully synced, and is removed before the contacts of
+ * the folder are modified, so that an interrupted sync is followed by a full one.
+ *
+ * @hide
+ */
+/* package */ class PbapClientSyncState {
+    private static final String TAG = "PbapClientSyncState";
+    private static final boolean DBG = Utils.DBG;
+
+    private static final String PREFERENCES = "pbap_client_sync_state";
+    private static final String SEPARATOR = ":";
+
+    private final byte[] mDatabaseIdentifier;
+    private final byte[] mPrimaryVersionCounter;
+    private final byte[] mSecondaryVersionCounter;
+
+    PbapClientSyncState(byte[] databaseIdentifier, byte[] primaryVersionCounter,
+            byte[] secondaryVersionCounter) {
+        mDatabaseIdentifier = databaseIdentifier;
+        mPrimaryVersionCounter = primaryVersionCounter;
+        mSecondaryVersionCounter = secondaryVersionCounter;
+    }
+
+    /**
+     * Returns the state of the listed folder, or null if the PSE does not support the database
+     * identifier and folder version counters.
+     */
+    static PbapClientSyncState fromListing(BluetoothPbapRequestPullVcardListing listing) {
+        if (listing.getDatabaseIdentifier() == null || listing.getPrimaryVersionCounter() == null
+                || listing.getSecondaryVersionCounter() == null) {
+            return null;
+        }
+        return new PbapClientSyncState(listing.getDatabaseIdentifier(),
+                listing.getPrimaryVersionCounter(), listing.getSecondaryVersionCounter());
+    }
+
+    /**
+     * Returns the state {@code path} of {@code account} was last synced to, or null if it was
+     * not fully synced since the account was created.
+     */
+    static PbapClientSyncState load(Context context, Account account, String path) {
+        String value = getPreferences(context).getString(getKey(account, path), null);
+        if (value == null) {
+            return null;
+        }
+        String[] fields = value.split(SEPARATOR);
+        if (fields.length != 3) {
+            Log.w(TAG, "Invalid state for " + path + ": " + value);
+            return null;
+        }
+        try {
+            return new PbapClientSyncState(Base64.decode(fields[0], Base64.NO_WRAP),
+                    Base64.decode(fields[1], Base64.NO_WRAP),
+                    Base64.decode(fields[2], Base64.NO_WRAP));
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Invalid state for " + path + ": " + value);
+            return null;
+        }
+    }
+
+    void save(Context context, Account account, String path) {
+        String value = Base64.encodeToString(mDatabaseIdentifier, Base64.NO_WRAP) + SEPARATOR
+                + Base64.encodeToString(mPrimaryVersionCounter, Base64.NO_WRAP) + SEPARATOR
+                + Base64.encodeToString(mSecondaryVersionCounter, Base64.NO_WRAP);
+        getPreferences(context).edit().putString(getKey(account, path), value).apply();
+        if (DBG) {
+            Log.d(TAG, "Saved state of " + path + " for " + account);
+        }
+    }
+
+    static void remove(Context context, Account account, String path) {
+        // Committed, so that a crash while the contacts are modified cannot leave the state.
+        getPreferences(context).edit().remove(getKey(account, path)).commit();
+    }
+
+    /**
+     * Removes the states of all the folders of {@code account}.
+     */
+    static void removeAll(Context context, Account account) {
+        SharedPreferences preferences = getPreferences(context);
+        SharedPreferences.Editor editor = preferences.edit();
+        String prefix = getKey(account, "");
+        for (String key : preferences.getAll().keySet()) {
+            if (key.startsWith(prefix)) {
+                editor.remove(key);
+            }
+        }
+        editor.apply();
+    }
+
+    /**
+     * Returns whether any folder of {@code account} is synced.
+     */
+    static boolean exists(Context context, Account account) {
+        String prefix = getKey(account, "");
+        for (String key : getPreferences(context).getAll().keySet()) {
+            if (key.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether the folder did not change since this state.
+     */
+    boolean isUnchanged(PbapClientSyncState newState) {
+        return Arrays.equals(mDatabaseIdentifier, newState.mDatabaseIdentifier)
+                && Arrays.equals(mPrimaryVersionCounter, newState.mPrimaryVersionCounter)
+                && Arrays.equals(mSecondaryVersionCounter, newState.mSecondaryVersionCounter);
+    }
+
+    /**
+     * Returns whether the changes of the folder since this state are exactly
+     * {@code primaryChanges} changes of the primary fields, e.g. added or removed vCards.
+     *
+     * <p>The handles of the vCards are only kept while the database identifier is the same. The
+     * secondary version counter may count the added and removed vCards as well, but any other
+     * change of it is a change of the secondary fields, which cannot be told from the listing.
+     * See PBAP v1.2.3, Sec. 5.1.4.10 and 5.1.4.12.
+     */
+    boolean hasOnlyPrimaryChanges(PbapClientSyncState newState, int primaryChanges) {
+        if (!Arrays.equals(mDatabaseIdentifier, newState.mDatabaseIdentifier)) {
+            return false;
+        }
+        BigInteger expected = BigInteger.valueOf(primaryChanges);
+        BigInteger secondaryChanges = getChanges(mSecondaryVersionCounter,
+                newState.mSecondaryVersionCounter);
+        return getChanges(mPrimaryVersionCounter, newState.mPrimaryVersionCounter)
+                .equals(expected)
+                && (secondaryChanges.signum() == 0 || secondaryChanges.equals(expected));
+    }
+
+    private static BigInteger getChanges(byte[] oldCounter, byte[] newCounter) {
+        return new BigInteger(1, newCounter).subtract(new BigInteger(1, oldCounter));
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    private static String getKey(Account account, String path) {
+        // The device address is the name of the account.
+        return account.name + "/" + path;
+    }
+}
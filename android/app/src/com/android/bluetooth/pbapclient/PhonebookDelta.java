@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pbapclient;
+
+import com.android.bluetooth.pbapclient.BluetoothPbapRequestPullVcardListing.Card;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The changes between the contacts synced from a phonebook folder and its current listing.
+ *
+ * <p>A vCard whose handle is gone is removed, and one whose handle is new is added. A vCard whose
+ * name changed is replaced, as its other fields may have changed as well.
+ *
+ * @hide
+ */
+/* package */ class PhonebookDelta {
+
+    /**
+     * A contact synced from a vCard of the folder.
+     */
+    static final class LocalCard {
+        final long mRawContactId;
+        final String mHandle;
+        final String mName;
+
+        LocalCard(long rawContactId, String handle, String name) {
+            mRawContactId = rawContactId;
+            mHandle = handle;
+            mName = name != null ? name : "";
+        }
+    }
+
+    private final List<Long> mRemovedRawContactIds = new ArrayList<>();
+    private final List<Integer> mAddedIndices = new ArrayList<>();
+    private int mChangeCount;
+
+    /**
+     * @param localCards the contacts synced from the folder
+     * @param cards the current listing of the folder
+     * @param firstIndex the index of the first listed vCard to sync, e.g. 1 to skip the owner
+     *     card
+     */
+    PhonebookDelta(List<LocalCard> localCards, List<Card> cards, int firstIndex) {
+        Map<String, Card> listed = new HashMap<>();
+        for (int i = firstIndex; i < cards.size(); i++) {
+            listed.put(cards.get(i).mHandle, cards.get(i));
+        }
+        Map<String, LocalCard> synced = new HashMap<>();
+        for (LocalCard localCard : localCards) {
+            Card card = listed.get(localCard.mHandle);
+            if (synced.containsKey(localCard.mHandle)) {
+                // Left by an interrupted sync, not a change of the folder.
+                mRemovedRawContactIds.add(localCard.mRawContactId);
+                continue;
+            }
+            synced.put(localCard.mHandle, localCard);
+            if (card == null || !card.mName.equals(localCard.mName)) {
+                mRemovedRawContactIds.add(localCard.mRawContactId);
+                mChangeCount++;
+            }
+        }
+        for (int i = firstIndex; i < cards.size(); i++) {
+            LocalCard localCard = synced.get(cards.get(i).mHandle);
+            if (localCard == null || !localCard.mName.equals(cards.get(i).mName)) {
+                mAddedIndices.add(i);
+                if (localCard == null) {
+                    mChangeCount++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the raw contacts to delete, whose vCards are removed or replaced.
+     */
+    List<Long> getRemovedRawContactIds() {
+        return mRemovedRawContactIds;
+    }
+
+    /**
+     * Returns the indices in the listing of the vCards to pull, in ascending order.
+     */
+    List<Integer> getAddedIndices() {
+        return mAddedIndices;
+    }
+
+    /**
+     * Returns the number of vCards added, removed or replaced, as counted by the primary version
+     * counter of the folder.
+     */
+    int getChangeCount() {
+        return mChangeCount;
+    }
+}
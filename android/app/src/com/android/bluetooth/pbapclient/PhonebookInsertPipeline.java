@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pbapclient;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.bluetooth.pbapclient.BluetoothPbapRequestPullVcardListing.Card;
+import com.android.vcard.VCardEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Inserts the batches of a phonebook download on its own thread, while the next batch is pulled.
+ *
+ * <p>At most one batch waits for the insert in progress, so that a slow Contacts provider holds
+ * back the download instead of piling up vCards in memory. The batches are inserted in the order
+ * they are submitted, by the same {@link PhonebookPullRequest}.
+ *
+ * @hide
+ */
+/* package */ class PhonebookInsertPipeline {
+    private static final String TAG = "PbapInsertPipeline";
+    private static final boolean VDBG = Utils.VDBG;
+
+    private static class Batch {
+        final List<VCardEntry> mEntries;
+        final List<Card> mCards;
+
+        Batch(List<VCardEntry> entries, List<Card> cards) {
+            mEntries = entries;
+            mCards = cards;
+        }
+    }
+
+    // Queued by finish(), once every batch is submitted.
+    private static final Batch END = new Batch(new ArrayList<>(), null);
+
+    private final PhonebookPullRequest mProcessor;
+    private final BlockingQueue<Batch> mBatches = new ArrayBlockingQueue<>(1);
+    private final Thread mThread;
+    private volatile long mFirstInsertTime;
+    private volatile int mInsertedCount;
+    // Only accessed by the submitting thread.
+    private int mSubmittedBatches;
+    private volatile int mInsertedBatches;
+
+    PhonebookInsertPipeline(PhonebookPullRequest processor) {
+        mProcessor = processor;
+        mThread = new Thread(this::insertBatches, "PbapClient Insert");
+    }
+
+    void start() {
+        mThread.start();
+    }
+
+    /**
+     * Queues {@code vcards} to be inserted, waiting while an earlier batch is already queued.
+     *
+     * @param cards the listing entries of {@code vcards} to tag them with, or null
+     * @return false if the calling thread is interrupted while waiting, in which case the batch
+     *     is dropped
+     */
+    boolean submit(List<VCardEntry> vcards, List<Card> cards) {
+        try {
+            mBatches.put(new Batch(vcards, cards));
+            mSubmittedBatches++;
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Waits for the submitted batches to be inserted, and stops the thread. If the calling thread
+     * is interrupted, the batches that are not inserted yet are dropped, but the thread is still
+     * waited for, so that no insert runs once this returns.
+     *
+     * @return whether every submitted batch was fully inserted
+     */
+    boolean finish() {
+        boolean interrupted = false;
+        try {
+            mBatches.put(END);
+        } catch (InterruptedException e) {
+            interrupted = true;
+        }
+        while (true) {
+            if (interrupted) {
+                mThread.interrupt();
+            }
+            try {
+                mThread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Log.w(TAG, "Interrupted while inserting contacts");
+            Thread.currentThread().interrupt();
+        }
+        return mInsertedBatches == mSubmittedBatches && !mProcessor.hasFailed();
+    }
+
+    /**
+     * Returns the {@link SystemClock#elapsedRealtime} at which the first batch was inserted, or 0
+     * if none was.
+     */
+    long getFirstInsertTime() {
+        return mFirstInsertTime;
+    }
+
+    /**
+     * Returns the number of contacts inserted so far.
+     */
+    int getInsertedCount() {
+        return mInsertedCount;
+    }
+
+    private void insertBatches() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        try {
+            while (true) {
+                Batch batch = mBatches.take();
+                if (batch == END) {
+                    return;
+                }
+                long start = SystemClock.elapsedRealtime();
+                mProcessor.setResults(batch.mEntries);
+                mProcessor.setCards(batch.mCards);
+                mProcessor.onPullComplete();
+                mInsertedCount += batch.mEntries.size();
+                mInsertedBatches++;
+                long end = SystemClock.elapsedRealtime();
+                if (mFirstInsertTime == 0) {
+                    mFirstInsertTime = end;
+                }
+                if (VDBG) {
+                    Log.v(TAG, "Inserted " + batch.mEntries.size() + " contacts in " + (end - start)
+                            + " ms");
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Insert interrupted, " + mBatches.size() + " batches dropped");
+        }
+    }
+}
@@ -20,14 +20,21 @@ import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
 import android.os.RemoteException;
 import android.provider.ContactsContract;
+import android.provider.ContactsContract.RawContacts;
 import android.util.Log;
 
+import com.android.bluetooth.BluetoothMethodProxy;
+import com.android.bluetooth.pbapclient.BluetoothPbapRequestPullVcardListing.Card;
+import com.android.bluetooth.pbapclient.PhonebookDelta.LocalCard;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.vcard.VCardEntry;
 
 import java.util.ArrayList;
+import java.util.List;
 
 public class PhonebookPullRequest extends PullRequest {
     @VisibleForTesting
@@ -35,8 +42,21 @@ public class PhonebookPullRequest extends PullRequest {
     private static final boolean VDBG = Utils.VDBG;
     private static final String TAG = "PbapPbPullRequest";
 
+    // The raw contacts of an incremental sync are tagged with the vCard they are synced from.
+    private static final String COLUMN_HANDLE = RawContacts.SOURCE_ID;
+    private static final String COLUMN_PATH = RawContacts.SYNC1;
+    private static final String COLUMN_NAME = RawContacts.SYNC2;
+    private static final String[] LOCAL_CARD_PROJECTION = {
+            RawContacts._ID, COLUMN_HANDLE, COLUMN_NAME
+    };
+    private static final Uri RAW_CONTACTS_URI = RawContacts.CONTENT_URI.buildUpon()
+            .appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true").build();
+
     private final Account mAccount;
     private final Context mContext;
+    private boolean mTagged;
+    private List<Card> mCards;
+    private volatile boolean mFailed;
     public boolean complete = false;
 
     public PhonebookPullRequest(Context context, Account account) {
@@ -45,6 +65,80 @@ public class PhonebookPullRequest extends PullRequest {
         path = PbapClientConnectionHandler.PB_PATH;
     }
 
+    /**
+     * Tags the inserted raw contacts with {@link #path}, and with their listing entries if set.
+     */
+    public void setTagged(boolean tagged) {
+        mTagged = tagged;
+    }
+
+    /**
+     * Sets the listing entries of the results, in the same order, or null if they are unknown.
+     */
+    public void setCards(List<Card> cards) {
+        mCards = cards;
+    }
+
+    /**
+     * Returns whether the results of any pull could not be inserted.
+     */
+    public boolean hasFailed() {
+        return mFailed;
+    }
+
+    /**
+     * Returns the raw contacts tagged with a vCard of {@link #path}.
+     */
+    List<LocalCard> queryLocalCards() {
+        List<LocalCard> localCards = new ArrayList<>();
+        Cursor cursor = BluetoothMethodProxy.getInstance().contentResolverQuery(
+                mContext.getContentResolver(), RAW_CONTACTS_URI, LOCAL_CARD_PROJECTION,
+                getPathSelection() + " AND " + RawContacts.DELETED + "=0", getPathSelectionArgs(),
+                null);
+        if (cursor == null) {
+            return localCards;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                localCards.add(new LocalCard(cursor.getLong(0), cursor.getString(1),
+                        cursor.getString(2)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return localCards;
+    }
+
+    /**
+     * Deletes the raw contacts tagged with a vCard of {@link #path}.
+     */
+    void deleteLocalCards() {
+        BluetoothMethodProxy.getInstance().contentResolverDelete(mContext.getContentResolver(),
+                RAW_CONTACTS_URI, getPathSelection(), getPathSelectionArgs());
+    }
+
+    /**
+     * Deletes the raw contacts {@code rawContactIds}, {@link #MAX_OPS} at a time.
+     */
+    void deleteRawContacts(List<Long> rawContactIds) throws RemoteException,
+            OperationApplicationException {
+        ContentResolver contactsProvider = mContext.getContentResolver();
+        ArrayList<ContentProviderOperation> deleteOperations = new ArrayList<>();
+        for (long rawContactId : rawContactIds) {
+            deleteOperations.add(ContentProviderOperation.newDelete(RAW_CONTACTS_URI)
+                    .withSelection(RawContacts._ID + "=?",
+                            new String[] {Long.toString(rawContactId)})
+                    .build());
+            if (deleteOperations.size() >= MAX_OPS) {
+                contactsProvider.applyBatch(ContactsContract.AUTHORITY, deleteOperations);
+                deleteOperations.clear();
+            }
+        }
+        if (deleteOperations.size() > 0) {
+            contactsProvider.applyBatch(ContactsContract.AUTHORITY, deleteOperations);
+        }
+    }
+
 
     @Override
     public void onPullComplete() {
@@ -62,20 +156,24 @@ public class PhonebookPullRequest extends PullRequest {
             ArrayList<ContentProviderOperation> currentContactOperations;
             // Group insert operations together to minimize inter process communication and improve
             // processing time.
-            for (VCardEntry e : mEntries) {
+            for (int i = 0; i < mEntries.size(); i++) {
                 if (Thread.currentThread().isInterrupted()) {
                     Log.e(TAG, "Interrupted durring insert.");
+                    mFailed = true;
                     break;
                 }
+                VCardEntry e = mEntries.get(i);
+                Card card = mCards != null ? mCards.get(i) : null;
                 int numberOfOperations = insertOperations.size();
                 // Append current vcard to list of insert operations.
-                e.constructInsertOperations(contactsProvider, insertOperations);
+                constructInsertOperations(contactsProvider, e, card, insertOperations);
                 if (insertOperations.size() >= MAX_OPS) {
                     // If we have exceded the limit to the insert operation remove the latest vcard
                     // and submit.
                     insertOperations.subList(numberOfOperations, insertOperations.size()).clear();
                     contactsProvider.applyBatch(ContactsContract.AUTHORITY, insertOperations);
-                    insertOperations = e.constructInsertOperations(contactsProvider, null);
+                    insertOperations = new ArrayList<>();
+                    constructInsertOperations(contactsProvider, e, card, insertOperations);
                     if (insertOperations.size() >= MAX_OPS) {
                         // Current VCard has more than 500 attributes, drop the card.
                         insertOperations.clear();
@@ -92,8 +190,37 @@ public class PhonebookPullRequest extends PullRequest {
             }
         } catch (OperationApplicationException | RemoteException | NumberFormatException e) {
             Log.e(TAG, "Got exception: ", e);
+            mFailed = true;
         } finally {
             complete = true;
         }
     }
+
+    private void constructInsertOperations(ContentResolver contactsProvider, VCardEntry e,
+            Card card, ArrayList<ContentProviderOperation> operations) {
+        int rawContactIndex = operations.size();
+        e.constructInsertOperations(contactsProvider, operations);
+        if (!mTagged) {
+            return;
+        }
+        // The raw contact is the first insert of the vcard.
+        ContentProviderOperation.Builder builder =
+                ContentProviderOperation.newUpdate(RAW_CONTACTS_URI)
+                        .withSelection(RawContacts._ID + "=?", new String[1])
+                        .withSelectionBackReference(0, rawContactIndex)
+                        .withValue(COLUMN_PATH, path);
+        if (card != null) {
+            builder.withValue(COLUMN_HANDLE, card.mHandle).withValue(COLUMN_NAME, card.mName);
+        }
+        operations.add(builder.build());
+    }
+
+    private String getPathSelection() {
+        return RawContacts.ACCOUNT_NAME + "=? AND " + RawContacts.ACCOUNT_TYPE + "=? AND "
+                + COLUMN_PATH + "=?";
+    }
+
+    private String[] getPathSelectionArgs() {
+        return new String[] {mAccount.name, mAccount.type, path};
+    }
 }
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.btservice;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.*;
+
+import android.Manifest;
+import android.bluetooth.BluetoothDevice;
+import android.content.Intent;
+import android.os.HandlerThread;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * Test cases for {@link DiscoveryBatcher}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class DiscoveryBatcherTest {
+    private static final String TEST_PACKAGE = "com.android.bluetooth.test";
+    private static final String TEST_BT_ADDR_1 = "00:11:22:33:44:55";
+    private static final String TEST_BT_ADDR_2 = "00:11:22:33:44:66";
+    private static final String TEST_PERMISSION = Manifest.permission.ACCESS_FINE_LOCATION;
+    // Long enough that only the test flushes the batches.
+    private static final long WINDOW_MILLIS = 60_000;
+
+    private HandlerThread mHandlerThread;
+    private DiscoveryBatcher mBatcher;
+    private DiscoveringPackage mPackage;
+
+    @Mock private AdapterService mAdapterService;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        when(mAdapterService.getDiscoveryBatchingPackages())
+                .thenReturn(Collections.singleton(TEST_PACKAGE));
+        when(mAdapterService.getDiscoveryBatchingWindowMillis()).thenReturn(WINDOW_MILLIS);
+
+        mHandlerThread = new HandlerThread("DiscoveryBatcherTestHandlerThread");
+        mHandlerThread.start();
+        mBatcher = new DiscoveryBatcher(mAdapterService, mHandlerThread.getLooper());
+        mPackage = new DiscoveringPackage(TEST_PACKAGE, null, false);
+    }
+
+    @After
+    public void tearDown() {
+        mBatcher.cleanup();
+        mHandlerThread.quit();
+    }
+
+    @Test
+    public void isBatched() {
+        assertThat(mBatcher.isBatched(TEST_PACKAGE)).isTrue();
+        assertThat(mBatcher.isBatched("com.android.other")).isFalse();
+    }
+
+    @Test
+    public void flush_sendsOneBroadcastWithLatestReportOfEachDevice() {
+        mBatcher.add(mPackage, TEST_BT_ADDR_1, foundIntent(TEST_BT_ADDR_1, -80));
+        mBatcher.add(mPackage, TEST_BT_ADDR_2, foundIntent(TEST_BT_ADDR_2, -70));
+        mBatcher.add(mPackage, TEST_BT_ADDR_1, foundIntent(TEST_BT_ADDR_1, -60));
+
+        mBatcher.flush(TEST_PACKAGE);
+
+        ArgumentCaptor<Intent> intent = ArgumentCaptor.forClass(Intent.class);
+        verify(mAdapterService).sendBroadcastMultiplePermissions(intent.capture(), any(), any());
+        assertThat(intent.getValue().getAction()).isEqualTo(BluetoothDevice.ACTION_FOUND_BATCH);
+        assertThat(intent.getValue().getPackage()).isEqualTo(TEST_PACKAGE);
+        ArrayList<Intent> devices = intent.getValue()
+                .getParcelableArrayListExtra(BluetoothDevice.EXTRA_FOUND_DEVICES);
+        assertThat(devices).hasSize(2);
+        assertThat(devices.get(0).getShortExtra(BluetoothDevice.EXTRA_RSSI, (short) 0))
+                .isEqualTo((short) -60);
+        assertThat(devices.get(1).getShortExtra(BluetoothDevice.EXTRA_RSSI, (short) 0))
+                .isEqualTo((short) -70);
+
+        // Nothing is pending any more.
+        mBatcher.flush(TEST_PACKAGE);
+        verify(mAdapterService, times(1)).sendBroadcastMultiplePermissions(any(), any(), any());
+    }
+
+    @Test
+    public void update_queuesFoundDevicesUntilDiscoveryStops() {
+        mBatcher.add(mPackage, TEST_BT_ADDR_1, foundIntent(TEST_BT_ADDR_1, -80));
+        mBatcher.flush(TEST_PACKAGE);
+        assertThat(mBatcher.wasFound(TEST_BT_ADDR_1)).isTrue();
+        assertThat(mBatcher.wasFound(TEST_BT_ADDR_2)).isFalse();
+
+        mBatcher.update(TEST_BT_ADDR_1, foundIntent(TEST_BT_ADDR_1, -80), false);
+        mBatcher.update(TEST_BT_ADDR_2, foundIntent(TEST_BT_ADDR_2, -80), false);
+        mBatcher.onDiscoveryStopped();
+
+        verify(mAdapterService, times(2)).sendBroadcastMultiplePermissions(any(), any(), any());
+        assertThat(mBatcher.wasFound(TEST_BT_ADDR_1)).isFalse();
+    }
+
+    @Test
+    public void update_skipsLocationDenylistedDeviceForPackageThatDisavowedLocation() {
+        DiscoveringPackage pkg = new DiscoveringPackage(TEST_PACKAGE, null, true);
+        mBatcher.add(pkg, TEST_BT_ADDR_1, foundIntent(TEST_BT_ADDR_1, -80));
+        mBatcher.flush(TEST_PACKAGE);
+
+        mBatcher.update(TEST_BT_ADDR_1, foundIntent(TEST_BT_ADDR_1, -80), true);
+        mBatcher.flush(TEST_PACKAGE);
+
+        verify(mAdapterService, times(1)).sendBroadcastMultiplePermissions(any(), any(), any());
+    }
+
+    @Test
+    public void flush_usesPermissionOfLatestDiscovery() {
+        mBatcher.add(mPackage, TEST_BT_ADDR_1, foundIntent(TEST_BT_ADDR_1, -80));
+        mBatcher.add(new DiscoveringPackage(TEST_PACKAGE, TEST_PERMISSION, false),
+                TEST_BT_ADDR_2, foundIntent(TEST_BT_ADDR_2, -80));
+
+        mBatcher.flush(TEST_PACKAGE);
+
+        ArgumentCaptor<String[]> permissions = ArgumentCaptor.forClass(String[].class);
+        verify(mAdapterService).sendBroadcastMultiplePermissions(any(), permissions.capture(),
+                any());
+        assertThat(permissions.getValue()).asList().contains(TEST_PERMISSION);
+    }
+
+    private static Intent foundIntent(String address, int rssi) {
+        Intent intent = new Intent(BluetoothDevice.ACTION_FOUND);
+        intent.putExtra(BluetoothDevice.EXTRA_RSSI, (short) rssi);
+        intent.putExtra(BluetoothDevice.EXTRA_NAME, address);
+        return intent;
+    }
+}
@@ -43,6 +43,8 @@ import java.util.ArrayList;
 @RunWith(AndroidJUnit4.class)
 public class RemoteDevicesTest {
     private static final String TEST_BT_ADDR_1 = "00:11:22:33:44:55";
+    private static final String TEST_BT_ADDR_2 = "00:11:22:33:44:66";
+    private static final String TEST_BT_ADDR_3 = "00:11:22:33:44:77";
 
     private ArgumentCaptor<Intent> mIntentArgument = ArgumentCaptor.forClass(Intent.class);
     private ArgumentCaptor<String> mStringArgument = ArgumentCaptor.forClass(String.class);
@@ -558,6 +560,64 @@ public class RemoteDevicesTest {
                 .getHfAudioPolicyForRemoteAg());
     }
 
+    @Test
+    public void testAddDeviceProperties_evictsLeastRecentlySeenDevice() {
+        mRemoteDevices.setCacheLimits(2, 0);
+        mRemoteDevices.addDeviceProperties(Utils.getBytesFromAddress(TEST_BT_ADDR_1));
+        mRemoteDevices.addDeviceProperties(Utils.getBytesFromAddress(TEST_BT_ADDR_2));
+        mRemoteDevices.addDeviceProperties(Utils.getBytesFromAddress(TEST_BT_ADDR_3));
+
+        Assert.assertNull(mRemoteDevices.getDeviceProperties(mDevice1));
+        Assert.assertNotNull(mRemoteDevices.getDeviceProperties(getDevice(TEST_BT_ADDR_2)));
+        Assert.assertNotNull(mRemoteDevices.getDeviceProperties(getDevice(TEST_BT_ADDR_3)));
+    }
+
+    @Test
+    public void testAddDeviceProperties_bondedDeviceIsNotEvicted() {
+        mRemoteDevices.setCacheLimits(1, 0);
+        mRemoteDevices.addDeviceProperties(Utils.getBytesFromAddress(TEST_BT_ADDR_1))
+                .setBondState(BluetoothDevice.BOND_BONDED);
+        mRemoteDevices.addDeviceProperties(Utils.getBytesFromAddress(TEST_BT_ADDR_2));
+        mRemoteDevices.addDeviceProperties(Utils.getBytesFromAddress(TEST_BT_ADDR_3));
+
+        Assert.assertNotNull(mRemoteDevices.getDeviceProperties(mDevice1));
+        Assert.assertNull(mRemoteDevices.getDeviceProperties(getDevice(TEST_BT_ADDR_2)));
+        Assert.assertNotNull(mRemoteDevices.getDeviceProperties(getDevice(TEST_BT_ADDR_3)));
+
+        // Once unbonded, the device is evicted like any other.
+        mRemoteDevices.getDeviceProperties(mDevice1).setBondState(BluetoothDevice.BOND_NONE);
+        Assert.assertNotNull(mRemoteDevices.getDeviceProperties(mDevice1));
+        Assert.assertNull(mRemoteDevices.getDeviceProperties(getDevice(TEST_BT_ADDR_3)));
+    }
+
+    @Test
+    public void testAddDeviceProperties_replacingBondedDeviceEvictsBeyondCapacity() {
+        mRemoteDevices.setCacheLimits(1, 0);
+        mRemoteDevices.addDeviceProperties(Utils.getBytesFromAddress(TEST_BT_ADDR_1))
+                .setBondState(BluetoothDevice.BOND_BONDED);
+        mRemoteDevices.addDeviceProperties(Utils.getBytesFromAddress(TEST_BT_ADDR_2));
+
+        // The new properties of the device are not bonded, so they count against the capacity.
+        mRemoteDevices.addDeviceProperties(Utils.getBytesFromAddress(TEST_BT_ADDR_1));
+
+        Assert.assertNotNull(mRemoteDevices.getDeviceProperties(mDevice1));
+        Assert.assertNull(mRemoteDevices.getDeviceProperties(getDevice(TEST_BT_ADDR_2)));
+    }
+
+    @Test
+    public void testGetDevice_invalidAddress() {
+        mRemoteDevices.addDeviceProperties(Utils.getBytesFromAddress(TEST_BT_ADDR_1));
+
+        Assert.assertNull(mRemoteDevices.getDevice(null));
+        Assert.assertNull(mRemoteDevices.getDevice(new byte[] {1, 2, 3}));
+        Assert.assertEquals(mDevice1,
+                mRemoteDevices.getDevice(Utils.getBytesFromAddress(TEST_BT_ADDR_1)));
+    }
+
+    private static BluetoothDevice getDevice(String address) {
+        return BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
+    }
+
     private static void verifyBatteryLevelChangedIntent(BluetoothDevice device, int batteryLevel,
             ArgumentCaptor<Intent> intentArgument) {
         verifyBatteryLevelChangedIntent(device, batteryLevel, intentArgument.getValue());
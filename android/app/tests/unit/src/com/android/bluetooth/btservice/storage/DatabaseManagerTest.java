@@ -104,6 +104,8 @@ public final class DatabaseManagerTest {
         when(mAdapterService.getPackageManager()).thenReturn(
                 InstrumentationRegistry.getTargetContext().getPackageManager());
         mDatabaseManager = new DatabaseManager(mAdapterService);
+        // Write the updates as soon as the handler thread gets to them.
+        mDatabaseManager.mWriteBehindDelayMillis = 0;
 
         BluetoothDevice[] bondedDevices = {mTestDevice};
         doReturn(bondedDevices).when(mAdapterService).getBondedDevices();
@@ -234,6 +236,27 @@ public final class DatabaseManagerTest {
                 badValue, BluetoothA2dp.OPTIONAL_CODECS_PREF_UNKNOWN);
     }
 
+    @Test
+    public void testUpdatesOfTheSameDeviceAreCoalesced() {
+        mDatabaseManager.mWriteBehindDelayMillis = 60_000;
+
+        mDatabaseManager.setProfileConnectionPolicy(mTestDevice, BluetoothProfile.HEADSET,
+                BluetoothProfile.CONNECTION_POLICY_FORBIDDEN);
+        mDatabaseManager.setProfileConnectionPolicy(mTestDevice, BluetoothProfile.HEADSET,
+                BluetoothProfile.CONNECTION_POLICY_ALLOWED);
+        TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
+
+        // Nothing is written until the write-behind delay has passed.
+        Assert.assertTrue(mDatabase.load().isEmpty());
+
+        // Shutting down writes the latest update.
+        mDatabaseManager.cleanup();
+        List<Metadata> list = mDatabase.load();
+        Assert.assertEquals(1, list.size());
+        Assert.assertEquals(BluetoothProfile.CONNECTION_POLICY_ALLOWED,
+                list.get(0).getProfileConnectionPolicy(BluetoothProfile.HEADSET));
+    }
+
     @Test
     public void testRemoveUnusedMetadata_WithSingleBondedDevice() {
         // Insert two devices to database and cache, only mTestDevice is
@@ -1360,6 +1383,70 @@ public final class DatabaseManagerTest {
         TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
     }
 
+    @Test
+    public void testRecencyIsRestoredFromDatabase() {
+        Metadata data = new Metadata(TEST_BT_ADDR);
+        data.last_active_time = 1;
+        data.is_active_a2dp_device = false;
+        mDatabase.insert(data);
+        Metadata data2 = new Metadata(TEST_BT_ADDR2);
+        data2.last_active_time = 2;
+        data2.is_active_a2dp_device = true;
+        mDatabase.insert(data2);
+        restartDatabaseManagerHelper();
+
+        List<BluetoothDevice> mostRecentlyConnectedDevicesOrdered =
+                mDatabaseManager.getMostRecentlyConnectedDevices();
+        Assert.assertEquals(2, mostRecentlyConnectedDevicesOrdered.size());
+        Assert.assertEquals(mTestDevice2, mostRecentlyConnectedDevicesOrdered.get(0));
+        Assert.assertEquals(mTestDevice, mostRecentlyConnectedDevicesOrdered.get(1));
+        Assert.assertEquals(mTestDevice2, mDatabaseManager.getMostRecentlyConnectedA2dpDevice());
+
+        mDatabaseManager.mMetadataCache.clear();
+    }
+
+    @Test
+    public void testRecencyAfterConnectDisconnectAndBondRemoval() {
+        Assert.assertEquals(0, mDatabaseManager.mMetadataCache.size());
+
+        mDatabaseManager.setConnection(mTestDevice, true);
+        mDatabaseManager.setConnection(mTestDevice2, false);
+        List<BluetoothDevice> mostRecentlyConnectedDevicesOrdered =
+                mDatabaseManager.getMostRecentlyConnectedDevices();
+        Assert.assertEquals(2, mostRecentlyConnectedDevicesOrdered.size());
+        Assert.assertEquals(mTestDevice2, mostRecentlyConnectedDevicesOrdered.get(0));
+        Assert.assertEquals(mTestDevice, mostRecentlyConnectedDevicesOrdered.get(1));
+        Assert.assertEquals(mTestDevice, mDatabaseManager.getMostRecentlyConnectedA2dpDevice());
+
+        // Reconnecting moves the device to the front
+        mDatabaseManager.setConnection(mTestDevice, false);
+        mostRecentlyConnectedDevicesOrdered = mDatabaseManager.getMostRecentlyConnectedDevices();
+        Assert.assertEquals(2, mostRecentlyConnectedDevicesOrdered.size());
+        Assert.assertEquals(mTestDevice, mostRecentlyConnectedDevicesOrdered.get(0));
+        Assert.assertEquals(mTestDevice2, mostRecentlyConnectedDevicesOrdered.get(1));
+        Assert.assertEquals(mTestDevice, mDatabaseManager.getMostRecentlyConnectedA2dpDevice());
+
+        // Disconnecting keeps the order but clears the active a2dp device
+        mDatabaseManager.setDisconnection(mTestDevice);
+        mostRecentlyConnectedDevicesOrdered = mDatabaseManager.getMostRecentlyConnectedDevices();
+        Assert.assertEquals(2, mostRecentlyConnectedDevicesOrdered.size());
+        Assert.assertEquals(mTestDevice, mostRecentlyConnectedDevicesOrdered.get(0));
+        Assert.assertNull(mDatabaseManager.getMostRecentlyConnectedA2dpDevice());
+
+        // Removing the bond of the active a2dp device drops it from both
+        mDatabaseManager.setConnection(mTestDevice2, true);
+        Assert.assertEquals(mTestDevice2, mDatabaseManager.getMostRecentlyConnectedA2dpDevice());
+        mDatabaseManager.bondStateChanged(mTestDevice2, BluetoothDevice.BOND_NONE);
+        mostRecentlyConnectedDevicesOrdered = mDatabaseManager.getMostRecentlyConnectedDevices();
+        Assert.assertEquals(1, mostRecentlyConnectedDevicesOrdered.size());
+        Assert.assertEquals(mTestDevice, mostRecentlyConnectedDevicesOrdered.get(0));
+        Assert.assertNull(mDatabaseManager.getMostRecentlyConnectedA2dpDevice());
+
+        // Wait for database update
+        TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
+        mDatabaseManager.mMetadataCache.clear();
+    }
+
     void testSetGetProfileConnectionPolicyCase(boolean stored, int connectionPolicy,
             int expectedConnectionPolicy, boolean expectedSetResult) {
         if (stored) {
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.bluetooth.le.ScanResult;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test cases for {@link BatchScanReportParser}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BatchScanReportParserTest {
+
+    private static final long NOW_NANOS = TimeUnit.SECONDS.toNanos(1000);
+    private static final int NUM_RECORDS = 4000;
+
+    @Test
+    public void parseTruncatedResults() {
+        byte[] report = new byte[] {
+                // Address in reverse order, address type, tx power, rssi, timestamp.
+                0x66, 0x55, 0x44, 0x33, 0x22, 0x11, 0x00, 0x00, (byte) 0xc6, 0x02, 0x00};
+
+        List<ScanResult> results =
+                BatchScanReportParser.parseTruncatedResults(1, report, NOW_NANOS);
+
+        assertThat(results).hasSize(1);
+        ScanResult result = results.get(0);
+        assertThat(result.getDevice().getAddress()).isEqualTo("11:22:33:44:55:66");
+        assertThat(result.getRssi()).isEqualTo(-58);
+        assertThat(result.getTimestampNanos())
+                .isEqualTo(NOW_NANOS - TimeUnit.MILLISECONDS.toNanos(100));
+        assertThat(result.getScanRecord().getBytes()).isEmpty();
+    }
+
+    @Test
+    public void parseFullResults() {
+        byte[] advertisement = new byte[] {0x02, 0x01, 0x06};
+        byte[] scanResponse = new byte[] {0x04, 0x09, 0x50, 0x65, 0x64};
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        writeFullRecord(report, 1, 0, -60, advertisement, scanResponse);
+
+        List<ScanResult> results =
+                BatchScanReportParser.parseFullResults(report.toByteArray(), NOW_NANOS);
+
+        assertThat(results).hasSize(1);
+        ScanResult result = results.get(0);
+        assertThat(result.getDevice().getAddress()).isEqualTo("00:00:00:00:00:01");
+        assertThat(result.getRssi()).isEqualTo(-60);
+        assertThat(result.getScanRecord().getAdvertiseFlags()).isEqualTo(0x06);
+        assertThat(result.getScanRecord().getDeviceName()).isEqualTo("Ped");
+    }
+
+    @Test
+    public void parseFullResults_repeatedRecordIsDeliveredOnce() {
+        byte[] advertisement = new byte[] {0x02, 0x01, 0x06};
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        writeFullRecord(report, 1, 3, -60, advertisement, new byte[0]);
+        writeFullRecord(report, 1, 3, -60, advertisement, new byte[0]);
+        // Same address and timestamp, but a different RSSI.
+        writeFullRecord(report, 1, 3, -70, advertisement, new byte[0]);
+        // Same address and data, but a different timestamp.
+        writeFullRecord(report, 1, 4, -60, advertisement, new byte[0]);
+
+        List<ScanResult> results =
+                BatchScanReportParser.parseFullResults(report.toByteArray(), NOW_NANOS);
+
+        assertThat(results).hasSize(3);
+        assertThat(results.get(0).getDevice()).isSameInstanceAs(results.get(1).getDevice());
+    }
+
+    @Test
+    public void parseFullResults_discardsTruncatedRecord() {
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        writeFullRecord(report, 1, 0, -60, new byte[] {0x02, 0x01, 0x06}, new byte[0]);
+        byte[] bytes = report.toByteArray();
+        byte[] truncated = new byte[bytes.length * 2 - 2];
+        System.arraycopy(bytes, 0, truncated, 0, bytes.length);
+        System.arraycopy(bytes, 0, truncated, bytes.length, bytes.length - 2);
+
+        assertThat(BatchScanReportParser.parseFullResults(truncated, NOW_NANOS)).hasSize(1);
+    }
+
+    @Test
+    public void parseSyntheticReport() {
+        byte[] truncated = new byte[NUM_RECORDS * BatchScanReportParser.TRUNCATED_RESULT_SIZE];
+        ByteArrayOutputStream full = new ByteArrayOutputStream();
+        byte[] advertisement = new byte[] {
+                0x02, 0x01, 0x06, 0x05, (byte) 0xff, (byte) 0xe0, 0x00, 0x02, 0x15};
+        for (int i = 0; i < NUM_RECORDS; i++) {
+            // 500 distinct devices, each reported in 8 different 50 ms slots.
+            int address = i % 500;
+            int timestamp = i / 500;
+            int position = i * BatchScanReportParser.TRUNCATED_RESULT_SIZE;
+            truncated[position] = (byte) address;
+            truncated[position + 1] = (byte) (address >> 8);
+            truncated[position + 8] = (byte) -50;
+            truncated[position + 9] = (byte) timestamp;
+            writeFullRecord(full, address, timestamp, -50, advertisement, new byte[0]);
+        }
+
+        assertThat(BatchScanReportParser.parseTruncatedResults(NUM_RECORDS, truncated, NOW_NANOS))
+                .hasSize(NUM_RECORDS);
+        assertThat(BatchScanReportParser.parseFullResults(full.toByteArray(), NOW_NANOS))
+                .hasSize(NUM_RECORDS);
+    }
+
+    private static void writeFullRecord(ByteArrayOutputStream report, int address,
+            int timestamp, int rssi, byte[] advertisement, byte[] scanResponse) {
+        // Address in reverse order, address type, tx power, rssi, timestamp.
+        report.write(address);
+        report.write(address >> 8);
+        report.write(new byte[4], 0, 4);
+        report.write(0);
+        report.write(0);
+        report.write(rssi);
+        report.write(timestamp);
+        report.write(timestamp >> 8);
+        report.write(advertisement.length);
+        report.write(advertisement, 0, advertisement.length);
+        report.write(scanResponse.length);
+        report.write(scanResponse, 0, scanResponse.length);
+    }
+}
@@ -113,6 +113,68 @@ public class ContextMapTest {
         assertThat(contextMapByName.name).isEqualTo(appName);
     }
 
+    @Test
+    public void getByUuidAndId_afterIdAssigned() {
+        ContextMap contextMap = new ContextMap<>();
+
+        UUID uuid = UUID.randomUUID();
+        ContextMap.App app = contextMap.add(uuid, null, null, null, mService);
+        assertThat(contextMap.getByUuid(uuid)).isSameInstanceAs(app);
+
+        app.id = 7;
+        assertThat(contextMap.getById(7)).isSameInstanceAs(app);
+
+        contextMap.remove(uuid);
+        assertThat(contextMap.getByUuid(uuid)).isNull();
+        assertThat(contextMap.getById(7)).isNull();
+    }
+
+    @Test
+    public void connectionIndexes() {
+        ContextMap contextMap = new ContextMap<>();
+
+        ContextMap.App app = contextMap.add(UUID.randomUUID(), null, null, null, mService);
+        app.id = 3;
+        contextMap.addConnection(3, 10, "00:01:02:03:04:05");
+        contextMap.addConnection(3, 11, "00:01:02:03:04:06");
+
+        assertThat(contextMap.getByConnId(10)).isSameInstanceAs(app);
+        assertThat(contextMap.addressByConnId(11)).isEqualTo("00:01:02:03:04:06");
+        assertThat(contextMap.connIdByAddress(3, "00:01:02:03:04:05")).isEqualTo(10);
+        assertThat(contextMap.getConnectionByApp(3)).hasSize(2);
+        assertThat(contextMap.getConnectedDevices()).hasSize(2);
+
+        contextMap.removeConnection(3, 10);
+        assertThat(contextMap.getByConnId(10)).isNull();
+        assertThat(contextMap.connIdByAddress(3, "00:01:02:03:04:05")).isNull();
+
+        contextMap.removeConnectionsByAppId(3);
+        assertThat(contextMap.addressByConnId(11)).isNull();
+        assertThat(contextMap.getConnectionByApp(3)).isEmpty();
+    }
+
+    @Test
+    public void connectionIndexes_duplicateConnection() {
+        ContextMap contextMap = new ContextMap<>();
+
+        ContextMap.App app = contextMap.add(UUID.randomUUID(), null, null, null, mService);
+        app.id = 3;
+        contextMap.addConnection(3, 10, "00:01:02:03:04:05");
+        contextMap.addConnection(3, 11, "00:01:02:03:04:05");
+
+        assertThat(contextMap.getConnectionByApp(3)).hasSize(2);
+        assertThat(contextMap.connIdByAddress(3, "00:01:02:03:04:05")).isAnyOf(10, 11);
+
+        contextMap.removeConnection(3, 10);
+        assertThat(contextMap.getConnectionByApp(3)).hasSize(1);
+        assertThat(contextMap.connIdByAddress(3, "00:01:02:03:04:05")).isEqualTo(11);
+        assertThat(contextMap.getByConnId(11)).isSameInstanceAs(app);
+
+        contextMap.addConnection(3, 10, "00:01:02:03:04:05");
+        contextMap.removeConnection(3, 11);
+        assertThat(contextMap.connIdByAddress(3, "00:01:02:03:04:05")).isEqualTo(10);
+    }
+
     @Test
     public void advertisingSetAndData() {
         ContextMap contextMap = new ContextMap<>();
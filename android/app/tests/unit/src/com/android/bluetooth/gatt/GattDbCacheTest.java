@@ -0,0 +1,99 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Test cases for {@link GattDbCache}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class GattDbCacheTest {
+
+    private static final String ADDRESS = "00:01:02:03:04:05";
+    private static final UUID SERVICE_UUID =
+            UUID.fromString("0000180D-0000-1000-8000-00805F9B34FB");
+    private static final UUID CHARACTERISTIC_UUID =
+            UUID.fromString("00002A37-0000-1000-8000-00805F9B34FB");
+
+    @Test
+    public void get_sameDatabaseHitsCache() {
+        GattDbCache cache = new GattDbCache();
+        cache.put(ADDRESS, newDb(3), Collections.singleton(3));
+
+        assertThat(cache.get(ADDRESS, newDb(3))).containsExactly(3);
+    }
+
+    @Test
+    public void get_changedDatabaseMisses() {
+        GattDbCache cache = new GattDbCache();
+        cache.put(ADDRESS, newDb(3), Collections.emptySet());
+
+        assertThat(cache.get(ADDRESS, newDb(4))).isNull();
+
+        List<GattDbElement> db = newDb(3);
+        db.get(1).properties = 0x10;
+        assertThat(cache.get(ADDRESS, db)).isNull();
+
+        db = newDb(3);
+        db.remove(1);
+        assertThat(cache.get(ADDRESS, db)).isNull();
+    }
+
+    @Test
+    public void get_otherAddressMisses() {
+        GattDbCache cache = new GattDbCache();
+        cache.put(ADDRESS, newDb(3), Collections.emptySet());
+
+        assertThat(cache.get("00:01:02:03:04:06", newDb(3))).isNull();
+        assertThat(cache.get(null, newDb(3))).isNull();
+    }
+
+    @Test
+    public void clear_dropsEntries() {
+        GattDbCache cache = new GattDbCache();
+        cache.put(ADDRESS, newDb(3), Collections.emptySet());
+
+        cache.clear();
+
+        assertThat(cache.get(ADDRESS, newDb(3))).isNull();
+    }
+
+    private static List<GattDbElement> newDb(int characteristicHandle) {
+        List<GattDbElement> db = new ArrayList<>();
+        GattDbElement service = GattDbElement.createPrimaryService(SERVICE_UUID);
+        service.id = 1;
+        db.add(service);
+        GattDbElement characteristic =
+                GattDbElement.createCharacteristic(CHARACTERISTIC_UUID, 0x12, 0);
+        characteristic.id = characteristicHandle;
+        db.add(characteristic);
+        return db;
+    }
+}
@@ -64,6 +64,7 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
@@ -306,6 +307,48 @@ public class GattServiceTest {
         verify(callback).onBatchScanResults(any());
     }
 
+    @Test
+    public void onScanResultInternal_sharesResultAcrossClients() throws RemoteException {
+        int eventType = 0x1b;
+        String address = "02:00:00:00:00:00";
+        byte[] advData = new byte[62];
+        advData[0] = 0x02;
+        advData[1] = 0x01;
+        advData[2] = 0x1a;
+
+        Set<ScanClient> scanClientSet = new HashSet<>();
+        List<IScannerCallback> callbacks = new ArrayList<>();
+        for (int scannerId = 1; scannerId <= 3; scannerId++) {
+            ScanClient scanClient = new ScanClient(scannerId);
+            scanClient.hasNetworkSettingsPermission = true;
+            scanClient.associatedDevices = new ArrayList<>();
+            scanClientSet.add(scanClient);
+
+            GattService.ScannerMap.App app = mock(GattService.ScannerMap.App.class);
+            app.appScanStats = mock(AppScanStats.class);
+            app.callback = mock(IScannerCallback.class);
+            callbacks.add(app.callback);
+            doReturn(app).when(mScannerMap).getById(scannerId);
+        }
+        doReturn(scanClientSet).when(mScanManager).getRegularScanQueue();
+        doReturn(address).when(mAdapterService).getIdentityAddress(address);
+
+        mService.onScanResultInternal(eventType, 0x1, address, 1, 0, 0xff, 127, -54, 0x0,
+                advData, address);
+
+        ScanResult delivered = null;
+        for (IScannerCallback callback : callbacks) {
+            ArgumentCaptor<ScanResult> captor = ArgumentCaptor.forClass(ScanResult.class);
+            verify(callback).onScanResult(captor.capture());
+            if (delivered == null) {
+                delivered = captor.getValue();
+            }
+            assertThat(captor.getValue()).isSameInstanceAs(delivered);
+        }
+        assertThat(delivered.getDevice().getAddress()).isEqualTo(address);
+        assertThat(delivered.getScanRecord().getAdvertiseFlags()).isEqualTo(0x1a);
+    }
+
     @Test
     public void disconnectAll() {
         Map<Integer, String> connMap = new HashMap<>();
@@ -755,4 +798,48 @@ public class GattServiceTest {
     public void cleanUp_doesNotCrash() {
         mService.cleanup();
     }
+
+    @Test
+    public void onGetGattDb_givesEachClientItsOwnServices() throws Exception {
+        int connId1 = 1;
+        int connId2 = 2;
+        GattService.ClientMap.App app1 = mock(GattService.ClientMap.App.class);
+        app1.callback = mock(IBluetoothGattCallback.class);
+        GattService.ClientMap.App app2 = mock(GattService.ClientMap.App.class);
+        app2.callback = mock(IBluetoothGattCallback.class);
+        doReturn(REMOTE_DEVICE_ADDRESS).when(mClientMap).addressByConnId(anyInt());
+        doReturn(app1).when(mClientMap).getByConnId(connId1);
+        doReturn(app2).when(mClientMap).getByConnId(connId2);
+
+        // The second client of the device gets the cached database.
+        mService.onGetGattDb(connId1, newGattDb());
+        mService.onGetGattDb(connId2, newGattDb());
+
+        ArgumentCaptor<List<BluetoothGattService>> services1 = ArgumentCaptor.forClass(List.class);
+        verify(app1.callback).onSearchComplete(eq(REMOTE_DEVICE_ADDRESS), services1.capture(),
+                eq(0));
+        ArgumentCaptor<List<BluetoothGattService>> services2 = ArgumentCaptor.forClass(List.class);
+        verify(app2.callback).onSearchComplete(eq(REMOTE_DEVICE_ADDRESS), services2.capture(),
+                eq(0));
+        BluetoothGattService service1 = services1.getValue().get(0);
+        BluetoothGattService service2 = services2.getValue().get(0);
+        assertThat(service2).isNotSameInstanceAs(service1);
+
+        // An in-process client stores values in the characteristics it was given.
+        service1.getCharacteristics().get(0).setValue(new byte[] {1});
+        assertThat(service2.getCharacteristics().get(0).getValue()).isNull();
+    }
+
+    private static ArrayList<GattDbElement> newGattDb() {
+        ArrayList<GattDbElement> db = new ArrayList<>();
+        GattDbElement service = GattDbElement.createPrimaryService(
+                UUID.fromString("0000180F-0000-1000-8000-00805F9B34FB"));
+        service.id = 1;
+        db.add(service);
+        GattDbElement characteristic = GattDbElement.createCharacteristic(
+                UUID.fromString("00002A19-0000-1000-8000-00805F9B34FB"), 0x12, 0);
+        characteristic.id = 3;
+        db.add(characteristic);
+        return db;
+    }
 }
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import android.bluetooth.IBluetoothGattCallback;
+import android.os.test.TestLooper;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test cases for {@link NotificationBatcher}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class NotificationBatcherTest {
+
+    private static final String ADDRESS = "00:01:02:03:04:05";
+    private static final int CONN_ID = 3;
+    private static final long WINDOW_MILLIS = 5;
+
+    @Mock
+    private IBluetoothGattCallback mCallback;
+
+    private TestLooper mLooper;
+    private NotificationBatcher mBatcher;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        mLooper = new TestLooper();
+        mBatcher = new NotificationBatcher(mLooper.getLooper());
+    }
+
+    @Test
+    public void add_deliversBatchInOrderAfterWindow() throws Exception {
+        mBatcher.add(CONN_ID, ADDRESS, mCallback, 10, new byte[] {1}, WINDOW_MILLIS, 32);
+        mBatcher.add(CONN_ID, ADDRESS, mCallback, 12, new byte[] {2, 3}, WINDOW_MILLIS, 32);
+        mLooper.dispatchAll();
+        verify(mCallback, never()).onNotifyBatch(anyString(), any(), any(), any());
+
+        mLooper.moveTimeForward(WINDOW_MILLIS);
+        mLooper.dispatchAll();
+
+        verify(mCallback).onNotifyBatch(ADDRESS, new int[] {10, 12}, new int[] {1, 2},
+                new byte[] {1, 2, 3});
+    }
+
+    @Test
+    public void add_deliversImmediatelyWhenFull() throws Exception {
+        mBatcher.add(CONN_ID, ADDRESS, mCallback, 10, new byte[] {1}, WINDOW_MILLIS, 2);
+        mBatcher.add(CONN_ID, ADDRESS, mCallback, 10, new byte[] {2}, WINDOW_MILLIS, 2);
+
+        verify(mCallback).onNotifyBatch(ADDRESS, new int[] {10, 10}, new int[] {1, 1},
+                new byte[] {1, 2});
+    }
+
+    @Test
+    public void flush_singleNotificationUsesOnNotify() throws Exception {
+        mBatcher.add(CONN_ID, ADDRESS, mCallback, 10, new byte[] {1}, WINDOW_MILLIS, 32);
+
+        mBatcher.flush(CONN_ID);
+        mBatcher.flush(CONN_ID);
+
+        verify(mCallback).onNotify(ADDRESS, 10, new byte[] {1});
+        verify(mCallback, never()).onNotifyBatch(anyString(), any(), any(), any());
+    }
+
+    @Test
+    public void removeConnection_deliversPendingAndForgetsPermissions() throws Exception {
+        mBatcher.setPermitted(CONN_ID, 10);
+        mBatcher.add(CONN_ID, ADDRESS, mCallback, 10, new byte[] {1}, WINDOW_MILLIS, 32);
+        assertThat(mBatcher.isPermitted(CONN_ID, 10)).isTrue();
+
+        mBatcher.removeConnection(CONN_ID);
+
+        verify(mCallback).onNotify(ADDRESS, 10, new byte[] {1});
+        assertThat(mBatcher.isPermitted(CONN_ID, 10)).isFalse();
+        mLooper.moveTimeForward(WINDOW_MILLIS);
+        mLooper.dispatchAll();
+        verify(mCallback).onNotify(anyString(), anyInt(), any());
+    }
+
+    @Test
+    public void add_appliesConfigChangesToExistingQueue() throws Exception {
+        mBatcher.add(CONN_ID, ADDRESS, mCallback, 10, new byte[] {1}, WINDOW_MILLIS, 32);
+        mBatcher.flush(CONN_ID);
+
+        mBatcher.add(CONN_ID, ADDRESS, mCallback, 10, new byte[] {2}, WINDOW_MILLIS, 2);
+        mBatcher.add(CONN_ID, ADDRESS, mCallback, 12, new byte[] {3}, WINDOW_MILLIS, 2);
+
+        verify(mCallback).onNotifyBatch(ADDRESS, new int[] {10, 12}, new int[] {1, 1},
+                new byte[] {2, 3});
+    }
+
+    @Test
+    public void flush_doesNotBlockOtherConnectionsWhileDelivering() throws Exception {
+        Thread other = new Thread(() -> mBatcher.add(CONN_ID + 1, ADDRESS, mCallback, 10,
+                new byte[] {1}, WINDOW_MILLIS, 32));
+        doAnswer(invocation -> {
+            other.start();
+            other.join(TimeUnit.SECONDS.toMillis(1));
+            assertThat(other.isAlive()).isFalse();
+            return null;
+        }).when(mCallback).onNotify(ADDRESS, 10, new byte[] {2});
+        mBatcher.add(CONN_ID, ADDRESS, mCallback, 10, new byte[] {2}, WINDOW_MILLIS, 32);
+
+        mBatcher.flush(CONN_ID);
+
+        verify(mCallback).onNotify(ADDRESS, 10, new byte[] {2});
+        assertThat(other.isAlive()).isFalse();
+    }
+}
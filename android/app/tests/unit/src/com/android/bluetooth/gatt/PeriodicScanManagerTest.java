@@ -0,0 +1,348 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.IPeriodicAdvertisingCallback;
+import android.bluetooth.le.PeriodicAdvertisingReport;
+import android.bluetooth.le.ScanResult;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.Log;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.bluetooth.TestUtils;
+import com.android.bluetooth.btservice.AdapterService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+/**
+ * Test cases for {@link PeriodicScanManager}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class PeriodicScanManagerTest {
+    private static final String TAG = "PeriodicScanManagerTest";
+
+    private static final String ADDRESS = "00:01:02:03:04:05";
+    private static final int SID = 3;
+    private static final int SKIP = 0;
+    private static final int TIMEOUT = 100;
+    private static final int SYNC_HANDLE = 7;
+    private static final byte[] DATA = new byte[] {0x02, 0x01, 0x06};
+
+    @Mock
+    private AdapterService mAdapterService;
+
+    @Mock
+    private PeriodicScanManager.NativeInterface mNativeInterface;
+
+    @Mock
+    private IPeriodicAdvertisingCallback mCallback;
+
+    @Mock
+    private IBinder mBinder;
+
+    @Mock
+    private IPeriodicAdvertisingCallback mOtherCallback;
+
+    @Mock
+    private IBinder mOtherBinder;
+
+    private PeriodicScanManager mManager;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        TestUtils.setAdapterService(mAdapterService);
+
+        doReturn(mBinder).when(mCallback).asBinder();
+        doReturn(mOtherBinder).when(mOtherCallback).asBinder();
+
+        mManager = new PeriodicScanManager(mAdapterService, mNativeInterface);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mManager.cleanup();
+        TestUtils.clearAdapterService(mAdapterService);
+    }
+
+    @Test
+    public void onSyncReport_beforeSyncEstablished_isDropped() throws Exception {
+        startSync(mCallback);
+
+        mManager.onSyncReport(SYNC_HANDLE, 0, 0, 0, DATA);
+
+        verify(mCallback, never()).onPeriodicAdvertisingReport(any());
+    }
+
+    @Test
+    public void onSyncReport_afterSyncEstablished_isDelivered() throws Exception {
+        int regId = startSync(mCallback);
+
+        establishSync(regId);
+        mManager.onSyncReport(SYNC_HANDLE, 0, 0, 0, DATA);
+
+        verify(mCallback).onSyncEstablished(eq(SYNC_HANDLE), any(), eq(SID), eq(SKIP),
+                eq(TIMEOUT), eq(0));
+        verify(mCallback).onPeriodicAdvertisingReport(any());
+    }
+
+    @Test
+    public void onSyncReport_ofOtherHandle_isDropped() throws Exception {
+        establishSync(startSync(mCallback));
+
+        mManager.onSyncReport(SYNC_HANDLE + 1, 0, 0, 0, DATA);
+
+        verify(mCallback, never()).onPeriodicAdvertisingReport(any());
+    }
+
+    @Test
+    public void onSyncReport_sharedSync_isDeliveredToAllClients() throws Exception {
+        establishSync(startSync(mCallback));
+        startSync(mOtherCallback);
+
+        mManager.onSyncReport(SYNC_HANDLE, 0, 0, 0, DATA);
+
+        // The second client joins the established sync without a new native sync.
+        verify(mNativeInterface).startSync(anyInt(), anyString(), anyInt(), anyInt(), anyInt());
+        verify(mOtherCallback).onSyncEstablished(eq(SYNC_HANDLE), any(), eq(SID), eq(SKIP),
+                eq(TIMEOUT), eq(0));
+        verify(mCallback).onPeriodicAdvertisingReport(any());
+        verify(mOtherCallback).onPeriodicAdvertisingReport(any());
+    }
+
+    @Test
+    public void onSyncReport_pendingSharedSync_isDeliveredToAllClients() throws Exception {
+        int regId = startSync(mCallback);
+        startSync(mOtherCallback);
+
+        establishSync(regId);
+        mManager.onSyncReport(SYNC_HANDLE, 0, 0, 0, DATA);
+
+        verify(mCallback).onPeriodicAdvertisingReport(any());
+        verify(mOtherCallback).onPeriodicAdvertisingReport(any());
+    }
+
+    @Test
+    public void onSyncStarted_clientThrows_otherClientStillGetsReports() throws Exception {
+        int regId = startSync(mCallback);
+        startSync(mOtherCallback);
+        doThrow(new RemoteException()).when(mCallback).onSyncEstablished(anyInt(), any(),
+                anyInt(), anyInt(), anyInt(), anyInt());
+
+        establishSync(regId);
+        mManager.onSyncReport(SYNC_HANDLE, 0, 0, 0, DATA);
+
+        verify(mOtherCallback).onSyncEstablished(eq(SYNC_HANDLE), any(), eq(SID), eq(SKIP),
+                eq(TIMEOUT), eq(0));
+        verify(mOtherCallback).onPeriodicAdvertisingReport(any());
+    }
+
+    @Test
+    public void onSyncReport_clientThrows_otherClientStillGetsReports() throws Exception {
+        establishSync(startSync(mCallback));
+        startSync(mOtherCallback);
+        doThrow(new RemoteException()).when(mCallback).onPeriodicAdvertisingReport(any());
+        doThrow(new RemoteException()).when(mOtherCallback).onPeriodicAdvertisingReport(any());
+
+        mManager.onSyncReport(SYNC_HANDLE, 0, 0, 0, DATA);
+
+        verify(mCallback).onPeriodicAdvertisingReport(any());
+        verify(mOtherCallback).onPeriodicAdvertisingReport(any());
+    }
+
+    @Test
+    public void onSyncStarted_failure_removesPendingClients() throws Exception {
+        int regId = startSync(mCallback);
+
+        mManager.onSyncStarted(regId, SYNC_HANDLE, SID, 0, ADDRESS, 1, 0, 1 /* failure */);
+        mManager.onSyncReport(SYNC_HANDLE, 0, 0, 0, DATA);
+        mManager.onSyncReport(regId, 0, 0, 0, DATA);
+
+        verify(mCallback).onSyncEstablished(eq(SYNC_HANDLE), any(), eq(SID), eq(SKIP),
+                eq(TIMEOUT), eq(1));
+        verify(mCallback, never()).onPeriodicAdvertisingReport(any());
+        assertThat(mManager.mSyncs).isEmpty();
+    }
+
+    @Test
+    public void stopSync_sharedSync_keepsOtherClientAndNativeSync() throws Exception {
+        establishSync(startSync(mCallback));
+        startSync(mOtherCallback);
+
+        mManager.stopSync(mCallback);
+        mManager.onSyncReport(SYNC_HANDLE, 0, 0, 0, DATA);
+
+        verify(mNativeInterface, never()).stopSync(anyInt());
+        verify(mCallback, never()).onPeriodicAdvertisingReport(any());
+        verify(mOtherCallback).onPeriodicAdvertisingReport(any());
+    }
+
+    @Test
+    public void stopSync_lastClient_stopsNativeSync() throws Exception {
+        establishSync(startSync(mCallback));
+        startSync(mOtherCallback);
+
+        mManager.stopSync(mCallback);
+        mManager.stopSync(mOtherCallback);
+        mManager.onSyncReport(SYNC_HANDLE, 0, 0, 0, DATA);
+
+        verify(mNativeInterface).stopSync(SYNC_HANDLE);
+        verify(mCallback, never()).onPeriodicAdvertisingReport(any());
+        verify(mOtherCallback, never()).onPeriodicAdvertisingReport(any());
+    }
+
+    @Test
+    public void stopSync_pendingSync_cancelsNativeSync() throws Exception {
+        int regId = startSync(mCallback);
+
+        mManager.stopSync(mCallback);
+        mManager.onSyncReport(regId, 0, 0, 0, DATA);
+
+        verify(mNativeInterface).cancelSync(SID, ADDRESS);
+        verify(mCallback, never()).onPeriodicAdvertisingReport(any());
+    }
+
+    @Test
+    public void onSyncLost_notifiesAllClientsAndDropsReports() throws Exception {
+        establishSync(startSync(mCallback));
+        startSync(mOtherCallback);
+        doThrow(new RemoteException()).when(mCallback).onSyncLost(anyInt());
+
+        mManager.onSyncLost(SYNC_HANDLE);
+        mManager.onSyncReport(SYNC_HANDLE, 0, 0, 0, DATA);
+
+        verify(mCallback).onSyncLost(SYNC_HANDLE);
+        verify(mOtherCallback).onSyncLost(SYNC_HANDLE);
+        verify(mCallback, never()).onPeriodicAdvertisingReport(any());
+        verify(mOtherCallback, never()).onPeriodicAdvertisingReport(any());
+        assertThat(mManager.mSyncs).isEmpty();
+    }
+
+    @Test
+    public void transferSync_keepsDeliveringReports() throws Exception {
+        establishSync(startSync(mCallback));
+        BluetoothDevice peer =
+                BluetoothAdapter.getDefaultAdapter().getRemoteDevice("00:11:22:33:44:55");
+
+        mManager.transferSync(peer, 0, SYNC_HANDLE);
+        mManager.onSyncTransferredCallback(2, 0, peer.getAddress());
+        mManager.onSyncReport(SYNC_HANDLE, 0, 0, 0, DATA);
+
+        verify(mNativeInterface).syncTransfer(anyInt(), eq(peer.getAddress()), eq(0),
+                eq(SYNC_HANDLE));
+        verify(mCallback).onSyncTransferred(peer, 0);
+        verify(mCallback).onPeriodicAdvertisingReport(any());
+    }
+
+    /**
+     * Measures report dispatch with 1 to 16 concurrent syncs, each with one client. Run it on
+     * its own to compare changes to the report path; the result is logged.
+     */
+    @Test
+    @LargeTest
+    public void onSyncReport_benchmark() throws Exception {
+        final int reportsPerSync = 2000;
+        for (int syncs = 1; syncs <= 16; syncs *= 2) {
+            PeriodicScanManager manager =
+                    new PeriodicScanManager(mAdapterService, mNativeInterface);
+            CountingCallback[] callbacks = new CountingCallback[syncs];
+            for (int i = 0; i < syncs; i++) {
+                callbacks[i] = new CountingCallback();
+                manager.startSync(newScanResult(String.format("00:01:02:03:04:%02X", i)),
+                        SKIP, TIMEOUT, callbacks[i]);
+                manager.onSyncStarted(PeriodicScanManager.sTempRegistrationId, i, SID, 0,
+                        String.format("00:01:02:03:04:%02X", i), 1, 0, 0);
+            }
+
+            long start = System.nanoTime();
+            for (int n = 0; n < reportsPerSync; n++) {
+                for (int i = 0; i < syncs; i++) {
+                    manager.onSyncReport(i, 0, 0, 0, DATA);
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            Log.i(TAG, "onSyncReport: " + syncs + " syncs, "
+                    + elapsed / ((long) reportsPerSync * syncs) + " ns/report");
+
+            for (CountingCallback callback : callbacks) {
+                assertThat(callback.mReports).isEqualTo(reportsPerSync);
+            }
+            manager.cleanup();
+        }
+    }
+
+    private int startSync(IPeriodicAdvertisingCallback callback) {
+        mManager.startSync(newScanResult(ADDRESS), SKIP, TIMEOUT, callback);
+        ArgumentCaptor<Integer> regId = ArgumentCaptor.forClass(Integer.class);
+        verify(mNativeInterface).startSync(eq(SID), eq(ADDRESS), eq(SKIP), eq(TIMEOUT),
+                regId.capture());
+        return regId.getValue();
+    }
+
+    private void establishSync(int regId) throws Exception {
+        mManager.onSyncStarted(regId, SYNC_HANDLE, SID, 0, ADDRESS, 1, 0, 0);
+    }
+
+    private static ScanResult newScanResult(String address) {
+        BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
+        return new ScanResult(device, 0, 1, 0, SID, 0, -50, 0, null, 0);
+    }
+
+    private static class CountingCallback extends IPeriodicAdvertisingCallback.Stub {
+        int mReports;
+
+        @Override
+        public void onSyncEstablished(int syncHandle, BluetoothDevice device, int advertisingSid,
+                int skip, int timeout, int status) {}
+
+        @Override
+        public void onPeriodicAdvertisingReport(PeriodicAdvertisingReport report) {
+            mReports++;
+        }
+
+        @Override
+        public void onSyncLost(int syncHandle) {}
+
+        @Override
+        public void onSyncTransferred(BluetoothDevice device, int status) {}
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.os.ParcelUuid;
+import android.util.SparseBooleanArray;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Test cases for {@link ScanFilterIndex}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ScanFilterIndexTest {
+
+    private static final String ADDRESS = "02:11:22:33:44:55";
+    private static final String OTHER_ADDRESS = "02:66:77:88:99:AA";
+    private static final int MANUFACTURER_ID = 0x00E0;
+    private static final ParcelUuid HEART_RATE_UUID =
+            ParcelUuid.fromString("0000180D-0000-1000-8000-00805F9B34FB");
+
+    // Manufacturer data for MANUFACTURER_ID followed by the 16-bit heart rate service UUID.
+    private static final byte[] ADV_DATA = new byte[] {
+            0x05, (byte) 0xFF, (byte) 0xE0, 0x00, 0x01, 0x02,
+            0x03, 0x03, 0x0D, 0x18};
+
+    @Test
+    public void match_byIndexedFields() {
+        ScanFilterIndex index = new ScanFilterIndex();
+        index.addClient(newClient(1, new ScanFilter.Builder().setDeviceAddress(ADDRESS).build()));
+        index.addClient(newClient(2,
+                new ScanFilter.Builder().setManufacturerData(MANUFACTURER_ID, new byte[0])
+                        .build()));
+        index.addClient(newClient(3,
+                new ScanFilter.Builder().setServiceUuid(HEART_RATE_UUID).build()));
+        index.addClient(newClient(4,
+                new ScanFilter.Builder().setDeviceAddress(OTHER_ADDRESS).build()));
+        index.addClient(newClient(5,
+                new ScanFilter.Builder().setManufacturerData(MANUFACTURER_ID + 1, new byte[0])
+                        .build()));
+
+        SparseBooleanArray matched = index.match(newResult(ADDRESS), null);
+
+        assertThat(matched.get(1)).isTrue();
+        assertThat(matched.get(2)).isTrue();
+        assertThat(matched.get(3)).isTrue();
+        assertThat(matched.get(4)).isFalse();
+        assertThat(matched.get(5)).isFalse();
+    }
+
+    @Test
+    public void match_unindexedFilterIsAlwaysEvaluated() {
+        ScanFilterIndex index = new ScanFilterIndex();
+        index.addClient(newClient(1, new ScanFilter.Builder().setDeviceName("name").build()));
+        index.addClient(newClient(2, new ScanFilter.Builder().build()));
+
+        SparseBooleanArray matched = index.match(newResult(ADDRESS), null);
+
+        assertThat(matched.get(1)).isFalse();
+        assertThat(matched.get(2)).isTrue();
+    }
+
+    @Test
+    public void match_originalAddress() {
+        ScanFilterIndex index = new ScanFilterIndex();
+        index.addClient(newClient(1,
+                new ScanFilter.Builder().setDeviceAddress(OTHER_ADDRESS).build()));
+
+        assertThat(index.match(newResult(ADDRESS), null).get(1)).isFalse();
+        assertThat(index.match(newResult(ADDRESS), OTHER_ADDRESS.toLowerCase()).get(1)).isTrue();
+    }
+
+    @Test
+    public void removeClient_dropsFilters() {
+        ScanFilterIndex index = new ScanFilterIndex();
+        ScanClient client = newClient(1,
+                new ScanFilter.Builder().setDeviceAddress(ADDRESS).build(),
+                new ScanFilter.Builder().setServiceUuid(HEART_RATE_UUID).build());
+        index.addClient(client);
+        assertThat(index.contains(1)).isTrue();
+
+        index.removeClient(client);
+
+        assertThat(index.contains(1)).isFalse();
+        assertThat(index.match(newResult(ADDRESS), null).size()).isEqualTo(0);
+    }
+
+    @Test
+    public void addClient_withoutFiltersIsNotIndexed() {
+        ScanFilterIndex index = new ScanFilterIndex();
+        ScanClient client = new ScanClient(1);
+        client.filters = Collections.emptyList();
+
+        index.addClient(client);
+
+        assertThat(index.contains(1)).isFalse();
+    }
+
+    private static ScanClient newClient(int scannerId, ScanFilter... filters) {
+        ScanClient client = new ScanClient(scannerId);
+        client.filters = Arrays.asList(filters);
+        return client;
+    }
+
+    private static ScanResult newResult(String address) {
+        BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
+        return new ScanResult(device, 0x1b, 1, 0, 0xff, 127, -54, 0,
+                ScanRecord.parseFromBytes(ADV_DATA), 0);
+    }
+}
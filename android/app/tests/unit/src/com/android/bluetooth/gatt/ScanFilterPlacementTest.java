@@ -0,0 +1,176 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.os.ParcelUuid;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test cases for {@link ScanFilterPlacement}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ScanFilterPlacementTest {
+
+    private static final int MANUFACTURER_ID = 0x004C;
+    private static final ParcelUuid SERVICE_UUID =
+            ParcelUuid.fromString("0000FEAA-0000-1000-8000-00805F9B34FB");
+
+    @Test
+    public void place_filtersThatFitAreKept() {
+        List<ScanFilter> filters = new ArrayList<>();
+        filters.add(tagFilter(1));
+        filters.add(tagFilter(2));
+
+        assertThat(ScanFilterPlacement.place(filters, 2)).containsExactlyElementsIn(filters);
+    }
+
+    @Test
+    public void place_duplicateFiltersUseOneIndex() {
+        List<ScanFilter> filters = new ArrayList<>();
+        filters.add(tagFilter(1));
+        filters.add(tagFilter(1));
+
+        assertThat(ScanFilterPlacement.place(filters, 1)).containsExactly(tagFilter(1));
+    }
+
+    @Test
+    public void place_largestGroupIsMerged() {
+        List<ScanFilter> filters = new ArrayList<>();
+        ScanFilter nameFilter = new ScanFilter.Builder().setDeviceName("Tag").build();
+        ScanFilter serviceFilter = new ScanFilter.Builder()
+                .setDeviceAddress("00:11:22:33:44:55").setServiceUuid(SERVICE_UUID).build();
+        filters.add(nameFilter);
+        filters.add(serviceFilter);
+        for (int i = 0; i < 100; i++) {
+            filters.add(tagFilter(i));
+        }
+
+        List<ScanFilter> placed = ScanFilterPlacement.place(filters, 3);
+
+        assertThat(placed).containsExactly(nameFilter, serviceFilter,
+                new ScanFilter.Builder().setManufacturerData(MANUFACTURER_ID, new byte[0])
+                        .build());
+    }
+
+    @Test
+    public void place_unmergeableFiltersDoNotFit() {
+        List<ScanFilter> filters = new ArrayList<>();
+        filters.add(new ScanFilter.Builder().setDeviceAddress("00:11:22:33:44:55").build());
+        filters.add(new ScanFilter.Builder().setDeviceAddress("00:11:22:33:44:66").build());
+
+        assertThat(ScanFilterPlacement.place(filters, 1)).isNull();
+    }
+
+    @Test
+    public void place_installedFiltersTakeNoIndex() {
+        List<ScanFilter> filters = new ArrayList<>();
+        filters.add(tagFilter(1));
+        filters.add(tagFilter(2));
+        filters.add(tagFilter(3));
+
+        // Only tagFilter(3) needs a new index.
+        assertThat(ScanFilterPlacement.place(filters, 1,
+                filter -> filter.equals(tagFilter(1)) || filter.equals(tagFilter(2))))
+                .containsExactlyElementsIn(filters);
+    }
+
+    @Test
+    public void place_mergesIntoInstalledFilter() {
+        ScanFilter merged =
+                new ScanFilter.Builder().setManufacturerData(MANUFACTURER_ID, new byte[0]).build();
+        List<ScanFilter> filters = new ArrayList<>();
+        ScanFilter nameFilter = new ScanFilter.Builder().setDeviceName("Tag").build();
+        filters.add(nameFilter);
+        filters.add(tagFilter(1));
+        filters.add(tagFilter(2));
+
+        assertThat(ScanFilterPlacement.place(filters, 1, filter -> filter.equals(merged)))
+                .containsExactly(nameFilter, merged);
+    }
+
+    @Test
+    public void place_mergingInstalledFiltersFreesNoIndex() {
+        List<ScanFilter> filters = new ArrayList<>();
+        filters.add(tagFilter(1));
+        filters.add(tagFilter(2));
+        filters.add(new ScanFilter.Builder().setDeviceName("Tag").build());
+
+        // Merging the installed tag filters would need a new index for the merged one.
+        assertThat(ScanFilterPlacement.place(filters, 0,
+                filter -> filter.equals(tagFilter(1)) || filter.equals(tagFilter(2))))
+                .isNull();
+    }
+
+    @Test
+    public void mayMatchTruncatedResult() {
+        ScanResult result = truncatedResult("00:11:22:33:44:55");
+        ScanFilter addressFilter = new ScanFilter.Builder()
+                .setDeviceAddress("00:11:22:33:44:55").setManufacturerData(MANUFACTURER_ID,
+                        new byte[] {1}).build();
+        ScanFilter otherAddressFilter = new ScanFilter.Builder()
+                .setDeviceAddress("00:11:22:33:44:66").setManufacturerData(MANUFACTURER_ID,
+                        new byte[] {1}).build();
+
+        assertThat(ScanFilterPlacement.mayMatchTruncatedResult(
+                List.of(otherAddressFilter), result)).isFalse();
+        assertThat(ScanFilterPlacement.mayMatchTruncatedResult(
+                List.of(otherAddressFilter, addressFilter), result)).isTrue();
+        // The data of a truncated result is unknown, so data filters are not applied.
+        assertThat(ScanFilterPlacement.mayMatchTruncatedResult(
+                List.of(tagFilter(1)), result)).isTrue();
+        assertThat(ScanFilterPlacement.mayMatchTruncatedResult(new ArrayList<>(), result))
+                .isTrue();
+    }
+
+    @Test
+    public void merge() {
+        assertThat(ScanFilterPlacement.merge(tagFilter(1))).isEqualTo(
+                new ScanFilter.Builder().setManufacturerData(MANUFACTURER_ID, new byte[0])
+                        .build());
+        assertThat(ScanFilterPlacement.merge(new ScanFilter.Builder()
+                .setServiceData(SERVICE_UUID, new byte[] {0x10}).build())).isEqualTo(
+                new ScanFilter.Builder().setServiceData(SERVICE_UUID, new byte[0]).build());
+        assertThat(ScanFilterPlacement.merge(
+                new ScanFilter.Builder().setDeviceName("Tag").build())).isNull();
+    }
+
+    private static ScanResult truncatedResult(String address) {
+        BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
+        return new ScanResult(device, null, -50, 0);
+    }
+
+    private static ScanFilter tagFilter(int tag) {
+        return new ScanFilter.Builder()
+                .setManufacturerData(MANUFACTURER_ID, new byte[] {0x02, 0x15, (byte) tag})
+                .build();
+    }
+}
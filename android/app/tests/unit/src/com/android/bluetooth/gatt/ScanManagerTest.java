@@ -28,12 +28,19 @@ import static android.bluetooth.le.ScanSettings.SCAN_MODE_SCREEN_OFF_BALANCED;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.app.ActivityManager;
+import android.bluetooth.BluetoothDevice;
 import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanSettings;
 import android.content.Context;
@@ -83,6 +90,7 @@ public class ScanManagerTest {
     private static final int DEFAULT_BYTES_OFFLOAD_SCAN_RESULT_STORAGE = 4096;
     private static final int DELAY_SCAN_UPGRADE_DURATION_MS = 150;
     private static final int DELAY_SCAN_DOWNGRADE_DURATION_MS = 100;
+    private static final String TEST_ADDRESS = "C0:11:22:33:44:55";
 
     private Context mTargetContext;
     private GattService mService;
@@ -129,6 +137,7 @@ public class ScanManagerTest {
         doReturn(mScanNativeInterface).when(mFactory).getScanNativeInterface();
         // Mock JNI callback in ScanNativeInterface
         doReturn(true).when(mScanNativeInterface).waitForCallback(anyInt());
+        doReturn(true).when(mScanNativeInterface).waitForCallbacks(anyInt(), anyInt());
 
         TestUtils.startService(mServiceRule, GattService.class);
         mService = GattService.getGattService();
@@ -193,6 +202,17 @@ public class ScanManagerTest {
         return createScanClient(id, isFiltered, scanMode, false, false);
     }
 
+    private ScanClient createScanClient(int id, ScanFilter filter) {
+        List<ScanFilter> scanFilterList = new ArrayList<>();
+        scanFilterList.add(filter);
+        ScanSettings scanSettings = createScanSettings(SCAN_MODE_LOW_POWER, false, false);
+
+        ScanClient client = new ScanClient(id, scanSettings, scanFilterList);
+        client.stats = new AppScanStats("Test", null, null, mService);
+        client.stats.recordScanStart(scanSettings, scanFilterList, true, false, id);
+        return client;
+    }
+
     private List<ScanFilter> createScanFilterList(boolean isFiltered) {
         List<ScanFilter> scanFilterList = null;
         if (isFiltered) {
@@ -1028,4 +1048,115 @@ public class ScanManagerTest {
             assertThat(mScanManager.getSuspendedScanQueue().contains(client)).isFalse();
         }
     }
+
+    @Test
+    public void testIdenticalScanFiltersAreShared() {
+        final boolean isFiltered = true;
+        sendMessageWaitForProcessed(createScreenOnOffMessage(true));
+        ScanClient client1 = createScanClient(0, isFiltered, SCAN_MODE_LOW_POWER);
+        ScanClient client2 = createScanClient(1, isFiltered, SCAN_MODE_LOW_POWER);
+
+        sendMessageWaitForProcessed(createStartStopScanMessage(true, client1));
+        sendMessageWaitForProcessed(createStartStopScanMessage(true, client2));
+        assertThat(mScanManager.getRegularScanQueue()).containsExactly(client1, client2);
+        // The filter is installed for the first client only.
+        verify(mScanNativeInterface, times(1)).gattClientScanFilterAdd(anyInt(), any(),
+                anyInt());
+
+        // The filter stays installed as long as a client uses it.
+        sendMessageWaitForProcessed(createStartStopScanMessage(false, client1));
+        verify(mScanNativeInterface, never()).gattClientScanFilterParamDelete(anyInt(),
+                anyInt());
+        sendMessageWaitForProcessed(createStartStopScanMessage(false, client2));
+        verify(mScanNativeInterface, times(1)).gattClientScanFilterParamDelete(anyInt(),
+                anyInt());
+    }
+
+    @Test
+    public void testScanFiltersWithDifferentAddressTypesAreNotShared() {
+        sendMessageWaitForProcessed(createScreenOnOffMessage(true));
+        ScanClient client1 = createScanClient(0, new ScanFilter.Builder()
+                .setDeviceAddress(TEST_ADDRESS, BluetoothDevice.ADDRESS_TYPE_PUBLIC).build());
+        ScanClient client2 = createScanClient(1, new ScanFilter.Builder()
+                .setDeviceAddress(TEST_ADDRESS, BluetoothDevice.ADDRESS_TYPE_RANDOM).build());
+
+        sendMessageWaitForProcessed(createStartStopScanMessage(true, client1));
+        sendMessageWaitForProcessed(createStartStopScanMessage(true, client2));
+        verify(mScanNativeInterface, times(2)).gattClientScanFilterAdd(anyInt(), any(),
+                anyInt());
+    }
+
+    @Test
+    public void testScanFiltersWithDifferentIrksAreNotShared() {
+        sendMessageWaitForProcessed(createScreenOnOffMessage(true));
+        byte[] irk1 = new byte[16];
+        byte[] irk2 = new byte[16];
+        irk2[0] = 1;
+        ScanClient client1 = createScanClient(0, new ScanFilter.Builder()
+                .setDeviceAddress(TEST_ADDRESS, BluetoothDevice.ADDRESS_TYPE_RANDOM, irk1)
+                .build());
+        ScanClient client2 = createScanClient(1, new ScanFilter.Builder()
+                .setDeviceAddress(TEST_ADDRESS, BluetoothDevice.ADDRESS_TYPE_RANDOM, irk2)
+                .build());
+
+        sendMessageWaitForProcessed(createStartStopScanMessage(true, client1));
+        sendMessageWaitForProcessed(createStartStopScanMessage(true, client2));
+        verify(mScanNativeInterface, times(2)).gattClientScanFilterAdd(anyInt(), any(),
+                anyInt());
+    }
+
+    @Test
+    public void testFailedScanFilterIsNotShared() {
+        final boolean isFiltered = true;
+        sendMessageWaitForProcessed(createScreenOnOffMessage(true));
+        ScanClient client1 = createScanClient(0, isFiltered, SCAN_MODE_LOW_POWER);
+        ScanClient client2 = createScanClient(1, isFiltered, SCAN_MODE_LOW_POWER);
+        // The controller answers the enable, add and parameter commands, and fails the add.
+        doAnswer(invocation -> {
+            mScanManager.callbackDone(client1.scannerId, 0);
+            mScanManager.callbackDone(client1.scannerId, 1);
+            mScanManager.callbackDone(client1.scannerId, 0);
+            return true;
+        }).when(mScanNativeInterface).waitForCallbacks(eq(3), anyInt());
+
+        sendMessageWaitForProcessed(createStartStopScanMessage(true, client1));
+        // The filter index is freed instead of being left to the client.
+        verify(mScanNativeInterface, times(1)).gattClientScanFilterParamDelete(anyInt(),
+                anyInt());
+
+        doReturn(true).when(mScanNativeInterface).waitForCallbacks(anyInt(), anyInt());
+        sendMessageWaitForProcessed(createStartStopScanMessage(true, client2));
+        verify(mScanNativeInterface, times(2)).gattClientScanFilterAdd(anyInt(), any(),
+                anyInt());
+    }
+
+    @Test
+    public void testFailedScanFilterStopsClientScan() {
+        sendMessageWaitForProcessed(createScreenOnOffMessage(true));
+        List<ScanFilter> scanFilterList = new ArrayList<>();
+        scanFilterList.add(new ScanFilter.Builder().setDeviceName("TestName1").build());
+        scanFilterList.add(new ScanFilter.Builder().setDeviceName("TestName2").build());
+        ScanSettings scanSettings = createScanSettings(SCAN_MODE_LOW_POWER, false, false);
+        ScanClient client = new ScanClient(0, scanSettings, scanFilterList);
+        client.stats = new AppScanStats("Test", null, null, mService);
+        client.stats.recordScanStart(scanSettings, scanFilterList, true, false, 0);
+        // The controller answers the enable, add and parameter commands, and fails the first add.
+        doAnswer(invocation -> {
+            mScanManager.callbackDone(client.scannerId, 0);
+            mScanManager.callbackDone(client.scannerId, 1);
+            mScanManager.callbackDone(client.scannerId, 0);
+            mScanManager.callbackDone(client.scannerId, 0);
+            mScanManager.callbackDone(client.scannerId, 0);
+            return true;
+        }).when(mScanNativeInterface).waitForCallbacks(eq(5), anyInt());
+
+        sendMessageWaitForProcessed(createStartStopScanMessage(true, client));
+
+        // Both filters are removed, and the client does not scan with the remaining one.
+        verify(mScanNativeInterface, times(2)).gattClientScanFilterParamDelete(anyInt(),
+                anyInt());
+        verify(mScanNativeInterface, never()).gattClientScan(true);
+        assertThat(mScanManager.getRegularScanQueue()).doesNotContain(client);
+        assertThat(client.started).isFalse();
+    }
 }
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.os.test.TestLooper;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test cases for {@link ScanResultCoalescer}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ScanResultCoalescerTest {
+
+    private static final String ADDRESS = "02:11:22:33:44:55";
+    private static final String OTHER_ADDRESS = "02:66:77:88:99:AA";
+    private static final long WINDOW_MILLIS = 30;
+
+    private TestLooper mLooper;
+    private List<ArrayList<ScanResult>> mBatches;
+    private ScanResultCoalescer mCoalescer;
+
+    @Before
+    public void setUp() {
+        mLooper = new TestLooper();
+        mBatches = new ArrayList<>();
+        mCoalescer = new ScanResultCoalescer(mLooper.getLooper(),
+                (client, results) -> mBatches.add(results));
+    }
+
+    @Test
+    public void add_deliversAfterWindow() {
+        ScanClient client = new ScanClient(1);
+        mCoalescer.add(client, ADDRESS, newResult(ADDRESS, -50), WINDOW_MILLIS, 32);
+        mCoalescer.add(client, OTHER_ADDRESS, newResult(OTHER_ADDRESS, -60), WINDOW_MILLIS, 32);
+
+        mLooper.dispatchAll();
+        assertThat(mBatches).isEmpty();
+
+        mLooper.moveTimeForward(WINDOW_MILLIS);
+        mLooper.dispatchAll();
+        assertThat(mBatches).hasSize(1);
+        assertThat(mBatches.get(0)).hasSize(2);
+    }
+
+    @Test
+    public void add_keepsLatestResultPerAddress() {
+        ScanClient client = new ScanClient(1);
+        mCoalescer.add(client, ADDRESS, newResult(ADDRESS, -50), WINDOW_MILLIS, 32);
+        mCoalescer.add(client, ADDRESS, newResult(ADDRESS, -70), WINDOW_MILLIS, 32);
+
+        mCoalescer.flush(1);
+
+        assertThat(mBatches).hasSize(1);
+        assertThat(mBatches.get(0)).hasSize(1);
+        assertThat(mBatches.get(0).get(0).getRssi()).isEqualTo(-70);
+    }
+
+    @Test
+    public void add_deliversImmediatelyWhenFull() {
+        ScanClient client = new ScanClient(1);
+        mCoalescer.add(client, ADDRESS, newResult(ADDRESS, -50), WINDOW_MILLIS, 2);
+        mCoalescer.add(client, OTHER_ADDRESS, newResult(OTHER_ADDRESS, -60), WINDOW_MILLIS, 2);
+
+        mLooper.dispatchAll();
+
+        assertThat(mBatches).hasSize(1);
+        assertThat(mBatches.get(0)).hasSize(2);
+
+        // The delayed flush of the first result must not deliver an empty batch.
+        mLooper.moveTimeForward(WINDOW_MILLIS);
+        mLooper.dispatchAll();
+        assertThat(mBatches).hasSize(1);
+    }
+
+    @Test
+    public void add_withoutDevice_coalescesByAddress() {
+        ScanClient client = new ScanClient(1);
+        // Sanitized results do not carry the device.
+        mCoalescer.add(client, ADDRESS, newSanitizedResult(-50), WINDOW_MILLIS, 32);
+        mCoalescer.add(client, ADDRESS, newSanitizedResult(-70), WINDOW_MILLIS, 32);
+        mCoalescer.add(client, OTHER_ADDRESS, newSanitizedResult(-60), WINDOW_MILLIS, 32);
+
+        mCoalescer.flush(1);
+
+        assertThat(mBatches).hasSize(1);
+        assertThat(mBatches.get(0)).hasSize(2);
+        assertThat(mBatches.get(0).get(0).getRssi()).isEqualTo(-70);
+    }
+
+    @Test
+    public void add_appliesConfigChangesToRunningClient() {
+        ScanClient client = new ScanClient(1);
+        mCoalescer.add(client, ADDRESS, newResult(ADDRESS, -50), WINDOW_MILLIS, 32);
+        mCoalescer.flush(1);
+
+        // The window is shortened while the client is scanning.
+        mCoalescer.add(client, ADDRESS, newResult(ADDRESS, -60), WINDOW_MILLIS / 3, 32);
+        mLooper.moveTimeForward(WINDOW_MILLIS / 3);
+        mLooper.dispatchAll();
+        assertThat(mBatches).hasSize(2);
+
+        // The maximum is lowered while the client is scanning.
+        mCoalescer.add(client, ADDRESS, newResult(ADDRESS, -70), WINDOW_MILLIS, 1);
+        mLooper.dispatchAll();
+        assertThat(mBatches).hasSize(3);
+    }
+
+    @Test
+    public void removeClient_dropsPendingResults() {
+        ScanClient client = new ScanClient(1);
+        mCoalescer.add(client, ADDRESS, newResult(ADDRESS, -50), WINDOW_MILLIS, 32);
+
+        mCoalescer.removeClient(1);
+        mLooper.moveTimeForward(WINDOW_MILLIS);
+        mLooper.dispatchAll();
+
+        assertThat(mBatches).isEmpty();
+    }
+
+    private static ScanResult newResult(String address, int rssi) {
+        BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
+        return new ScanResult(device, ScanRecord.parseFromBytes(new byte[] {0x02, 0x01, 0x06}),
+                rssi, 0);
+    }
+
+    private static ScanResult newSanitizedResult(int rssi) {
+        return new ScanResult(null, 0, 0, 0, 0, 0, rssi, 0,
+                ScanRecord.parseFromBytes(new byte[] {0x02, 0x01, 0x06}), 0);
+    }
+}
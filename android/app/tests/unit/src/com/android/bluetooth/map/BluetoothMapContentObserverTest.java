@@ -1402,6 +1402,29 @@ public class BluetoothMapContentObserverTest {
                 TEST_READ_FLAG_ONE);
     }
 
+    @Test
+    public void handleMsgListChangesSms_readsDetailsOfNewMessagesOnly() {
+        MatrixCursor cursor = new MatrixCursor(new String[] {Sms._ID, Sms.TYPE, Sms.THREAD_ID,
+                Sms.READ, Sms.DATE, Sms.BODY, Sms.ADDRESS});
+        cursor.addRow(new Object[] {TEST_HANDLE_ONE, TEST_SMS_TYPE_ALL, TEST_THREAD_ID,
+                TEST_READ_FLAG_ONE, TEST_DATE, "", null});
+        doReturn(cursor).when(mMapMethodProxy).contentResolverQuery(any(), any(), any(), any(),
+                any(), any());
+
+        mObserver.setMsgListSms(new HashMap<>(), true);
+        mObserver.mMapEventReportVersion = BluetoothMapUtils.MAP_EVENT_REPORT_V12;
+
+        mObserver.handleMsgListChangesSms();
+
+        // The whole table is scanned without the message details.
+        verify(mMapMethodProxy).contentResolverQuery(any(), eq(Sms.CONTENT_URI),
+                eq(BluetoothMapContentObserver.SMS_PROJECTION_SHORT), isNull(), any(), any());
+        verify(mMapMethodProxy).contentResolverQuery(any(), eq(Sms.CONTENT_URI),
+                eq(BluetoothMapContentObserver.SMS_PROJECTION_SHORT_EXT),
+                eq(Sms._ID + " IN (" + TEST_HANDLE_ONE + ")"), any(), any());
+        Assert.assertEquals(mObserver.getMsgListSms().get(TEST_HANDLE_ONE).id, TEST_HANDLE_ONE);
+    }
+
     @Test
     public void handleMsgListChangesSms_withNonExistingMessage_andVersion12() {
         MatrixCursor cursor = new MatrixCursor(new String[] {Sms._ID, Sms.TYPE, Sms.THREAD_ID,
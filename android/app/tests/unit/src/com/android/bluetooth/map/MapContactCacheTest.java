@@ -0,0 +1,130 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.*;
+
+import android.content.ContentResolver;
+import android.database.MatrixCursor;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Contacts;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.bluetooth.BluetoothMethodProxy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
+
+import java.util.Arrays;
+
+/**
+ * Test cases for {@link MapContactCache}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class MapContactCacheTest {
+    private static final long TEST_ID = 1;
+    private static final String TEST_NAME = "test_name";
+    private static final String TEST_PHONE = "+15555550100";
+    private static final String TEST_UNKNOWN_PHONE = "+15555550199";
+
+    @Mock
+    private ContentResolver mResolver;
+    @Spy
+    private BluetoothMethodProxy mMapMethodProxy = BluetoothMethodProxy.getInstance();
+
+    private MapContactCache mCache;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        BluetoothMethodProxy.setInstanceForTesting(mMapMethodProxy);
+        mCache = new MapContactCache();
+    }
+
+    @After
+    public void tearDown() {
+        mCache.stop();
+        BluetoothMethodProxy.setInstanceForTesting(null);
+    }
+
+    @Test
+    public void getContact_notStarted_queriesEveryTime() {
+        doAnswer(invocation -> lookupCursor()).when(mMapMethodProxy).contentResolverQuery(any(),
+                any(), any(), any(), any(), any());
+
+        assertThat(mCache.getContact(mResolver, TEST_PHONE).getName()).isEqualTo(TEST_NAME);
+        assertThat(mCache.getContact(mResolver, TEST_PHONE).getName()).isEqualTo(TEST_NAME);
+
+        verify(mMapMethodProxy, times(2)).contentResolverQuery(any(), any(), any(), any(), any(),
+                any());
+    }
+
+    @Test
+    public void preload_resolvesNumbersInOneQuery() {
+        mCache.start(mResolver);
+        MatrixCursor cursor = new MatrixCursor(new String[] {Phone.CONTACT_ID,
+                Phone.DISPLAY_NAME, Phone.NUMBER, Phone.NORMALIZED_NUMBER});
+        cursor.addRow(new Object[] {TEST_ID, TEST_NAME, "(555) 555-0100", TEST_PHONE});
+        doReturn(cursor).when(mMapMethodProxy).contentResolverQuery(any(), eq(Phone.CONTENT_URI),
+                any(), any(), any(), any());
+
+        mCache.preload(mResolver, Arrays.asList(TEST_PHONE, TEST_PHONE, TEST_UNKNOWN_PHONE));
+
+        verify(mMapMethodProxy).contentResolverQuery(any(), eq(Phone.CONTENT_URI), any(), any(),
+                eq(new String[] {TEST_PHONE, TEST_UNKNOWN_PHONE, TEST_PHONE,
+                        TEST_UNKNOWN_PHONE}), any());
+        MapContact contact = mCache.getContact(mResolver, TEST_PHONE);
+        assertThat(contact.getId()).isEqualTo(TEST_ID);
+        assertThat(contact.getName()).isEqualTo(TEST_NAME);
+        verifyNoMoreInteractions(mMapMethodProxy);
+    }
+
+    @Test
+    public void getContact_cachesUntilCleared() {
+        mCache.start(mResolver);
+        doAnswer(invocation -> new MatrixCursor(new String[] {Contacts._ID,
+                Contacts.DISPLAY_NAME})).when(mMapMethodProxy).contentResolverQuery(any(), any(),
+                any(), any(), any(), any());
+
+        assertThat(mCache.getContact(mResolver, TEST_UNKNOWN_PHONE)).isNull();
+        assertThat(mCache.getContact(mResolver, TEST_UNKNOWN_PHONE)).isNull();
+        verify(mMapMethodProxy, times(1)).contentResolverQuery(any(), any(), any(), any(), any(),
+                any());
+
+        mCache.clear();
+        assertThat(mCache.getContact(mResolver, TEST_UNKNOWN_PHONE)).isNull();
+        verify(mMapMethodProxy, times(2)).contentResolverQuery(any(), any(), any(), any(), any(),
+                any());
+    }
+
+    private static MatrixCursor lookupCursor() {
+        MatrixCursor cursor = new MatrixCursor(new String[] {Contacts._ID,
+                Contacts.DISPLAY_NAME});
+        cursor.addRow(new Object[] {TEST_ID, TEST_NAME});
+        return cursor;
+    }
+}
@@ -34,13 +34,19 @@ import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
 
 import androidx.test.platform.app.InstrumentationRegistry;
 import androidx.test.runner.AndroidJUnit4;
 
 import com.android.bluetooth.BluetoothMethodProxy;
 import com.android.bluetooth.BluetoothObexTransport;
+import com.android.bluetooth.FakeObexServer;
 import com.android.obex.ClientSession;
+import com.android.obex.HeaderSet;
+import com.android.obex.Operation;
+import com.android.obex.ResponseCodes;
 
 import org.junit.After;
 import org.junit.Before;
@@ -49,9 +55,12 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
@@ -203,4 +212,63 @@ public class BluetoothOppObexClientSessionTest {
                 anyInt());
         assertThat(BluetoothOppObexClientSession.readFully(is, buffer, size)).isEqualTo(1000);
     }
+
+    @Test
+    public void clientThreadSendFile_overLoopbackTransport_sendsWholeFile() throws Exception {
+        final int fileSize = 4 * 1024 * 1024;
+        byte[] content = new byte[fileSize];
+        new Random(0).nextBytes(content);
+        ByteArrayOutputStream received = new ByteArrayOutputStream(fileSize);
+        FakeObexServer server = new FakeObexServer() {
+            @Override
+            public int onPutValidator(Operation op) {
+                try (InputStream is = op.openInputStream()) {
+                    byte[] buffer = new byte[0x4000];
+                    int got;
+                    while ((got = is.read(buffer)) > 0) {
+                        received.write(buffer, 0, got);
+                    }
+                } catch (IOException e) {
+                    return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
+                }
+                return ResponseCodes.OBEX_HTTP_OK;
+            }
+
+            @Override
+            public int onGetValidator(Operation op) {
+                return ResponseCodes.OBEX_HTTP_NOT_IMPLEMENTED;
+            }
+
+            @Override
+            public int onSetPathValidator(HeaderSet request, HeaderSet reply, boolean backup,
+                    boolean create) {
+                return ResponseCodes.OBEX_HTTP_NOT_IMPLEMENTED;
+            }
+        };
+        Uri uri = Uri.parse("file://Idontknow//Justmadeitup");
+        String filename = "random.jpg";
+        String mimetype = "image/jpeg";
+        BluetoothOppShareInfo shareInfo = new BluetoothOppShareInfo(0, uri, filename, filename,
+                mimetype, BluetoothShare.DIRECTION_OUTBOUND, "01:23:45:67:89:AB",
+                BluetoothShare.VISIBILITY_VISIBLE, BluetoothShare.USER_CONFIRMATION_CONFIRMED,
+                BluetoothShare.STATUS_PENDING, fileSize, 0, 123456789, false);
+        BluetoothOppSendFileInfo sendFileInfo = new BluetoothOppSendFileInfo(filename, mimetype,
+                fileSize, new ByteArrayInputStream(content), BluetoothShare.STATUS_PENDING);
+        BluetoothOppUtility.putSendFileInfo(uri, sendFileInfo);
+        mClientSession.mCallback = new Handler(Looper.getMainLooper());
+        BluetoothOppObexClientSession.ClientThread thread = mClientSession.new ClientThread(
+                mTargetContext, server.mClientObexTransport, 0);
+        thread.mCs = new ClientSession(server.mClientObexTransport);
+        thread.mCs.connect(new HeaderSet());
+        thread.addShare(shareInfo);
+
+        long start = SystemClock.elapsedRealtime();
+        assertThat(thread.sendFile(sendFileInfo)).isEqualTo(BluetoothShare.STATUS_SUCCESS);
+        long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+        Log.i("BluetoothOppObexClientSessionTest", "Sent " + fileSize + " bytes in " + elapsed
+                + " ms, " + (fileSize / elapsed) + " KB/s");
+
+        assertThat(received.toByteArray()).isEqualTo(content);
+        BluetoothOppUtility.sSendFileMap.clear();
+    }
 }
@@ -52,9 +52,14 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
 
 
 @RunWith(AndroidJUnit4.class)
@@ -281,6 +286,35 @@ public class BluetoothOppObexServerSessionTest {
         assertThat(mServerSession.onPut(mOperation)).isEqualTo(ResponseCodes.OBEX_HTTP_OK);
     }
 
+    @Test
+    public void receiveFile_toFile_writesWholeFileThroughItsChannel() throws IOException {
+        // Not a multiple of the file write size, so that the last write is short.
+        byte[] content = new byte[600_000];
+        new Random(0).nextBytes(content);
+        File file = new File(mTargetContext.getCacheDir(), "receiveFile_toFile");
+        Uri uri = Uri.parse("file://Idontknow//Justmadeitup");
+        String name = "randomFile.bin";
+        mServerSession.mInfo = new BluetoothOppShareInfo(0, uri, name, name,
+                "application/octet-stream", BluetoothShare.DIRECTION_INBOUND,
+                "01:23:45:67:89:AB", BluetoothShare.VISIBILITY_VISIBLE,
+                BluetoothShare.USER_CONFIRMATION_CONFIRMED, BluetoothShare.STATUS_RUNNING,
+                content.length, 0, 123456789, false);
+        BluetoothOppReceiveFileInfo fileInfo = new BluetoothOppReceiveFileInfo(name,
+                content.length, uri, BluetoothShare.STATUS_RUNNING);
+        doReturn(new ByteArrayInputStream(content)).when(mOperation).openInputStream();
+        doReturn(0x8000).when(mOperation).getMaxPacketSize();
+        doReturn(new FileOutputStream(file)).when(mMethodProxy)
+                .contentResolverOpenOutputStream(any(), eq(uri));
+
+        try {
+            assertThat(mServerSession.receiveFile(fileInfo, mOperation))
+                    .isEqualTo(BluetoothShare.STATUS_SUCCESS);
+            assertThat(Files.readAllBytes(file.toPath())).isEqualTo(content);
+        } finally {
+            file.delete();
+        }
+    }
+
     @Test
     public void onConnect_withNonNullTargetInHeader_returnsHttpNotAcceptable() {
         HeaderSet request = new HeaderSet();
@@ -24,9 +24,12 @@ import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import android.util.Log;
+
 import androidx.test.filters.SmallTest;
 import androidx.test.runner.AndroidJUnit4;
 
+import com.android.bluetooth.pbap.BluetoothPbapVcardManager.VCardFilter;
 import com.android.obex.Operation;
 
 import org.junit.Before;
@@ -35,6 +38,7 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
@@ -115,6 +119,72 @@ public class HandlerForStringBufferTest {
         assertThat(buffer.writeVCard(newVCard)).isFalse();
     }
 
+    @Test
+    public void writeVCard_withFilter_writesFilteredVCard() throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        when(mOperation.openOutputStream()).thenReturn(outputStream);
+        HandlerForStringBuffer buffer = new HandlerForStringBuffer(mOperation, /*ownerVcard=*/null);
+        buffer.init();
+        // Excludes EMAIL.
+        VCardFilter filter = new VCardFilter(new byte[] {(byte) 0xFE, (byte) 0xFF});
+
+        assertThat(buffer.writeVCard(vCard("Ünïcode"), filter, /*vCardType21=*/ true,
+                /*stripTelephoneNumber=*/ true)).isTrue();
+
+        assertThat(outputStream.toString()).isEqualTo(filteredVCard("Ünïcode"));
+    }
+
+    @Test
+    public void writeVCard_pullOf5000Contacts() throws Exception {
+        final int contacts = 5000;
+        VCardFilter noFilter = new VCardFilter(/*filter=*/ null);
+        VCardFilter emailExcludeFilter = new VCardFilter(new byte[] {(byte) 0xFE, (byte) 0xFF});
+
+        for (VCardFilter filter : new VCardFilter[] {noFilter, emailExcludeFilter}) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            when(mOperation.openOutputStream()).thenReturn(outputStream);
+            HandlerForStringBuffer buffer =
+                    new HandlerForStringBuffer(mOperation, /*ownerVcard=*/null);
+            buffer.init();
+            StringBuilder expected = new StringBuilder();
+
+            long start = System.nanoTime();
+            for (int i = 0; i < contacts; i++) {
+                String name = "Contact " + i;
+                assertThat(buffer.writeVCard(vCard(name), filter, /*vCardType21=*/ false,
+                        /*stripTelephoneNumber=*/ true)).isTrue();
+                expected.append(filter == noFilter
+                        ? vCard(name).replace("+1 (555) 010-0000", "+15550100000")
+                        : filteredVCard(name));
+            }
+            Log.i("HandlerForStringBufferTest", "Pulled " + contacts
+                    + " contacts in " + (System.nanoTime() - start) / 1000000 + " ms, filter="
+                    + (filter != noFilter));
+
+            assertThat(outputStream.toString()).isEqualTo(expected.toString());
+        }
+    }
+
+    private static String vCard(String name) {
+        final String separator = System.getProperty("line.separator");
+        return "BEGIN:VCARD" + separator
+                + "VERSION:3.0" + separator
+                + "FN:" + name + separator
+                + "TEL;TYPE=CELL:+1 (555) 010-0000" + separator
+                + "EMAIL:contact@android.com" + separator
+                + "X-ANDROID-CUSTOM:vnd.android.cursor.item/nickname" + separator
+                + "END:VCARD" + separator;
+    }
+
+    private static String filteredVCard(String name) {
+        final String separator = System.getProperty("line.separator");
+        return "BEGIN:VCARD" + separator
+                + "VERSION:3.0" + separator
+                + "FN:" + name + separator
+                + "TEL;TYPE=CELL:+15550100000" + separator
+                + "END:VCARD" + separator;
+    }
+
     @Test
     public void terminate() throws Exception {
         String ownerVcard = "testOwnerVcard";
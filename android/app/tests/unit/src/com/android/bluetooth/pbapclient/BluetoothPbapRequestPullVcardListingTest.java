@@ -0,0 +1,104 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pbapclient;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.bluetooth.ObexAppParameters;
+import com.android.obex.HeaderSet;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BluetoothPbapRequestPullVcardListingTest {
+
+    private static final byte[] DATABASE_IDENTIFIER = new byte[16];
+    private static final byte[] PRIMARY_VERSION_COUNTER = new byte[16];
+    private static final byte[] SECONDARY_VERSION_COUNTER = new byte[16];
+
+    @Test
+    public void readResponse_parsesCardsInOrder() throws Exception {
+        BluetoothPbapRequestPullVcardListing request =
+                new BluetoothPbapRequestPullVcardListing(PbapClientConnectionHandler.PB_PATH);
+        String listing = "<?xml version=\"1.0\"?>"
+                + "<!DOCTYPE vcard-listing SYSTEM \"vcard-listing.dtd\">"
+                + "<vCard-listing version=\"1.0\">"
+                + "<card handle=\"0.vcf\" name=\"Owner\"/>"
+                + "<card handle=\"3.vcf\" name=\"Doe;John\"/>"
+                + "<card handle=\"7.vcf\"/>"
+                + "</vCard-listing>";
+
+        request.readResponse(
+                new ByteArrayInputStream(listing.getBytes(StandardCharsets.UTF_8)));
+
+        assertThat(request.getCards()).hasSize(3);
+        assertThat(request.getCards().get(1).mHandle).isEqualTo("3.vcf");
+        assertThat(request.getCards().get(1).mName).isEqualTo("Doe;John");
+        assertThat(request.getCards().get(2).mName).isEmpty();
+    }
+
+    @Test
+    public void readResponse_invalidListing_throwsIOException() {
+        BluetoothPbapRequestPullVcardListing request =
+                new BluetoothPbapRequestPullVcardListing(PbapClientConnectionHandler.PB_PATH);
+        String listing = "<vCard-listing version=\"1.0\"><card handle=\"1.vcf\"";
+
+        assertThrows(IOException.class, () -> request.readResponse(
+                new ByteArrayInputStream(listing.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    public void readResponseHeaders_readsVersions() {
+        BluetoothPbapRequestPullVcardListing request =
+                new BluetoothPbapRequestPullVcardListing(PbapClientConnectionHandler.PB_PATH);
+        ObexAppParameters oap = new ObexAppParameters();
+        oap.add(BluetoothPbapRequest.OAP_TAGID_DATABASE_IDENTIFIER, DATABASE_IDENTIFIER);
+        oap.add(BluetoothPbapRequest.OAP_TAGID_PRIMARY_VERSION_COUNTER, PRIMARY_VERSION_COUNTER);
+        oap.add(BluetoothPbapRequest.OAP_TAGID_SECONDARY_VERSION_COUNTER,
+                SECONDARY_VERSION_COUNTER);
+        HeaderSet headerSet = new HeaderSet();
+        oap.addToHeaderSet(headerSet);
+
+        request.readResponseHeaders(headerSet);
+
+        assertThat(request.getDatabaseIdentifier()).isEqualTo(DATABASE_IDENTIFIER);
+        assertThat(request.getPrimaryVersionCounter()).isEqualTo(PRIMARY_VERSION_COUNTER);
+        assertThat(request.getSecondaryVersionCounter()).isEqualTo(SECONDARY_VERSION_COUNTER);
+    }
+
+    @Test
+    public void readResponseHeaders_withoutVersions() {
+        BluetoothPbapRequestPullVcardListing request =
+                new BluetoothPbapRequestPullVcardListing(PbapClientConnectionHandler.PB_PATH);
+
+        request.readResponseHeaders(new HeaderSet());
+
+        assertThat(request.getDatabaseIdentifier()).isNull();
+        assertThat(PbapClientSyncState.fromListing(request)).isNull();
+    }
+}
@@ -197,4 +197,20 @@ public class PbapClientConnectionHandlerTest {
 
         assertThat(mHandler.isRepositorySupported(mask)).isTrue();
     }
+
+    @Test
+    public void getNextBatchSize_scalesToTargetDurationWithinBounds() {
+        final long target = PbapClientConnectionHandler.TARGET_BATCH_DURATION_MS;
+
+        // Throughput allows more, but the size at most doubles.
+        assertThat(PbapClientConnectionHandler.getNextBatchSize(100, target / 10)).isEqualTo(200);
+        // Slow pull: half the contacts to take the target duration.
+        assertThat(PbapClientConnectionHandler.getNextBatchSize(400, 2 * target)).isEqualTo(200);
+        assertThat(PbapClientConnectionHandler.getNextBatchSize(
+                PbapClientConnectionHandler.MIN_BATCH_SIZE, 100 * target))
+                .isEqualTo(PbapClientConnectionHandler.MIN_BATCH_SIZE);
+        assertThat(PbapClientConnectionHandler.getNextBatchSize(
+                PbapClientConnectionHandler.MAX_BATCH_SIZE, 0))
+                .isEqualTo(PbapClientConnectionHandler.MAX_BATCH_SIZE);
+    }
 }
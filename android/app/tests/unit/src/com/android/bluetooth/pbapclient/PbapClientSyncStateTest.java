@@ -0,0 +1,112 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pbapclient;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.accounts.Account;
+import android.content.Context;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class PbapClientSyncStateTest {
+
+    private static final Account ACCOUNT = new Account("00:01:02:03:04:05", "test_type");
+    private static final byte[] DATABASE_IDENTIFIER = {1, 2, 3, 4};
+    private static final byte[] OTHER_DATABASE_IDENTIFIER = {4, 3, 2, 1};
+
+    private Context mTargetContext;
+
+    @Before
+    public void setUp() {
+        mTargetContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    }
+
+    @After
+    public void tearDown() {
+        PbapClientSyncState.removeAll(mTargetContext, ACCOUNT);
+    }
+
+    @Test
+    public void save_thenLoad_isUnchanged() {
+        PbapClientSyncState state = state(DATABASE_IDENTIFIER, 5, 7);
+
+        state.save(mTargetContext, ACCOUNT, PbapClientConnectionHandler.PB_PATH);
+
+        PbapClientSyncState loaded = PbapClientSyncState.load(mTargetContext, ACCOUNT,
+                PbapClientConnectionHandler.PB_PATH);
+        assertThat(loaded).isNotNull();
+        assertThat(loaded.isUnchanged(state)).isTrue();
+        assertThat(PbapClientSyncState.load(mTargetContext, ACCOUNT,
+                PbapClientConnectionHandler.FAV_PATH)).isNull();
+        assertThat(PbapClientSyncState.exists(mTargetContext, ACCOUNT)).isTrue();
+    }
+
+    @Test
+    public void removeAll_removesEveryFolder() {
+        state(DATABASE_IDENTIFIER, 1, 1).save(mTargetContext, ACCOUNT,
+                PbapClientConnectionHandler.PB_PATH);
+        state(DATABASE_IDENTIFIER, 1, 1).save(mTargetContext, ACCOUNT,
+                PbapClientConnectionHandler.FAV_PATH);
+
+        PbapClientSyncState.removeAll(mTargetContext, ACCOUNT);
+
+        assertThat(PbapClientSyncState.exists(mTargetContext, ACCOUNT)).isFalse();
+    }
+
+    @Test
+    public void hasOnlyPrimaryChanges() {
+        PbapClientSyncState oldState = state(DATABASE_IDENTIFIER, 0x1fe, 9);
+
+        assertThat(oldState.hasOnlyPrimaryChanges(state(DATABASE_IDENTIFIER, 0x201, 9), 3))
+                .isTrue();
+        // The secondary counter may count the added and removed vCards too.
+        assertThat(oldState.hasOnlyPrimaryChanges(state(DATABASE_IDENTIFIER, 0x201, 12), 3))
+                .isTrue();
+        // More changes than found in the listing.
+        assertThat(oldState.hasOnlyPrimaryChanges(state(DATABASE_IDENTIFIER, 0x202, 9), 3))
+                .isFalse();
+        // Changes of the secondary fields.
+        assertThat(oldState.hasOnlyPrimaryChanges(state(DATABASE_IDENTIFIER, 0x201, 10), 3))
+                .isFalse();
+        // The handles changed.
+        assertThat(oldState.hasOnlyPrimaryChanges(state(OTHER_DATABASE_IDENTIFIER, 0x201, 9), 3))
+                .isFalse();
+    }
+
+    private static PbapClientSyncState state(byte[] databaseIdentifier, int primary,
+            int secondary) {
+        return new PbapClientSyncState(databaseIdentifier, counter(primary), counter(secondary));
+    }
+
+    private static byte[] counter(int value) {
+        byte[] counter = new byte[16];
+        for (int i = 0; i < 4; i++) {
+            counter[counter.length - 1 - i] = (byte) (value >> (8 * i));
+        }
+        return counter;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pbapclient;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.bluetooth.pbapclient.BluetoothPbapRequestPullVcardListing.Card;
+import com.android.bluetooth.pbapclient.PhonebookDelta.LocalCard;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.List;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class PhonebookDeltaTest {
+
+    @Test
+    public void delta_removesGoneAndRenamedCards_addsNewAndRenamedCards() {
+        List<LocalCard> localCards = Arrays.asList(
+                new LocalCard(10, "1.vcf", "Alice"),
+                new LocalCard(11, "2.vcf", "Bob"),
+                new LocalCard(12, "3.vcf", "Carol"));
+        List<Card> cards = Arrays.asList(
+                new Card("0.vcf", "Owner"),
+                new Card("1.vcf", "Alice"),
+                new Card("3.vcf", "Caroline"),
+                new Card("4.vcf", "Dave"));
+
+        PhonebookDelta delta = new PhonebookDelta(localCards, cards, 1);
+
+        // Bob is removed, Carol is renamed and Dave is added.
+        assertThat(delta.getRemovedRawContactIds()).containsExactly(11L, 12L);
+        assertThat(delta.getAddedIndices()).containsExactly(2, 3).inOrder();
+        assertThat(delta.getChangeCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void delta_unchangedListing_hasNoChange() {
+        List<LocalCard> localCards = Arrays.asList(new LocalCard(10, "0.vcf", "Alice"),
+                new LocalCard(11, "1.vcf", "Bob"));
+        List<Card> cards = Arrays.asList(new Card("0.vcf", "Alice"), new Card("1.vcf", "Bob"));
+
+        PhonebookDelta delta = new PhonebookDelta(localCards, cards, 0);
+
+        assertThat(delta.getRemovedRawContactIds()).isEmpty();
+        assertThat(delta.getAddedIndices()).isEmpty();
+        assertThat(delta.getChangeCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void delta_duplicateLocalCard_isRemovedWithoutChange() {
+        List<LocalCard> localCards = Arrays.asList(new LocalCard(10, "0.vcf", "Alice"),
+                new LocalCard(11, "0.vcf", "Alice"));
+        List<Card> cards = Arrays.asList(new Card("0.vcf", "Alice"));
+
+        PhonebookDelta delta = new PhonebookDelta(localCards, cards, 0);
+
+        assertThat(delta.getRemovedRawContactIds()).containsExactly(11L);
+        assertThat(delta.getAddedIndices()).isEmpty();
+        assertThat(delta.getChangeCount()).isEqualTo(0);
+    }
+}
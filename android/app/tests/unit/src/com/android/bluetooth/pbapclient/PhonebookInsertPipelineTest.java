@@ -0,0 +1,134 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pbapclient;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.mock;
+
+import android.accounts.Account;
+import android.content.Context;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.vcard.VCardEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class PhonebookInsertPipelineTest {
+
+    @Test
+    public void submit_insertsBatchesInOrderWhileNextOneIsPulled() throws Exception {
+        CountDownLatch nextBatchPulled = new CountDownLatch(1);
+        List<List<VCardEntry>> inserted = new ArrayList<>();
+        List<Thread> insertThreads = new ArrayList<>();
+        PhonebookPullRequest processor = new PhonebookPullRequest(mock(Context.class),
+                mock(Account.class)) {
+            @Override
+            public void onPullComplete() {
+                if (inserted.isEmpty()) {
+                    try {
+                        // The first insert only completes once the second batch is pulled.
+                        assertThat(nextBatchPulled.await(5, TimeUnit.SECONDS)).isTrue();
+                    } catch (InterruptedException e) {
+                        throw new AssertionError(e);
+                    }
+                }
+                inserted.add(mEntries);
+                insertThreads.add(Thread.currentThread());
+            }
+        };
+        List<VCardEntry> firstBatch = batch(3);
+        List<VCardEntry> secondBatch = batch(2);
+        PhonebookInsertPipeline pipeline = new PhonebookInsertPipeline(processor);
+        pipeline.start();
+
+        assertThat(pipeline.submit(firstBatch, null)).isTrue();
+        nextBatchPulled.countDown();
+        assertThat(pipeline.submit(secondBatch, null)).isTrue();
+        assertThat(pipeline.finish()).isTrue();
+
+        assertThat(inserted).containsExactly(firstBatch, secondBatch).inOrder();
+        assertThat(insertThreads).doesNotContain(Thread.currentThread());
+        assertThat(pipeline.getFirstInsertTime()).isGreaterThan(0L);
+        assertThat(pipeline.getInsertedCount()).isEqualTo(5);
+    }
+
+    @Test
+    public void finish_withoutBatches_insertsNothing() {
+        PhonebookInsertPipeline pipeline = new PhonebookInsertPipeline(
+                new PhonebookPullRequest(mock(Context.class), mock(Account.class)) {
+                    @Override
+                    public void onPullComplete() {
+                        throw new AssertionError("No batch was submitted");
+                    }
+                });
+        pipeline.start();
+
+        assertThat(pipeline.finish()).isTrue();
+
+        assertThat(pipeline.getFirstInsertTime()).isEqualTo(0L);
+    }
+
+    @Test
+    public void finish_whenInterrupted_waitsForInsertAndReportsDroppedBatch() {
+        CountDownLatch released = new CountDownLatch(1);
+        List<List<VCardEntry>> inserted = new ArrayList<>();
+        PhonebookInsertPipeline pipeline = new PhonebookInsertPipeline(
+                new PhonebookPullRequest(mock(Context.class), mock(Account.class)) {
+                    @Override
+                    public void onPullComplete() {
+                        try {
+                            released.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        inserted.add(mEntries);
+                    }
+                });
+        List<VCardEntry> firstBatch = batch(1);
+        pipeline.start();
+        assertThat(pipeline.submit(firstBatch, null)).isTrue();
+        // Queued while the first batch is inserted.
+        assertThat(pipeline.submit(batch(1), null)).isTrue();
+
+        Thread.currentThread().interrupt();
+        boolean allInserted = pipeline.finish();
+
+        assertThat(Thread.interrupted()).isTrue();
+        assertThat(allInserted).isFalse();
+        // The insert thread is done once finish() returns.
+        assertThat(inserted).containsExactly(firstBatch);
+    }
+
+    private static List<VCardEntry> batch(int size) {
+        List<VCardEntry> entries = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            entries.add(new VCardEntry());
+        }
+        return entries;
+    }
+}
@@ -129,6 +129,24 @@ public final class BluetoothDevice implements Parcelable, Attributable {
     public static final String ACTION_FOUND =
             "android.bluetooth.device.action.FOUND";
 
+    /**
+     * Broadcast Action: Remote devices discovered, in a batch.
+     * <p>Sent instead of {@link #ACTION_FOUND} to the packages configured to get batched
+     * discovery results. Each device found or updated during the batching window is reported
+     * once, with its latest properties.
+     * <p>Always contains the extra field {@link #EXTRA_FOUND_DEVICES}.
+     *
+     * @hide
+     */
+    @SystemApi
+    @RequiresBluetoothScanPermission
+    @RequiresBluetoothLocationPermission
+    @RequiresPermission(android.Manifest.permission.BLUETOOTH_SCAN)
+    @SdkConstant(SdkConstantType.BROADCAST_INTENT_ACTION)
+    @SuppressLint("ActionValue")
+    public static final String ACTION_FOUND_BATCH =
+            "android.bluetooth.device.action.FOUND_BATCH";
+
     /**
      * Broadcast Action: Bluetooth class of a remote device has changed.
      * <p>Always contains the extra fields {@link #EXTRA_DEVICE} and {@link
@@ -337,6 +355,18 @@ public final class BluetoothDevice implements Parcelable, Attributable {
     @SystemApi
     public static final String EXTRA_IS_ASHA_FOLLOWER =
             "android.bluetooth.device.extra.IS_ASHA_FOLLOWER";
+
+    /**
+     * Used as an {@link java.util.ArrayList} of {@link android.content.Intent} extra field in
+     * {@link #ACTION_FOUND_BATCH} intents. Each intent holds the extra fields of an
+     * {@link #ACTION_FOUND} intent for one device.
+     *
+     * @hide
+     */
+    @SuppressLint("ActionValue")
+    @SystemApi
+    public static final String EXTRA_FOUND_DEVICES =
+            "android.bluetooth.device.extra.FOUND_DEVICES";
     /**
      * Used as a Parcelable {@link BluetoothClass} extra field in {@link
      * #ACTION_FOUND} and {@link #ACTION_CLASS_CHANGED} intents.
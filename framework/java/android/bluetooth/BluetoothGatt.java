@@ -18,7 +18,11 @@ package android.bluetooth;
 
 import static android.bluetooth.BluetoothUtils.getSyncTimeout;
 
+import static java.util.Objects.requireNonNull;
+
+import android.annotation.CallbackExecutor;
 import android.annotation.IntDef;
+import android.annotation.IntRange;
 import android.annotation.NonNull;
 import android.annotation.RequiresNoPermission;
 import android.annotation.RequiresPermission;
@@ -39,8 +43,10 @@ import com.android.modules.utils.SynchronousResultReceiver;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeoutException;
 
 /**
@@ -82,6 +88,8 @@ public final class BluetoothGatt implements BluetoothProfile {
     private boolean mOpportunistic;
     private int mConnectionPriority;
     private final AttributionSource mAttributionSource;
+    private final BluetoothGattOperationQueue mOperationQueue =
+            new BluetoothGattOperationQueue(this);
 
     private static final int AUTH_RETRY_STATE_IDLE = 0;
     private static final int AUTH_RETRY_STATE_NO_MITM = 1;
@@ -97,6 +105,7 @@ public final class BluetoothGatt implements BluetoothProfile {
     private static final int WRITE_CHARACTERISTIC_TIME_TO_WAIT = 10; // milliseconds
 
     private List<BluetoothGattService> mServices;
+    private BluetoothGattAttributeIndex mAttributeIndex;
 
     /** A GATT operation completed successfully */
     public static final int GATT_SUCCESS = 0;
@@ -373,6 +382,10 @@ public final class BluetoothGatt implements BluetoothProfile {
                     synchronized (mDeviceBusyLock) {
                         mDeviceBusy = false;
                     }
+
+                    if (!connected) {
+                        mOperationQueue.failAll();
+                    }
                 }
 
                 /**
@@ -416,6 +429,7 @@ public final class BluetoothGatt implements BluetoothProfile {
                             }
                         }
                     }
+                    mAttributeIndex.rebuild();
 
                     runOrQueueCallback(new Runnable() {
                         @Override
@@ -468,6 +482,10 @@ public final class BluetoothGatt implements BluetoothProfile {
                     }
 
                     mAuthRetryState = AUTH_RETRY_STATE_IDLE;
+                    if (mOperationQueue.onResult(BluetoothGattOperationQueue.OP_READ_CHARACTERISTIC,
+                            handle, status, value)) {
+                        return;
+                    }
 
                     BluetoothGattCharacteristic characteristic = getCharacteristicById(mDevice,
                             handle);
@@ -547,6 +565,11 @@ public final class BluetoothGatt implements BluetoothProfile {
                     }
 
                     mAuthRetryState = AUTH_RETRY_STATE_IDLE;
+                    if (mOperationQueue.onResult(
+                            BluetoothGattOperationQueue.OP_WRITE_CHARACTERISTIC, handle, status,
+                            value)) {
+                        return;
+                    }
                     runOrQueueCallback(new Runnable() {
                         @Override
                         public void run() {
@@ -589,6 +612,27 @@ public final class BluetoothGatt implements BluetoothProfile {
                     });
                 }
 
+                /**
+                 * Notifications batched by the service, delivered one by one in order.
+                 * The values are concatenated in {@code values}.
+                 * @hide
+                 */
+                @Override
+                public void onNotifyBatch(String address, int[] handles, int[] valueLengths,
+                        byte[] values) {
+                    if (VDBG) {
+                        Log.d(TAG, "onNotifyBatch() - Device=" + address + " count="
+                                + handles.length);
+                    }
+
+                    int offset = 0;
+                    for (int i = 0; i < handles.length; i++) {
+                        int end = offset + valueLengths[i];
+                        onNotify(address, handles[i], Arrays.copyOfRange(values, offset, end));
+                        offset = end;
+                    }
+                }
+
                 /**
                  * Descriptor has been read.
                  * @hide
@@ -631,6 +675,10 @@ public final class BluetoothGatt implements BluetoothProfile {
                     }
 
                     mAuthRetryState = AUTH_RETRY_STATE_IDLE;
+                    if (mOperationQueue.onResult(BluetoothGattOperationQueue.OP_READ_DESCRIPTOR,
+                            handle, status, value)) {
+                        return;
+                    }
 
                     runOrQueueCallback(new Runnable() {
                         @Override
@@ -687,6 +735,10 @@ public final class BluetoothGatt implements BluetoothProfile {
                     }
 
                     mAuthRetryState = AUTH_RETRY_STATE_IDLE;
+                    if (mOperationQueue.onResult(BluetoothGattOperationQueue.OP_WRITE_DESCRIPTOR,
+                            handle, status, value)) {
+                        return;
+                    }
 
                     runOrQueueCallback(new Runnable() {
                         @Override
@@ -844,6 +896,8 @@ public final class BluetoothGatt implements BluetoothProfile {
                     if (!address.equals(mDevice.getAddress())) {
                         return;
                     }
+                    // Handles may have moved, fall back to searching until rediscovery.
+                    mAttributeIndex.invalidate();
 
                     runOrQueueCallback(new Runnable() {
                         @Override
@@ -898,6 +952,7 @@ public final class BluetoothGatt implements BluetoothProfile {
         mConnectionPriority = connectionPriority;
         mAttributionSource = attributionSource;
         mServices = new ArrayList<BluetoothGattService>();
+        mAttributeIndex = new BluetoothGattAttributeIndex(mServices);
 
         mConnState = CONN_STATE_IDLE;
         mAuthRetryState = AUTH_RETRY_STATE_IDLE;
@@ -918,6 +973,7 @@ public final class BluetoothGatt implements BluetoothProfile {
         unregisterApp();
         mConnState = CONN_STATE_CLOSED;
         mAuthRetryState = AUTH_RETRY_STATE_IDLE;
+        mOperationQueue.failAll();
     }
 
     /**
@@ -945,14 +1001,7 @@ public final class BluetoothGatt implements BluetoothProfile {
      */
     /*package*/ BluetoothGattCharacteristic getCharacteristicById(BluetoothDevice device,
             int instanceId) {
-        for (BluetoothGattService svc : mServices) {
-            for (BluetoothGattCharacteristic charac : svc.getCharacteristics()) {
-                if (charac.getInstanceId() == instanceId) {
-                    return charac;
-                }
-            }
-        }
-        return null;
+        return mAttributeIndex.getCharacteristic(instanceId);
     }
 
     /**
@@ -961,16 +1010,7 @@ public final class BluetoothGatt implements BluetoothProfile {
      * @hide
      */
     /*package*/ BluetoothGattDescriptor getDescriptorById(BluetoothDevice device, int instanceId) {
-        for (BluetoothGattService svc : mServices) {
-            for (BluetoothGattCharacteristic charac : svc.getCharacteristics()) {
-                for (BluetoothGattDescriptor desc : charac.getDescriptors()) {
-                    if (desc.getInstanceId() == instanceId) {
-                        return desc;
-                    }
-                }
-            }
-        }
-        return null;
+        return mAttributeIndex.getDescriptor(instanceId);
     }
 
     /**
@@ -1242,6 +1282,7 @@ public final class BluetoothGatt implements BluetoothProfile {
         if (mService == null || mClientIf == 0) return false;
 
         mServices.clear();
+        mAttributeIndex.invalidate();
 
         try {
             final SynchronousResultReceiver recv = SynchronousResultReceiver.get();
@@ -1271,6 +1312,7 @@ public final class BluetoothGatt implements BluetoothProfile {
         if (mService == null || mClientIf == 0) return false;
 
         mServices.clear();
+        mAttributeIndex.invalidate();
 
         try {
             final SynchronousResultReceiver recv = SynchronousResultReceiver.get();
@@ -1796,6 +1838,139 @@ public final class BluetoothGatt implements BluetoothProfile {
         abortReliableWrite();
     }
 
+    /**
+     * Callback for the operations queued with {@link #queueReadCharacteristic},
+     * {@link #queueWriteCharacteristic}, {@link #queueReadDescriptor} and
+     * {@link #queueWriteDescriptor}.
+     */
+    public interface OperationCallback {
+        /**
+         * Called when a queued operation completed.
+         *
+         * @param status {@link #GATT_SUCCESS} if the operation succeeded, a GATT error status
+         *        reported by the remote device, or {@link #GATT_FAILURE} if the operation
+         *        could not be issued, timed out or the connection was closed
+         * @param value the value read, or the value written
+         */
+        void onOperationCompleted(int status, @NonNull byte[] value);
+    }
+
+    /**
+     * Queues a read of the given characteristic.
+     *
+     * <p>Queued operations are issued one after the other, as soon as the previous operation
+     * completed, and report their result through {@code callback} instead of the
+     * {@link BluetoothGattCallback}. Operations started with {@link #readCharacteristic} and
+     * similar methods keep their own callbacks, and delay the queue while they are in flight.
+     *
+     * @param characteristic Characteristic to read from the remote device
+     * @param executor the executor on which to invoke the callback
+     * @param callback the callback invoked with the result of the read
+     */
+    @RequiresBluetoothConnectPermission
+    @RequiresPermission(android.Manifest.permission.BLUETOOTH_CONNECT)
+    public void queueReadCharacteristic(@NonNull BluetoothGattCharacteristic characteristic,
+            @NonNull @CallbackExecutor Executor executor,
+            @NonNull OperationCallback callback) {
+        requireNonNull(characteristic, "characteristic must not be null");
+        requireNonNull(executor, "executor must not be null");
+        requireNonNull(callback, "callback must not be null");
+        mOperationQueue.enqueueCharacteristic(BluetoothGattOperationQueue.OP_READ_CHARACTERISTIC,
+                characteristic, null, 0, executor, callback);
+    }
+
+    /**
+     * Queues a write of the given characteristic.
+     *
+     * <p>Writes of type {@link BluetoothGattCharacteristic#WRITE_TYPE_NO_RESPONSE} are issued
+     * back to back as the stack accepts them, and are retried instead of failed while the stack
+     * reports that it is busy. See {@link #queueReadCharacteristic} for how queued operations
+     * are issued.
+     *
+     * @param characteristic Characteristic to write on the remote device
+     * @param value the value to write
+     * @param writeType the write type
+     * @param executor the executor on which to invoke the callback
+     * @param callback the callback invoked with the result of the write
+     */
+    @RequiresBluetoothConnectPermission
+    @RequiresPermission(android.Manifest.permission.BLUETOOTH_CONNECT)
+    public void queueWriteCharacteristic(@NonNull BluetoothGattCharacteristic characteristic,
+            @NonNull byte[] value, @WriteType int writeType,
+            @NonNull @CallbackExecutor Executor executor,
+            @NonNull OperationCallback callback) {
+        requireNonNull(characteristic, "characteristic must not be null");
+        requireNonNull(value, "value must not be null");
+        requireNonNull(executor, "executor must not be null");
+        requireNonNull(callback, "callback must not be null");
+        mOperationQueue.enqueueCharacteristic(BluetoothGattOperationQueue.OP_WRITE_CHARACTERISTIC,
+                characteristic, value.clone(), writeType, executor, callback);
+    }
+
+    /**
+     * Queues a read of the given descriptor. See {@link #queueReadCharacteristic} for how
+     * queued operations are issued.
+     *
+     * @param descriptor Descriptor to read from the remote device
+     * @param executor the executor on which to invoke the callback
+     * @param callback the callback invoked with the result of the read
+     */
+    @RequiresBluetoothConnectPermission
+    @RequiresPermission(android.Manifest.permission.BLUETOOTH_CONNECT)
+    public void queueReadDescriptor(@NonNull BluetoothGattDescriptor descriptor,
+            @NonNull @CallbackExecutor Executor executor,
+            @NonNull OperationCallback callback) {
+        requireNonNull(descriptor, "descriptor must not be null");
+        requireNonNull(executor, "executor must not be null");
+        requireNonNull(callback, "callback must not be null");
+        mOperationQueue.enqueueDescriptor(BluetoothGattOperationQueue.OP_READ_DESCRIPTOR,
+                descriptor, null, executor, callback);
+    }
+
+    /**
+     * Queues a write of the given descriptor. See {@link #queueReadCharacteristic} for how
+     * queued operations are issued.
+     *
+     * @param descriptor Descriptor to write on the remote device
+     * @param value the value to write
+     * @param executor the executor on which to invoke the callback
+     * @param callback the callback invoked with the result of the write
+     */
+    @RequiresBluetoothConnectPermission
+    @RequiresPermission(android.Manifest.permission.BLUETOOTH_CONNECT)
+    public void queueWriteDescriptor(@NonNull BluetoothGattDescriptor descriptor,
+            @NonNull byte[] value, @NonNull @CallbackExecutor Executor executor,
+            @NonNull OperationCallback callback) {
+        requireNonNull(descriptor, "descriptor must not be null");
+        requireNonNull(value, "value must not be null");
+        requireNonNull(executor, "executor must not be null");
+        requireNonNull(callback, "callback must not be null");
+        mOperationQueue.enqueueDescriptor(BluetoothGattOperationQueue.OP_WRITE_DESCRIPTOR,
+                descriptor, value.clone(), executor, callback);
+    }
+
+    /**
+     * Sets how long a queued operation may take before it fails with {@link #GATT_FAILURE},
+     * counted from the moment it becomes the next operation to issue. Applies to operations
+     * that become current after this call.
+     *
+     * @param timeoutMillis the timeout in milliseconds, or 0 to wait indefinitely, which is the
+     *        default
+     */
+    @RequiresNoPermission
+    public void setQueuedOperationTimeout(@IntRange(from = 0) long timeoutMillis) {
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("timeoutMillis must not be negative");
+        }
+        mOperationQueue.setTimeoutMillis(timeoutMillis);
+    }
+
+    /* package */ boolean isDeviceBusy() {
+        synchronized (mDeviceBusyLock) {
+            return mDeviceBusy;
+        }
+    }
+
     /**
      * Enable or disable notifications/indications for a given characteristic.
      *
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import android.util.SparseArray;
+
+import java.util.List;
+
+/**
+ * Finds the characteristics and descriptors of the services discovered by a
+ * {@link BluetoothGatt} by handle.
+ *
+ * <p>The index is built when a search completes. It is invalidated when a new discovery starts
+ * or a service changed indication arrives, as handles may have moved. Lookups then fall back to
+ * a linear search of the services until the index is built again. A lookup that misses the
+ * index also falls back, which covers attributes added to the services after discovery.
+ *
+ * @hide
+ */
+public final class BluetoothGattAttributeIndex {
+    private final List<BluetoothGattService> mServices;
+    // Characteristics and descriptors of mServices by handle, or null until rebuilt. Replaced
+    // as a whole, as lookups happen on the binder threads.
+    private volatile SparseArray<BluetoothGattCharacteristic> mCharacteristics;
+    private volatile SparseArray<BluetoothGattDescriptor> mDescriptors;
+
+    /**
+     * Creates an index over {@code services}, which the caller keeps updating.
+     */
+    public BluetoothGattAttributeIndex(List<BluetoothGattService> services) {
+        mServices = services;
+    }
+
+    /**
+     * Indexes the characteristics and descriptors of the services by handle.
+     */
+    public void rebuild() {
+        SparseArray<BluetoothGattCharacteristic> characteristics = new SparseArray<>();
+        SparseArray<BluetoothGattDescriptor> descriptors = new SparseArray<>();
+        for (BluetoothGattService svc : mServices) {
+            for (BluetoothGattCharacteristic charac : svc.getCharacteristics()) {
+                // Keep the first attribute of a handle, as the linear search does.
+                if (characteristics.indexOfKey(charac.getInstanceId()) < 0) {
+                    characteristics.put(charac.getInstanceId(), charac);
+                }
+                for (BluetoothGattDescriptor desc : charac.getDescriptors()) {
+                    if (descriptors.indexOfKey(desc.getInstanceId()) < 0) {
+                        descriptors.put(desc.getInstanceId(), desc);
+                    }
+                }
+            }
+        }
+        mCharacteristics = characteristics;
+        mDescriptors = descriptors;
+    }
+
+    /**
+     * Drops the index, until the next {@link #rebuild}.
+     */
+    public void invalidate() {
+        mCharacteristics = null;
+        mDescriptors = null;
+    }
+
+    /**
+     * Returns the characteristic with the given handle, or null.
+     */
+    public BluetoothGattCharacteristic getCharacteristic(int handle) {
+        SparseArray<BluetoothGattCharacteristic> index = mCharacteristics;
+        if (index != null) {
+            BluetoothGattCharacteristic charac = index.get(handle);
+            if (charac != null) {
+                return charac;
+            }
+        }
+        for (BluetoothGattService svc : mServices) {
+            for (BluetoothGattCharacteristic charac : svc.getCharacteristics()) {
+                if (charac.getInstanceId() == handle) {
+                    return charac;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the descriptor with the given handle, or null.
+     */
+    public BluetoothGattDescriptor getDescriptor(int handle) {
+        SparseArray<BluetoothGattDescriptor> index = mDescriptors;
+        if (index != null) {
+            BluetoothGattDescriptor desc = index.get(handle);
+            if (desc != null) {
+                return desc;
+            }
+        }
+        for (BluetoothGattService svc : mServices) {
+            for (BluetoothGattCharacteristic charac : svc.getCharacteristics()) {
+                for (BluetoothGattDescriptor desc : charac.getDescriptors()) {
+                    if (desc.getInstanceId() == handle) {
+                        return desc;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+}
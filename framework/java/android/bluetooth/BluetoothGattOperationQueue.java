@@ -0,0 +1,372 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import android.annotation.SuppressLint;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * Queue of the operations submitted through the {@code BluetoothGatt#queue*} methods.
+ *
+ * <p>Operations are issued one at a time, in submission order. The next operation is issued
+ * as soon as the result of the current one arrives, so no air time is lost waiting for the
+ * application to react. While an operation started directly through {@link BluetoothGatt} is
+ * in flight, the queue retries with a growing delay, and fails the operation if the device
+ * stays busy.
+ *
+ * <p>Issuing an operation blocks on the stack, so it is done on a thread shared by all the
+ * queues, never on the thread of the application.
+ *
+ * <p>An operation that times out is failed, but the stack may still report its result. The
+ * queue keeps it until then, so that the late result is not taken for the result of a later
+ * operation on the same attribute.
+ *
+ * @hide
+ */
+public final class BluetoothGattOperationQueue {
+    private static final String TAG = "BluetoothGattOperationQueue";
+    private static final boolean DBG = false;
+
+    public static final int OP_READ_CHARACTERISTIC = 0;
+    public static final int OP_WRITE_CHARACTERISTIC = 1;
+    public static final int OP_READ_DESCRIPTOR = 2;
+    public static final int OP_WRITE_DESCRIPTOR = 3;
+
+    /**
+     * Hands the operations to the stack.
+     */
+    public interface Issuer {
+        /** The operation was started, and its result will be reported. */
+        int STARTED = 0;
+        /** The device is busy with another operation. */
+        int BUSY = 1;
+        int FAILED = 2;
+
+        /**
+         * Starts an operation, on {@code descriptor} if it is not null, else on
+         * {@code characteristic}.
+         *
+         * @return {@link #STARTED}, {@link #BUSY} or {@link #FAILED}
+         */
+        int issue(int type, BluetoothGattCharacteristic characteristic,
+                BluetoothGattDescriptor descriptor, byte[] value, int writeType);
+    }
+
+    // Delay before an operation is issued again after the device was found busy, doubled on
+    // every retry up to the maximum.
+    private static final long BUSY_RETRY_DELAY_MILLIS = 10;
+    private static final long MAX_BUSY_RETRY_DELAY_MILLIS = 500;
+    // About ten seconds, after which the operation fails.
+    private static final int MAX_BUSY_RETRIES = 25;
+    // GATT_BUSY of the stack, reported when the device stays busy.
+    private static final int GATT_BUSY = 0x84;
+
+    private static final Object sLooperLock = new Object();
+    @GuardedBy("sLooperLock")
+    private static Looper sLooper;
+
+    private static final byte[] EMPTY_VALUE = new byte[0];
+
+    private static final class Operation {
+        final int type;
+        final int handle;
+        final BluetoothGattCharacteristic characteristic;
+        final BluetoothGattDescriptor descriptor;
+        final byte[] value;
+        final int writeType;
+        final Executor executor;
+        final BluetoothGatt.OperationCallback callback;
+        // Whether the operation was handed to the stack, so that its result can arrive.
+        boolean issued;
+        int busyRetries;
+
+        Operation(int type, BluetoothGattCharacteristic characteristic,
+                BluetoothGattDescriptor descriptor, byte[] value, int writeType,
+                Executor executor, BluetoothGatt.OperationCallback callback) {
+            this.type = type;
+            this.handle = descriptor != null
+                    ? descriptor.getInstanceId() : characteristic.getInstanceId();
+            this.characteristic = characteristic;
+            this.descriptor = descriptor;
+            this.value = value;
+            this.writeType = writeType;
+            this.executor = executor;
+            this.callback = callback;
+        }
+    }
+
+    private final Issuer mIssuer;
+    private final Handler mHandler = new Handler(getLooper());
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final ArrayDeque<Operation> mPending = new ArrayDeque<>();
+    @GuardedBy("mLock")
+    private Operation mCurrent;
+    // The last operation that timed out after it was started, until its result arrives.
+    @GuardedBy("mLock")
+    private Operation mTimedOut;
+    @GuardedBy("mLock")
+    private long mTimeoutMillis;
+
+    BluetoothGattOperationQueue(BluetoothGatt gatt) {
+        this((type, characteristic, descriptor, value, writeType) ->
+                issue(gatt, type, characteristic, descriptor, value, writeType));
+    }
+
+    public BluetoothGattOperationQueue(Issuer issuer) {
+        mIssuer = issuer;
+    }
+
+    public void setTimeoutMillis(long timeoutMillis) {
+        synchronized (mLock) {
+            mTimeoutMillis = timeoutMillis;
+        }
+    }
+
+    public void enqueueCharacteristic(int type, BluetoothGattCharacteristic characteristic,
+            byte[] value, int writeType, Executor executor,
+            BluetoothGatt.OperationCallback callback) {
+        enqueue(new Operation(type, characteristic, null, value, writeType, executor, callback));
+    }
+
+    public void enqueueDescriptor(int type, BluetoothGattDescriptor descriptor, byte[] value,
+            Executor executor, BluetoothGatt.OperationCallback callback) {
+        enqueue(new Operation(type, null, descriptor, value, 0, executor, callback));
+    }
+
+    private static Looper getLooper() {
+        synchronized (sLooperLock) {
+            if (sLooper == null) {
+                HandlerThread thread = new HandlerThread(TAG);
+                thread.start();
+                sLooper = thread.getLooper();
+            }
+            return sLooper;
+        }
+    }
+
+    private void enqueue(Operation op) {
+        synchronized (mLock) {
+            mPending.add(op);
+        }
+        scheduleNext();
+    }
+
+    /**
+     * Completes the current operation if the result belongs to it, then issues the next
+     * operation.
+     *
+     * @return whether the result was consumed by a queued operation, including the late result
+     *     of one that timed out
+     */
+    public boolean onResult(int type, int handle, int status, byte[] value) {
+        Operation op = null;
+        boolean consumed;
+        synchronized (mLock) {
+            // The stack reports results in order, so a timed out operation is answered first.
+            if (mTimedOut != null && matches(mTimedOut, type, handle)) {
+                if (DBG) Log.d(TAG, "Dropping late result on handle " + handle);
+                mTimedOut = null;
+                consumed = true;
+            } else if (mCurrent != null && mCurrent.issued && matches(mCurrent, type, handle)) {
+                op = mCurrent;
+                mCurrent = null;
+                mHandler.removeCallbacksAndMessages(op);
+                consumed = true;
+            } else {
+                consumed = false;
+            }
+        }
+        if (op != null) {
+            complete(op, status, value);
+        }
+        scheduleNext();
+        return consumed;
+    }
+
+    private static boolean matches(Operation op, int type, int handle) {
+        return op.type == type && op.handle == handle;
+    }
+
+    /**
+     * Fails the current and all pending operations, as the connection is gone.
+     */
+    public void failAll() {
+        ArrayDeque<Operation> failed;
+        synchronized (mLock) {
+            mTimedOut = null;
+            failed = new ArrayDeque<>(mPending);
+            mPending.clear();
+            if (mCurrent != null) {
+                mHandler.removeCallbacksAndMessages(mCurrent);
+                failed.addFirst(mCurrent);
+                mCurrent = null;
+            }
+        }
+        for (Operation op : failed) {
+            complete(op, BluetoothGatt.GATT_FAILURE, EMPTY_VALUE);
+        }
+    }
+
+    private void scheduleNext() {
+        mHandler.post(this::issueNext);
+    }
+
+    // Runs on the queue thread, as do retry(), onTimeout() and issue().
+    private void issueNext() {
+        Operation op;
+        synchronized (mLock) {
+            if (mCurrent != null || mPending.isEmpty()) {
+                return;
+            }
+            op = mPending.poll();
+            mCurrent = op;
+            if (mTimeoutMillis > 0) {
+                mHandler.postDelayed(() -> onTimeout(op), op, mTimeoutMillis);
+            }
+        }
+        issue(op);
+    }
+
+    private void retry(Operation op) {
+        synchronized (mLock) {
+            if (mCurrent != op) {
+                return;
+            }
+        }
+        issue(op);
+    }
+
+    private void onTimeout(Operation op) {
+        synchronized (mLock) {
+            if (mCurrent != op) {
+                return;
+            }
+            mCurrent = null;
+            mHandler.removeCallbacksAndMessages(op);
+            if (op.issued) {
+                mTimedOut = op;
+            }
+        }
+        Log.w(TAG, "Operation on handle " + op.handle + " timed out");
+        complete(op, BluetoothGatt.GATT_FAILURE, EMPTY_VALUE);
+        issueNext();
+    }
+
+    private void issue(Operation op) {
+        synchronized (mLock) {
+            op.issued = true;
+        }
+        int result;
+        try {
+            result = mIssuer.issue(op.type, op.characteristic, op.descriptor, op.value,
+                    op.writeType);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "", e);
+            result = Issuer.FAILED;
+        }
+        if (result == Issuer.STARTED) {
+            return;
+        }
+        boolean busy = result == Issuer.BUSY;
+
+        synchronized (mLock) {
+            op.issued = false;
+            if (mCurrent != op) {
+                return;
+            }
+            if (busy && op.busyRetries < MAX_BUSY_RETRIES) {
+                long delayMillis = Math.min(BUSY_RETRY_DELAY_MILLIS << op.busyRetries,
+                        MAX_BUSY_RETRY_DELAY_MILLIS);
+                op.busyRetries++;
+                if (DBG) Log.d(TAG, "Device busy, retrying handle " + op.handle);
+                mHandler.postDelayed(() -> retry(op), op, delayMillis);
+                return;
+            }
+            mCurrent = null;
+            mHandler.removeCallbacksAndMessages(op);
+        }
+        if (busy) {
+            Log.w(TAG, "Device still busy, failing operation on handle " + op.handle);
+        }
+        complete(op, busy ? GATT_BUSY : BluetoothGatt.GATT_FAILURE, EMPTY_VALUE);
+        issueNext();
+    }
+
+    @SuppressLint("AndroidFrameworkRequiresPermission")
+    private static int issue(BluetoothGatt gatt, int type,
+            BluetoothGattCharacteristic characteristic, BluetoothGattDescriptor descriptor,
+            byte[] value, int writeType) {
+        switch (type) {
+            case OP_READ_CHARACTERISTIC:
+                if (gatt.readCharacteristic(characteristic)) {
+                    return Issuer.STARTED;
+                }
+                return gatt.isDeviceBusy() ? Issuer.BUSY : Issuer.FAILED;
+            case OP_WRITE_CHARACTERISTIC:
+                return toIssueResult(gatt.writeCharacteristic(characteristic, value, writeType));
+            case OP_READ_DESCRIPTOR:
+                if (gatt.readDescriptor(descriptor)) {
+                    return Issuer.STARTED;
+                }
+                return gatt.isDeviceBusy() ? Issuer.BUSY : Issuer.FAILED;
+            case OP_WRITE_DESCRIPTOR:
+                return toIssueResult(gatt.writeDescriptor(descriptor, value));
+            default:
+                return Issuer.FAILED;
+        }
+    }
+
+    private static int toIssueResult(int status) {
+        switch (status) {
+            case BluetoothStatusCodes.SUCCESS:
+                return Issuer.STARTED;
+            case BluetoothStatusCodes.ERROR_GATT_WRITE_REQUEST_BUSY:
+                return Issuer.BUSY;
+            default:
+                return Issuer.FAILED;
+        }
+    }
+
+    private void complete(Operation op, int status, byte[] value) {
+        final byte[] result = value != null ? value : EMPTY_VALUE;
+        final long token = Binder.clearCallingIdentity();
+        try {
+            op.executor.execute(() -> {
+                if (status == BluetoothGatt.GATT_SUCCESS
+                        && op.type == OP_READ_CHARACTERISTIC) {
+                    op.characteristic.setValue(result);
+                } else if (status == BluetoothGatt.GATT_SUCCESS
+                        && op.type == OP_READ_DESCRIPTOR) {
+                    op.descriptor.setValue(result);
+                }
+                op.callback.onOperationCompleted(status, result);
+            });
+        } finally {
+            Binder.restoreCallingIdentity(token);
+        }
+    }
+}
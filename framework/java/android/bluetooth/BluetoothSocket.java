@@ -16,6 +16,7 @@
 
 package android.bluetooth;
 
+import android.annotation.NonNull;
 import android.annotation.RequiresNoPermission;
 import android.annotation.RequiresPermission;
 import android.bluetooth.annotations.RequiresBluetoothConnectPermission;
@@ -25,6 +26,8 @@ import android.os.Build;
 import android.os.ParcelFileDescriptor;
 import android.os.ParcelUuid;
 import android.os.RemoteException;
+import android.system.ErrnoException;
+import android.system.Os;
 import android.util.Log;
 
 import java.io.Closeable;
@@ -633,6 +636,133 @@ public final class BluetoothSocket implements Closeable {
         return length;
     }
 
+    /**
+     * Reads data from this socket into {@code dst}, like
+     * {@link java.nio.channels.ReadableByteChannel#read}. Unlike the stream returned by
+     * {@link #getInputStream}, the data is read straight into {@code dst}, which can be a direct
+     * buffer.
+     *
+     * <p>For L2CAP sockets every read returns the data of a single packet, so the packet
+     * boundaries are preserved. {@code dst} should then have at least
+     * {@link #getMaxReceivePacketSize()} bytes remaining, otherwise the packet is read into an
+     * internal buffer and returned over several reads.
+     *
+     * @param dst the buffer to read into
+     * @return the number of bytes read, or -1 if the connection was closed
+     * @throws IOException if the socket is not connected, or on error
+     */
+    @RequiresNoPermission
+    public int read(@NonNull ByteBuffer dst) throws IOException {
+        FileDescriptor fd = getConnectedFileDescriptor();
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        if ((mType == TYPE_L2CAP) || (mType == TYPE_L2CAP_LE)) {
+            if (mL2capBuffer == null) {
+                createL2capRxBuffer();
+            }
+            // Also drain what is left of a packet read through the input stream.
+            if (mL2capBuffer.hasRemaining() || dst.remaining() < mMaxRxPacketSize) {
+                if (!mL2capBuffer.hasRemaining() && fillL2capRxBuffer() == -1) {
+                    return -1;
+                }
+                int length = Math.min(dst.remaining(), mL2capBuffer.remaining());
+                int limit = mL2capBuffer.limit();
+                mL2capBuffer.limit(mL2capBuffer.position() + length);
+                dst.put(mL2capBuffer);
+                mL2capBuffer.limit(limit);
+                return length;
+            }
+        }
+        try {
+            int ret = Os.read(fd, dst);
+            if (VDBG) Log.d(TAG, "read(ByteBuffer) ret: " + ret);
+            // Nothing read while there was room means end of stream.
+            return ret == 0 ? -1 : ret;
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+    }
+
+    /**
+     * Writes the remaining data of {@code srcs} to this socket, like
+     * {@link java.nio.channels.GatheringByteChannel#write(ByteBuffer[])}. The buffers, which can
+     * be direct buffers, are written with a single gathering write where possible, without
+     * being copied.
+     *
+     * <p>For L2CAP sockets the data of all the buffers is sent as one packet, so it must not be
+     * larger than {@link #getMaxTransmitPacketSize()}.
+     *
+     * @param srcs the buffers to write
+     * @return the number of bytes written
+     * @throws IllegalArgumentException if the data is larger than an L2CAP packet
+     * @throws IOException if the socket is not connected, or on error
+     */
+    @RequiresNoPermission
+    public long write(@NonNull ByteBuffer... srcs) throws IOException {
+        FileDescriptor fd = getConnectedFileDescriptor();
+        long length = 0;
+        for (ByteBuffer src : srcs) {
+            length += src.remaining();
+        }
+        if (((mType == TYPE_L2CAP) || (mType == TYPE_L2CAP_LE)) && length > mMaxTxPacketSize) {
+            throw new IllegalArgumentException("Packet of " + length + " bytes is larger than"
+                    + " the maximum transmit packet size " + mMaxTxPacketSize);
+        }
+        long written = 0;
+        while (written < length) {
+            Object[] buffers = new Object[srcs.length];
+            int[] offsets = new int[srcs.length];
+            int[] byteCounts = new int[srcs.length];
+            int count = 0;
+            for (ByteBuffer src : srcs) {
+                if (!src.hasRemaining()) {
+                    continue;
+                }
+                if (src.isDirect()) {
+                    // Offsets in direct buffers are relative to their address.
+                    buffers[count] = src;
+                    offsets[count] = src.position();
+                } else if (src.hasArray()) {
+                    buffers[count] = src.array();
+                    offsets[count] = src.arrayOffset() + src.position();
+                } else {
+                    // Read-only heap buffers do not expose their array.
+                    byte[] copy = new byte[src.remaining()];
+                    src.duplicate().get(copy);
+                    buffers[count] = copy;
+                    offsets[count] = 0;
+                }
+                byteCounts[count] = src.remaining();
+                count++;
+            }
+            int ret;
+            try {
+                ret = Os.writev(fd, Arrays.copyOf(buffers, count), Arrays.copyOf(offsets, count),
+                        Arrays.copyOf(byteCounts, count));
+            } catch (ErrnoException e) {
+                throw e.rethrowAsIOException();
+            }
+            written += ret;
+            // Os.writev() does not update the positions of the buffers.
+            for (ByteBuffer src : srcs) {
+                int consumed = Math.min(ret, src.remaining());
+                src.position(src.position() + consumed);
+                ret -= consumed;
+            }
+        }
+        if (VDBG) Log.d(TAG, "write(ByteBuffer...) length: " + written);
+        return written;
+    }
+
+    private FileDescriptor getConnectedFileDescriptor() throws IOException {
+        LocalSocket socket = mSocket;
+        if (mSocketState != SocketState.CONNECTED || socket == null) {
+            throw new IOException("socket not connected");
+        }
+        return socket.getFileDescriptor();
+    }
+
     @Override
     public void close() throws IOException {
         Log.d(TAG, "close() this: " + this + ", channel: " + mPort + ", mSocketIS: " + mSocketIS
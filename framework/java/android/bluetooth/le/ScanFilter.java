@@ -472,18 +472,18 @@ public final class ScanFilter implements Parcelable {
             return false;
         }
 
-        // Service data match
+        // Service data match, compared in place for records that are not parsed yet.
         if (mServiceDataUuid != null) {
-            if (!matchesPartialData(mServiceData, mServiceDataMask,
-                    scanRecord.getServiceData(mServiceDataUuid))) {
+            if (!scanRecord.matchesServiceData(mServiceDataUuid, mServiceData,
+                    mServiceDataMask)) {
                 return false;
             }
         }
 
-        // Manufacturer data match.
+        // Manufacturer data match, compared in place for records that are not parsed yet.
         if (mManufacturerId >= 0) {
-            if (!matchesPartialData(mManufacturerData, mManufacturerDataMask,
-                    scanRecord.getManufacturerSpecificData(mManufacturerId))) {
+            if (!scanRecord.matchesManufacturerSpecificData(mManufacturerId, mManufacturerData,
+                    mManufacturerDataMask)) {
                 return false;
             }
         }
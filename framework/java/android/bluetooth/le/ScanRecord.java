@@ -315,33 +315,37 @@ public final class ScanRecord {
     public static final int DATA_TYPE_MANUFACTURER_SPECIFIC_DATA = 0xFF;
 
     // Flags of the advertising data.
-    private final int mAdvertiseFlags;
+    private int mAdvertiseFlags;
 
     @Nullable
-    private final List<ParcelUuid> mServiceUuids;
+    private List<ParcelUuid> mServiceUuids;
     @Nullable
-    private final List<ParcelUuid> mServiceSolicitationUuids;
+    private List<ParcelUuid> mServiceSolicitationUuids;
 
-    private final SparseArray<byte[]> mManufacturerSpecificData;
+    private SparseArray<byte[]> mManufacturerSpecificData;
 
-    private final Map<ParcelUuid, byte[]> mServiceData;
+    private Map<ParcelUuid, byte[]> mServiceData;
 
     // Transmission power level(in dB).
-    private final int mTxPowerLevel;
+    private int mTxPowerLevel;
 
     // Local name of the Bluetooth LE device.
-    private final String mDeviceName;
+    private String mDeviceName;
 
     // Raw bytes of scan record.
     private final byte[] mBytes;
 
-    private final HashMap<Integer, byte[]> mAdvertisingDataMap;
+    private HashMap<Integer, byte[]> mAdvertisingDataMap;
+
+    // False for records from parseLazilyFromBytes until a getter needs the parsed fields.
+    private volatile boolean mParsed;
 
     /**
      * Returns the advertising flags indicating the discoverable mode and capability of the device.
      * Returns -1 if the flag field is not set.
      */
     public int getAdvertiseFlags() {
+        ensureParsed();
         return mAdvertiseFlags;
     }
 
@@ -350,6 +354,7 @@ public final class ScanRecord {
      * bluetooth GATT services.
      */
     public List<ParcelUuid> getServiceUuids() {
+        ensureParsed();
         return mServiceUuids;
     }
 
@@ -359,6 +364,7 @@ public final class ScanRecord {
      */
     @NonNull
     public List<ParcelUuid> getServiceSolicitationUuids() {
+        ensureParsed();
         return mServiceSolicitationUuids;
     }
 
@@ -367,6 +373,7 @@ public final class ScanRecord {
      * data.
      */
     public SparseArray<byte[]> getManufacturerSpecificData() {
+        ensureParsed();
         return mManufacturerSpecificData;
     }
 
@@ -376,6 +383,7 @@ public final class ScanRecord {
      */
     @Nullable
     public byte[] getManufacturerSpecificData(int manufacturerId) {
+        ensureParsed();
         if (mManufacturerSpecificData == null) {
             return null;
         }
@@ -386,6 +394,7 @@ public final class ScanRecord {
      * Returns a map of service UUID and its corresponding service data.
      */
     public Map<ParcelUuid, byte[]> getServiceData() {
+        ensureParsed();
         return mServiceData;
     }
 
@@ -395,6 +404,7 @@ public final class ScanRecord {
      */
     @Nullable
     public byte[] getServiceData(ParcelUuid serviceDataUuid) {
+        ensureParsed();
         if (serviceDataUuid == null || mServiceData == null) {
             return null;
         }
@@ -409,6 +419,7 @@ public final class ScanRecord {
      * <code>pathloss = txPowerLevel - rssi</code>
      */
     public int getTxPowerLevel() {
+        ensureParsed();
         return mTxPowerLevel;
     }
 
@@ -417,6 +428,7 @@ public final class ScanRecord {
      */
     @Nullable
     public String getDeviceName() {
+        ensureParsed();
         return mDeviceName;
     }
 
@@ -427,6 +439,7 @@ public final class ScanRecord {
      * (https://www.bluetooth.com/specifications/assigned-numbers/)
      */
     public @NonNull Map<Integer, byte[]> getAdvertisingDataMap() {
+        ensureParsed();
         return mAdvertisingDataMap;
     }
 
@@ -458,6 +471,108 @@ public final class ScanRecord {
         return false;
     }
 
+    /**
+     * Test if this scan record carries manufacturer specific data for {@code manufacturerId}
+     * whose leading bytes match {@code data} under {@code dataMask}. Equivalent to comparing
+     * against {@link #getManufacturerSpecificData(int)}, but compares the raw bytes in place
+     * while the record has not been parsed.
+     *
+     * @hide
+     */
+    public boolean matchesManufacturerSpecificData(int manufacturerId, @NonNull byte[] data,
+            @Nullable byte[] dataMask) {
+        if (mParsed) {
+            byte[] parsedData = getManufacturerSpecificData(manufacturerId);
+            return parsedData != null
+                    && matchesPartialData(data, dataMask, parsedData, 0, parsedData.length);
+        }
+        if (!isWellFormed(mBytes)) {
+            return false;
+        }
+        // Like the SparseArray of the parsed record, the last field for an id wins.
+        int dataPos = -1;
+        int dataLength = 0;
+        int currentPos = 0;
+        while (currentPos < mBytes.length) {
+            int length = mBytes[currentPos] & 0xFF;
+            if (length == 0) {
+                break;
+            }
+            int fieldType = mBytes[currentPos + 1] & 0xFF;
+            int fieldPos = currentPos + 2;
+            if (fieldType == DATA_TYPE_MANUFACTURER_SPECIFIC_DATA
+                    && ((mBytes[fieldPos + 1] & 0xFF) << 8) + (mBytes[fieldPos] & 0xFF)
+                            == manufacturerId) {
+                dataPos = fieldPos + 2;
+                dataLength = length - 3;
+            }
+            currentPos = fieldPos + length - 1;
+        }
+        return dataPos >= 0 && matchesPartialData(data, dataMask, mBytes, dataPos, dataLength);
+    }
+
+    /**
+     * Test if this scan record carries service data for {@code serviceDataUuid} whose leading
+     * bytes match {@code data} under {@code dataMask}. Equivalent to comparing against
+     * {@link #getServiceData(ParcelUuid)}, but compares the raw bytes in place while the record
+     * has not been parsed.
+     *
+     * @hide
+     */
+    public boolean matchesServiceData(@NonNull ParcelUuid serviceDataUuid, @NonNull byte[] data,
+            @Nullable byte[] dataMask) {
+        if (mParsed) {
+            byte[] parsedData = getServiceData(serviceDataUuid);
+            return parsedData != null
+                    && matchesPartialData(data, dataMask, parsedData, 0, parsedData.length);
+        }
+        if (!isWellFormed(mBytes)) {
+            return false;
+        }
+        long msb = serviceDataUuid.getUuid().getMostSignificantBits();
+        long lsb = serviceDataUuid.getUuid().getLeastSignificantBits();
+        int dataPos = -1;
+        int dataLength = 0;
+        int currentPos = 0;
+        while (currentPos < mBytes.length) {
+            int length = mBytes[currentPos] & 0xFF;
+            if (length == 0) {
+                break;
+            }
+            int fieldType = mBytes[currentPos + 1] & 0xFF;
+            int fieldPos = currentPos + 2;
+            int uuidLength = serviceDataUuidLength(fieldType);
+            if (uuidLength > 0 && uuidEquals(mBytes, fieldPos, uuidLength, msb, lsb)) {
+                dataPos = fieldPos + uuidLength;
+                dataLength = length - 1 - uuidLength;
+            }
+            currentPos = fieldPos + length - 1;
+        }
+        return dataPos >= 0 && matchesPartialData(data, dataMask, mBytes, dataPos, dataLength);
+    }
+
+    private void ensureParsed() {
+        if (mParsed) {
+            return;
+        }
+        // Parsing is idempotent, so a concurrent first access at worst parses twice.
+        ScanRecord parsed = parseFromBytes(mBytes);
+        mServiceUuids = parsed.mServiceUuids;
+        mServiceSolicitationUuids = parsed.mServiceSolicitationUuids;
+        mManufacturerSpecificData = parsed.mManufacturerSpecificData;
+        mServiceData = parsed.mServiceData;
+        mDeviceName = parsed.mDeviceName;
+        mAdvertiseFlags = parsed.mAdvertiseFlags;
+        mTxPowerLevel = parsed.mTxPowerLevel;
+        mAdvertisingDataMap = parsed.mAdvertisingDataMap;
+        mParsed = true;
+    }
+
+    private ScanRecord(byte[] bytes) {
+        mBytes = bytes;
+        mParsed = false;
+    }
+
     private ScanRecord(List<ParcelUuid> serviceUuids,
             List<ParcelUuid> serviceSolicitationUuids,
             SparseArray<byte[]> manufacturerData,
@@ -473,6 +588,26 @@ public final class ScanRecord {
         mTxPowerLevel = txPowerLevel;
         mAdvertisingDataMap = advertisingDataMap;
         mBytes = bytes;
+        mParsed = true;
+    }
+
+    /**
+     * Wrap scan record bytes in a {@link ScanRecord} that is parsed on first use.
+     * <p>
+     * The record keeps a reference to {@code scanRecord} instead of copying its fields, and
+     * only builds the UUID lists and data maps when one of the getters needs them. Filters
+     * can test manufacturer and service data against the raw bytes without parsing, so
+     * records that are dropped by filtering never allocate the parsed collections. The
+     * caller must not modify {@code scanRecord} afterwards.
+     *
+     * @param scanRecord The scan record of Bluetooth LE advertisement and/or scan response.
+     * @hide
+     */
+    public static ScanRecord parseLazilyFromBytes(byte[] scanRecord) {
+        if (scanRecord == null) {
+            return null;
+        }
+        return new ScanRecord(scanRecord);
     }
 
     /**
@@ -606,6 +741,7 @@ public final class ScanRecord {
 
     @Override
     public String toString() {
+        ensureParsed();
         return "ScanRecord [mAdvertiseFlags=" + mAdvertiseFlags + ", mServiceUuids=" + mServiceUuids
                 + ", mServiceSolicitationUuids=" + mServiceSolicitationUuids
                 + ", mManufacturerSpecificData=" + BluetoothLeUtils.toString(
@@ -641,6 +777,135 @@ public final class ScanRecord {
         return currentPos;
     }
 
+    // Check if the fields of scanRecord can be walked without any of the out-of-range reads
+    // that make parseFromBytes discard the parsed fields of a record.
+    private static boolean isWellFormed(byte[] scanRecord) {
+        int currentPos = 0;
+        while (currentPos < scanRecord.length) {
+            int length = scanRecord[currentPos++] & 0xFF;
+            if (length == 0) {
+                break;
+            }
+            if (currentPos >= scanRecord.length) {
+                return false;
+            }
+            int dataLength = length - 1;
+            int fieldType = scanRecord[currentPos++] & 0xFF;
+            if (currentPos + dataLength > scanRecord.length) {
+                return false;
+            }
+            switch (fieldType) {
+                case DATA_TYPE_FLAGS:
+                case DATA_TYPE_TX_POWER_LEVEL:
+                    if (currentPos >= scanRecord.length) {
+                        return false;
+                    }
+                    break;
+                case DATA_TYPE_SERVICE_UUIDS_16_BIT_PARTIAL:
+                case DATA_TYPE_SERVICE_UUIDS_16_BIT_COMPLETE:
+                case DATA_TYPE_SERVICE_SOLICITATION_UUIDS_16_BIT:
+                    if (!isUuidListInRange(scanRecord, currentPos, dataLength,
+                            BluetoothUuid.UUID_BYTES_16_BIT)) {
+                        return false;
+                    }
+                    break;
+                case DATA_TYPE_SERVICE_UUIDS_32_BIT_PARTIAL:
+                case DATA_TYPE_SERVICE_UUIDS_32_BIT_COMPLETE:
+                case DATA_TYPE_SERVICE_SOLICITATION_UUIDS_32_BIT:
+                    if (!isUuidListInRange(scanRecord, currentPos, dataLength,
+                            BluetoothUuid.UUID_BYTES_32_BIT)) {
+                        return false;
+                    }
+                    break;
+                case DATA_TYPE_SERVICE_UUIDS_128_BIT_PARTIAL:
+                case DATA_TYPE_SERVICE_UUIDS_128_BIT_COMPLETE:
+                case DATA_TYPE_SERVICE_SOLICITATION_UUIDS_128_BIT:
+                    if (!isUuidListInRange(scanRecord, currentPos, dataLength,
+                            BluetoothUuid.UUID_BYTES_128_BIT)) {
+                        return false;
+                    }
+                    break;
+                case DATA_TYPE_SERVICE_DATA_16_BIT:
+                case DATA_TYPE_SERVICE_DATA_32_BIT:
+                case DATA_TYPE_SERVICE_DATA_128_BIT:
+                    int uuidLength = serviceDataUuidLength(fieldType);
+                    if (dataLength < uuidLength
+                            || currentPos + uuidLength > scanRecord.length) {
+                        return false;
+                    }
+                    break;
+                case DATA_TYPE_MANUFACTURER_SPECIFIC_DATA:
+                    if (dataLength < 2 || currentPos + 2 > scanRecord.length) {
+                        return false;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            currentPos += dataLength;
+        }
+        return true;
+    }
+
+    // Check if parseServiceUuid would stay within the record for the given UUID list field.
+    private static boolean isUuidListInRange(byte[] scanRecord, int currentPos, int dataLength,
+            int uuidLength) {
+        int uuidCount = (dataLength + uuidLength - 1) / uuidLength;
+        return dataLength <= 0 || currentPos + uuidCount * uuidLength <= scanRecord.length;
+    }
+
+    // Length of the UUID at the start of a service data field, or 0 for other field types.
+    private static int serviceDataUuidLength(int fieldType) {
+        switch (fieldType) {
+            case DATA_TYPE_SERVICE_DATA_16_BIT:
+                return BluetoothUuid.UUID_BYTES_16_BIT;
+            case DATA_TYPE_SERVICE_DATA_32_BIT:
+                return BluetoothUuid.UUID_BYTES_32_BIT;
+            case DATA_TYPE_SERVICE_DATA_128_BIT:
+                return BluetoothUuid.UUID_BYTES_128_BIT;
+            default:
+                return 0;
+        }
+    }
+
+    // Compare the little endian UUID at scanRecord[pos] with msb/lsb the way
+    // BluetoothUuid#parseUuidFrom would expand it, without allocating.
+    private static boolean uuidEquals(byte[] scanRecord, int pos, int uuidLength, long msb,
+            long lsb) {
+        if (uuidLength == BluetoothUuid.UUID_BYTES_128_BIT) {
+            long parsedLsb = 0;
+            long parsedMsb = 0;
+            for (int i = 7; i >= 0; i--) {
+                parsedLsb = (parsedLsb << 8) | (scanRecord[pos + i] & 0xFF);
+                parsedMsb = (parsedMsb << 8) | (scanRecord[pos + 8 + i] & 0xFF);
+            }
+            return parsedMsb == msb && parsedLsb == lsb;
+        }
+        long shortUuid = scanRecord[pos] & 0xFF;
+        shortUuid += (scanRecord[pos + 1] & 0xFF) << 8;
+        if (uuidLength == BluetoothUuid.UUID_BYTES_32_BIT) {
+            shortUuid += (scanRecord[pos + 2] & 0xFF) << 16;
+            shortUuid += (scanRecord[pos + 3] & 0xFF) << 24;
+        }
+        return BluetoothUuid.BASE_UUID.getUuid().getMostSignificantBits() + (shortUuid << 32)
+                == msb && BluetoothUuid.BASE_UUID.getUuid().getLeastSignificantBits() == lsb;
+    }
+
+    // Check if data matches, under dataMask, the first bytes of the given range of parsedData.
+    private static boolean matchesPartialData(byte[] data, byte[] dataMask, byte[] parsedData,
+            int offset, int length) {
+        if (length < data.length) {
+            return false;
+        }
+        for (int i = 0; i < data.length; ++i) {
+            byte mask = dataMask == null ? (byte) 0xFF : dataMask[i];
+            if ((mask & parsedData[offset + i]) != (mask & data[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     // Helper method to extract bytes from byte array.
     private static byte[] extractBytes(byte[] scanRecord, int start, int length) {
         byte[] bytes = new byte[length];
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Test cases for {@link BluetoothGattAttributeIndex}.
+ *
+ * <p>The service list is updated the way {@link BluetoothGatt} updates it on discovery and on
+ * service changed indications.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BluetoothGattAttributeIndexTest {
+
+    private static final UUID SERVICE_UUID = UUID.randomUUID();
+    private static final UUID CHARACTERISTIC_UUID = UUID.randomUUID();
+    private static final UUID DESCRIPTOR_UUID = UUID.randomUUID();
+
+    private List<BluetoothGattService> mServices;
+    private BluetoothGattAttributeIndex mIndex;
+
+    @Before
+    public void setUp() {
+        mServices = new ArrayList<>();
+        mIndex = new BluetoothGattAttributeIndex(mServices);
+    }
+
+    @Test
+    public void afterDiscovery_findsAttributesByHandle() {
+        BluetoothGattService service = newService(1, 3, 5);
+
+        discover(service);
+
+        BluetoothGattCharacteristic characteristic = service.getCharacteristics().get(0);
+        assertThat(mIndex.getCharacteristic(3)).isSameInstanceAs(characteristic);
+        assertThat(mIndex.getDescriptor(5))
+                .isSameInstanceAs(characteristic.getDescriptors().get(0));
+        assertThat(mIndex.getCharacteristic(5)).isNull();
+        assertThat(mIndex.getDescriptor(3)).isNull();
+        assertThat(mIndex.getCharacteristic(42)).isNull();
+    }
+
+    @Test
+    public void afterServiceChanged_stillFindsDiscoveredAttributes() {
+        BluetoothGattService service = newService(1, 3, 5);
+        discover(service);
+
+        mIndex.invalidate();
+
+        BluetoothGattCharacteristic characteristic = service.getCharacteristics().get(0);
+        assertThat(mIndex.getCharacteristic(3)).isSameInstanceAs(characteristic);
+        assertThat(mIndex.getDescriptor(5))
+                .isSameInstanceAs(characteristic.getDescriptors().get(0));
+    }
+
+    @Test
+    public void afterRediscoveryMovingHandles_findsNewAttributesOnly() {
+        discover(newService(1, 3, 5));
+        mIndex.invalidate();
+
+        BluetoothGattService moved = newService(10, 12, 14);
+        discover(moved);
+
+        BluetoothGattCharacteristic characteristic = moved.getCharacteristics().get(0);
+        assertThat(mIndex.getCharacteristic(12)).isSameInstanceAs(characteristic);
+        assertThat(mIndex.getDescriptor(14))
+                .isSameInstanceAs(characteristic.getDescriptors().get(0));
+        // The handles of the previous database are stale.
+        assertThat(mIndex.getCharacteristic(3)).isNull();
+        assertThat(mIndex.getDescriptor(5)).isNull();
+    }
+
+    @Test
+    public void whileRediscovering_staleHandlesAreNotFound() {
+        discover(newService(1, 3, 5));
+
+        // A new discovery starts.
+        mServices.clear();
+        mIndex.invalidate();
+
+        assertThat(mIndex.getCharacteristic(3)).isNull();
+        assertThat(mIndex.getDescriptor(5)).isNull();
+    }
+
+    @Test
+    public void attributeAddedAfterDiscovery_isFound() {
+        BluetoothGattService service = newService(1, 3, 5);
+        discover(service);
+
+        BluetoothGattCharacteristic added = new BluetoothGattCharacteristic(
+                CHARACTERISTIC_UUID, 7, BluetoothGattCharacteristic.PROPERTY_READ,
+                BluetoothGattCharacteristic.PERMISSION_READ);
+        service.addCharacteristic(added);
+
+        assertThat(mIndex.getCharacteristic(7)).isSameInstanceAs(added);
+    }
+
+    @Test
+    public void duplicateHandle_keepsFirstAttribute() {
+        BluetoothGattService first = newService(1, 3, 5);
+        BluetoothGattService second = newService(2, 3, 5);
+
+        discover(first, second);
+
+        assertThat(mIndex.getCharacteristic(3))
+                .isSameInstanceAs(first.getCharacteristics().get(0));
+    }
+
+    private void discover(BluetoothGattService... services) {
+        for (BluetoothGattService service : services) {
+            mServices.add(service);
+        }
+        mIndex.rebuild();
+    }
+
+    private static BluetoothGattService newService(int serviceHandle, int characteristicHandle,
+            int descriptorHandle) {
+        BluetoothGattService service = new BluetoothGattService(SERVICE_UUID, serviceHandle,
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(
+                CHARACTERISTIC_UUID, characteristicHandle,
+                BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                BluetoothGattCharacteristic.PERMISSION_READ);
+        characteristic.addDescriptor(new BluetoothGattDescriptor(DESCRIPTOR_UUID,
+                descriptorHandle, BluetoothGattDescriptor.PERMISSION_READ));
+        service.addCharacteristic(characteristic);
+        return service;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.Looper;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test cases for {@link BluetoothGattOperationQueue}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BluetoothGattOperationQueueTest {
+
+    private static final long TIMEOUT_MILLIS = 100;
+    private static final long WAIT_MILLIS = 1000;
+    private static final int HANDLE = 42;
+
+    private BlockingQueue<Integer> mIssued;
+    private BlockingQueue<Thread> mIssuingThreads;
+    private BlockingQueue<byte[]> mResults;
+    private BlockingQueue<Integer> mStatuses;
+    private BluetoothGattOperationQueue mQueue;
+    private BluetoothGattCharacteristic mCharacteristic;
+
+    @Before
+    public void setUp() {
+        mIssued = new LinkedBlockingQueue<>();
+        mIssuingThreads = new LinkedBlockingQueue<>();
+        mResults = new LinkedBlockingQueue<>();
+        mStatuses = new LinkedBlockingQueue<>();
+        mQueue = new BluetoothGattOperationQueue(
+                (type, characteristic, descriptor, value, writeType) -> {
+                    mIssuingThreads.add(Thread.currentThread());
+                    mIssued.add(type);
+                    return BluetoothGattOperationQueue.Issuer.STARTED;
+                });
+        mCharacteristic = new BluetoothGattCharacteristic(UUID.randomUUID(), HANDLE,
+                BluetoothGattCharacteristic.PROPERTY_READ,
+                BluetoothGattCharacteristic.PERMISSION_READ);
+    }
+
+    @Test
+    public void onResult_completesCurrentOperation() throws Exception {
+        enqueueRead();
+        assertThat(mIssued.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS)).isNotNull();
+
+        assertThat(mQueue.onResult(BluetoothGattOperationQueue.OP_READ_CHARACTERISTIC, HANDLE,
+                BluetoothGatt.GATT_SUCCESS, new byte[] {1})).isTrue();
+
+        assertThat(mStatuses.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS))
+                .isEqualTo(BluetoothGatt.GATT_SUCCESS);
+        assertThat(mResults.poll()).isEqualTo(new byte[] {1});
+    }
+
+    @Test
+    public void onResult_afterTimeout_isNotTakenForNextOperation() throws Exception {
+        mQueue.setTimeoutMillis(TIMEOUT_MILLIS);
+        enqueueRead();
+        enqueueRead();
+        assertThat(mIssued.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS)).isNotNull();
+
+        // The first read times out, and the second one is issued.
+        assertThat(mStatuses.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS))
+                .isEqualTo(BluetoothGatt.GATT_FAILURE);
+        mResults.clear();
+        assertThat(mIssued.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS)).isNotNull();
+
+        // The late result of the first read is dropped.
+        assertThat(mQueue.onResult(BluetoothGattOperationQueue.OP_READ_CHARACTERISTIC, HANDLE,
+                BluetoothGatt.GATT_SUCCESS, new byte[] {1})).isTrue();
+        // Results are delivered on the calling thread, so nothing can arrive later.
+        assertThat(mStatuses).isEmpty();
+
+        assertThat(mQueue.onResult(BluetoothGattOperationQueue.OP_READ_CHARACTERISTIC, HANDLE,
+                BluetoothGatt.GATT_SUCCESS, new byte[] {2})).isTrue();
+        assertThat(mStatuses.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS))
+                .isEqualTo(BluetoothGatt.GATT_SUCCESS);
+        assertThat(mResults.poll()).isEqualTo(new byte[] {2});
+    }
+
+    @Test
+    public void onResult_ofOtherAttribute_isNotConsumed() throws Exception {
+        enqueueRead();
+        assertThat(mIssued.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS)).isNotNull();
+
+        assertThat(mQueue.onResult(BluetoothGattOperationQueue.OP_READ_CHARACTERISTIC,
+                HANDLE + 1, BluetoothGatt.GATT_SUCCESS, new byte[] {1})).isFalse();
+    }
+
+    @Test
+    public void enqueue_issuesOnQueueThread() throws Exception {
+        enqueueRead();
+        assertThat(mIssued.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS)).isNotNull();
+
+        Thread thread = mIssuingThreads.poll();
+        assertThat(thread).isNotSameInstanceAs(Thread.currentThread());
+        assertThat(thread).isNotSameInstanceAs(Looper.getMainLooper().getThread());
+    }
+
+    private void enqueueRead() {
+        mQueue.enqueueCharacteristic(BluetoothGattOperationQueue.OP_READ_CHARACTERISTIC,
+                mCharacteristic, null, 0, Runnable::run, (status, value) -> {
+                    mResults.add(value);
+                    mStatuses.add(status);
+                });
+    }
+}
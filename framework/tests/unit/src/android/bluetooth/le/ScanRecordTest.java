@@ -154,6 +154,57 @@ public class ScanRecordTest extends TestCase {
                 0x50, 0x64 }, data.getServiceData().get(uuid2));
     }
 
+    @SmallTest
+    public void testLazyParser() {
+        byte[] scanRecord = new byte[] {
+                0x02, 0x01, 0x1a, // advertising flags
+                0x05, 0x02, 0x0b, 0x11, 0x0a, 0x11, // 16 bit service uuids
+                0x04, 0x09, 0x50, 0x65, 0x64, // name
+                0x02, 0x0A, (byte) 0xec, // tx power level
+                0x05, 0x16, 0x0b, 0x11, 0x50, 0x64, // service data
+                0x05, (byte) 0xff, (byte) 0xe0, 0x00, 0x02, 0x15, // manufacturer specific data
+        };
+        ParcelUuid uuid2 = ParcelUuid.fromString("0000110B-0000-1000-8000-00805F9B34FB");
+        ParcelUuid uuid3 = ParcelUuid.fromString("0000110C-0000-1000-8000-00805F9B34FB");
+
+        // In place, before anything is parsed.
+        ScanRecord data = ScanRecord.parseLazilyFromBytes(scanRecord);
+        assertTrue(data.matchesManufacturerSpecificData(0x00E0, new byte[] {0x02}, null));
+        assertTrue(data.matchesManufacturerSpecificData(0x00E0, new byte[] {0x00, 0x15},
+                new byte[] {0x00, (byte) 0xff}));
+        assertFalse(data.matchesManufacturerSpecificData(0x00E0, new byte[] {0x03}, null));
+        assertFalse(data.matchesManufacturerSpecificData(0x00E1, new byte[0], null));
+        assertTrue(data.matchesServiceData(uuid2, new byte[] {0x50, 0x64}, null));
+        assertFalse(data.matchesServiceData(uuid2, new byte[] {0x50, 0x64, 0x00}, null));
+        assertFalse(data.matchesServiceData(uuid3, new byte[0], null));
+
+        // Getters parse the same fields as parseFromBytes.
+        ScanRecord parsed = ScanRecord.parseFromBytes(scanRecord);
+        assertEquals(parsed.getAdvertiseFlags(), data.getAdvertiseFlags());
+        assertEquals(parsed.getServiceUuids(), data.getServiceUuids());
+        assertEquals(parsed.getDeviceName(), data.getDeviceName());
+        assertEquals(parsed.getTxPowerLevel(), data.getTxPowerLevel());
+        assertArrayEquals(parsed.getManufacturerSpecificData(0x00E0),
+                data.getManufacturerSpecificData(0x00E0));
+        assertArrayEquals(parsed.getServiceData(uuid2), data.getServiceData(uuid2));
+        assertSame(scanRecord, data.getBytes());
+
+        // And the matchers agree once parsed.
+        assertTrue(data.matchesManufacturerSpecificData(0x00E0, new byte[] {0x02}, null));
+        assertTrue(data.matchesServiceData(uuid2, new byte[] {0x50, 0x64}, null));
+    }
+
+    @SmallTest
+    public void testLazyParser_malformedRecordDoesNotMatch() {
+        byte[] scanRecord = new byte[] {
+                0x05, (byte) 0xff, (byte) 0xe0, 0x00, 0x02, 0x15, // manufacturer specific data
+                0x05, 0x16, 0x0b, // truncated service data
+        };
+        ScanRecord data = ScanRecord.parseLazilyFromBytes(scanRecord);
+        assertFalse(data.matchesManufacturerSpecificData(0x00E0, new byte[] {0x02}, null));
+        assertNull(ScanRecord.parseFromBytes(scanRecord).getManufacturerSpecificData(0x00E0));
+    }
+
     // Assert two byte arrays are equal.
     private static void assertArrayEquals(byte[] expected, byte[] actual) {
         if (!Arrays.equals(expected, actual)) {